@@ -31,6 +31,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.MissingResourceException;
 
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.Timer;
 import org.jivesoftware.util.ClassUtils;
 import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
@@ -53,6 +55,8 @@ public class DbConnectionManager {
 
     private static ConnectionProvider connectionProvider;
     private static final Object providerLock = new Object();
+    private static final Timer getConnectionTimer =
+            StatisticsManager.getInstance().getMetrics().getTimer("database.getConnection");
 
     // True if connection profiling is turned on. Always false by default.
     private static boolean profilingEnabled = false;
@@ -114,6 +118,16 @@ public class DbConnectionManager {
             }
         }
 
+        long start = System.nanoTime();
+        try {
+            return getConnectionWithRetries();
+        }
+        finally {
+            getConnectionTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    private static Connection getConnectionWithRetries() throws SQLException {
         // TODO: May want to make these settings configurable
         Integer retryCnt = 0;
         Integer retryMax = 10;
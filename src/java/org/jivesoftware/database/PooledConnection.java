@@ -0,0 +1,446 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Physical database connection managed by {@link PooledConnectionProvider}. Each time
+ * the connection is checked out a new logical connection is created that returns the
+ * physical connection to the pool when closed. Closing a logical connection more than
+ * once, or using it after it was closed, never affects later users of the physical
+ * connection.<p>
+ *
+ * Prepared statements created with {@link Connection#prepareStatement(String)} are
+ * kept in a per connection LRU cache and reused by later checkouts. Any other
+ * statement is closed when the logical connection is closed.<p>
+ *
+ * A physical connection is only used by one thread at a time, the one that checked
+ * it out, so the state of this class that is only used while checked out is not
+ * synchronized.
+ */
+class PooledConnection {
+
+    private static final Logger Log = LoggerFactory.getLogger(PooledConnection.class);
+
+    /**
+     * Connection methods that change state that is restored before the physical
+     * connection is reused.
+     */
+    private static final Set<String> RESTORED_STATE_METHODS = new HashSet<String>(Arrays.asList(
+            "setReadOnly", "setTransactionIsolation"));
+
+    /**
+     * Connection methods that change state that is not restored. Physical connections
+     * changed with these methods are closed instead of being reused.
+     */
+    private static final Set<String> DISCARDED_STATE_METHODS = new HashSet<String>(Arrays.asList(
+            "setCatalog", "setHoldability", "setTypeMap", "setSchema", "setClientInfo", "setNetworkTimeout"));
+
+    /**
+     * Statement methods that change state that would leak into later users of a cached
+     * statement. Statements changed with these methods are not cached.
+     */
+    private static final Set<String> STATEMENT_STATE_METHODS = new HashSet<String>(Arrays.asList(
+            "setMaxRows", "setLargeMaxRows", "setFetchSize", "setFetchDirection", "setQueryTimeout",
+            "setMaxFieldSize", "setEscapeProcessing", "setCursorName", "setPoolable", "closeOnCompletion"));
+
+    private final PooledConnectionProvider pool;
+    private final Connection connection;
+    private final long creationTime;
+    private final int defaultTransactionIsolation;
+    private final Map<String, PreparedStatement> statementCache;
+
+    private volatile long lastUsed;
+    private volatile long checkoutTime;
+    private volatile Thread checkoutThread;
+    private volatile boolean leakReported;
+
+    private boolean broken = false;
+    private boolean stateChanged = false;
+    private boolean stateDiscarded = false;
+    private boolean autoCommitDisabled = false;
+    private final List<Statement> openStatements = new ArrayList<Statement>();
+
+    PooledConnection(PooledConnectionProvider pool, Connection connection, final int statementCacheSize)
+            throws SQLException
+    {
+        this.pool = pool;
+        this.connection = connection;
+        this.creationTime = System.currentTimeMillis();
+        this.lastUsed = creationTime;
+        this.defaultTransactionIsolation = connection.getTransactionIsolation();
+        this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a new logical connection for the physical connection. Only the time and the
+     * thread of the checkout are kept for leak reports, the stack is read when a leak is
+     * reported.
+     *
+     * @return a new logical connection.
+     */
+    Connection checkout() {
+        checkoutTime = System.currentTimeMillis();
+        checkoutThread = Thread.currentThread();
+        leakReported = false;
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new LogicalConnection());
+    }
+
+    /**
+     * Restores the default state of the physical connection and closes the statements
+     * that were not returned to the statement cache.
+     *
+     * @return true if the physical connection can be reused.
+     */
+    boolean reset() {
+        lastUsed = System.currentTimeMillis();
+        checkoutThread = null;
+        // Cached statements that were not closed go back to the cache
+        List<Statement> statements = new ArrayList<Statement>(openStatements);
+        openStatements.clear();
+        for (Statement statement : statements) {
+            closeQuietly(statement);
+        }
+        if (broken || stateDiscarded) {
+            return false;
+        }
+        try {
+            if (autoCommitDisabled && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (stateChanged) {
+                if (connection.isReadOnly()) {
+                    connection.setReadOnly(false);
+                }
+                if (connection.getTransactionIsolation() != defaultTransactionIsolation) {
+                    connection.setTransactionIsolation(defaultTransactionIsolation);
+                }
+            }
+            connection.clearWarnings();
+            autoCommitDisabled = false;
+            stateChanged = false;
+            return true;
+        }
+        catch (SQLException e) {
+            Log.debug("Discarding connection that could not be reset", e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the physical connection and the cached statements.
+     */
+    void close() {
+        for (PreparedStatement statement : statementCache.values()) {
+            closeQuietly(statement);
+        }
+        statementCache.clear();
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            Log.debug("Error closing pooled connection", e);
+        }
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    long getCreationTime() {
+        return creationTime;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    long getCheckoutTime() {
+        return checkoutTime;
+    }
+
+    /**
+     * Returns the current stack of the thread that checked out the connection, or null if
+     * the connection is not checked out.
+     */
+    Throwable getCheckoutTrace() {
+        Thread thread = checkoutThread;
+        if (thread == null) {
+            return null;
+        }
+        Throwable trace = new Throwable("Connection checked out by " + thread.getName() +
+                (thread.isAlive() ? ", current stack of the thread" : ", the thread ended"));
+        trace.setStackTrace(thread.getStackTrace());
+        return trace;
+    }
+
+    /**
+     * Returns true the first time it is invoked for a checkout, so that a leak is only
+     * reported once.
+     */
+    boolean markLeakReported() {
+        if (leakReported) {
+            return false;
+        }
+        leakReported = true;
+        return true;
+    }
+
+    private Object invokeOnConnection(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(connection, args);
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                checkBroken((SQLException) cause);
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * Marks the connection as broken if the exception was caused by a connection error
+     * (SQL state class 08), so that it is not returned to the pool.
+     */
+    private void checkBroken(SQLException e) {
+        String state = e.getSQLState();
+        if (state != null && state.startsWith("08")) {
+            broken = true;
+        }
+    }
+
+    private PreparedStatement prepareCachedStatement(String sql) throws SQLException {
+        PreparedStatement statement = statementCache.remove(sql);
+        if (statement == null) {
+            pool.statementCacheMiss();
+            try {
+                statement = connection.prepareStatement(sql);
+            }
+            catch (SQLException e) {
+                checkBroken(e);
+                throw e;
+            }
+        }
+        else {
+            pool.statementCacheHit();
+        }
+        CachedStatement handler = new CachedStatement(sql, statement);
+        PreparedStatement logical = (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, handler);
+        openStatements.add(logical);
+        return logical;
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        }
+        catch (SQLException e) {
+            Log.debug("Error closing statement", e);
+        }
+    }
+
+    /**
+     * Connection handed to the callers of the pool.
+     */
+    private class LogicalConnection implements InvocationHandler {
+
+        private boolean closed = false;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    pool.release(PooledConnection.this);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed || connection.isClosed();
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "Pooled " + connection;
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if ("prepareStatement".equals(name) && args.length == 1 && !statementCacheDisabled()) {
+                return prepareCachedStatement((String) args[0]);
+            }
+            if ("setAutoCommit".equals(name)) {
+                autoCommitDisabled |= !((Boolean) args[0]);
+            }
+            else if (RESTORED_STATE_METHODS.contains(name)) {
+                stateChanged = true;
+            }
+            else if (DISCARDED_STATE_METHODS.contains(name)) {
+                stateDiscarded = true;
+            }
+            Object result = invokeOnConnection(method, args);
+            if (result instanceof Statement) {
+                openStatements.add((Statement) result);
+            }
+            return result;
+        }
+
+        private boolean statementCacheDisabled() {
+            return pool.getStatementCacheSize() <= 0;
+        }
+    }
+
+    /**
+     * Prepared statement that goes back to the statement cache when closed.
+     */
+    private class CachedStatement implements InvocationHandler {
+
+        private final String sql;
+        private final PreparedStatement statement;
+        private boolean closed = false;
+        private boolean cacheable = true;
+        private boolean batched = false;
+        private ResultSet resultSet;
+
+        CachedStatement(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    release();
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed || statement.isClosed();
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return statement.toString();
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            if ("getConnection".equals(name)) {
+                // Never hand out the physical connection
+                throw new SQLException("Not supported by pooled statements");
+            }
+            if (STATEMENT_STATE_METHODS.contains(name)) {
+                cacheable = false;
+            }
+            else if ("addBatch".equals(name)) {
+                batched = true;
+            }
+            try {
+                Object result = method.invoke(statement, args);
+                if (result instanceof ResultSet) {
+                    resultSet = (ResultSet) result;
+                }
+                return result;
+            }
+            catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    checkBroken((SQLException) cause);
+                    cacheable = false;
+                }
+                throw cause;
+            }
+        }
+
+        private void release() throws SQLException {
+            for (Iterator<Statement> it = openStatements.iterator(); it.hasNext();) {
+                Statement open = it.next();
+                if (Proxy.isProxyClass(open.getClass()) && Proxy.getInvocationHandler(open) == this) {
+                    it.remove();
+                    break;
+                }
+            }
+            if (!cacheable || broken || statementCache.containsKey(sql)) {
+                statement.close();
+                return;
+            }
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                    resultSet = null;
+                }
+                if (batched) {
+                    statement.clearBatch();
+                }
+                statement.clearParameters();
+                statement.clearWarnings();
+                statementCache.put(sql, statement);
+            }
+            catch (SQLException e) {
+                closeQuietly(statement);
+                throw e;
+            }
+        }
+    }
+}
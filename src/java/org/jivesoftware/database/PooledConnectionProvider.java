@@ -0,0 +1,824 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.database;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jivesoftware.util.ClassUtils;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection provider with an internal connection pool designed for low checkout
+ * overhead. It reads the same <tt>database.defaultProvider.*</tt> properties as
+ * {@link DefaultConnectionProvider} and is used by setting the
+ * <tt>connectionProvider.className</tt> property to the name of this class.<p>
+ *
+ * Idle connections are kept in a lock-free stack, so that the most recently used
+ * connection is handed out first, and the number of connections in use is bounded by a
+ * semaphore. Threads only wait, up to <tt>database.defaultProvider.checkoutTimeout</tt>
+ * milliseconds, when all the connections are in use. Drivers are looked up once, when
+ * the provider is started, instead of on every checkout.<p>
+ *
+ * A house keeping task validates idle connections with the test SQL, closes connections
+ * that exceeded their lifetime, keeps the minimum number of connections open and logs
+ * connections that were checked out for longer than
+ * <tt>database.defaultProvider.leakDetectionThreshold</tt> milliseconds, together with
+ * the name and the current stack of the thread that checked them out. Checkouts only
+ * record their time and thread; stacks are read when a leak is reported.<p>
+ *
+ * Prepared statements are cached per connection, up to
+ * <tt>database.defaultProvider.statementCacheSize</tt> statements per connection.
+ *
+ * @see PooledConnection
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+
+    private static final Logger Log = LoggerFactory.getLogger(PooledConnectionProvider.class);
+
+    /**
+     * Upper bounds (inclusive) in microseconds of the buckets of the checkout time histogram.
+     */
+    private static final long[] CHECKOUT_BUCKETS = {10, 100, 1000, 10000, 100000, 1000000, Long.MAX_VALUE};
+
+    private String driver;
+    private String serverURL;
+    private String username;
+    private String password;
+    private int minConnections = 3;
+    private int maxConnections = 10;
+    private String testSQL = "";
+    private Boolean testBeforeUse = false;
+    private Boolean testAfterUse = false;
+
+    /**
+     * Maximum time a connection can be open before it's reopened (in days)
+     */
+    private double connectionTimeout = 0.5;
+
+    private long checkoutTimeout = 30000;
+    private long idleTimeout = 600000;
+    private long leakDetectionThreshold = 900000;
+    private long houseKeepingInterval = 30000;
+    private int statementCacheSize = 50;
+
+    private volatile Pool pool;
+
+    private final AtomicLong connectionsServed = new AtomicLong(0);
+    private final AtomicLong connectionsRefused = new AtomicLong(0);
+    private final AtomicLong connectionsLeaked = new AtomicLong(0);
+    private final AtomicLong totalWaitTime = new AtomicLong(0);
+    private final AtomicLong statementCacheHits = new AtomicLong(0);
+    private final AtomicLong statementCacheMisses = new AtomicLong(0);
+    private final AtomicLongArray checkoutHistogram = new AtomicLongArray(CHECKOUT_BUCKETS.length);
+
+    /**
+     * Creates a new PooledConnectionProvider.
+     */
+    public PooledConnectionProvider() {
+        loadProperties();
+    }
+
+    public boolean isPooled() {
+        return true;
+    }
+
+    public Connection getConnection() throws SQLException {
+        Pool current = pool;
+        if (current == null) {
+            throw new SQLException("Connection provider is not started");
+        }
+        return current.getConnection();
+    }
+
+    public void start() {
+        if (pool != null) {
+            return;
+        }
+        Driver jdbcDriver = null;
+        try {
+            // Make sure the driver is registered and resolve it once
+            ClassUtils.forName(driver);
+            jdbcDriver = DriverManager.getDriver(serverURL);
+        }
+        catch (Exception e) {
+            Log.error("Unable to load JDBC driver " + driver + " for " + serverURL, e);
+        }
+        Properties settings = new Properties();
+        if (username != null) {
+            settings.setProperty("user", username);
+        }
+        settings.setProperty("password", password != null ? password : "");
+        pool = new Pool(jdbcDriver, settings);
+        TaskEngine.getInstance().schedule(pool.houseKeeping, houseKeepingInterval, houseKeepingInterval);
+    }
+
+    public void restart() {
+        destroy();
+        start();
+    }
+
+    public void destroy() {
+        Pool current = pool;
+        pool = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * Returns the JDBC driver classname used to make database connections.
+     * For example: com.mysql.jdbc.Driver
+     *
+     * @return the JDBC driver classname.
+     */
+    public String getDriver() {
+        return driver;
+    }
+
+    /**
+     * Sets the JDBC driver classname used to make database connections.
+     * For example: com.mysql.jdbc.Driver
+     *
+     * @param driver the fully qualified JDBC driver name.
+     */
+    public void setDriver(String driver) {
+        this.driver = driver;
+        saveProperties();
+    }
+
+    /**
+     * Returns the JDBC connection URL used to make database connections.
+     *
+     * @return the JDBC connection URL.
+     */
+    public String getServerURL() {
+        return serverURL;
+    }
+
+    /**
+     * Sets the JDBC connection URL used to make database connections.
+     *
+     * @param serverURL the JDBC connection URL.
+     */
+    public void setServerURL(String serverURL) {
+        this.serverURL = serverURL;
+        saveProperties();
+    }
+
+    /**
+     * Returns the username used to connect to the database. In some cases,
+     * a username is not needed so this method will return null.
+     *
+     * @return the username used to connect to the datbase.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Sets the username used to connect to the database. In some cases, a
+     * username is not needed so null should be passed in.
+     *
+     * @param username the username used to connect to the database.
+     */
+    public void setUsername(String username) {
+        this.username = username;
+        saveProperties();
+    }
+
+    /**
+     * Returns the password used to connect to the database. In some cases,
+     * a password is not needed so this method will return null.
+     *
+     * @return the password used to connect to the database.
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * Sets the password used to connect to the database. In some cases, a
+     * password is not needed so null should be passed in.
+     *
+     * @param password the password used to connect to the database.
+     */
+    public void setPassword(String password) {
+        this.password = password;
+        saveProperties();
+    }
+
+    /**
+     * Returns the minimum number of connections that the pool keeps open.
+     *
+     * @return the minimum number of connections in the pool.
+     */
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * Sets the minimum number of connections that the pool keeps open.
+     *
+     * @param minConnections the minimum number of connections in the pool.
+     */
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+        saveProperties();
+    }
+
+    /**
+     * Returns the maximum number of connections that can be in use at the same time.
+     *
+     * @return the max possible number of connections in the pool.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections that can be in use at the same time.
+     * The new value is used once the provider is restarted.
+     *
+     * @param maxConnections the max possible number of connections in the pool.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        saveProperties();
+    }
+
+    /**
+     * Returns the amount of time between connection recycles in days. For
+     * example, a value of .5 would correspond to recycling the connections
+     * in the pool once every half day.
+     *
+     * @return the amount of time in days between connection recycles.
+     */
+    public double getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Sets the amount of time between connection recycles in days. For
+     * example, a value of .5 would correspond to recycling the connections
+     * in the pool once every half day.
+     *
+     * @param connectionTimeout the amount of time in days between connection
+     *                          recycles.
+     */
+    public void setConnectionTimeout(double connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+        saveProperties();
+    }
+
+    /**
+     * Returns the SQL statement used to test if a connection is valid. When empty,
+     * connections are tested with {@link Connection#isValid(int)}.
+     *
+     * @return the SQL statement that will be run to test a connection.
+     */
+    public String getTestSQL() {
+        return testSQL;
+    }
+
+    /**
+     * Sets the SQL statement used to test if a connection is valid. House keeping
+     * and before/after connection tests make use of this.
+     *
+     * @param testSQL the SQL statement that will be run to test a connection.
+     */
+    public void setTestSQL(String testSQL) {
+        this.testSQL = testSQL;
+    }
+
+    /**
+     * Returns whether connections are tested before being handed over to be used.
+     *
+     * @return True if connections are tested before use.
+     */
+    public Boolean getTestBeforeUse() {
+        return testBeforeUse;
+    }
+
+    /**
+     * Sets whether connections are tested before being handed over to be used.
+     *
+     * @param testBeforeUse True or false if connections are to be tested before use.
+     */
+    public void setTestBeforeUse(Boolean testBeforeUse) {
+        this.testBeforeUse = testBeforeUse;
+    }
+
+    /**
+     * Returns whether connections are tested after being returned to the pool.
+     *
+     * @return True if connections are tested after use.
+     */
+    public Boolean getTestAfterUse() {
+        return testAfterUse;
+    }
+
+    /**
+     * Sets whether connections are tested after being returned to the pool.
+     *
+     * @param testAfterUse True or false if connections are to be tested after use.
+     */
+    public void setTestAfterUse(Boolean testAfterUse) {
+        this.testAfterUse = testAfterUse;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds that a thread waits for a connection
+     * when all the connections are in use.
+     *
+     * @return the maximum time in milliseconds to wait for a connection.
+     */
+    public long getCheckoutTimeout() {
+        return checkoutTimeout;
+    }
+
+    /**
+     * Returns the time in milliseconds after which connections that are checked out
+     * are reported as leaked, or zero if leaks are not reported.
+     *
+     * @return the time in milliseconds after which connections are reported as leaked.
+     */
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * Returns the time in milliseconds between runs of the house keeping task.
+     *
+     * @return the time in milliseconds between runs of the house keeping task.
+     */
+    public long getHouseKeepingInterval() {
+        return houseKeepingInterval;
+    }
+
+    /**
+     * Returns the maximum number of prepared statements cached per connection.
+     *
+     * @return the maximum number of prepared statements cached per connection.
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Returns the number of connections that are checked out.
+     *
+     * @return the number of connections that are checked out.
+     */
+    public int getActiveConnections() {
+        Pool current = pool;
+        return current != null ? current.active.size() : 0;
+    }
+
+    /**
+     * Returns the number of open connections that are not checked out.
+     *
+     * @return the number of idle connections.
+     */
+    public int getIdleConnections() {
+        Pool current = pool;
+        return current != null ? current.idleCount.get() : 0;
+    }
+
+    /**
+     * Returns the number of threads waiting for a connection.
+     *
+     * @return the number of threads waiting for a connection.
+     */
+    public int getWaitingThreads() {
+        Pool current = pool;
+        return current != null ? current.waiting.get() : 0;
+    }
+
+    /**
+     * Returns the number of connections handed out since the provider was created.
+     *
+     * @return the number of connections handed out.
+     */
+    public long getConnectionsServed() {
+        return connectionsServed.get();
+    }
+
+    /**
+     * Returns the number of requests for a connection that failed because no connection
+     * became available in time or a new connection could not be opened.
+     *
+     * @return the number of requests for a connection that failed.
+     */
+    public long getConnectionsRefused() {
+        return connectionsRefused.get();
+    }
+
+    /**
+     * Returns the number of connections that were reported as leaked.
+     *
+     * @return the number of connections that were reported as leaked.
+     */
+    public long getConnectionsLeaked() {
+        return connectionsLeaked.get();
+    }
+
+    /**
+     * Returns the average time in milliseconds it took to check out a connection.
+     *
+     * @return the average time in milliseconds it took to check out a connection.
+     */
+    public double getAverageCheckoutTime() {
+        long served = connectionsServed.get();
+        return served == 0 ? 0 : totalWaitTime.get() / (served * 1000000d);
+    }
+
+    /**
+     * Returns the upper bounds, in microseconds, of the buckets of the checkout
+     * time histogram.
+     *
+     * @return the upper bounds of the buckets of the checkout time histogram.
+     * @see #getCheckoutHistogram()
+     */
+    public long[] getCheckoutHistogramBounds() {
+        return CHECKOUT_BUCKETS.clone();
+    }
+
+    /**
+     * Returns the number of checkouts that took up to the time of each bucket and more
+     * than the time of the previous bucket.
+     *
+     * @return the number of checkouts of each bucket of the checkout time histogram.
+     * @see #getCheckoutHistogramBounds()
+     */
+    public long[] getCheckoutHistogram() {
+        long[] counts = new long[checkoutHistogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = checkoutHistogram.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the number of prepared statements that were served from the statement cache.
+     *
+     * @return the number of statement cache hits.
+     */
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /**
+     * Returns the number of prepared statements that were not found in the statement cache.
+     *
+     * @return the number of statement cache misses.
+     */
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    /**
+     * Runs the house keeping task of the started pool right away.
+     *
+     * @throws SQLException if a connection could not be opened to keep the min number of connections.
+     */
+    void houseKeep() throws SQLException {
+        Pool current = pool;
+        if (current != null) {
+            current.houseKeep();
+        }
+    }
+
+    void statementCacheHit() {
+        statementCacheHits.incrementAndGet();
+    }
+
+    void statementCacheMiss() {
+        statementCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Returns a connection that was checked out to the pool it came from.
+     */
+    void release(PooledConnection connection) {
+        Pool current = pool;
+        Pool owner = current != null && current.active.containsKey(connection) ? current : null;
+        if (owner == null) {
+            // The pool was destroyed while the connection was checked out
+            connection.reset();
+            connection.close();
+            return;
+        }
+        owner.release(connection);
+    }
+
+    /**
+     * Load properties that already exist from Jive properties.
+     */
+    private void loadProperties() {
+        driver = JiveGlobals.getXMLProperty("database.defaultProvider.driver");
+        serverURL = JiveGlobals.getXMLProperty("database.defaultProvider.serverURL");
+        username = JiveGlobals.getXMLProperty("database.defaultProvider.username");
+        password = JiveGlobals.getXMLProperty("database.defaultProvider.password");
+        String minCons = JiveGlobals.getXMLProperty("database.defaultProvider.minConnections");
+        String maxCons = JiveGlobals.getXMLProperty("database.defaultProvider.maxConnections");
+        String conTimeout = JiveGlobals.getXMLProperty("database.defaultProvider.connectionTimeout");
+        testSQL = JiveGlobals.getXMLProperty("database.defaultProvider.testSQL", DbConnectionManager.getTestSQL(driver));
+        testBeforeUse = JiveGlobals.getXMLProperty("database.defaultProvider.testBeforeUse", false);
+        testAfterUse = JiveGlobals.getXMLProperty("database.defaultProvider.testAfterUse", false);
+        checkoutTimeout = JiveGlobals.getXMLProperty("database.defaultProvider.checkoutTimeout", 30000);
+        idleTimeout = JiveGlobals.getXMLProperty("database.defaultProvider.idleTimeout", 600000);
+        leakDetectionThreshold = JiveGlobals.getXMLProperty("database.defaultProvider.leakDetectionThreshold", 900000);
+        houseKeepingInterval = Math.max(1000, JiveGlobals.getXMLProperty("database.defaultProvider.houseKeepingInterval", 30000));
+        statementCacheSize = JiveGlobals.getXMLProperty("database.defaultProvider.statementCacheSize", 50);
+
+        try {
+            if (minCons != null) {
+                minConnections = Integer.parseInt(minCons);
+            }
+            if (maxCons != null) {
+                maxConnections = Integer.parseInt(maxCons);
+            }
+            if (conTimeout != null) {
+                connectionTimeout = Double.parseDouble(conTimeout);
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error: could not parse default pool properties. " +
+                    "Make sure the values exist and are correct.", e);
+        }
+    }
+
+    /**
+     * Save properties as Jive properties.
+     */
+    private void saveProperties() {
+        JiveGlobals.setXMLProperty("database.defaultProvider.driver", driver);
+        JiveGlobals.setXMLProperty("database.defaultProvider.serverURL", serverURL);
+        JiveGlobals.setXMLProperty("database.defaultProvider.username", username);
+        JiveGlobals.setXMLProperty("database.defaultProvider.password", password);
+        JiveGlobals.setXMLProperty("database.defaultProvider.testSQL", testSQL);
+        JiveGlobals.setXMLProperty("database.defaultProvider.testBeforeUse", testBeforeUse.toString());
+        JiveGlobals.setXMLProperty("database.defaultProvider.testAfterUse", testAfterUse.toString());
+
+        JiveGlobals.setXMLProperty("database.defaultProvider.minConnections",
+                Integer.toString(minConnections));
+        JiveGlobals.setXMLProperty("database.defaultProvider.maxConnections",
+                Integer.toString(maxConnections));
+        JiveGlobals.setXMLProperty("database.defaultProvider.connectionTimeout",
+                Double.toString(connectionTimeout));
+    }
+
+    @Override
+    public String toString() {
+        return minConnections + "," + maxConnections + "," + getIdleConnections() + "," + getActiveConnections();
+    }
+
+    /**
+     * Connections of a started provider. A new pool is created each time the provider
+     * is restarted.
+     */
+    private class Pool {
+
+        private final Driver jdbcDriver;
+        private final Properties settings;
+        private final long maxLifetime = (long) (86400000 * connectionTimeout);
+        private final Semaphore permits = new Semaphore(Math.max(1, maxConnections));
+        private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+        private final AtomicInteger idleCount = new AtomicInteger(0);
+        private final ConcurrentHashMap<PooledConnection, Boolean> active =
+                new ConcurrentHashMap<PooledConnection, Boolean>();
+        private final AtomicInteger waiting = new AtomicInteger(0);
+        private volatile boolean closed = false;
+
+        private final TimerTask houseKeeping = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    houseKeep();
+                }
+                catch (Exception e) {
+                    Log.error("Error in connection pool house keeping", e);
+                }
+            }
+        };
+
+        Pool(Driver jdbcDriver, Properties settings) {
+            this.jdbcDriver = jdbcDriver;
+            this.settings = settings;
+        }
+
+        Connection getConnection() throws SQLException {
+            long start = System.nanoTime();
+            if (!permits.tryAcquire()) {
+                waiting.incrementAndGet();
+                try {
+                    if (!permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS)) {
+                        connectionsRefused.incrementAndGet();
+                        throw new SQLException("Timed out after " + checkoutTimeout +
+                                " ms waiting for a database connection (" + maxConnections + " in use)");
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a database connection");
+                }
+                finally {
+                    waiting.decrementAndGet();
+                }
+            }
+            try {
+                PooledConnection connection;
+                while ((connection = idle.pollFirst()) != null) {
+                    idleCount.decrementAndGet();
+                    if (!isExpired(connection) && (!testBeforeUse || isValid(connection))) {
+                        break;
+                    }
+                    connection.close();
+                }
+                if (connection == null) {
+                    connection = open();
+                }
+                active.put(connection, Boolean.TRUE);
+                Connection logical = connection.checkout();
+                record(System.nanoTime() - start);
+                return logical;
+            }
+            catch (SQLException e) {
+                permits.release();
+                connectionsRefused.incrementAndGet();
+                throw e;
+            }
+            catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        void release(PooledConnection connection) {
+            try {
+                boolean reusable = connection.reset() && !closed && !isExpired(connection)
+                        && (!testAfterUse || isValid(connection));
+                active.remove(connection);
+                if (reusable) {
+                    idle.offerFirst(connection);
+                    idleCount.incrementAndGet();
+                    if (closed && idle.remove(connection)) {
+                        // Closed concurrently
+                        idleCount.decrementAndGet();
+                        connection.close();
+                    }
+                }
+                else {
+                    connection.close();
+                }
+            }
+            finally {
+                permits.release();
+            }
+        }
+
+        private PooledConnection open() throws SQLException {
+            Connection connection;
+            if (jdbcDriver != null) {
+                connection = jdbcDriver.connect(serverURL, settings);
+                if (connection == null) {
+                    throw new SQLException("JDBC driver does not accept URL " + serverURL);
+                }
+            }
+            else {
+                connection = DriverManager.getConnection(serverURL, settings);
+            }
+            try {
+                return new PooledConnection(PooledConnectionProvider.this, connection, statementCacheSize);
+            }
+            catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        private void record(long nanos) {
+            connectionsServed.incrementAndGet();
+            totalWaitTime.addAndGet(nanos);
+            long micros = nanos / 1000;
+            for (int i = 0; i < CHECKOUT_BUCKETS.length; i++) {
+                if (micros <= CHECKOUT_BUCKETS[i]) {
+                    checkoutHistogram.incrementAndGet(i);
+                    return;
+                }
+            }
+        }
+
+        private boolean isExpired(PooledConnection connection) {
+            return maxLifetime > 0 && System.currentTimeMillis() - connection.getCreationTime() > maxLifetime;
+        }
+
+        private boolean isValid(PooledConnection connection) {
+            try {
+                if (testSQL == null || testSQL.trim().length() == 0) {
+                    return connection.getConnection().isValid(5);
+                }
+                Statement statement = connection.getConnection().createStatement();
+                try {
+                    statement.execute(testSQL);
+                }
+                finally {
+                    statement.close();
+                }
+                return true;
+            }
+            catch (SQLException e) {
+                Log.debug("Discarding connection that failed validation", e);
+                return false;
+            }
+        }
+
+        private void houseKeep() throws SQLException {
+            long now = System.currentTimeMillis();
+            // Check a snapshot of the idle connections. Iterating the deque itself would also
+            // visit the connections put back below, so the loop would never end
+            List<PooledConnection> snapshot = new ArrayList<PooledConnection>(idle);
+            List<PooledConnection> survivors = new ArrayList<PooledConnection>(snapshot.size());
+            for (PooledConnection connection : snapshot) {
+                // Claim each idle connection before checking it, so that it is not handed out meanwhile
+                if (!idle.remove(connection)) {
+                    continue;
+                }
+                int remaining = idleCount.decrementAndGet() + survivors.size();
+                boolean keep = !closed && !isExpired(connection) &&
+                        (now - connection.getLastUsed() < idleTimeout || remaining + active.size() < minConnections) &&
+                        isValid(connection);
+                if (keep) {
+                    survivors.add(connection);
+                }
+                else {
+                    connection.close();
+                }
+            }
+            for (PooledConnection connection : survivors) {
+                idle.offerLast(connection);
+                idleCount.incrementAndGet();
+            }
+            while (!closed && idleCount.get() + active.size() < minConnections) {
+                idle.offerLast(open());
+                idleCount.incrementAndGet();
+            }
+            if (leakDetectionThreshold > 0) {
+                for (PooledConnection connection : active.keySet()) {
+                    long checkedOut = now - connection.getCheckoutTime();
+                    if (checkedOut > leakDetectionThreshold && connection.markLeakReported()) {
+                        connectionsLeaked.incrementAndGet();
+                        Log.warn("Database connection checked out for " + checkedOut +
+                                " ms, it may have been leaked", connection.getCheckoutTrace());
+                    }
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            TaskEngine.getInstance().cancelScheduledTask(houseKeeping);
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                connection.close();
+            }
+        }
+    }
+}
@@ -37,6 +37,8 @@ import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.Timer;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.TaskEngine;
@@ -68,6 +70,10 @@ public class IQRouter extends BasicModule {
     private Map<String, IQHandler> namespace2Handlers = new ConcurrentHashMap<String, IQHandler>();
     private Map<String, IQResultListener> resultListeners = new ConcurrentHashMap<String, IQResultListener>();
     private Map<String, Long> resultTimeout = new ConcurrentHashMap<String, Long>();
+    /**
+     * Timers of the IQ handlers. Key: namespace of the handler
+     */
+    private Map<String, Timer> handlerTimers = new ConcurrentHashMap<String, Timer>();
     private SessionManager sessionManager;
     private UserManager userManager;
 
@@ -377,7 +383,13 @@ public class IQRouter extends BasicModule {
                         }
                     }
                     else {
-                        handler.process(packet);
+                        long start = System.nanoTime();
+                        try {
+                            handler.process(packet);
+                        }
+                        finally {
+                            getHandlerTimer(namespace).update(System.nanoTime() - start);
+                        }
                     }
                 }
             }
@@ -446,6 +458,18 @@ public class IQRouter extends BasicModule {
         routingTable.routePacket(reply.getTo(), reply, true);
     }
 
+    /**
+     * Returns the timer of the handler of the specified namespace.
+     */
+    private Timer getHandlerTimer(String namespace) {
+        Timer timer = handlerTimers.get(namespace);
+        if (timer == null) {
+            timer = StatisticsManager.getInstance().getMetrics().getTimer("iq.handler." + namespace);
+            handlerTimers.put(namespace, timer);
+        }
+        return timer;
+    }
+
     private IQHandler getHandler(String namespace) {
         IQHandler handler = namespace2Handlers.get(namespace);
         if (handler == null) {
@@ -15,6 +15,7 @@ import org.eclipse.jetty.jmx.ConnectorServer;
 import org.eclipse.jetty.jmx.MBeanContainer;
 import org.jivesoftware.openfire.admin.AdminManager;
 import org.jivesoftware.openfire.auth.AuthFactory;
+import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -106,6 +107,8 @@ public class JMXManager {
 	private void start() {
 
 		setContainer(new MBeanContainer(ManagementFactory.getPlatformMBeanServer()));
+		// Expose the metrics of the server (timers, counters and gauges)
+		StatisticsManager.getInstance().getMetrics().registerMBeans(ManagementFactory.getPlatformMBeanServer());
 		int jmxPort = JMXManager.getPort();
 		String jmxUrl = "/jndi/rmi://localhost:" + jmxPort + "/jmxrmi";
 		Map<String, Object> env = new HashMap<String, Object>();
@@ -32,6 +32,7 @@ import org.jivesoftware.openfire.event.UserEventListener;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.XMPPDateTimeFormat;
@@ -46,6 +47,7 @@ import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -72,8 +74,10 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         "SELECT stanza, creationDate FROM ofOffline WHERE username=?";
     private static final String LOAD_OFFLINE_MESSAGE =
         "SELECT stanza FROM ofOffline WHERE username=? AND creationDate=?";
-    private static final String SELECT_SIZE_OFFLINE =
-        "SELECT SUM(messageSize) FROM ofOffline WHERE username=?";
+    private static final String SELECT_USAGE_OFFLINE =
+        "SELECT SUM(messageSize), COUNT(*) FROM ofOffline WHERE username=?";
+    private static final String SELECT_SIZE_OFFLINE_MESSAGE =
+        "SELECT messageSize FROM ofOffline WHERE username=? AND creationDate=?";
     private static final String SELECT_SIZE_ALL_OFFLINE =
         "SELECT SUM(messageSize) FROM ofOffline";
     private static final String DELETE_OFFLINE =
@@ -82,8 +86,18 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         "DELETE FROM ofOffline WHERE username=? AND creationDate=?";
 
     private static final int POOL_SIZE = 10;
-    
-    private Cache<String, Integer> sizeCache;
+
+    private Cache<String, OfflineMessageUsage> sizeCache;
+
+    /**
+     * Inserts stored messages into the database in batches.
+     */
+    private final OfflineMessageWriter writer = new OfflineMessageWriter(
+            new OfflineMessageWriter.MessageStore() {
+                public void insertMessages(List<OfflineMessageWriter.PendingMessage> messages) {
+                    OfflineMessageStore.this.insertMessages(messages);
+                }
+            });
 
     /**
      * Pattern to use for detecting invalid XML characters. Invalid XML characters will
@@ -143,32 +157,74 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Get the message in XML format.
         String msgXML = message.getElement().asXML();
 
+        OfflineMessageWriter.PendingMessage pending = new OfflineMessageWriter.PendingMessage(username,
+                messageID, StringUtils.dateToMillis(new java.util.Date()), msgXML);
+        synchronized (username.intern()) {
+            // Update the cached usage if it exists. The cache is updated before the message
+            // reaches the database so quota checks do not need to wait for the insert.
+            OfflineMessageUsage usage = sizeCache.get(username);
+            if (usage != null) {
+                sizeCache.put(username, usage.add(msgXML.length()));
+            }
+            // Never waits for room in the queue, which would block every other thread
+            // reading or storing messages of the user
+            writer.add(pending);
+        }
+    }
+
+    /**
+     * Inserts the specified messages into the database. A JDBC batch is used when supported
+     * by the database. If the batch fails then messages are inserted one at a time so that a
+     * single bad message does not cause the rest of the batch to be lost.
+     *
+     * @param messages the messages to insert.
+     */
+    private void insertMessages(List<OfflineMessageWriter.PendingMessage> messages) {
+        boolean batch = messages.size() > 1 && DbConnectionManager.isBatchUpdatesSupported();
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(INSERT_OFFLINE);
-            pstmt.setString(1, username);
-            pstmt.setLong(2, messageID);
-            pstmt.setString(3, StringUtils.dateToMillis(new java.util.Date()));
-            pstmt.setInt(4, msgXML.length());
-            pstmt.setString(5, msgXML);
-            pstmt.executeUpdate();
+            for (OfflineMessageWriter.PendingMessage message : messages) {
+                pstmt.setString(1, message.getUsername());
+                pstmt.setLong(2, message.getMessageID());
+                pstmt.setString(3, message.getCreationDate());
+                pstmt.setInt(4, message.getStanza().length());
+                pstmt.setString(5, message.getStanza());
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    try {
+                        pstmt.executeUpdate();
+                    }
+                    catch (SQLException e) {
+                        Log.error("Error storing offline message of username: " + message.getUsername(), e);
+                    }
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
         }
-
-        catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        catch (SQLException e) {
+            if (batch) {
+                Log.warn("Failed to store offline messages as batch; will retry individually", e);
+                DbConnectionManager.closeConnection(pstmt, con);
+                pstmt = null;
+                con = null;
+                for (OfflineMessageWriter.PendingMessage message : messages) {
+                    insertMessages(Collections.singletonList(message));
+                }
+            }
+            else {
+                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            }
         }
         finally {
             DbConnectionManager.closeConnection(pstmt, con);
         }
-
-        // Update the cached size if it exists.
-        if (sizeCache.containsKey(username)) {
-            int size = sizeCache.get(username);
-            size += msgXML.length();
-            sizeCache.put(username, size);
-        }
     }
 
     /**
@@ -181,11 +237,23 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return An iterator of packets containing all offline messages.
      */
     public Collection<OfflineMessage> getMessages(String username, boolean delete) {
+        if (delete) {
+            // Messages of the user cannot be stored until loaded messages are deleted. Otherwise
+            // a message inserted between the load and the delete would be lost
+            synchronized (username.intern()) {
+                return loadMessages(username, true);
+            }
+        }
+        return loadMessages(username, false);
+    }
+
+    private Collection<OfflineMessage> loadMessages(String username, boolean delete) {
         List<OfflineMessage> messages = new ArrayList<OfflineMessage>();
         SAXReader xmlReader = null;
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
+        writer.flush(username);
         try {
             // Get a sax reader from the pool
             xmlReader = xmlReaders.take();
@@ -228,7 +296,9 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
                     pstmt2 = con.prepareStatement(DELETE_OFFLINE);
                     pstmt2.setString(1, username);
                     pstmt2.executeUpdate();
-                    removeUsernameFromSizeCache(username);
+                    // No messages can be stored for the user while the lock of the
+                    // user is held so the store of the user is now empty
+                    sizeCache.put(username, OfflineMessageUsage.EMPTY);
                 }
                 catch (Exception e) {
                     Log.error("Error deleting offline messages of username: " + username, e);
@@ -265,6 +335,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         SAXReader xmlReader = null;
+        writer.flush(username);
         try {
             // Get a sax reader from the pool
             xmlReader = xmlReaders.take();
@@ -309,6 +380,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
     public void deleteMessages(String username) {
         Connection con = null;
         PreparedStatement pstmt = null;
+        writer.flush(username);
         try {
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(DELETE_OFFLINE);
@@ -327,7 +399,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
 
     private void removeUsernameFromSizeCache(String username) {
         // Update the cached size if it exists.
-        if (sizeCache.containsKey(username)) {
+        synchronized (username.intern()) {
             sizeCache.remove(username);
         }
     }
@@ -342,24 +414,46 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
     public void deleteMessage(String username, Date creationDate) {
         Connection con = null;
         PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        writer.flush(username);
         try {
             con = DbConnectionManager.getConnection();
+            // Load the size of the message so that the cached usage can be updated
+            // without having to count all the messages of the user again
+            int messageSize = -1;
+            pstmt = con.prepareStatement(SELECT_SIZE_OFFLINE_MESSAGE);
+            pstmt.setString(1, username);
+            pstmt.setString(2, StringUtils.dateToMillis(creationDate));
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                messageSize = rs.getInt(1);
+            }
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+
             pstmt = con.prepareStatement(DELETE_OFFLINE_MESSAGE);
             pstmt.setString(1, username);
             pstmt.setString(2, StringUtils.dateToMillis(creationDate));
-            pstmt.executeUpdate();
-            
-            // Force a refresh for next call to getSize(username),
-            // it's easier than loading the message to be deleted just
-            // to update the cache.
-            removeUsernameFromSizeCache(username);
+            int deleted = pstmt.executeUpdate();
+
+            synchronized (username.intern()) {
+                OfflineMessageUsage usage = sizeCache.get(username);
+                if (usage != null) {
+                    if (deleted == 1 && messageSize >= 0) {
+                        sizeCache.put(username, usage.remove(messageSize));
+                    }
+                    else if (deleted > 0) {
+                        // Several messages shared the creation date so count them again
+                        sizeCache.remove(username);
+                    }
+                }
+            }
         }
         catch (Exception e) {
             Log.error("Error deleting offline messages of username: " + username +
                     " creationDate: " + creationDate, e);
         }
         finally {
-            DbConnectionManager.closeConnection(pstmt, con);
+            DbConnectionManager.closeConnection(rs, pstmt, con);
         }
     }
 
@@ -371,32 +465,57 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the approximate size of stored messages (in bytes).
      */
     public int getSize(String username) {
-        // See if the size is cached.
-        if (sizeCache.containsKey(username)) {
-            return sizeCache.get(username);
+        return getUsage(username).getSize();
+    }
+
+    /**
+     * Returns the number of offline messages stored for a particular user.
+     *
+     * @param username the username of the user.
+     * @return the number of stored messages.
+     */
+    public int getCount(String username) {
+        return getUsage(username).getCount();
+    }
+
+    private OfflineMessageUsage getUsage(String username) {
+        // See if the usage is cached.
+        OfflineMessageUsage usage = sizeCache.get(username);
+        if (usage != null) {
+            return usage;
         }
-        int size = 0;
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SELECT_SIZE_OFFLINE);
-            pstmt.setString(1, username);
-            rs = pstmt.executeQuery();
-            if (rs.next()) {
-                size = rs.getInt(1);
+        synchronized (username.intern()) {
+            usage = sizeCache.get(username);
+            if (usage != null) {
+                return usage;
+            }
+            // Messages stored while the usage is being loaded will wait for this lock
+            // so the loaded value is kept up to date once it is cached
+            writer.flush(username);
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                con = DbConnectionManager.getConnection();
+                pstmt = con.prepareStatement(SELECT_USAGE_OFFLINE);
+                pstmt.setString(1, username);
+                rs = pstmt.executeQuery();
+                usage = OfflineMessageUsage.EMPTY;
+                if (rs.next()) {
+                    usage = new OfflineMessageUsage(rs.getInt(1), rs.getInt(2));
+                }
+                // Add the value to cache.
+                sizeCache.put(username, usage);
+                return usage;
+            }
+            catch (Exception e) {
+                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            }
+            finally {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
             }
-            // Add the value to cache.
-            sizeCache.put(username, size);
-        }
-        catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-        }
-        finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
         }
-        return size;
+        return OfflineMessageUsage.EMPTY;
     }
 
     /**
@@ -452,11 +571,16 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Add this module as a user event listener so we can delete
         // all offline messages when a user is deleted
         UserEventDispatcher.addListener(this);
+        // Start the thread that inserts stored messages into the database
+        writer.start(JiveGlobals.getIntProperty("xmpp.offline.queue.size", 10000),
+                JiveGlobals.getIntProperty("xmpp.offline.batch.size", 100));
     }
 
     @Override
 	public void stop() {
         super.stop();
+        // Stop the writer thread once all queued messages were stored
+        writer.stop();
         // Clean up the pool of sax readers
         xmlReaders.clear();
         // Remove this module as a user event listener
@@ -519,4 +643,4 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         }
         return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,111 @@
+/**
+ * $RCSfile: $
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Internal object used by OfflineMessageStore to cache the number of offline messages
+ * stored for a user and their approximate size. Instances are immutable so updating the
+ * usage of a user means replacing the cached instance.
+ */
+public class OfflineMessageUsage implements Cacheable, Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final OfflineMessageUsage EMPTY = new OfflineMessageUsage(0, 0);
+
+    private int size;
+    private int count;
+
+    public OfflineMessageUsage() {
+    }
+
+    public OfflineMessageUsage(int size, int count) {
+        this.size = size;
+        this.count = count;
+    }
+
+    /**
+     * Returns the approximate size (in bytes) of the stored messages.
+     *
+     * @return the approximate size of the stored messages.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of stored messages.
+     *
+     * @return the number of stored messages.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns a new usage that includes a message of the specified size.
+     *
+     * @param messageSize the size of the added message.
+     * @return the new usage.
+     */
+    OfflineMessageUsage add(int messageSize) {
+        return new OfflineMessageUsage(size + messageSize, count + 1);
+    }
+
+    /**
+     * Returns a new usage that no longer includes a message of the specified size.
+     *
+     * @param messageSize the size of the removed message.
+     * @return the new usage.
+     */
+    OfflineMessageUsage remove(int messageSize) {
+        return new OfflineMessageUsage(Math.max(0, size - messageSize), Math.max(0, count - 1));
+    }
+
+    public int getCachedSize() {
+        // Approximate the size of the object in bytes by calculating the size
+        // of each field.
+        int size = 0;
+        size += CacheSizes.sizeOfObject();      // overhead of object
+        size += CacheSizes.sizeOfInt();         // size
+        size += CacheSizes.sizeOfInt();         // count
+        return size;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeInt(out, size);
+        ExternalizableUtil.getInstance().writeInt(out, count);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        size = ExternalizableUtil.getInstance().readInt(in);
+        count = ExternalizableUtil.getInstance().readInt(in);
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inserts offline messages into the database in batches from a single writer thread.
+ * Messages are queued in a bounded queue. Storing a message never waits for room in the
+ * queue: when the queue is full, or when the writer thread is not running, the message is
+ * inserted right away by the thread that stores it.<p>
+ *
+ * The writer keeps track of the number of queued messages of each user so that reads and
+ * deletes can first wait for the pending inserts of that user.
+ */
+class OfflineMessageWriter {
+
+    private static final Logger Log = LoggerFactory.getLogger(OfflineMessageWriter.class);
+
+    /**
+     * Marker added to the queue of pending messages to stop the writer thread.
+     */
+    private static final PendingMessage SHUTDOWN = new PendingMessage(null, 0, null, null);
+
+    /**
+     * Inserts messages into the database.
+     */
+    interface MessageStore {
+
+        /**
+         * Inserts the specified messages into the database.
+         *
+         * @param messages the messages to insert.
+         */
+        void insertMessages(List<PendingMessage> messages);
+    }
+
+    private final MessageStore store;
+
+    /**
+     * Messages waiting to be inserted into the database by the writer thread.
+     */
+    private BlockingQueue<PendingMessage> queue;
+
+    /**
+     * Number of messages of each user that are waiting to be inserted into the database.
+     * The map is also the monitor that guards the queue and the writer thread, and that
+     * threads waiting for messages to be written wait on.
+     */
+    private final Map<String, Integer> pendingCounts = new HashMap<String, Integer>();
+
+    /**
+     * Thread that inserts pending messages into the database in batches. A null value
+     * means that messages are inserted by the thread that stores them.
+     */
+    private Thread writerThread;
+
+    OfflineMessageWriter(MessageStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param queueSize the max number of messages waiting to be inserted.
+     * @param batchSize the max number of messages to insert in a single batch.
+     */
+    void start(int queueSize, int batchSize) {
+        synchronized (pendingCounts) {
+            if (writerThread != null) {
+                return;
+            }
+            queue = new LinkedBlockingQueue<PendingMessage>(Math.max(1, queueSize));
+            writerThread = new Thread(new Writer(queue, Math.max(1, batchSize)), "Offline Message Writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    /**
+     * Stops the writer thread once all queued messages were inserted. Messages stored
+     * after this method was called are inserted by the thread that stores them.
+     */
+    void stop() {
+        Thread writer;
+        BlockingQueue<PendingMessage> pending;
+        synchronized (pendingCounts) {
+            // No message is queued after the writer thread was cleared, so the shutdown
+            // marker is the last element of the queue
+            writer = writerThread;
+            pending = queue;
+            writerThread = null;
+            queue = null;
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            pending.put(SHUTDOWN);
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Store messages the writer thread did not get to, if waiting for it was interrupted
+        List<PendingMessage> remaining = new ArrayList<PendingMessage>();
+        pending.drainTo(remaining);
+        remaining.remove(SHUTDOWN);
+        if (!remaining.isEmpty()) {
+            write(remaining);
+        }
+    }
+
+    /**
+     * Stores a message. The message is queued for the writer thread, or inserted right away
+     * if the writer thread is not running or the queue is full. This method never waits for
+     * room in the queue.
+     *
+     * @param message the message to store.
+     * @return true if the message was queued, false if it was inserted right away.
+     */
+    boolean add(PendingMessage message) {
+        synchronized (pendingCounts) {
+            if (writerThread != null && queue.offer(message)) {
+                Integer count = pendingCounts.get(message.getUsername());
+                pendingCounts.put(message.getUsername(), count == null ? 1 : count + 1);
+                return true;
+            }
+        }
+        store.insertMessages(Collections.singletonList(message));
+        return false;
+    }
+
+    /**
+     * Waits until the queued messages of the specified user have been inserted into the
+     * database.
+     *
+     * @param username the username of the user.
+     */
+    void flush(String username) {
+        synchronized (pendingCounts) {
+            while (pendingCounts.containsKey(username)) {
+                try {
+                    pendingCounts.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages of the specified user that are waiting to be inserted.
+     *
+     * @param username the username of the user.
+     * @return the number of messages of the user that are waiting to be inserted.
+     */
+    int getPendingCount(String username) {
+        synchronized (pendingCounts) {
+            Integer count = pendingCounts.get(username);
+            return count == null ? 0 : count;
+        }
+    }
+
+    /**
+     * Inserts the specified queued messages, then decreases the number of pending messages
+     * of their users and wakes up the threads waiting for messages to be written.
+     *
+     * @param messages the queued messages to insert.
+     */
+    private void write(List<PendingMessage> messages) {
+        try {
+            store.insertMessages(messages);
+        }
+        catch (Throwable e) {
+            Log.error("Error storing offline messages", e);
+        }
+        finally {
+            synchronized (pendingCounts) {
+                for (PendingMessage message : messages) {
+                    Integer count = pendingCounts.get(message.getUsername());
+                    if (count == null || count <= 1) {
+                        pendingCounts.remove(message.getUsername());
+                    }
+                    else {
+                        pendingCounts.put(message.getUsername(), count - 1);
+                    }
+                }
+                pendingCounts.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Message that was stored but not yet inserted into the database.
+     */
+    static class PendingMessage {
+
+        private final String username;
+        private final long messageID;
+        private final String creationDate;
+        private final String stanza;
+
+        PendingMessage(String username, long messageID, String creationDate, String stanza) {
+            this.username = username;
+            this.messageID = messageID;
+            this.creationDate = creationDate;
+            this.stanza = stanza;
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        long getMessageID() {
+            return messageID;
+        }
+
+        String getCreationDate() {
+            return creationDate;
+        }
+
+        String getStanza() {
+            return stanza;
+        }
+    }
+
+    /**
+     * Inserts queued messages into the database in batches. Messages are inserted in the
+     * same order in which they were queued.
+     */
+    private class Writer implements Runnable {
+
+        private final BlockingQueue<PendingMessage> queue;
+        private final int batchSize;
+
+        Writer(BlockingQueue<PendingMessage> queue, int batchSize) {
+            this.queue = queue;
+            this.batchSize = batchSize;
+        }
+
+        public void run() {
+            List<PendingMessage> batch = new ArrayList<PendingMessage>(batchSize);
+            boolean done = false;
+            while (!done) {
+                try {
+                    batch.add(queue.take());
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(batch, batchSize - 1);
+                done = batch.remove(SHUTDOWN);
+                if (!batch.isEmpty()) {
+                    write(batch);
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
@@ -84,6 +84,18 @@ public interface PresenceManager {
      */
     public void probePresence(JID prober, JID probee);
 
+    /**
+     * Probes the presence of each of the given XMPPAddresses and attempts to send them to the
+     * given user. This is the same as probing each address with
+     * {@link #probePresence(JID, JID)} but offline presences of local probees are loaded
+     * in bulk and the resulting presences are routed in batches. Use this method
+     * to probe all the contacts of a roster when a user becomes available.
+     *
+     * @param prober The user requesting the probes
+     * @param probees The XMPPAddresses whose presences we would like sent have have probed
+     */
+    public void probePresence(JID prober, Collection<JID> probees);
+
     /**
      * Handle a presence probe sent by a remote server. The logic to apply is the following: If
      * the remote user is not in the local user's roster with a subscription state of "From", or
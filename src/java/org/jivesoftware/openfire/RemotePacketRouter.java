@@ -24,6 +24,8 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
+import java.util.List;
+
 /**
  * A RemotePacketRouter is responsible for deliverying packets to entities hosted
  * in remote nodes of the cluster.
@@ -42,6 +44,18 @@ public interface RemotePacketRouter {
      */
     boolean routePacket(byte[] nodeID, JID receipient, Packet packet);
 
+    /**
+     * Routes each packet to the receipient found at the same position in the list of
+     * receipients. All the receipients are hosted in the specified node and the packets
+     * are sent to the node at once.
+     *
+     * @param nodeID the ID of the node hosting the receipients.
+     * @param receipients the target entities that will get the packets.
+     * @param packets the packets to send.
+     * @return true if the remote node was found.
+     */
+    boolean routePackets(byte[] nodeID, List<JID> receipients, List<Packet> packets);
+
     /**
      * Brodcasts the specified message to all local client sessions of each cluster node.
      * The current cluster node is not going to be included.
@@ -21,6 +21,7 @@
 package org.jivesoftware.openfire;
 
 import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.ClientSessionSortKey;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
 import org.jivesoftware.openfire.session.OutgoingServerSession;
@@ -30,6 +31,7 @@ import org.xmpp.packet.Packet;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>Maintains server-wide knowledge of routes to any node.</p>
@@ -156,6 +158,25 @@ public interface RoutingTable {
      */
     void routePacket(JID jid, Packet packet, boolean fromServer) throws PacketException;
 
+    /**
+     * Routes each packet to the address found at the same position in the list of
+     * addresses. Packets are routed as with {@link #routePacket(JID, Packet, boolean)} but
+     * grouped by destination: packets for client sessions hosted by other cluster nodes are
+     * sent to each node in a single batch and packets for remote servers are routed one
+     * domain at a time. Use this method when many packets are created at once, e.g. when
+     * broadcasting the presence of a user to all the contacts of the roster. A packet that
+     * fails to be routed does not prevent the rest of the packets from being routed.<p>
+     *
+     * The same packet may be routed to several addresses but packets must not be modified
+     * while being routed.
+     *
+     * @param jids the recipients of the packets to route.
+     * @param packets the packets to route.
+     * @param fromServer true if the packets were created by the server. This packets should
+     *        always be delivered
+     */
+    void routePackets(List<JID> jids, List<Packet> packets, boolean fromServer);
+
     /**
      * Returns true if a registered user or anonymous user with the specified full JID is
      * currently logged. When running inside of a cluster a true value will be returned
@@ -242,6 +263,19 @@ public interface RoutingTable {
      */
     Collection<ClientSession> getClientsRoutes(boolean onlyLocal);
 
+    /**
+     * Returns snapshots of the first client sessions connected to this JVM, sorted as
+     * specified by the filter. The start index and number of results of the filter are
+     * ignored; when running in a cluster each node returns its own first sessions and
+     * the results are merged by the caller.
+     *
+     * @param filter the filter that specifies the sort field and order.
+     * @param maxResults the number of sessions to return or SessionResultFilter.NO_RESULT_LIMIT
+     *        to return all the sessions.
+     * @return snapshots of the first client sessions connected to this JVM in sort order.
+     */
+    List<ClientSessionSortKey> getClientsRoutes(SessionResultFilter filter, int maxResults);
+
     /**
      * Returns the outgoing server session associated to the specified XMPP address or <tt>null</tt>
      * if none was found. When running inside of a cluster and a remote node is hosting
@@ -306,6 +340,20 @@ public interface RoutingTable {
      */
     List<JID> getRoutes(JID route, JID requester);
 
+    /**
+     * Returns the routes associated to each of the specified route addresses. Each address
+     * is resolved as with {@link #getRoutes(JID, JID)} but all the addresses are resolved
+     * in a single pass over the routing caches, without blocking the creation of new sessions
+     * of the requested users. Use this method to resolve all the contacts of a roster at once.
+     *
+     * @param routes The addresses we want routes to.
+     * @param requester The address of the entity requesting the routes or null if we don't
+     * care about directed presences.
+     * @return the routes associated to each route address, in the order of the addresses.
+     * Addresses without routes are associated to an empty list.
+     */
+    Map<JID, List<JID>> getRoutes(Collection<JID> routes, JID requester);
+
     /**
      * Returns true if a route of a client session has been successfully removed. When running
      * inside of a cluster this message <tt>must</tt> be sent from the cluster node that is
@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,9 +45,11 @@ import org.jivesoftware.openfire.multiplex.ConnectionMultiplexerManager;
 import org.jivesoftware.openfire.server.OutgoingSessionPromise;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.ClientSessionInfo;
+import org.jivesoftware.openfire.session.ClientSessionSortKey;
 import org.jivesoftware.openfire.session.ComponentSession;
 import org.jivesoftware.openfire.session.ConnectionMultiplexerSession;
 import org.jivesoftware.openfire.session.GetSessionsCountTask;
+import org.jivesoftware.openfire.session.GetSortedSessionsTask;
 import org.jivesoftware.openfire.session.IncomingServerSession;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.LocalComponentSession;
@@ -766,43 +767,67 @@ public class SessionManager extends BasicModule implements ClusterEventListener
     }
 
 
+    /**
+     * Returns the page of authenticated client sessions specified by the filter. Each
+     * cluster node only returns its first sessions in sort order, so the time and memory
+     * used depend on the size of the page and not on the number of sessions.
+     *
+     * @param filter the filter that specifies the sort order and the page of sessions.
+     * @return the page of client sessions specified by the filter.
+     */
     public Collection<ClientSession> getSessions(SessionResultFilter filter) {
-        List<ClientSession> results = new ArrayList<ClientSession>();
-        if (filter != null) {
-            // Grab all the matching sessions
-            results.addAll(getSessions());
-
-            // Now we have a copy of the references so we can spend some time
-            // doing the rest of the filtering without locking out session access
-            // so let's iterate and filter each session one by one
-            List<ClientSession> filteredResults = new ArrayList<ClientSession>();
-            for (ClientSession session : results) {
-                // Now filter on creation date if needed
-                filteredResults.add(session);
+        if (filter == null) {
+            return new ArrayList<ClientSession>(getSessions());
+        }
+        int startIndex = filter.getStartIndex();
+        int numResults = filter.getNumResults();
+        // Number of sessions that every node has to return to fill the requested page
+        int maxResults = SessionResultFilter.NO_RESULT_LIMIT;
+        if (numResults != SessionResultFilter.NO_RESULT_LIMIT) {
+            maxResults = (int) Math.min(Integer.MAX_VALUE, (long) startIndex + numResults);
+        }
+        List<ClientSessionSortKey> keys =
+                new ArrayList<ClientSessionSortKey>(routingTable.getClientsRoutes(filter, maxResults));
+        if (ClusterManager.isClusteringStarted()) {
+            Collection<Object> results =
+                    CacheFactory.doSynchronousClusterTask(new GetSortedSessionsTask(filter, maxResults), false);
+            for (Object result : results) {
+                if (result == null) {
+                    continue;
+                }
+                keys.addAll(toSortKeys(result));
             }
-
-            // Sort list.
-            Collections.sort(filteredResults, filter.getSortComparator());
-
-            int maxResults = filter.getNumResults();
-            if (maxResults == SessionResultFilter.NO_RESULT_LIMIT) {
-                maxResults = filteredResults.size();
+            // Merge the sessions of all the nodes
+            Collections.sort(keys, filter.getSortKeyComparator());
+        }
+        // Now generate the final list. Only the sessions of the page are loaded
+        List<ClientSession> finalResults = new ArrayList<ClientSession>();
+        for (int i = startIndex; i < keys.size(); i++) {
+            if (numResults != SessionResultFilter.NO_RESULT_LIMIT && finalResults.size() >= numResults) {
+                break;
             }
-
-            // Now generate the final list. I believe it's faster to to build up a new
-            // list than it is to remove items from head and tail of the sorted tree
-            List<ClientSession> finalResults = new ArrayList<ClientSession>();
-            int startIndex = filter.getStartIndex();
-            Iterator<ClientSession> sortedIter = filteredResults.iterator();
-            for (int i = 0; sortedIter.hasNext() && finalResults.size() < maxResults; i++) {
-                ClientSession result = sortedIter.next();
-                if (i >= startIndex) {
-                    finalResults.add(result);
-                }
+            ClientSession session = routingTable.getClientRoute(keys.get(i).getAddress());
+            if (session != null) {
+                finalResults.add(session);
             }
-            return finalResults;
         }
-        return results;
+        RemoteSessionLocator locator = server.getRemoteSessionLocator();
+        if (locator != null) {
+            // Read the details of the remote sessions of the page with one call per node
+            locator.prefetchSessionDetails(finalResults);
+        }
+        return finalResults;
+    }
+
+    /**
+     * Returns the sort keys answered by a {@link GetSortedSessionsTask} of another node.
+     *
+     * @param result the result of the task.
+     * @return the sort keys of the sessions of the node.
+     */
+    @SuppressWarnings("unchecked")
+    private static Collection<ClientSessionSortKey> toSortKeys(Object result) {
+        return (Collection<ClientSessionSortKey>) result;
     }
 
     /**
@@ -20,6 +20,7 @@
 package org.jivesoftware.openfire;
 
 import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.ClientSessionSortKey;
 
 import java.util.Comparator;
 import java.util.Date;
@@ -209,6 +210,17 @@ public class SessionResultFilter {
         return new SessionComparator();
     }
 
+    /**
+     * Returns a comparator that sorts snapshots of sessions according to this filter's
+     * sort order. Sessions with equal sort values are sorted by full JID, so the order of
+     * the snapshots is always the same no matter which cluster node sorted them.
+     *
+     * @return a comparator that sorts session snapshots matching the sort order for this filter.
+     */
+    public Comparator<ClientSessionSortKey> getSortKeyComparator() {
+        return new SortKeyComparator(sortField, sortOrder);
+    }
+
     /**
      * Compares sessions according to sort fields.
      *
@@ -216,48 +228,63 @@ public class SessionResultFilter {
      */
     private class SessionComparator implements Comparator<ClientSession> {
 
+        private final Comparator<ClientSessionSortKey> comparator = getSortKeyComparator();
+
         public int compare(ClientSession lhs, ClientSession rhs) {
+            return comparator.compare(new ClientSessionSortKey(lhs), new ClientSessionSortKey(rhs));
+        }
+    }
+
+    /**
+     * Compares session snapshots according to sort fields.
+     */
+    private static class SortKeyComparator implements Comparator<ClientSessionSortKey> {
+
+        private final int sortField;
+        private final int sortOrder;
+
+        SortKeyComparator(int sortField, int sortOrder) {
+            this.sortField = sortField;
+            this.sortOrder = sortOrder;
+        }
+
+        public int compare(ClientSessionSortKey lhs, ClientSessionSortKey rhs) {
             int comparison;
             switch (sortField) {
                 case SessionResultFilter.SORT_CREATION_DATE:
-                    comparison = lhs.getCreationDate().compareTo(rhs.getCreationDate());
+                    comparison = compareLong(lhs.getCreationDate(), rhs.getCreationDate());
                     break;
                 case SessionResultFilter.SORT_LAST_ACTIVITY_DATE:
-                    comparison = lhs.getLastActiveDate().compareTo(rhs.getCreationDate());
+                    comparison = compareLong(lhs.getLastActiveDate(), rhs.getLastActiveDate());
                     break;
                 case SessionResultFilter.SORT_NUM_CLIENT_PACKETS:
-                    comparison = (int)(lhs.getNumClientPackets() - rhs.getNumClientPackets());
+                    comparison = compareLong(lhs.getNumClientPackets(), rhs.getNumClientPackets());
                     break;
                 case SessionResultFilter.SORT_NUM_SERVER_PACKETS:
-                    comparison = (int)(lhs.getNumServerPackets() - rhs.getNumServerPackets());
+                    comparison = compareLong(lhs.getNumServerPackets(), rhs.getNumServerPackets());
                     break;
                 case SessionResultFilter.SORT_USER:
                     // sort first by name, then by resource
-                    String lUsername = lhs.isAnonymousUser() ? "" : lhs.getAddress().getNode();
-                    String rUsername = rhs.isAnonymousUser() ? "" : rhs.getAddress().getNode();
-                    comparison = compareString(lUsername, rUsername);
+                    comparison = lhs.getUsername().compareTo(rhs.getUsername());
                     if (comparison == 0) {
-                        comparison = compareString(lhs.getAddress().getResource(),
-                                rhs.getAddress().getResource());
+                        comparison = lhs.getResource().compareTo(rhs.getResource());
                     }
                     break;
                 default:
                     comparison = 0;
             }
+            if (comparison == 0) {
+                // toString returns the full JID of the session
+                comparison = lhs.toString().compareTo(rhs.toString());
+            }
             if (sortOrder == SessionResultFilter.DESCENDING) {
                 comparison *= -1; // Naturally ascending, flip sign if descending
             }
             return comparison;
         }
 
-        private int compareString(String lhs, String rhs) {
-            if (lhs == null) {
-                lhs = "";
-            }
-            if (rhs == null) {
-                rhs = "";
-            }
-            return lhs.compareTo(rhs);
+        private int compareLong(long lhs, long rhs) {
+            return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
         }
     }
 
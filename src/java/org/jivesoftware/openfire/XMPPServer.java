@@ -31,11 +31,15 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -53,6 +57,8 @@ import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.container.AdminConsolePlugin;
 import org.jivesoftware.openfire.container.Module;
 import org.jivesoftware.openfire.container.PluginManager;
+import org.jivesoftware.openfire.container.StartupReport;
+import org.jivesoftware.openfire.container.StartupScheduler;
 import org.jivesoftware.openfire.disco.IQDiscoInfoHandler;
 import org.jivesoftware.openfire.disco.IQDiscoItemsHandler;
 import org.jivesoftware.openfire.disco.ServerFeaturesProvider;
@@ -88,6 +94,7 @@ import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.openfire.net.MulticastDNSService;
 import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
+import org.jivesoftware.openfire.nio.PacketSerializer;
 import org.jivesoftware.openfire.pep.IQPEPHandler;
 import org.jivesoftware.openfire.pep.IQPEPOwnerHandler;
 import org.jivesoftware.openfire.pubsub.PubSubModule;
@@ -167,6 +174,33 @@ public class XMPPServer {
      */
     private Map<Class, Module> modules = new LinkedHashMap<Class, Module>();
 
+    /**
+     * Boot and core modules. Each of them is initialized and started after the ones before it.
+     */
+    private static final Class[] CORE_MODULES = {
+            RoutingTableImpl.class, AuditManagerImpl.class, RosterManager.class, PrivateStorage.class,
+            PresenceManagerImpl.class, SessionManager.class, PacketRouterImpl.class, IQRouter.class,
+            MessageRouter.class, PresenceRouter.class, MulticastRouter.class, PacketTransporterImpl.class,
+            PacketDelivererImpl.class, TransportHandler.class, OfflineMessageStrategy.class,
+            OfflineMessageStore.class, VCardManager.class
+    };
+
+    /**
+     * Modules that register with the disco handlers or the component manager, whose registries
+     * are not meant to be updated concurrently. Each of them is initialized and started after
+     * the ones before it.
+     */
+    private static final Class[] REGISTERING_MODULES = {
+            IQOfflineMessagesHandler.class, AdHocCommandHandler.class, FileTransferProxy.class,
+            MediaProxyService.class, PubSubModule.class, IQDiscoInfoHandler.class, IQDiscoItemsHandler.class,
+            InternalComponentManager.class, MultiUserChatManager.class, ClearspaceManager.class
+    };
+
+    /**
+     * Times spent initializing and starting the modules and loading the plugins.
+     */
+    private final StartupReport startupReport = new StartupReport();
+
     /**
      * Listeners that will be notified when the server has started or is about to be stopped.
      */
@@ -507,6 +541,7 @@ public class XMPPServer {
             }
             // Initialize statistics
             ServerTrafficCounter.initStatistics();
+            PacketSerializer.initStatistics();
 
             // Load plugins (when in setup mode only the admin console will be loaded)
             pluginManager.start();
@@ -611,45 +646,115 @@ public class XMPPServer {
         }
     }
 
+    /**
+     * Initializes the loaded modules. Modules are initialized in parallel once the modules
+     * they depend on were initialized. Modules that fail to initialize are removed.
+     */
     private void initModules() {
-        for (Module module : modules.values()) {
-            boolean isInitialized = false;
-            try {
-                module.initialize(this);
-                isInitialized = true;
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-                // Remove the failed initialized module
-                this.modules.remove(module.getClass());
-                if (isInitialized) {
-                    module.stop();
-                    module.destroy();
+        StartupScheduler scheduler = new StartupScheduler("initialize");
+        Map<Class, Set<Class>> dependencies = getModuleDependencies();
+        for (final Module module : modules.values()) {
+            scheduler.addStep(module.getClass().getName(), new Runnable() {
+                public void run() {
+                    module.initialize(XMPPServer.this);
+                }
+            }, getStepNames(dependencies.get(module.getClass())));
+        }
+        for (String failed : runStartupPhase(scheduler)) {
+            // Remove the failed initialized module
+            for (Class modClass : new ArrayList<Class>(modules.keySet())) {
+                if (modClass.getName().equals(failed)) {
+                    this.modules.remove(modClass);
                 }
-                logger.error(LocaleUtils.getLocalizedString("admin.error"), e);
             }
         }
     }
 
     /**
      * <p>Following the loading and initialization of all the modules
-     * this method is called to iterate through the known modules and
-     * start them.</p>
+     * this method is called to start the known modules. Modules are
+     * started in parallel once the modules they depend on were started.</p>
      */
     private void startModules() {
-        for (Module module : modules.values()) {
-            boolean started = false;
-            try {
-                module.start();
+        StartupScheduler scheduler = new StartupScheduler("start");
+        Map<Class, Set<Class>> dependencies = getModuleDependencies();
+        for (final Module module : modules.values()) {
+            scheduler.addStep(module.getClass().getName(), new Runnable() {
+                public void run() {
+                    module.start();
+                }
+            }, getStepNames(dependencies.get(module.getClass())));
+        }
+        runStartupPhase(scheduler);
+    }
+
+    /**
+     * Runs a phase of the startup of the modules using up to <tt>xmpp.startup.threads</tt>
+     * threads (the number of processors by default).
+     *
+     * @return the names of the modules that failed.
+     */
+    private Set<String> runStartupPhase(StartupScheduler scheduler) {
+        int threads = JiveGlobals.getIntProperty("xmpp.startup.threads",
+                Runtime.getRuntime().availableProcessors());
+        try {
+            return scheduler.run(threads, loader, startupReport);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting modules", e);
+        }
+    }
+
+    /**
+     * Returns the modules that every loaded module depends on. Core modules depend on the
+     * core modules loaded before them, and the rest of the modules depend on all the core
+     * modules. Modules that register with the disco handlers or the component manager depend
+     * on the registering modules loaded before them. The connection manager depends on all
+     * the modules so that clients connect once the rest of the modules were started.
+     *
+     * @return the modules that every loaded module depends on.
+     */
+    private Map<Class, Set<Class>> getModuleDependencies() {
+        Map<Class, Set<Class>> dependencies = new HashMap<Class, Set<Class>>();
+        List<Class> core = Arrays.asList(CORE_MODULES);
+        List<Class> registering = Arrays.asList(REGISTERING_MODULES);
+        for (Class modClass : modules.keySet()) {
+            Set<Class> required = new LinkedHashSet<Class>();
+            if (modClass == ConnectionManagerImpl.class) {
+                required.addAll(modules.keySet());
+                required.remove(modClass);
             }
-            catch (Exception e) {
-                if (started && module != null) {
-                    module.stop();
-                    module.destroy();
+            else if (core.contains(modClass)) {
+                required.addAll(core.subList(0, core.indexOf(modClass)));
+            }
+            else {
+                required.addAll(core);
+                if (registering.contains(modClass)) {
+                    required.addAll(registering.subList(0, registering.indexOf(modClass)));
                 }
-                logger.error(LocaleUtils.getLocalizedString("admin.error"), e);
             }
+            dependencies.put(modClass, required);
+        }
+        return dependencies;
+    }
+
+    private static Collection<String> getStepNames(Collection<Class> classes) {
+        List<String> names = new ArrayList<String>(classes.size());
+        for (Class modClass : classes) {
+            names.add(modClass.getName());
         }
+        return names;
+    }
+
+    /**
+     * Returns the times spent initializing and starting the modules and loading the plugins
+     * of the server.
+     *
+     * @return the times spent initializing and starting the modules and loading the plugins.
+     */
+    public StartupReport getStartupReport() {
+        return startupReport;
     }
 
     /**
@@ -0,0 +1,764 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.audit.spi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.jivesoftware.util.FastDateFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary, append-only store of audited packets. Packets are appended to segment files
+ * named <tt>jive.audit-YYYYmmdd-nnn.seg</tt> through a memory mapped buffer. A new segment
+ * is started when the current one reaches the max file size or when the day changes, and
+ * the oldest segments are deleted when the max total size or the max number of days is
+ * exceeded, like the XML audit files.<p>
+ *
+ * Every segment has a sparse index that is saved next to it (<tt>.idx</tt>) when the
+ * segment is completed. The index splits the segment in blocks of {@link #BLOCK_RECORDS}
+ * records and keeps the time range of each block and the blocks where each bare JID
+ * appears as sender or recipient. Searching the traffic of a user within a time window
+ * only reads the blocks that may contain it. A missing index, e.g. after a crash, is
+ * rebuilt by reading the segment.<p>
+ *
+ * Each record has the following layout, all numbers in big-endian order:
+ * <pre>
+ * int    length of the rest of the record
+ * long   time when the packet was audited
+ * short  length of the bare JID of the sender, -1 if none, followed by its UTF-8 bytes
+ * short  length of the bare JID of the recipient, -1 if none, followed by its UTF-8 bytes
+ * byte[] the packet as it is written in the XML audit files (UTF-8)
+ * </pre>
+ * A record length of 0 marks the end of the records of the segment.<p>
+ *
+ * Only one thread may append packets. Searches may run at any time from any thread.
+ */
+public class AuditSegmentStore {
+
+    private static final Logger Log = LoggerFactory.getLogger(AuditSegmentStore.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4F464153;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_MAGIC = 0x4F464149;
+    /**
+     * Number of records of each block of the index.
+     */
+    static final int BLOCK_RECORDS = 64;
+    private static final String FILE_PREFIX = "jive.audit-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final byte[] EXPORT_HEADER = "<jive xmlns=\"http://www.jivesoftware.org\">".getBytes(UTF8);
+    private static final byte[] EXPORT_FOOTER = "</jive>".getBytes(UTF8);
+
+    private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            return name.startsWith(FILE_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+        }
+    };
+
+    private final File baseFolder;
+    private final FastDateFormat dateFormat = FastDateFormat.getInstance("yyyyMMdd", TimeZone.getTimeZone("UTC"));
+    private volatile long maxTotalSize = Long.MAX_VALUE;
+    private volatile long maxSegmentSize = 10 * 1024 * 1024;
+    private volatile int maxDays = -1;
+
+    /**
+     * Indexes of the completed segments that were read, by name of segment file.
+     */
+    private final Map<String, SegmentIndex> indexes = new HashMap<String, SegmentIndex>();
+
+    // State of the segment being written, guarded by this
+    private File activeFile;
+    private RandomAccessFile activeRaf;
+    private MappedByteBuffer activeBuffer;
+    private SegmentIndex activeIndex;
+    /**
+     * First time that belongs to the next day, when the active segment is completed.
+     */
+    private long activeDayEnd;
+
+    /**
+     * Creates a store that keeps its segments in the specified folder.
+     *
+     * @param baseFolder the folder where the segments are saved.
+     */
+    public AuditSegmentStore(File baseFolder) {
+        this.baseFolder = baseFolder;
+    }
+
+    /**
+     * Sets the limits of the store.
+     *
+     * @param totalSize the max size in bytes of all the segments.
+     * @param segmentSize the max size in bytes of a segment.
+     * @param days the max number of days to keep packets, -1 to keep them forever.
+     */
+    void setMaxValues(long totalSize, long segmentSize, int days) {
+        maxTotalSize = totalSize;
+        maxSegmentSize = Math.max(64 * 1024, segmentSize);
+        maxDays = days;
+    }
+
+    /**
+     * Appends a packet to the active segment, starting a new segment if needed.
+     *
+     * @param timestamp the time when the packet was audited.
+     * @param from the bare JID of the sender or null.
+     * @param to the bare JID of the recipient or null.
+     * @param data the XML of the packet.
+     * @throws IOException if the packet could not be saved.
+     */
+    synchronized void append(long timestamp, String from, String to, byte[] data) throws IOException {
+        byte[] fromBytes = from == null ? null : from.getBytes(UTF8);
+        byte[] toBytes = to == null ? null : to.getBytes(UTF8);
+        int length = 8 + 2 + (fromBytes == null ? 0 : fromBytes.length) + 2 +
+                (toBytes == null ? 0 : toBytes.length) + data.length;
+        // Room for the record and the end mark
+        int required = 4 + length + 4;
+        if (activeBuffer == null || timestamp >= activeDayEnd || activeBuffer.remaining() < required) {
+            completeSegment();
+            ensureMaxTotalSize();
+            createSegment(timestamp, required);
+        }
+        long offset = activeBuffer.position();
+        activeBuffer.putInt(length);
+        activeBuffer.putLong(timestamp);
+        putString(activeBuffer, fromBytes);
+        putString(activeBuffer, toBytes);
+        activeBuffer.put(data);
+        activeIndex.add(offset, activeBuffer.position(), timestamp, from, to);
+    }
+
+    /**
+     * Writes the appended packets to the disk.
+     *
+     * @throws IOException if an error occurred while writing.
+     */
+    synchronized void force() throws IOException {
+        if (activeBuffer != null) {
+            activeBuffer.force();
+        }
+    }
+
+    /**
+     * Completes the active segment. The next packet will start a new segment.
+     */
+    synchronized void close() {
+        try {
+            completeSegment();
+        }
+        catch (IOException e) {
+            Log.error("Error closing audit segment " + activeFile, e);
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putShort((short) -1);
+        }
+        else {
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private void createSegment(long timestamp, int required) throws IOException {
+        String prefix = FILE_PREFIX + dateFormat.format(new Date(timestamp)) + "-";
+        // Continue after the last segment of the day, a segment is never appended to again
+        int index = 0;
+        String[] names = baseFolder.list(SEGMENT_FILTER);
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        String number = name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length());
+                        index = Math.max(index, Integer.parseInt(number) + 1);
+                    }
+                    catch (NumberFormatException e) {
+                        // Not a segment of this store
+                    }
+                }
+            }
+        }
+        String number = Integer.toString(index);
+        while (number.length() < 3) {
+            number = "0" + number;
+        }
+        File file = new File(baseFolder, prefix + number + SEGMENT_SUFFIX);
+        long size = Math.max(maxSegmentSize, HEADER_SIZE + (long) required);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            activeBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        activeBuffer.putInt(MAGIC);
+        activeBuffer.putInt(VERSION);
+        activeRaf = raf;
+        activeFile = file;
+        activeIndex = new SegmentIndex();
+        activeIndex.length = HEADER_SIZE;
+
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(timestamp);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DATE, 1);
+        activeDayEnd = calendar.getTimeInMillis();
+    }
+
+    /**
+     * Saves the index of the active segment and truncates the segment to its records.
+     */
+    private void completeSegment() throws IOException {
+        if (activeBuffer == null) {
+            return;
+        }
+        File file = activeFile;
+        SegmentIndex index = activeIndex;
+        RandomAccessFile raf = activeRaf;
+        activeBuffer = null;
+        activeFile = null;
+        activeIndex = null;
+        activeRaf = null;
+        try {
+            index.write(getIndexFile(file));
+            synchronized (indexes) {
+                indexes.put(file.getName(), index);
+            }
+            try {
+                // Keep the end mark
+                raf.getChannel().truncate(index.length + 4);
+            }
+            catch (IOException e) {
+                // Some platforms do not allow truncating a mapped file
+                Log.debug("Unable to truncate audit segment " + file, e);
+            }
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static File getIndexFile(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(),
+                name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    /**
+     * Returns the segment files sorted by name, which is in chronological order.
+     */
+    private File[] getSegmentFiles() {
+        File[] files = baseFolder.listFiles(SEGMENT_FILTER);
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void deleteSegment(File file) {
+        synchronized (indexes) {
+            indexes.remove(file.getName());
+        }
+        file.delete();
+        getIndexFile(file).delete();
+    }
+
+    /**
+     * Deletes the oldest segments until the total size is under the limit.
+     */
+    private void ensureMaxTotalSize() {
+        File[] files = getSegmentFiles();
+        long totalLength = 0;
+        for (File file : files) {
+            totalLength += file.length() + getIndexFile(file).length();
+        }
+        for (int i = 0; i < files.length && totalLength > maxTotalSize; i++) {
+            totalLength -= files[i].length() + getIndexFile(files[i]).length();
+            deleteSegment(files[i]);
+        }
+    }
+
+    /**
+     * Deletes the segments that exceeded the max number of days limit.
+     */
+    synchronized void ensureMaxDays() {
+        if (maxDays == -1) {
+            return;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DATE, maxDays * -1);
+        String oldestFile = FILE_PREFIX + dateFormat.format(calendar.getTime()) + "-000" + SEGMENT_SUFFIX;
+        for (File file : getSegmentFiles()) {
+            if (file.getName().compareTo(oldestFile) < 0 && !file.equals(activeFile)) {
+                deleteSegment(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the packets sent or received by a user within a time window, oldest first.
+     *
+     * @param bareJID the bare JID of the user, or null for the packets of all users.
+     * @param start the start of the time window (inclusive) in milliseconds.
+     * @param end the end of the time window (inclusive) in milliseconds.
+     * @return the packets of the user within the time window.
+     * @throws IOException if an error occurred while reading the segments.
+     */
+    public List<Record> search(String bareJID, long start, long end) throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        search(bareJID, start, end, new RecordHandler() {
+            public void handle(Record record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+
+    /**
+     * Writes the packets sent or received by a user within a time window, oldest first,
+     * in the format of the XML audit files.
+     *
+     * @param bareJID the bare JID of the user, or null for the packets of all users.
+     * @param start the start of the time window (inclusive) in milliseconds.
+     * @param end the end of the time window (inclusive) in milliseconds.
+     * @param out where the XML is written. The stream is not closed.
+     * @throws IOException if an error occurred while reading the segments or writing the XML.
+     */
+    public void export(String bareJID, long start, long end, final OutputStream out) throws IOException {
+        out.write(EXPORT_HEADER);
+        search(bareJID, start, end, new RecordHandler() {
+            public void handle(Record record) throws IOException {
+                out.write(record.data);
+            }
+        });
+        out.write(EXPORT_FOOTER);
+        out.flush();
+    }
+
+    private void search(String bareJID, long start, long end, RecordHandler handler) throws IOException {
+        File active;
+        SegmentIndex activeSnapshot;
+        synchronized (this) {
+            active = activeFile;
+            activeSnapshot = activeIndex == null ? null : activeIndex.copy();
+        }
+        for (File file : getSegmentFiles()) {
+            SegmentIndex index = file.equals(active) ? activeSnapshot : getIndex(file);
+            if (index == null) {
+                // Deleted meanwhile
+                continue;
+            }
+            BitSet blocks = index.getBlocks(bareJID, start, end);
+            if (blocks.isEmpty()) {
+                continue;
+            }
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(file, "r");
+            }
+            catch (IOException e) {
+                // Deleted meanwhile
+                continue;
+            }
+            try {
+                ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min(raf.length(), index.length));
+                for (int block = blocks.nextSetBit(0); block >= 0; block = blocks.nextSetBit(block + 1)) {
+                    long blockEnd = block + 1 < index.blockCount ? index.blockOffsets[block + 1] : index.length;
+                    buffer.position((int) index.blockOffsets[block]);
+                    while (buffer.position() < blockEnd) {
+                        Record record = readRecord(buffer);
+                        if (record == null) {
+                            break;
+                        }
+                        if (record.timestamp >= start && record.timestamp <= end && (bareJID == null ||
+                                bareJID.equals(record.from) || bareJID.equals(record.to)))
+                        {
+                            handler.handle(record);
+                        }
+                    }
+                }
+            }
+            finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the record at the current position of the buffer or returns null if there are
+     * no more records.
+     */
+    private static Record readRecord(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            return null;
+        }
+        ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+        try {
+            long timestamp = record.getLong();
+            String from = getString(record);
+            String to = getString(record);
+            byte[] data = new byte[record.remaining()];
+            record.get(data);
+            return new Record(timestamp, from, to, data);
+        }
+        catch (BufferUnderflowException e) {
+            // Incomplete record, e.g. after a crash
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of a completed segment, reading it or rebuilding it if needed.
+     */
+    private SegmentIndex getIndex(File file) throws IOException {
+        synchronized (indexes) {
+            SegmentIndex index = indexes.get(file.getName());
+            if (index != null) {
+                return index;
+            }
+        }
+        File indexFile = getIndexFile(file);
+        SegmentIndex index = null;
+        if (indexFile.exists()) {
+            try {
+                index = SegmentIndex.read(indexFile);
+            }
+            catch (IOException e) {
+                Log.warn("Rebuilding corrupt audit index " + indexFile, e);
+            }
+        }
+        if (index == null) {
+            index = rebuildIndex(file);
+            if (index == null) {
+                return null;
+            }
+            try {
+                index.write(indexFile);
+            }
+            catch (IOException e) {
+                Log.warn("Unable to save audit index " + indexFile, e);
+            }
+        }
+        synchronized (indexes) {
+            indexes.put(file.getName(), index);
+        }
+        return index;
+    }
+
+    /**
+     * Builds the index of a segment by reading all its records.
+     */
+    private static SegmentIndex rebuildIndex(File file) throws IOException {
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        }
+        catch (IOException e) {
+            return null;
+        }
+        try {
+            SegmentIndex index = new SegmentIndex();
+            index.length = HEADER_SIZE;
+            if (raf.length() < HEADER_SIZE) {
+                return index;
+            }
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not an audit segment: " + file);
+            }
+            while (true) {
+                int offset = buffer.position();
+                Record record = readRecord(buffer);
+                if (record == null) {
+                    break;
+                }
+                index.add(offset, buffer.position(), record.timestamp, record.from, record.to);
+            }
+            return index;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Receives the records found by a search.
+     */
+    private interface RecordHandler {
+        void handle(Record record) throws IOException;
+    }
+
+    /**
+     * Audited packet read from a segment.
+     */
+    public static class Record {
+
+        private final long timestamp;
+        private final String from;
+        private final String to;
+        private final byte[] data;
+
+        Record(long timestamp, String from, String to, byte[] data) {
+            this.timestamp = timestamp;
+            this.from = from;
+            this.to = to;
+            this.data = data;
+        }
+
+        /**
+         * Returns the time when the packet was audited.
+         *
+         * @return the time when the packet was audited.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the bare JID of the sender of the packet or null if none.
+         *
+         * @return the bare JID of the sender of the packet.
+         */
+        public String getFrom() {
+            return from;
+        }
+
+        /**
+         * Returns the bare JID of the recipient of the packet or null if none.
+         *
+         * @return the bare JID of the recipient of the packet.
+         */
+        public String getTo() {
+            return to;
+        }
+
+        /**
+         * Returns the packet as it is written in the XML audit files.
+         *
+         * @return the packet as it is written in the XML audit files.
+         */
+        public String getXML() {
+            return new String(data, UTF8);
+        }
+    }
+
+    /**
+     * Sparse index of a segment: the offset and time range of every block of records and
+     * the blocks where each bare JID appears.
+     */
+    static class SegmentIndex {
+
+        /**
+         * Offset after the last record.
+         */
+        long length;
+        int blockCount;
+        private int recordsInBlock;
+        long[] blockOffsets = new long[16];
+        private long[] blockMinTimes = new long[16];
+        private long[] blockMaxTimes = new long[16];
+        private Map<String, BitSet> jidBlocks = new HashMap<String, BitSet>();
+
+        void add(long offset, long end, long timestamp, String from, String to) {
+            if (blockCount == 0 || recordsInBlock == BLOCK_RECORDS) {
+                if (blockCount == blockOffsets.length) {
+                    int size = blockCount * 2;
+                    blockOffsets = Arrays.copyOf(blockOffsets, size);
+                    blockMinTimes = Arrays.copyOf(blockMinTimes, size);
+                    blockMaxTimes = Arrays.copyOf(blockMaxTimes, size);
+                }
+                blockOffsets[blockCount] = offset;
+                blockMinTimes[blockCount] = timestamp;
+                blockMaxTimes[blockCount] = timestamp;
+                blockCount++;
+                recordsInBlock = 0;
+            }
+            int block = blockCount - 1;
+            blockMinTimes[block] = Math.min(blockMinTimes[block], timestamp);
+            blockMaxTimes[block] = Math.max(blockMaxTimes[block], timestamp);
+            recordsInBlock++;
+            addJID(from, block);
+            addJID(to, block);
+            length = end;
+        }
+
+        private void addJID(String bareJID, int block) {
+            if (bareJID != null) {
+                BitSet blocks = jidBlocks.get(bareJID);
+                if (blocks == null) {
+                    blocks = new BitSet();
+                    jidBlocks.put(bareJID, blocks);
+                }
+                blocks.set(block);
+            }
+        }
+
+        /**
+         * Returns the blocks that may contain records of the JID within the time window.
+         */
+        BitSet getBlocks(String bareJID, long start, long end) {
+            BitSet blocks;
+            if (bareJID == null) {
+                blocks = new BitSet(blockCount);
+                blocks.set(0, blockCount);
+            }
+            else {
+                BitSet jidSet = jidBlocks.get(bareJID);
+                if (jidSet == null) {
+                    return new BitSet();
+                }
+                blocks = (BitSet) jidSet.clone();
+            }
+            for (int block = blocks.nextSetBit(0); block >= 0; block = blocks.nextSetBit(block + 1)) {
+                if (blockMaxTimes[block] < start || blockMinTimes[block] > end) {
+                    blocks.clear(block);
+                }
+            }
+            return blocks;
+        }
+
+        SegmentIndex copy() {
+            SegmentIndex copy = new SegmentIndex();
+            copy.length = length;
+            copy.blockCount = blockCount;
+            copy.recordsInBlock = recordsInBlock;
+            copy.blockOffsets = Arrays.copyOf(blockOffsets, blockCount);
+            copy.blockMinTimes = Arrays.copyOf(blockMinTimes, blockCount);
+            copy.blockMaxTimes = Arrays.copyOf(blockMaxTimes, blockCount);
+            for (Map.Entry<String, BitSet> entry : jidBlocks.entrySet()) {
+                copy.jidBlocks.put(entry.getKey(), (BitSet) entry.getValue().clone());
+            }
+            return copy;
+        }
+
+        void write(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(length);
+                out.writeInt(blockCount);
+                for (int i = 0; i < blockCount; i++) {
+                    out.writeLong(blockOffsets[i]);
+                    out.writeLong(blockMinTimes[i]);
+                    out.writeLong(blockMaxTimes[i]);
+                }
+                out.writeInt(jidBlocks.size());
+                for (Map.Entry<String, BitSet> entry : jidBlocks.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    long[] words = entry.getValue().toLongArray();
+                    out.writeInt(words.length);
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+
+        static SegmentIndex read(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not an audit index: " + file);
+                }
+                SegmentIndex index = new SegmentIndex();
+                index.length = in.readLong();
+                index.blockCount = in.readInt();
+                index.blockOffsets = new long[index.blockCount];
+                index.blockMinTimes = new long[index.blockCount];
+                index.blockMaxTimes = new long[index.blockCount];
+                for (int i = 0; i < index.blockCount; i++) {
+                    index.blockOffsets[i] = in.readLong();
+                    index.blockMinTimes[i] = in.readLong();
+                    index.blockMaxTimes[i] = in.readLong();
+                }
+                int jids = in.readInt();
+                for (int i = 0; i < jids; i++) {
+                    String jid = in.readUTF();
+                    long[] words = new long[in.readInt()];
+                    for (int j = 0; j < words.length; j++) {
+                        words[j] = in.readLong();
+                    }
+                    index.jidBlocks.put(jid, BitSet.valueOf(words));
+                }
+                index.recordsInBlock = BLOCK_RECORDS;
+                return index;
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -20,13 +20,13 @@
 
 package org.jivesoftware.openfire.audit.spi;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -35,35 +35,63 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
-import org.dom4j.DocumentFactory;
-import org.dom4j.Element;
 import org.jivesoftware.openfire.audit.AuditManager;
 import org.jivesoftware.openfire.audit.Auditor;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.FastDateFormat;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
+import org.jivesoftware.util.RingBuffer;
 import org.jivesoftware.util.StringUtils;
-import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.Presence;
 
+/**
+ * Auditor that saves the audited packets to XML files. Each packet is serialized once by
+ * the thread auditing it and added to a ring buffer. A single writer thread takes all the
+ * packets waiting in the buffer and appends them to the current audit file with one
+ * sequential write, so packets that arrive while a write is in progress are committed
+ * together with the next write.<p>
+ *
+ * The size of the buffer is set by the <tt>xmpp.audit.buffersize</tt> property (65536
+ * packets by default). When the buffer is full the auditing threads wait for the writer.
+ * Setting <tt>xmpp.audit.sync</tt> to true forces each write to the disk.<p>
+ *
+ * When the <tt>xmpp.audit.format</tt> property is <tt>binary</tt> the packets are saved
+ * to an {@link AuditSegmentStore} instead, where the traffic of a user within a time
+ * window can be found without reading all the files.
+ */
 public class AuditorImpl implements Auditor {
 
 	private static final Logger Log = LoggerFactory.getLogger(AuditorImpl.class);
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] FILE_HEADER = "<jive xmlns=\"http://www.jivesoftware.org\">".getBytes(UTF8);
+    private static final byte[] FILE_FOOTER = "</jive>".getBytes(UTF8);
+
     private AuditManager auditManager;
     private File currentAuditFile;
-    private Writer writer;
-    private org.jivesoftware.util.XMLWriter xmlWriter;
+    /**
+     * Channel of the current audit file or null if no file is open.
+     */
+    private FileChannel channel;
+    /**
+     * Number of bytes of the current audit file.
+     */
+    private long currentFileSize;
+    /**
+     * Buffer where packets are gathered before being written to the channel.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
     /**
      * Limit date used to detect when we need to rollover files. This date will be
      * configured as the last second of the day.
@@ -87,7 +115,7 @@ public class AuditorImpl implements Auditor {
     /**
      * Flag that indicates if packets can still be accepted to be saved to the audit log.
      */
-    private boolean closed = false;
+    private volatile boolean closed = false;
     /**
      * Directoty (absolute path) where the audit files will be saved.
      */
@@ -98,9 +126,9 @@ public class AuditorImpl implements Auditor {
     private File baseFolder;
 
     /**
-     * Queue that holds the audited packets that will be later saved to an XML file.
+     * Buffer that holds the audited packets that will be later saved to an XML file.
      */
-    private BlockingQueue<AuditPacket> logQueue = new LinkedBlockingQueue<AuditPacket>();
+    private final RingBuffer<AuditPacket> logQueue;
 
     /**
      * Allow only a limited number of files for each day, max. three digits (000-999)
@@ -111,33 +139,51 @@ public class AuditorImpl implements Auditor {
      */
     private int filesIndex = 0;
     /**
-     * Timer to save queued logs to the XML file.
+     * Max time in milliseconds that the writer waits for new packets before checking the
+     * audit files that are too old.
+     */
+    private volatile long logTimeout = 1000;
+    /**
+     * Thread that saves the queued packets to the XML file.
      */
-    private SaveQueuedPacketsTask saveQueuedPacketsTask;
+    private volatile WriterThread writerThread;
+    /**
+     * True while the writer thread is waiting for new packets.
+     */
+    private final AtomicBoolean writerWaiting = new AtomicBoolean(false);
     private FastDateFormat dateFormat;
     private static FastDateFormat auditFormat;
+    /**
+     * True if packets are saved to a segment store instead of XML files.
+     */
+    private final boolean binaryFormat;
+    /**
+     * Store of the packets when the binary format is used.
+     */
+    private volatile AuditSegmentStore segmentStore;
 
     public AuditorImpl(AuditManager manager) {
         auditManager = manager;
         dateFormat = FastDateFormat.getInstance("yyyyMMdd", TimeZone.getTimeZone("UTC"));
         auditFormat = FastDateFormat.getInstance("MMM dd, yyyy hh:mm:ss:SSS a", JiveGlobals.getLocale());
+        logQueue = new RingBuffer<AuditPacket>(JiveGlobals.getIntProperty("xmpp.audit.buffersize", 65536));
+        binaryFormat = "binary".equals(JiveGlobals.getProperty("xmpp.audit.format", "xml"));
     }
 
     protected void setMaxValues(int totalSize, int fileSize, int days) {
         maxTotalSize = (long) totalSize * 1024l * 1024l;
         maxFileSize = (long) fileSize * 1024l * 1024l;
         maxDays = days;
+        AuditSegmentStore store = segmentStore;
+        if (store != null) {
+            store.setMaxValues(maxTotalSize, maxFileSize, maxDays);
+        }
     }
 
     public void setLogTimeout(int logTimeout) {
-        // Cancel any existing task because the timeout has changed
-        if (saveQueuedPacketsTask != null) {
-            saveQueuedPacketsTask.cancel();
-        }
-        // Create a new task and schedule it with the new timeout
-        saveQueuedPacketsTask = new SaveQueuedPacketsTask();
-        TaskEngine.getInstance().schedule(saveQueuedPacketsTask, logTimeout, logTimeout);
-
+        this.logTimeout = logTimeout;
+        // Let the writer use the new timeout
+        wakeUpWriter();
     }
 
     public void setLogDir(String logDir) {
@@ -148,6 +194,25 @@ public class AuditorImpl implements Auditor {
         if (!baseFolder.exists()) {
             baseFolder.mkdir();
         }
+        if (binaryFormat) {
+            AuditSegmentStore store = new AuditSegmentStore(baseFolder);
+            store.setMaxValues(maxTotalSize, maxFileSize, maxDays);
+            AuditSegmentStore previous = segmentStore;
+            segmentStore = store;
+            if (previous != null) {
+                previous.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the store where packets are saved when the <tt>xmpp.audit.format</tt>
+     * property is <tt>binary</tt>, or null if packets are saved to XML files.
+     *
+     * @return the store of the audited packets or null if packets are saved to XML files.
+     */
+    public AuditSegmentStore getSegmentStore() {
+        return segmentStore;
     }
 
     public int getQueuedPacketsNumber() {
@@ -176,41 +241,84 @@ public class AuditorImpl implements Auditor {
 
     private void writePacket(Packet packet, Session session) {
         if (!closed) {
+            if (writerThread == null) {
+                startWriter();
+            }
             // Add to the logging queue this new entry that will be saved later
-            logQueue.add(new AuditPacket(packet.createCopy(), session));
+            AuditPacket auditPacket = new AuditPacket(packet, session);
+            while (!logQueue.offer(auditPacket)) {
+                if (closed) {
+                    return;
+                }
+                // Wait for the writer to make room in the buffer
+                wakeUpWriter();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            wakeUpWriter();
+        }
+    }
+
+    private synchronized void startWriter() {
+        if (writerThread == null && !closed) {
+            WriterThread thread = new WriterThread();
+            thread.start();
+            writerThread = thread;
+        }
+    }
+
+    private void wakeUpWriter() {
+        WriterThread thread = writerThread;
+        if (thread != null && writerWaiting.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
         }
     }
 
     public void stop() {
         // Stop queuing packets since we are being stopped
         closed = true;
-        // Save all remaining queued packets to the XML file
-        saveQueuedPackets();
-        close();
+        WriterThread thread;
+        synchronized (this) {
+            thread = writerThread;
+        }
+        if (thread != null) {
+            // The writer saves all remaining queued packets to the XML file before exiting
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        else {
+            close();
+        }
     }
 
     private void close() {
-        if (xmlWriter != null) {
+        if (channel != null) {
             try {
-                xmlWriter.flush();
-                writer.write("</jive>");
-                xmlWriter.close();
-                writer = null;
-                xmlWriter = null;
+                flushWriteBuffer();
+                write(ByteBuffer.wrap(FILE_FOOTER));
+                channel.close();
             }
             catch (Exception e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
             }
+            finally {
+                channel = null;
+                writeBuffer.clear();
+            }
         }
     }
 
     private void prepareAuditFile(Date auditDate) throws IOException {
-        ensureMaxTotalSize();
-
         // Rotate file if: we just started, current file size exceeded limit or date has changed
-        if (currentAuditFile == null || currentAuditFile.length() > maxFileSize ||
-                xmlWriter == null || currentDateLimit == null || auditDate.after(currentDateLimit))
+        if (currentAuditFile == null || currentFileSize + writeBuffer.position() > maxFileSize ||
+                channel == null || currentDateLimit == null || auditDate.after(currentDateLimit))
         {
+            flushWriteBuffer();
+            ensureMaxTotalSize();
             createAuditFile(auditDate);
         }
     }
@@ -292,7 +400,7 @@ public class AuditorImpl implements Auditor {
 	/* if this new logic still causes problems one may want to 
 	* use log4j or change the file format from YYYYmmdd-nnn to YYYYmmdd-HHMM */
 	/**
-	* Sets <b>xmlWriter</b> so this class can use it to write audit logs<br>
+	* Opens the <b>channel</b> this class uses to write audit logs<br>
 	* The audit filename <b>currentAuditFile</b> will be `jive.audit-YYYYmmdd-nnn.log´<br>
 	* `nnn´ will be reset to `000´ when a new log file is created the next day <br>
 	* `nnn´ will be increased for log files which belong to the same day<br>
@@ -346,52 +454,153 @@ public class AuditorImpl implements Auditor {
 		currentAuditFile = tmpAuditFile;
 		close();
 		// always append to an existing file (after restart)
-		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(currentAuditFile, true), "UTF-8"));
-		writer.write("<jive xmlns=\"http://www.jivesoftware.org\">");
-		xmlWriter = new org.jivesoftware.util.XMLWriter(writer);
+		channel = new FileOutputStream(currentAuditFile, true).getChannel();
+		currentFileSize = channel.size();
+		write(ByteBuffer.wrap(FILE_HEADER));
 	}
 
     /**
-     * Saves the queued entries to an XML file and checks that very old files are deleted.
+     * Writes the bytes to the current audit file.
      */
-    private class SaveQueuedPacketsTask extends TimerTask {
-        @Override
-		public void run() {
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            currentFileSize += channel.write(buffer);
+        }
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        if (channel != null && writeBuffer.position() > 0) {
+            writeBuffer.flip();
             try {
-                // Ensure that saved audit logs are not too old
-                ensureMaxDays();
-                // Save queued packets to the audit logs
-                saveQueuedPackets();
+                write(writeBuffer);
             }
-            catch (Throwable e) {
-                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            finally {
+                writeBuffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Thread that saves the queued packets to the XML file and checks that very old files
+     * are deleted.
+     */
+    private class WriterThread extends Thread {
+
+        WriterThread() {
+            super("Audit Writer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<AuditPacket> packets = new ArrayList<AuditPacket>();
+            long lastCheck = 0;
+            while (true) {
+                try {
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheck >= logTimeout) {
+                        // Ensure that saved audit logs are not too old
+                        if (binaryFormat) {
+                            if (segmentStore != null) {
+                                segmentStore.ensureMaxDays();
+                            }
+                        }
+                        else {
+                            ensureMaxDays();
+                        }
+                        lastCheck = now;
+                    }
+                    if (logQueue.isEmpty()) {
+                        if (closed) {
+                            break;
+                        }
+                        writerWaiting.set(true);
+                        // Check again in case a packet was added before the flag was set
+                        if (logQueue.isEmpty() && !closed) {
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(logTimeout));
+                        }
+                        writerWaiting.set(false);
+                        continue;
+                    }
+                    // Save queued packets to the audit logs
+                    logQueue.drainTo(packets, Integer.MAX_VALUE);
+                    saveQueuedPackets(packets);
+                }
+                catch (Throwable e) {
+                    Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+                }
+                finally {
+                    packets.clear();
+                }
+            }
+            close();
+            if (segmentStore != null) {
+                segmentStore.close();
             }
         }
     }
 
-    private void saveQueuedPackets() {
-        List<AuditPacket> packets = new ArrayList<AuditPacket>(logQueue.size());
-        logQueue.drainTo(packets);
+    /**
+     * Appends the packets to the audit files with as few writes as possible.
+     */
+    private void saveQueuedPackets(List<AuditPacket> packets) {
+        if (binaryFormat) {
+            if (segmentStore != null) {
+                saveQueuedPackets(segmentStore, packets);
+            }
+            return;
+        }
         for (AuditPacket auditPacket : packets) {
             try {
                 prepareAuditFile(auditPacket.getCreationDate());
-                Element element = auditPacket.getElement();
-                // Protect against null elements.
-                if (element != null) {
-                    xmlWriter.write(element);
+                byte[] data = auditPacket.getData();
+                if (data.length > writeBuffer.remaining()) {
+                    flushWriteBuffer();
+                }
+                if (data.length > writeBuffer.remaining()) {
+                    write(ByteBuffer.wrap(data));
+                }
+                else {
+                    writeBuffer.put(data);
                 }
             }
             catch (IOException e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-                // Add again the entry to the queue to save it later
-                if (xmlWriter != null) {
-                    logQueue.add(auditPacket);
-                }
+                // Close the file so that a new one is created for the next packets
+                writeBuffer.clear();
+                close();
+            }
+        }
+        try {
+            flushWriteBuffer();
+            if (channel != null && JiveGlobals.getBooleanProperty("xmpp.audit.sync", false)) {
+                channel.force(false);
+            }
+        }
+        catch (IOException ioe) {
+            Log.error(ioe.getMessage(), ioe);
+            close();
+        }
+    }
+
+    /**
+     * Appends the packets to the segment store.
+     */
+    private void saveQueuedPackets(AuditSegmentStore store, List<AuditPacket> packets) {
+        for (AuditPacket auditPacket : packets) {
+            try {
+                store.append(auditPacket.getCreationDate().getTime(), auditPacket.getFrom(),
+                        auditPacket.getTo(), auditPacket.getData());
+            }
+            catch (IOException e) {
+                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+                // Start a new segment for the next packets
+                store.close();
             }
         }
         try {
-            if (xmlWriter != null) {
-                xmlWriter.flush();
+            if (JiveGlobals.getBooleanProperty("xmpp.audit.sync", false)) {
+                store.force();
             }
         }
         catch (IOException ioe) {
@@ -400,55 +609,86 @@ public class AuditorImpl implements Auditor {
     }
 
     /**
-     * Wrapper on a Packet with information about the packet's status at the moment
+     * Serialized packet with information about the packet's status at the moment
      * when the message was queued.<p>
      *
-     * The idea is to wrap every packet that is needed to be audited and then add the
-     * wrapper to a queue that will be later processed (i.e. saved to the XML file).
+     * The idea is to serialize every packet that is needed to be audited once, by the
+     * thread auditing it, and then add it to a buffer that will be later processed (i.e.
+     * saved to the XML file). The packet is not copied.
      */
     private static class AuditPacket {
 
-        private static DocumentFactory docFactory = DocumentFactory.getInstance();
-
-        private Element element;
+        private byte[] data;
         private Date creationDate;
+        private String from;
+        private String to;
 
         public AuditPacket(Packet packet, Session session) {
-            element = docFactory.createElement("packet", "http://www.jivesoftware.org");
             creationDate = new Date();
+            StringBuilder xml = new StringBuilder(256);
+            xml.append("<packet xmlns=\"http://www.jivesoftware.org\"");
             if (session != null && session.getStreamID() != null) {
-                element.addAttribute("streamID", session.getStreamID().toString());
+                appendAttribute(xml, "streamID", session.getStreamID().toString());
             }
             switch (session == null ? 0 : session.getStatus()) {
                 case Session.STATUS_AUTHENTICATED:
-                    element.addAttribute("status", "auth");
+                    appendAttribute(xml, "status", "auth");
                     break;
                 case Session.STATUS_CLOSED:
-                    element.addAttribute("status", "closed");
+                    appendAttribute(xml, "status", "closed");
                     break;
                 case Session.STATUS_CONNECTED:
-                    element.addAttribute("status", "connected");
+                    appendAttribute(xml, "status", "connected");
                     // This is a workaround. Since we don't want to have an incorrect FROM attribute
                     // value we need to clean up the FROM attribute. The FROM attribute will contain
                     // an incorrect value since we are setting a fake JID until the user actually
-                    // authenticates with the server.
+                    // authenticates with the server. The packet being routed must not change so
+                    // only in this case a copy is needed.
+                    packet = packet.createCopy();
                     packet.setFrom((String) null);
                     break;
                 default:
-                    element.addAttribute("status", "unknown");
+                    appendAttribute(xml, "status", "unknown");
                     break;
             }
-            element.addAttribute("timestamp", auditFormat.format(creationDate));
-            element.add(packet.getElement());
+            appendAttribute(xml, "timestamp", auditFormat.format(creationDate));
+            xml.append('>').append(packet.toXML()).append("</packet>");
+            data = xml.toString().getBytes(UTF8);
+            JID fromJID = packet.getFrom();
+            JID toJID = packet.getTo();
+            from = fromJID == null ? null : fromJID.toBareJID();
+            to = toJID == null ? null : toJID.toBareJID();
+        }
+
+        private static void appendAttribute(StringBuilder xml, String name, String value) {
+            xml.append(' ').append(name).append("=\"").append(StringUtils.escapeForXML(value)).append('"');
+        }
+
+        /**
+         * Returns the UTF-8 encoded XML of this audit packet.
+         *
+         * @return the UTF-8 encoded XML of this audit packet.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Returns the bare JID of the sender of the packet or null if none.
+         *
+         * @return the bare JID of the sender of the packet.
+         */
+        public String getFrom() {
+            return from;
         }
 
         /**
-         * Returns the Element associated with this audit packet.
+         * Returns the bare JID of the recipient of the packet or null if none.
          *
-         * @return the Element.
+         * @return the bare JID of the recipient of the packet.
          */
-        public Element getElement() {
-            return element;
+        public String getTo() {
+            return to;
         }
 
         /**
@@ -461,4 +701,4 @@ public class AuditorImpl implements Auditor {
             return creationDate;
         }
     }
-}
\ No newline at end of file
+}
@@ -21,7 +21,6 @@
 package org.jivesoftware.openfire.component;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.util.cache.ClusterTask;
 import org.jivesoftware.util.cache.ExternalizableUtil;
 import org.xmpp.packet.IQ;
@@ -57,11 +56,11 @@ public class NotifyComponentInfo implements ClusterTask {
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) iq.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, iq.getElement());
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         iq = new IQ(packetElement, true);
     }
 }
@@ -36,6 +36,7 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -56,6 +57,7 @@ import org.dom4j.io.SAXReader;
 import org.jivesoftware.admin.AdminConsole;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.Version;
 import org.slf4j.Logger;
@@ -946,6 +948,12 @@ public class PluginManager {
          */
         private boolean firstRun = true;
 
+        /**
+         * Names of the parent plugins of the plugin directories, or null for plugins without
+         * a parent plugin, so that plugin.xml files are only parsed once after being unzipped.
+         */
+        private final Map<String, String> parentPluginNames = new HashMap<String, String>();
+
         public void run() {
             // If the task is already running, return.
             synchronized (this) {
@@ -980,6 +988,11 @@ public class PluginManager {
                     return;
                 }
 
+                // Only the first run is part of the startup of the server.
+                StartupReport report = firstRun ? XMPPServer.getInstance().getStartupReport() : null;
+
+                // Plugins are unzipped in parallel once all the JAR files were checked.
+                StartupScheduler unzipper = new StartupScheduler("plugins.unzip");
                 for (File jarFile : jars) {
                     String pluginName = jarFile.getName().substring(0,
                         jarFile.getName().length() - 4).toLowerCase();
@@ -989,7 +1002,7 @@ public class PluginManager {
                     pluginFiles.put(pluginName, jarFile);
                     // If the JAR hasn't been exploded, do so.
                     if (!dir.exists()) {
-                        unzipPlugin(pluginName, jarFile, dir);
+                        addUnzipStep(unzipper, pluginName, jarFile, dir);
                     }
                     // See if the JAR is newer than the directory. If so, the plugin
                     // needs to be unloaded and then reloaded.
@@ -1008,10 +1021,13 @@ public class PluginManager {
                         }
                         // If the delete operation was a success, unzip the plugin.
                         if (!dir.exists()) {
-                            unzipPlugin(pluginName, jarFile, dir);
+                            addUnzipStep(unzipper, pluginName, jarFile, dir);
                         }
                     }
                 }
+                unzipper.run(JiveGlobals.getIntProperty("xmpp.startup.threads",
+                        Runtime.getRuntime().availableProcessors()),
+                        Thread.currentThread().getContextClassLoader(), report);
 
                 File[] dirs = pluginDirectory.listFiles(new FileFilter() {
                     public boolean accept(File pathname) {
@@ -1034,6 +1050,9 @@ public class PluginManager {
                         }
                     }
                 });
+                // Load parent plugins before their child plugins, so that child plugins
+                // don't have to wait for the next run of the monitor.
+                dirs = sortParentsFirst(dirs);
 
                 // Turn the list of JAR/WAR files into a set so that we can do lookups.
                 Set<String> jarSet = new HashSet<String>();
@@ -1062,12 +1081,22 @@ public class PluginManager {
                 }
 
                 // Load all plugins that need to be loaded.
+                long loadStart = System.currentTimeMillis();
                 for (File dirFile : dirs) {
                     // If the plugin hasn't already been started, start it.
                     if (dirFile.exists() && !plugins.containsKey(dirFile.getName())) {
+                        long start = System.currentTimeMillis();
                         loadPlugin(dirFile);
+                        if (report != null) {
+                            report.addEntry("plugins", dirFile.getName(), start,
+                                    System.currentTimeMillis() - start, Thread.currentThread().getName(),
+                                    !plugins.containsKey(dirFile.getName()));
+                        }
                     }
                 }
+                if (report != null) {
+                    report.addPhase("plugins", System.currentTimeMillis() - loadStart);
+                }
                 // Set that at least one iteration was done. That means that "all available" plugins
                 // have been loaded by now.
                 if (!XMPPServer.getInstance().isSetupMode()) {
@@ -1088,6 +1117,81 @@ public class PluginManager {
             firstRun = false;
         }
 
+        private void addUnzipStep(StartupScheduler unzipper, final String pluginName, final File file,
+                final File dir)
+        {
+            // The plugin.xml file changes with the plugin
+            parentPluginNames.remove(dir.getName());
+            unzipper.addStep(pluginName, new Runnable() {
+                public void run() {
+                    unzipPlugin(pluginName, file, dir);
+                }
+            }, Collections.<String>emptyList());
+        }
+
+        /**
+         * Returns the plugin directories ordered so that every plugin comes after its parent
+         * plugin, keeping the given order otherwise.
+         *
+         * @param dirs the plugin directories.
+         * @return the plugin directories with parent plugins first.
+         */
+        private File[] sortParentsFirst(File[] dirs) {
+            Map<String, File> byName = new HashMap<String, File>();
+            for (File dir : dirs) {
+                byName.put(dir.getName(), dir);
+            }
+            // Forget the plugins that were removed
+            parentPluginNames.keySet().retainAll(byName.keySet());
+            Set<File> sorted = new LinkedHashSet<File>();
+            for (File dir : dirs) {
+                addParentsFirst(dir, byName, sorted, new HashSet<File>());
+            }
+            return sorted.toArray(new File[sorted.size()]);
+        }
+
+        private void addParentsFirst(File dir, Map<String, File> byName, Set<File> sorted, Set<File> visiting) {
+            if (sorted.contains(dir) || !visiting.add(dir)) {
+                return;
+            }
+            File parent = byName.get(getParentPluginName(dir));
+            if (parent != null) {
+                addParentsFirst(parent, byName, sorted, visiting);
+            }
+            sorted.add(dir);
+        }
+
+        /**
+         * Returns the name of the parent plugin of a plugin, or <tt>null</tt> if the plugin
+         * has no parent plugin.
+         *
+         * @param pluginDir the plugin directory.
+         * @return the name of the parent plugin or null.
+         */
+        private String getParentPluginName(File pluginDir) {
+            if (parentPluginNames.containsKey(pluginDir.getName())) {
+                return parentPluginNames.get(pluginDir.getName());
+            }
+            File pluginConfig = new File(pluginDir, "plugin.xml");
+            if (!pluginConfig.exists()) {
+                // The plugin may still be unzipped, so check again on the next run
+                return null;
+            }
+            String parentPluginName = null;
+            try {
+                SAXReader saxReader = new SAXReader();
+                saxReader.setEncoding("UTF-8");
+                Element parentPluginNode = (Element) saxReader.read(pluginConfig)
+                        .selectSingleNode("/plugin/parentPlugin");
+                parentPluginName = parentPluginNode != null ? parentPluginNode.getTextTrim() : null;
+            }
+            catch (Exception e) {
+                // The error is reported when the plugin is loaded
+            }
+            parentPluginNames.put(pluginDir.getName(), parentPluginName);
+            return parentPluginName;
+        }
+
         /**
          * Unzips a plugin from a JAR file into a directory. If the JAR file
          * isn't a plugin, this method will do nothing.
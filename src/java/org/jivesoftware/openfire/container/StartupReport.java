@@ -0,0 +1,135 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times spent initializing and starting the modules and loading the plugins of the
+ * server. Every step of the startup is recorded as an {@link Entry} of a phase, such as
+ * the initialization of the modules, and the total time of every phase is recorded too.
+ * Since steps of the same phase may run in parallel, the total time of a phase may be
+ * less than the sum of the times of its steps.
+ *
+ * @see StartupScheduler
+ * @see org.jivesoftware.openfire.XMPPServer#getStartupReport()
+ */
+public class StartupReport {
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    /**
+     * Records a step of the startup.
+     *
+     * @param phase the phase of the step.
+     * @param name the name of the step, such as the name of a module or plugin.
+     * @param startTime the time when the step started.
+     * @param elapsedTime the time in milliseconds that the step took.
+     * @param thread the name of the thread that ran the step.
+     * @param failed true if the step failed.
+     */
+    public synchronized void addEntry(String phase, String name, long startTime, long elapsedTime,
+            String thread, boolean failed)
+    {
+        entries.add(new Entry(phase, name, startTime, elapsedTime, thread, failed));
+    }
+
+    /**
+     * Records the total time of a phase. Time is added to the phase if it was already recorded.
+     *
+     * @param phase the phase.
+     * @param elapsedTime the time in milliseconds that the phase took.
+     */
+    public synchronized void addPhase(String phase, long elapsedTime) {
+        Long previous = phases.get(phase);
+        phases.put(phase, previous == null ? elapsedTime : previous + elapsedTime);
+    }
+
+    /**
+     * Returns the recorded steps in the order they finished.
+     *
+     * @return the recorded steps.
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    /**
+     * Returns the recorded phases and their total time in milliseconds, in the order they
+     * were recorded.
+     *
+     * @return the recorded phases and their total time in milliseconds.
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(phases));
+    }
+
+    /**
+     * A step of the startup.
+     */
+    public static class Entry {
+
+        private final String phase;
+        private final String name;
+        private final long startTime;
+        private final long elapsedTime;
+        private final String thread;
+        private final boolean failed;
+
+        Entry(String phase, String name, long startTime, long elapsedTime, String thread, boolean failed) {
+            this.phase = phase;
+            this.name = name;
+            this.startTime = startTime;
+            this.elapsedTime = elapsedTime;
+            this.thread = thread;
+            this.failed = failed;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.container;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the steps of a startup phase, such as the initialization of the modules, in
+ * parallel while respecting the dependencies between the steps. A step only runs once all
+ * the steps it depends on finished, whether they succeeded or not. Steps that are ready at
+ * the same time are run in the order they were added, using a bounded number of threads.
+ * With a single thread the steps run one after another in the calling thread. Exceptions
+ * thrown by a step are logged and the step is reported as failed.<p>
+ *
+ * The time taken by every step and by the whole phase is recorded in a {@link StartupReport}.
+ */
+public class StartupScheduler {
+
+    private static final Logger Log = LoggerFactory.getLogger(StartupScheduler.class);
+
+    private final String phase;
+    private final Map<String, Step> steps = new LinkedHashMap<String, Step>();
+    private final Set<String> failed = new LinkedHashSet<String>();
+
+    /**
+     * Creates a scheduler for a startup phase.
+     *
+     * @param phase the name of the phase, as recorded in the report.
+     */
+    public StartupScheduler(String phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Adds a step to the phase. Dependencies on steps that were not added are ignored.
+     *
+     * @param name the unique name of the step.
+     * @param task the task that runs the step.
+     * @param dependencies the names of the steps that have to finish before this step runs.
+     */
+    public void addStep(String name, Runnable task, Collection<String> dependencies) {
+        if (steps.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate startup step: " + name);
+        }
+        steps.put(name, new Step(name, task, dependencies));
+    }
+
+    /**
+     * Runs all the steps and waits until they finished.
+     *
+     * @param threads the max number of steps running at the same time.
+     * @param contextLoader the context class loader of the threads running the steps.
+     * @param report where to record the time taken by the steps, or <tt>null</tt> to not record it.
+     * @return the names of the steps that failed.
+     * @throws IllegalStateException if the dependencies of the steps have a cycle.
+     * @throws InterruptedException if the calling thread was interrupted while waiting.
+     */
+    public Set<String> run(int threads, final ClassLoader contextLoader, StartupReport report)
+            throws InterruptedException
+    {
+        List<Step> order = resolve();
+        failed.clear();
+        long start = System.currentTimeMillis();
+        if (threads <= 1 || order.size() <= 1) {
+            for (Step step : order) {
+                execute(step, report);
+            }
+        }
+        else {
+            final AtomicInteger count = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Startup-" + phase + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setContextClassLoader(contextLoader);
+                    return thread;
+                }
+            });
+            try {
+                CountDownLatch done = new CountDownLatch(order.size());
+                for (Step step : order) {
+                    if (step.waiting == 0) {
+                        submit(executor, step, report, done);
+                    }
+                }
+                done.await();
+            }
+            finally {
+                executor.shutdown();
+            }
+        }
+        if (report != null) {
+            report.addPhase(phase, System.currentTimeMillis() - start);
+        }
+        synchronized (failed) {
+            return new LinkedHashSet<String>(failed);
+        }
+    }
+
+    /**
+     * Links the steps with their dependencies and returns the steps in an order that runs
+     * every step after its dependencies, keeping the order the steps were added otherwise.
+     */
+    private List<Step> resolve() {
+        for (Step step : steps.values()) {
+            step.waiting = 0;
+            step.dependents.clear();
+        }
+        for (Step step : steps.values()) {
+            for (String dependency : step.dependencies) {
+                Step required = steps.get(dependency);
+                if (required != null && required != step) {
+                    required.dependents.add(step);
+                    step.waiting++;
+                }
+            }
+        }
+        List<Step> order = new ArrayList<Step>(steps.size());
+        Map<Step, Integer> waiting = new LinkedHashMap<Step, Integer>();
+        for (Step step : steps.values()) {
+            waiting.put(step, step.waiting);
+        }
+        while (!waiting.isEmpty()) {
+            Step next = null;
+            for (Map.Entry<Step, Integer> entry : waiting.entrySet()) {
+                if (entry.getValue() == 0) {
+                    next = entry.getKey();
+                    break;
+                }
+            }
+            if (next == null) {
+                throw new IllegalStateException("Startup steps with cyclic dependencies: " + waiting.keySet());
+            }
+            waiting.remove(next);
+            order.add(next);
+            for (Step dependent : next.dependents) {
+                waiting.put(dependent, waiting.get(dependent) - 1);
+            }
+        }
+        return order;
+    }
+
+    private void submit(final ExecutorService executor, final Step step, final StartupReport report,
+            final CountDownLatch done)
+    {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    execute(step, report);
+                }
+                finally {
+                    for (Step dependent : step.dependents) {
+                        boolean ready;
+                        synchronized (dependent) {
+                            ready = --dependent.waiting == 0;
+                        }
+                        if (ready) {
+                            submit(executor, dependent, report, done);
+                        }
+                    }
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    private void execute(Step step, StartupReport report) {
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            step.task.run();
+            success = true;
+        }
+        catch (Throwable e) {
+            Log.error("Error running startup step " + step.name + " of " + phase, e);
+            synchronized (failed) {
+                failed.add(step.name);
+            }
+        }
+        if (report != null) {
+            report.addEntry(phase, step.name, start, System.currentTimeMillis() - start,
+                    Thread.currentThread().getName(), !success);
+        }
+    }
+
+    /**
+     * A step of the phase and its dependencies.
+     */
+    private static class Step {
+
+        private final String name;
+        private final Runnable task;
+        private final Set<String> dependencies;
+        private final List<Step> dependents = new ArrayList<Step>();
+        private int waiting;
+
+        Step(String name, Runnable task, Collection<String> dependencies) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = new LinkedHashSet<String>(dependencies);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -23,7 +23,6 @@ package org.jivesoftware.openfire.disco;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.IQHandlerInfo;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.XMPPServer;
@@ -543,12 +542,12 @@ public class IQDiscoItemsHandler extends IQHandler implements ServerFeaturesProv
         }
 
         public void writeExternal(ObjectOutput out) throws IOException {
-            ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) element);
+            ExternalizableUtil.getInstance().writeElement(out, element);
             ExternalizableUtil.getInstance().writeExternalizableCollection(out, nodes);
         }
 
         public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-            element = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+            element = ExternalizableUtil.getInstance().readElement(in);
             ExternalizableUtil.getInstance().readExternalizableCollection(in, nodes, getClass().getClassLoader());
         }
     }
@@ -22,6 +22,8 @@ package org.jivesoftware.openfire.filetransfer.proxy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Future;
 
 import org.jivesoftware.util.cache.CacheSizes;
@@ -30,7 +32,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Tracks the different connections related to a file transfer. There are two connections, the
- * initiator and the target and when both connections are completed the transfer can begin.
+ * initiator and the target and when both connections are completed the transfer can begin.<p>
+ *
+ * The connections are either streams or socket channels. The {@link ProxyConnectionManager}
+ * sets the channels and relays the bytes itself without blocking a thread.
  */
 public class DefaultProxyTransfer implements ProxyTransfer {
 
@@ -42,6 +47,10 @@ public class DefaultProxyTransfer implements ProxyTransfer {
 
     private OutputStream outputStream;
 
+    private SocketChannel initiatorChannel;
+
+    private SocketChannel targetChannel;
+
     private String target;
 
     private String transferDigest;
@@ -50,7 +59,7 @@ public class DefaultProxyTransfer implements ProxyTransfer {
 
     private Future<?> future;
 
-    private long amountWritten;
+    private volatile long amountWritten;
 
     private static final int BUFFER_SIZE = 8000;
 
@@ -81,6 +90,22 @@ public class DefaultProxyTransfer implements ProxyTransfer {
         this.outputStream = outputStream;
     }
 
+    SocketChannel getInitiatorChannel() {
+        return initiatorChannel;
+    }
+
+    void setInitiatorChannel(SocketChannel initiatorChannel) {
+        this.initiatorChannel = initiatorChannel;
+    }
+
+    SocketChannel getTargetChannel() {
+        return targetChannel;
+    }
+
+    void setTargetChannel(SocketChannel targetChannel) {
+        this.targetChannel = targetChannel;
+    }
+
     public String getTarget() {
         return target;
     }
@@ -107,7 +132,8 @@ public class DefaultProxyTransfer implements ProxyTransfer {
 
 
     public boolean isActivatable() {
-        return ((inputStream != null) && (outputStream != null));
+        return ((inputStream != null) && (outputStream != null)) ||
+                ((initiatorChannel != null) && (targetChannel != null));
     }
 
     public synchronized void setTransferFuture(Future<?> future) {
@@ -121,10 +147,24 @@ public class DefaultProxyTransfer implements ProxyTransfer {
         return amountWritten;
     }
 
+    /**
+     * Adds to the number of bytes relayed by this transfer and by the proxy.
+     *
+     * @param count the number of bytes relayed.
+     */
+    void addAmountTransfered(long count) {
+        amountWritten += count;
+        ProxyOutputStream.amountTransfered.addAndGet(count);
+    }
+
     public void doTransfer() throws IOException {
         if (!isActivatable()) {
             throw new IOException("Transfer missing party");
         }
+        if (inputStream == null) {
+            transferChannels();
+            return;
+        }
         InputStream in = null;
         OutputStream out = null;
 
@@ -166,6 +206,40 @@ public class DefaultProxyTransfer implements ProxyTransfer {
         }
     }
 
+    /**
+     * Relays the bytes from the initiator channel to the target channel, blocking the
+     * current thread.
+     */
+    private void transferChannels() throws IOException {
+        try {
+            initiatorChannel.configureBlocking(true);
+            targetChannel.configureBlocking(true);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            amountWritten = 0;
+            while (initiatorChannel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    addAmountTransfered(targetChannel.write(buffer));
+                }
+                buffer.clear();
+            }
+        }
+        finally {
+            try {
+                initiatorChannel.close();
+            }
+            catch (Exception e) {
+                Log.error(e.getMessage(), e);
+            }
+            try {
+                targetChannel.close();
+            }
+            catch (Exception e) {
+                Log.error(e.getMessage(), e);
+            }
+        }
+    }
+
     public int getCachedSize() {
         // Approximate the size of the object in bytes by calculating the size
         // of each field.
@@ -19,18 +19,15 @@
  */
 package org.jivesoftware.openfire.filetransfer.proxy;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.filetransfer.FileTransferManager;
@@ -50,7 +47,17 @@ import org.xmpp.packet.JID;
  * Manages the connections to the proxy server. The connections go through two stages before
  * file transfer begins. The first stage is when the file transfer target initiates a connection
  * to this manager. Stage two is when the initiator connects, the manager will then match the two
- * connections using the unique SHA-1 hash defined in the SOCKS5 protocol.
+ * connections using the unique SHA-1 hash defined in the SOCKS5 protocol.<p>
+ *
+ * Connections are served by a fixed number of {@link ProxyReactor} threads using non-blocking
+ * I/O, so the number of threads does not grow with the number of transfers. The number of
+ * threads is set by the <tt>xmpp.proxy.threads</tt> property (the number of processors by
+ * default), the size of the relay buffer of each transfer by <tt>xmpp.proxy.buffersize</tt>
+ * and the max number of bytes per second of each transfer by
+ * <tt>xmpp.proxy.transfer.maxrate</tt> (no limit by default).<p>
+ *
+ * Transfers of a custom <tt>provider.transfer.proxy</tt> class are given blocking streams
+ * and run in their own thread, as they expect.
  *
  * @author Alexander Wenckus
  */
@@ -64,11 +71,16 @@ public class ProxyConnectionManager {
 
     private final Object connectionLock = new Object();
 
+    /**
+     * Runs the interceptors of activated transfers and the transfers of custom providers.
+     */
     private ExecutorService executor = Executors.newCachedThreadPool();
 
-    private Future<?> socketProcess;
+    private ServerSocketChannel serverChannel;
+
+    private volatile ProxyReactor[] reactors;
 
-    private ServerSocket serverSocket;
+    private final AtomicInteger nextReactor = new AtomicInteger();
 
     private int proxyPort;
 
@@ -89,58 +101,40 @@ public class ProxyConnectionManager {
 
     /*
     * Processes the clients connecting to the proxy matching the initiator and target together.
-    * This is the main loop of the manager which will run until the process is canceled.
+    * The reactors accept and serve the connections until the manager is disabled.
     */
     synchronized void processConnections(final InetAddress bindInterface, final int port) {
-        if (socketProcess != null) {
+        if (reactors != null) {
             if (proxyPort == port) {
                 return;
             }
         }
         reset();
-        socketProcess = executor.submit(new Runnable() {
-            public void run() {
-                try {
-                    serverSocket = new ServerSocket(port, -1, bindInterface);
-                }
-                catch (IOException e) {
-                    Log.error("Error creating server socket", e);
-                    return;
-                }
-                while (serverSocket.isBound()) {
-                    final Socket socket;
-                    try {
-                        socket = serverSocket.accept();
-                    }
-                    catch (IOException e) {
-                        if (!serverSocket.isClosed()) {
-                            Log.error("Error accepting proxy connection", e);
-                            continue;
-                        }
-                        else {
-                            break;
-                        }
-                    }
-                    executor.submit(new Runnable() {
-                        public void run() {
-                            try {
-                                processConnection(socket);
-                            }
-                            catch (IOException ie) {
-                                Log.error("Error processing file transfer proxy connection",
-                                        ie);
-                                try {
-                                    socket.close();
-                                }
-                                catch (IOException e) {
-                                    /* Do Nothing */
-                                }
-                            }
-                        }
-                    });
+        int threads = JiveGlobals.getIntProperty("xmpp.proxy.threads", Runtime.getRuntime().availableProcessors());
+        int bufferSize = JiveGlobals.getIntProperty("xmpp.proxy.buffersize", 64 * 1024);
+        ProxyReactor[] started = new ProxyReactor[Math.max(1, threads)];
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(bindInterface, port));
+            serverChannel.configureBlocking(false);
+            for (int i = 0; i < started.length; i++) {
+                started[i] = new ProxyReactor(this, "File Transfer Proxy " + (i + 1), bufferSize);
+                started[i].start();
+            }
+        }
+        catch (IOException e) {
+            Log.error("Error creating server socket", e);
+            for (ProxyReactor reactor : started) {
+                if (reactor != null) {
+                    reactor.shutdown();
                 }
             }
-        });
+            closeServerChannel();
+            return;
+        }
+        reactors = started;
+        reactors[0].accept(serverChannel);
         proxyPort = port;
     }
 
@@ -148,67 +142,51 @@ public class ProxyConnectionManager {
         return proxyPort;
     }
 
-    private void processConnection(Socket connection) throws IOException {
-        OutputStream out = new DataOutputStream(connection.getOutputStream());
-        InputStream in = new DataInputStream(connection.getInputStream());
-
-        // first byte is version should be 5
-        int b = in.read();
-        if (b != 5) {
-            throw new IOException("Only SOCKS5 supported");
-        }
-
-        // second byte number of authentication methods supported
-        b = in.read();
-        int[] auth = new int[b];
-        for (int i = 0; i < b; i++) {
-            auth[i] = in.read();
-        }
-
-        int authMethod = -1;
-        for (int anAuth : auth) {
-            authMethod = (anAuth == 0 ? 0 : -1); // only auth method
-            // 0, no
-            // authentication,
-            // supported
-            if (authMethod == 0) {
-                break;
-            }
-        }
-        if (authMethod != 0) {
-            throw new IOException("Authentication method not supported");
-        }
-
-        // No auth method so respond with success
-        byte[] cmd = new byte[2];
-        cmd[0] = (byte) 0x05;
-        cmd[1] = (byte) 0x00;
-        out.write(cmd);
+    /**
+     * Returns the reactor that will serve the next connection.
+     *
+     * @return the reactor that will serve the next connection.
+     */
+    ProxyReactor nextReactor() {
+        ProxyReactor[] current = reactors;
+        return current[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+    }
 
-        String responseDigest = processIncomingSocks5Message(in);
+    /**
+     * Matches a connection that completed the SOCKS5 handshake with its transfer. The first
+     * connection of a transfer is the target and the second one the initiator.
+     *
+     * @param digest the digest of the transfer sent by the connection.
+     * @param channel the connection. It is no longer registered with any selector.
+     * @return false if the transfer is not allowed.
+     * @throws IOException if the connection could not be set up.
+     */
+    boolean connectionEstablished(String digest, SocketChannel channel) throws IOException {
         try {
             synchronized (connectionLock) {
-                ProxyTransfer transfer = connectionMap.get(responseDigest);
+                ProxyTransfer transfer = connectionMap.get(digest);
                 if (transfer == null) {
-                    transfer = createProxyTransfer(responseDigest, connection);
-                    transferManager.registerProxyTransfer(responseDigest, transfer);
-                    connectionMap.put(responseDigest, transfer);
+                    transfer = createProxyTransfer(digest, channel);
+                    transferManager.registerProxyTransfer(digest, transfer);
+                    connectionMap.put(digest, transfer);
+                }
+                else if (transfer instanceof DefaultProxyTransfer) {
+                    ((DefaultProxyTransfer) transfer).setInitiatorChannel(channel);
                 }
                 else {
-                    transfer.setInputStream(connection.getInputStream());
+                    channel.configureBlocking(true);
+                    transfer.setInputStream(channel.socket().getInputStream());
                 }
             }
-            cmd = createOutgoingSocks5Message(0, responseDigest);
-            out.write(cmd);
+            return true;
         }
         catch (UnauthorizedException eu) {
-            cmd = createOutgoingSocks5Message(2, responseDigest);
-            out.write(cmd);
-            throw new IOException("Illegal proxy transfer");
+            Log.debug("Illegal proxy transfer: " + digest);
+            return false;
         }
     }
 
-    private ProxyTransfer createProxyTransfer(String transferDigest, Socket targetSocket)
+    private ProxyTransfer createProxyTransfer(String transferDigest, SocketChannel targetChannel)
             throws IOException {
         ProxyTransfer provider;
         try {
@@ -221,35 +199,17 @@ public class ProxyConnectionManager {
         }
 
         provider.setTransferDigest(transferDigest);
-        provider.setOutputStream(targetSocket.getOutputStream());
-        return provider;
-    }
-
-    @SuppressWarnings({"ResultOfMethodCallIgnored"})
-    private static String processIncomingSocks5Message(InputStream in)
-            throws IOException {
-        // read the version and command
-        byte[] cmd = new byte[5];
-        int read = in.read(cmd, 0, 5);
-        if (read != 5) {
-            throw new IOException("Error reading Socks5 version and command");
+        if (provider instanceof DefaultProxyTransfer) {
+            ((DefaultProxyTransfer) provider).setTargetChannel(targetChannel);
         }
-
-        // read the digest
-        byte[] addr = new byte[cmd[4]];
-        read = in.read(addr, 0, addr.length);
-        if (read != addr.length) {
-            throw new IOException("Error reading provided address");
+        else {
+            targetChannel.configureBlocking(true);
+            provider.setOutputStream(targetChannel.socket().getOutputStream());
         }
-        String digest = new String(addr);
-
-        in.read();
-        in.read();
-
-        return digest;
+        return provider;
     }
 
-    private static byte[] createOutgoingSocks5Message(int cmd, String digest) {
+    static byte[] createOutgoingSocks5Message(int cmd, String digest) {
         byte addr[] = digest.getBytes();
 
         byte[] data = new byte[7 + addr.length];
@@ -300,6 +260,30 @@ public class ProxyConnectionManager {
         transfer.setInitiator(initiator.toString());
         transfer.setTarget(target.toString());
         transfer.setSessionID(sid);
+        if (transfer instanceof DefaultProxyTransfer) {
+            final DefaultProxyTransfer defaultTransfer = (DefaultProxyTransfer) transfer;
+            final long maxRate = JiveGlobals.getLongProperty("xmpp.proxy.transfer.maxrate", 0);
+            transfer.setTransferFuture(executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        transferManager.fireFileTransferIntercept(transfer, true);
+                    }
+                    catch (FileTransferRejectedException e) {
+                        notifyFailure(transfer, e);
+                        closeChannels(defaultTransfer);
+                        transferFinished(defaultTransfer);
+                        return;
+                    }
+                    if (reactors == null) {
+                        closeChannels(defaultTransfer);
+                        transferFinished(defaultTransfer);
+                        return;
+                    }
+                    nextReactor().startRelay(defaultTransfer, maxRate);
+                }
+            }));
+            return;
+        }
         transfer.setTransferFuture(executor.submit(new Runnable() {
             public void run() {
                 try {
@@ -322,6 +306,30 @@ public class ProxyConnectionManager {
         }));
     }
 
+    /**
+     * Removes a transfer relayed by a reactor once it is done.
+     *
+     * @param transfer the completed transfer.
+     */
+    void transferFinished(DefaultProxyTransfer transfer) {
+        connectionMap.remove(transfer.getTransferDigest());
+    }
+
+    private static void closeChannels(DefaultProxyTransfer transfer) {
+        try {
+            transfer.getInitiatorChannel().close();
+        }
+        catch (IOException e) {
+            // Ignore
+        }
+        try {
+            transfer.getTargetChannel().close();
+        }
+        catch (IOException e) {
+            // Ignore
+        }
+    }
+
     private void notifyFailure(ProxyTransfer transfer, FileTransferRejectedException e) {
 
     }
@@ -346,25 +354,33 @@ public class ProxyConnectionManager {
     }
 
     public boolean isRunning() {
-        return socketProcess != null && !socketProcess.isDone();
+        ProxyReactor[] current = reactors;
+        return current != null && current[0].isAlive();
     }
 
     public void disable() {
         reset();
     }
 
-    private void reset() {
-        if (socketProcess != null) {
-            socketProcess.cancel(true);
-            socketProcess = null;
+    private synchronized void reset() {
+        if (reactors != null) {
+            for (ProxyReactor reactor : reactors) {
+                reactor.shutdown();
+            }
+            reactors = null;
         }
-        if (serverSocket != null) {
+        closeServerChannel();
+    }
+
+    private void closeServerChannel() {
+        if (serverChannel != null) {
             try {
-                serverSocket.close();
+                serverChannel.close();
             }
             catch (IOException e) {
                 Log.warn("Error closing proxy listening socket", e);
             }
+            serverChannel = null;
         }
     }
 
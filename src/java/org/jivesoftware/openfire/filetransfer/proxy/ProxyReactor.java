@@ -0,0 +1,518 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.filetransfer.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * I/O thread of the file transfer proxy. A reactor waits on a selector for the channels
+ * it owns to be ready and then accepts connections, performs the SOCKS5 handshake or relays
+ * the bytes of a transfer from the initiator to the target, without ever blocking.<p>
+ *
+ * Bytes are relayed through a direct buffer per transfer, so they are not copied to the
+ * heap. When the target does not keep up the reactor stops reading from the initiator,
+ * and transfers that exceed their max rate are paused until they are allowed to continue.
+ */
+class ProxyReactor extends Thread {
+
+    private static final Logger Log = LoggerFactory.getLogger(ProxyReactor.class);
+
+    /**
+     * Max number of released relay buffers that are kept to be reused.
+     */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private final ProxyConnectionManager manager;
+    private final Selector selector;
+    private final int bufferSize;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final List<Relay> throttled = new ArrayList<Relay>();
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+    private volatile boolean running = true;
+
+    ProxyReactor(ProxyConnectionManager manager, String name, int bufferSize) throws IOException {
+        super(name);
+        setDaemon(true);
+        this.manager = manager;
+        this.bufferSize = bufferSize;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Runs the task in the reactor thread after the next selection.
+     *
+     * @param task the task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Accepts the connections of the server channel.
+     *
+     * @param serverChannel the channel accepting connections.
+     */
+    void accept(final ServerSocketChannel serverChannel) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    serverChannel.register(selector, SelectionKey.OP_ACCEPT, new Acceptor(serverChannel));
+                }
+                catch (IOException e) {
+                    Log.error("Error accepting proxy connections", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Performs the SOCKS5 handshake of a new connection.
+     *
+     * @param channel the new connection.
+     */
+    void addConnection(final SocketChannel channel) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new Handshake(channel));
+                }
+                catch (IOException e) {
+                    Log.debug("Error registering proxy connection", e);
+                    closeQuietly(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Relays the bytes from the initiator to the target of the transfer.
+     *
+     * @param transfer the activated transfer.
+     * @param maxRate the max number of bytes per second, 0 for no limit.
+     */
+    void startRelay(final DefaultProxyTransfer transfer, final long maxRate) {
+        execute(new Runnable() {
+            public void run() {
+                Relay relay = new Relay(transfer, maxRate);
+                try {
+                    relay.initiatorKey = transfer.getInitiatorChannel().register(selector, SelectionKey.OP_READ, relay);
+                    relay.targetKey = transfer.getTargetChannel().register(selector, 0, relay);
+                }
+                catch (IOException e) {
+                    Log.debug("Error starting proxy transfer", e);
+                    relay.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the reactor and closes all its connections.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(getSelectTimeout());
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    }
+                    catch (Exception e) {
+                        Log.error("Error running file transfer proxy task", e);
+                    }
+                }
+                resumeThrottled();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.handle(key);
+                        }
+                    }
+                    catch (Exception e) {
+                        Log.debug("Closing file transfer proxy connection", e);
+                        handler.close();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.error("File transfer proxy reactor stopped", e);
+        }
+        catch (ClosedSelectorException e) {
+            // Stopped
+        }
+        finally {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Handler) {
+                    ((Handler) attachment).close();
+                }
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        long now = System.nanoTime();
+        long timeout = 0;
+        for (Relay relay : throttled) {
+            long wait = Math.max(1, (relay.resumeTime - now) / 1000000);
+            timeout = timeout == 0 ? wait : Math.min(timeout, wait);
+        }
+        return timeout;
+    }
+
+    private void resumeThrottled() {
+        if (throttled.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Relay> it = throttled.iterator();
+        while (it.hasNext()) {
+            Relay relay = it.next();
+            if (relay.resumeTime <= now) {
+                it.remove();
+                relay.resume();
+            }
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+            bufferPool.add(buffer);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Reacts to a channel being ready.
+     */
+    private interface Handler {
+
+        void handle(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Accepts the connections and hands them to the reactors of the manager.
+     */
+    private class Acceptor implements Handler {
+
+        private final ServerSocketChannel serverChannel;
+
+        Acceptor(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                }
+                catch (IOException e) {
+                    closeQuietly(channel);
+                    continue;
+                }
+                manager.nextReactor().addConnection(channel);
+            }
+        }
+
+        public void close() {
+            try {
+                serverChannel.close();
+            }
+            catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * SOCKS5 handshake of a connection: the method selection and the connect request whose
+     * address is the digest of the transfer.
+     */
+    private class Handshake implements Handler {
+
+        private final SocketChannel channel;
+        /**
+         * Longest request: header, 255 bytes of address and the port.
+         */
+        private final ByteBuffer in = ByteBuffer.allocate(5 + 255 + 2);
+        private boolean methodSelected = false;
+
+        Handshake(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void handle(SelectionKey key) throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed during the SOCKS5 handshake");
+            }
+            in.flip();
+            try {
+                if (!methodSelected) {
+                    if (!readMethodSelection()) {
+                        return;
+                    }
+                    methodSelected = true;
+                }
+                String digest = readRequest();
+                if (digest == null) {
+                    return;
+                }
+                // Stop reading from the connection until the transfer is activated
+                key.cancel();
+                finish(digest);
+            }
+            finally {
+                in.compact();
+            }
+        }
+
+        private boolean readMethodSelection() throws IOException {
+            if (in.remaining() < 2 || in.remaining() < 2 + (in.get(in.position() + 1) & 0xff)) {
+                return false;
+            }
+            // first byte is version should be 5
+            if (in.get() != 5) {
+                throw new IOException("Only SOCKS5 supported");
+            }
+            // second byte number of authentication methods supported
+            int count = in.get() & 0xff;
+            boolean noAuthentication = false;
+            for (int i = 0; i < count; i++) {
+                if (in.get() == 0) {
+                    noAuthentication = true;
+                }
+            }
+            if (!noAuthentication) {
+                throw new IOException("Authentication method not supported");
+            }
+            // No auth method so respond with success
+            write(ByteBuffer.wrap(new byte[] {5, 0}));
+            return true;
+        }
+
+        private String readRequest() {
+            // version, command, reserved, address type, address length, address, port
+            if (in.remaining() < 5 || in.remaining() < 5 + (in.get(in.position() + 4) & 0xff) + 2) {
+                return null;
+            }
+            in.position(in.position() + 4);
+            byte[] address = new byte[in.get() & 0xff];
+            in.get(address);
+            in.getShort();
+            return new String(address);
+        }
+
+        /**
+         * Registers the connection with its transfer after the key was deregistered.
+         */
+        private void finish(final String digest) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (manager.connectionEstablished(digest, channel)) {
+                            write(ByteBuffer.wrap(ProxyConnectionManager.createOutgoingSocks5Message(0, digest)));
+                        }
+                        else {
+                            write(ByteBuffer.wrap(ProxyConnectionManager.createOutgoingSocks5Message(2, digest)));
+                            close();
+                        }
+                    }
+                    catch (IOException e) {
+                        Log.debug("Error completing the SOCKS5 handshake", e);
+                        close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Writes a short reply. A new connection can always take it without blocking.
+         */
+        private void write(ByteBuffer reply) throws IOException {
+            channel.write(reply);
+            if (reply.hasRemaining()) {
+                throw new IOException("Unable to send the SOCKS5 reply");
+            }
+        }
+
+        public void close() {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Relays the bytes of a transfer from the initiator to the target.
+     */
+    private class Relay implements Handler {
+
+        private final DefaultProxyTransfer transfer;
+        private final long maxRate;
+        private final ByteBuffer buffer;
+        private SelectionKey initiatorKey;
+        private SelectionKey targetKey;
+        private boolean endOfStream = false;
+        private boolean closed = false;
+        /**
+         * Number of bytes the transfer may read before being throttled.
+         */
+        private double allowance;
+        private long lastRefill;
+        private long resumeTime;
+
+        Relay(DefaultProxyTransfer transfer, long maxRate) {
+            this.transfer = transfer;
+            this.maxRate = maxRate;
+            this.buffer = acquireBuffer();
+            this.allowance = Math.min(maxRate, buffer.capacity());
+            this.lastRefill = System.nanoTime();
+        }
+
+        public void handle(SelectionKey key) throws IOException {
+            if (key == initiatorKey && key.isReadable()) {
+                read();
+            }
+            else if (key == targetKey && key.isWritable()) {
+                write();
+            }
+        }
+
+        private void read() throws IOException {
+            if (maxRate > 0) {
+                refill();
+                buffer.limit((int) Math.min(buffer.capacity(), Math.max(1, (long) allowance)));
+            }
+            int count = transfer.getInitiatorChannel().read(buffer);
+            if (count < 0) {
+                endOfStream = true;
+            }
+            else if (maxRate > 0) {
+                allowance -= count;
+            }
+            buffer.flip();
+            write();
+        }
+
+        private void write() throws IOException {
+            if (buffer.hasRemaining()) {
+                int count = transfer.getTargetChannel().write(buffer);
+                transfer.addAmountTransfered(count);
+            }
+            if (buffer.hasRemaining()) {
+                // Wait for the target to take more bytes
+                initiatorKey.interestOps(0);
+                targetKey.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            buffer.clear();
+            if (endOfStream) {
+                close();
+                return;
+            }
+            targetKey.interestOps(0);
+            if (maxRate > 0 && allowance < 1) {
+                // Pause the transfer until it may read a full buffer again
+                double needed = Math.min(maxRate, buffer.capacity()) - allowance;
+                resumeTime = System.nanoTime() + (long) (needed * 1000000000d / maxRate);
+                initiatorKey.interestOps(0);
+                throttled.add(this);
+            }
+            else {
+                initiatorKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            allowance = Math.min(Math.min(maxRate, buffer.capacity()),
+                    allowance + (now - lastRefill) * maxRate / 1000000000d);
+            lastRefill = now;
+        }
+
+        void resume() {
+            if (!closed && initiatorKey.isValid()) {
+                initiatorKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            throttled.remove(this);
+            closeQuietly(transfer.getInitiatorChannel());
+            closeQuietly(transfer.getTargetChannel());
+            releaseBuffer(buffer);
+            manager.transferFinished(transfer);
+        }
+    }
+}
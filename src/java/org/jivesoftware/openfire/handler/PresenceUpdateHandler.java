@@ -20,8 +20,10 @@
 
 package org.jivesoftware.openfire.handler;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -242,6 +244,7 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
             // Send pending subscription requests to user if roster service is enabled
             if (RosterManager.isRosterServiceEnabled()) {
                 Roster roster = rosterManager.getRoster(username);
+                List<JID> probees = new ArrayList<JID>();
                 for (RosterItem item : roster.getRosterItems()) {
                     if (item.getRecvStatus() == RosterItem.RECV_SUBSCRIBE) {
                         session.process(createSubscribePresence(item.getJid(),
@@ -252,9 +255,11 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
                     }
                     if (item.getSubStatus() == RosterItem.SUB_TO
                             || item.getSubStatus() == RosterItem.SUB_BOTH) {
-                        presenceManager.probePresence(session.getAddress(), item.getJid());
+                        probees.add(item.getJid());
                     }
                 }
+                // Probe the presence of all the contacts at once
+                presenceManager.probePresence(session.getAddress(), probees);
             }
             if (session.canFloodOfflineMessages()) {
                 // deliver offline messages if any
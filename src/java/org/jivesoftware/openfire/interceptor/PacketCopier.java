@@ -23,12 +23,13 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.XMPPServer;
@@ -36,6 +37,7 @@ import org.jivesoftware.openfire.component.ComponentEventListener;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.LocaleUtils;
+import org.jivesoftware.util.RingBuffer;
 import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.slf4j.Logger;
@@ -51,7 +53,10 @@ import org.xmpp.packet.Presence;
  * subscribed to the notificator. Notifications to components will be made using
  * a Message sent to the component itself. The Message will include an extension that will
  * contain the intercepted packet as well as extra information such us <tt>incoming</tt>
- * and <tt>processed</tt>.
+ * and <tt>processed</tt>.<p>
+ *
+ * Intercepted packets are serialized once and kept in a bounded buffer until a background
+ * task notifies the subscribers. Packets intercepted while the buffer is full are dropped.
  *
  * @author Gaston Dombiak
  */
@@ -72,9 +77,20 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
     private ProcessPacketsTask packetsTask;
 
     /**
-     * Queue that holds the audited packets that will be later saved to an XML file.
+     * Buffer that holds the intercepted packets that will be later sent to the subscribers.
      */
-    private BlockingQueue<InterceptedPacket> packetQueue = new LinkedBlockingQueue<InterceptedPacket>(10000);
+    private final RingBuffer<InterceptedPacket> packetQueue = new RingBuffer<InterceptedPacket>(16384);
+
+    /**
+     * Number of intercepted packets dropped because the buffer was full.
+     */
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    /**
+     * True while packets are being sent to the subscribers. The buffer only supports a
+     * single consumer so a run of the task that overlaps a slow previous run does nothing.
+     */
+    private final AtomicBoolean processing = new AtomicBoolean(false);
 
     /**
      * Returns unique instance of this class.
@@ -143,14 +159,32 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
                 else if (subscription.isIQEnabled() && packetClass == IQ.class) {
                     queue = true;
                 }
+                if (queue) {
+                    break;
+                }
             }
             if (queue) {
                 // Queue packet with extra information and let the background thread process it
-                packetQueue.add(new InterceptedPacket(packet, incoming, processed));
+                if (!packetQueue.offer(new InterceptedPacket(packet, incoming, processed))) {
+                    if (droppedPackets.incrementAndGet() % 1000 == 1) {
+                        Log.warn("Intercepted packets are being dropped because the queue is full. Dropped: " +
+                                droppedPackets.get());
+                    }
+                }
             }
         }
     }
 
+    /**
+     * Returns the number of intercepted packets that were dropped because too many packets
+     * were waiting to be sent to the subscribers.
+     *
+     * @return the number of intercepted packets that were dropped.
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
     public void componentInfoReceived(IQ iq) {
         //Ignore
     }
@@ -166,8 +200,10 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
 
     private void processPackets() {
         List<InterceptedPacket> packets = new ArrayList<InterceptedPacket>(packetQueue.size());
-        packetQueue.drainTo(packets);
+        packetQueue.drainTo(packets, Integer.MAX_VALUE);
         for (InterceptedPacket interceptedPacket : packets) {
+            // Parsed element of the packet, the first subscriber gets it and the others a copy
+            Element packetElement = null;
             for (Map.Entry<String, Subscription> entry : subscribers.entrySet()) {
                 boolean notify = false;
                 String componentJID = entry.getKey();
@@ -197,7 +233,13 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
                         childElement.addAttribute("incoming", subscription.isIncoming() ? "true" : "false");
                         childElement.addAttribute("processed", subscription.isProcessed() ? "true" : "false");
                         childElement.addAttribute("date", XMPPDateTimeFormat.formatOld(interceptedPacket.getCreationDate()));
-                        childElement.add(interceptedPacket.getElement().createCopy());
+                        if (packetElement == null) {
+                            packetElement = interceptedPacket.getElement();
+                            childElement.add(packetElement);
+                        }
+                        else {
+                            childElement.add(packetElement.createCopy());
+                        }
                         // Send message notification to subscribed component
                         routingTable.routePacket(message.getTo(), message, true);
                     }
@@ -212,6 +254,10 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
     private class ProcessPacketsTask extends TimerTask {
         @Override
 		public void run() {
+            if (!processing.compareAndSet(false, true)) {
+                // The previous run is still sending packets
+                return;
+            }
             try {
                 // Notify components of intercepted packets
                 processPackets();
@@ -219,6 +265,9 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
             catch (Throwable e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
             }
+            finally {
+                processing.set(false);
+            }
         }
     }
 
@@ -307,7 +356,7 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
     }
 
     private static class InterceptedPacket {
-        private Element element;
+        private String xml;
         private Class packetClass;
         private Date creationDate;
         private boolean incoming;
@@ -315,7 +364,8 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
 
         public InterceptedPacket(Packet packet, boolean incoming, boolean processed) {
             packetClass = packet.getClass();
-            this.element = packet.getElement();
+            // Keep the packet as it is now, it will keep changing while being routed
+            this.xml = packet.toXML();
             this.incoming = incoming;
             this.processed = processed;
             creationDate = new Date();
@@ -330,7 +380,9 @@ public class PacketCopier implements PacketInterceptor, ComponentEventListener {
             return creationDate;
         }
 
-        public Element getElement() {
+        public Element getElement() throws DocumentException {
+            Element element = DocumentHelper.parseText(xml).getRootElement();
+            element.detach();
             return element;
         }
 
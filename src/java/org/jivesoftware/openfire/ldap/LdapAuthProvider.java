@@ -124,7 +124,12 @@ public class LdapAuthProvider implements AuthProvider {
 
             // See if the user authenticates.
             if (!manager.checkAuthentication(userDN, password)) {
-                throw new UnauthorizedException("Username and password don't match");
+                // The cached DN may be out of date if the user was moved in the directory
+                manager.evictUserDN(username);
+                String currentDN = manager.findUserDN(username);
+                if (currentDN.equals(userDN) || !manager.checkAuthentication(currentDN, password)) {
+                    throw new UnauthorizedException("Username and password don't match");
+                }
             }
         }
         catch (CommunicationException e) {
@@ -21,13 +21,22 @@
 package org.jivesoftware.openfire.ldap;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TimerTask;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
@@ -36,21 +45,33 @@ import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
 
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.event.GroupEventDispatcher;
 import org.jivesoftware.openfire.group.AbstractGroupProvider;
 import org.jivesoftware.openfire.group.Group;
 import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
 /**
  * LDAP implementation of the GroupProvider interface.  All data in the directory is treated as
- * read-only so any set operations will result in an exception.
+ * read-only so any set operations will result in an exception.<p>
+ *
+ * Member DNs that do not contain the username are resolved in bulk: up to
+ * <tt>ldap.groupMemberBatchSize</tt> members (100 by default) are searched at once and the
+ * usernames found are shared with {@link LdapManager#findUserDN(String)}. Loaded groups are
+ * kept by the provider and refreshed in the background every
+ * <tt>ldap.groupRefreshInterval</tt> milliseconds (5 minutes by default), resolving only
+ * the new members. A refresh interval of 0 disables the refresh and groups are loaded
+ * from the directory every time they are requested.
  *
  * @author Matt Tucker, Greg Ferguson and Cameron Moore
  */
@@ -63,6 +84,13 @@ public class LdapGroupProvider extends AbstractGroupProvider {
     private String[] standardAttributes;
     private int groupCount = -1;
     private long expiresStamp = System.currentTimeMillis();
+    private int memberBatchSize;
+    private long refreshInterval;
+    /**
+     * Groups loaded by this provider when background refresh is enabled. Key: group name
+     */
+    private final Map<String, LoadedGroup> loadedGroups = new ConcurrentHashMap<String, LoadedGroup>();
+    private TimerTask refreshTask;
 
     /**
      * Constructs a new LDAP group provider.
@@ -74,9 +102,34 @@ public class LdapGroupProvider extends AbstractGroupProvider {
         standardAttributes[0] = manager.getGroupNameField();
         standardAttributes[1] = manager.getGroupDescriptionField();
         standardAttributes[2] = manager.getGroupMemberField();
+        memberBatchSize = Math.max(1, JiveGlobals.getIntProperty("ldap.groupMemberBatchSize", 100));
+        refreshInterval = JiveGlobals.getLongProperty("ldap.groupRefreshInterval", JiveConstants.MINUTE * 5);
     }
 
     public Group getGroup(String groupName) throws GroupNotFoundException {
+        LoadedGroup loaded = loadedGroups.get(groupName);
+        if (loaded != null) {
+            return loaded.group;
+        }
+        try {
+            loaded = loadGroup(groupName, null);
+        }
+        catch (Exception e) {
+            Log.error(e.getMessage(), e);
+            throw new GroupNotFoundException("Group with name " + groupName + " not found.", e);
+        }
+        if (refreshInterval > 0) {
+            loadedGroups.put(groupName, loaded);
+            startRefreshTask();
+        }
+        return loaded.group;
+    }
+
+    /**
+     * Loads the group from the directory. Members that were already resolved for the
+     * previous version of the group are not resolved again.
+     */
+    private LoadedGroup loadGroup(String groupName, LoadedGroup previous) throws Exception {
         LdapContext ctx = null;
         try {
             String groupDN = manager.findGroupDN(groupName);
@@ -84,11 +137,7 @@ public class LdapGroupProvider extends AbstractGroupProvider {
             ctx = manager.getContext(manager.getGroupsBaseDN(groupName));
             Attributes attrs = ctx.getAttributes(groupDN, standardAttributes);
 
-            return processGroup(ctx, attrs);
-        }
-        catch (Exception e) {
-            Log.error(e.getMessage(), e);
-            throw new GroupNotFoundException("Group with name " + groupName + " not found.", e);
+            return processGroup(ctx, attrs, previous);
         }
         finally {
             try {
@@ -207,7 +256,7 @@ public class LdapGroupProvider extends AbstractGroupProvider {
         return true;
     }
 
-    private Group processGroup(LdapContext ctx, Attributes a) throws NamingException {
+    private LoadedGroup processGroup(LdapContext ctx, Attributes a, LoadedGroup previous) throws NamingException {
         XMPPServer server = XMPPServer.getInstance();
         String serverName = server.getServerInfo().getXMPPDomain();
         // Build `3 groups.
@@ -217,16 +266,6 @@ public class LdapGroupProvider extends AbstractGroupProvider {
         Pattern pattern =
                 Pattern.compile("(?i)(^" + manager.getUsernameField() + "=)([^,]+)(.+)");
 
-        SearchControls searchControls = new SearchControls();
-        searchControls.setReturningAttributes(new String[] { manager.getUsernameField() });
-        // See if recursive searching is enabled. Otherwise, only search one level.
-        if (manager.isSubTreeSearch()) {
-            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        }
-        else {
-            searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
-        }
-
         String name;
         String description;
         try {
@@ -241,97 +280,292 @@ public class LdapGroupProvider extends AbstractGroupProvider {
         catch (Exception e) {
             description = "";
         }
-        Set<JID> members = new TreeSet<JID>();
+        // Members of the group. Key: value of the member attribute, Value: JID of the member
+        // or null if the value does not belong to a user
+        Map<String, JID> memberJIDs = new LinkedHashMap<String, JID>();
+        // Usernames of the members that are not resolved yet. Key: value of the member attribute
+        Map<String, String> usernames = new LinkedHashMap<String, String>();
+        // Member DNs that do not contain the username
+        List<String> memberDNs = new ArrayList<String>();
         Attribute memberField = a.get(manager.getGroupMemberField());
         if (memberField != null) {
             NamingEnumeration ne = memberField.getAll();
             while (ne.hasMore()) {
-                String username = (String) ne.next();
+                String value = (String) ne.next();
+                if (previous != null && previous.members.containsKey(value)) {
+                    // The member was resolved when the group was loaded before
+                    memberJIDs.put(value, previous.members.get(value));
+                    continue;
+                }
+                String username = value;
                 // If not posix mode, each group member is stored as a full DN.
                 if (!manager.isPosixMode()) {
-                    try {
-                        // Try to find the username with a regex pattern match.
-                        Matcher matcher = pattern.matcher(username);
-                        if (matcher.matches() && matcher.groupCount() == 3) {
-                            // The username is in the DN, no additional search needed
-                            username = matcher.group(2);
-                        }
-                        // The regex pattern match failed. This will happen if the
-                        // the member DN's don't use the standard username field. For
-                        // example, Active Directory has a username field of
-                        // sAMAccountName, but stores group members as "CN=...".
-                        else {
-                            // Create an LDAP name with the full DN.
-                            LdapName ldapName = new LdapName(username);
-                            // Turn the LDAP name into something we can use in a
-                            // search by stripping off the comma.
-                            StringBuilder userFilter = new StringBuilder();
-                            userFilter.append("(&(");
-                            userFilter.append(ldapName.get(ldapName.size() - 1));
-                            userFilter.append(")");
-                            userFilter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
-                            userFilter.append(")");
-                            NamingEnumeration usrAnswer = ctx.search("",
-                                    userFilter.toString(), searchControls);
-                            if (usrAnswer != null && usrAnswer.hasMoreElements()) {
-                                Attribute usernameAttr = ((SearchResult)usrAnswer.next()).getAttributes().get(manager.getUsernameField());
-                                if (usernameAttr != null) {
-                                    username = (String)usernameAttr.get();
-                                }
-                            }
-                            // Close the enumeration.
-                            usrAnswer.close();
-                        }
-                    }
-                    catch (Exception e) {
-                        // TODO: A NPE is occuring here
-                        Log.error(e.getMessage(), e);
-                    }
-                }
-                // A search filter may have been defined in the LdapUserProvider.
-                // Therefore, we have to try to load each user we found to see if
-                // it passes the filter.
-                try {
-                    JID userJID;
-                    int position = username.indexOf("@" + serverName);
-                    // Create JID of local user if JID does not match a component's JID
-                    if (position == -1) {
-                        // In order to lookup a username from the manager, the username
-                        // must be a properly escaped JID node.
-                        String escapedUsername = JID.escapeNode(username);
-                        if (!escapedUsername.equals(username)) {
-                            // Check if escaped username is valid
-                            userManager.getUser(escapedUsername);
-                        }
-                        // No exception, so the user must exist. Add the user as a group
-                        // member using the escaped username.
-                        userJID = server.createJID(escapedUsername, null);
+                    // Try to find the username with a regex pattern match.
+                    Matcher matcher = pattern.matcher(value);
+                    if (matcher.matches() && matcher.groupCount() == 3) {
+                        // The username is in the DN, no additional search needed
+                        username = matcher.group(2);
                     }
+                    // The regex pattern match failed. This will happen if the
+                    // the member DN's don't use the standard username field. For
+                    // example, Active Directory has a username field of
+                    // sAMAccountName, but stores group members as "CN=...".
                     else {
-                        // This is a JID of a component or node of a server's component
-                        String node = username.substring(0, position);
-                        String escapedUsername = JID.escapeNode(node);
-                        userJID = new JID(escapedUsername + "@" + serverName);
-                    }
-                    members.add(userJID);
-                }
-                catch (UserNotFoundException e) {
-                    // We can safely ignore this error. It likely means that
-                    // the user didn't pass the search filter that's defined.
-                    // So, we want to simply ignore the user as a group member.
-                    if (manager.isDebugEnabled()) {
-                        Log.debug("LdapGroupProvider: User not found: " + username);
+                        username = manager.getCachedUsername(value);
+                        if (username == null) {
+                            memberDNs.add(value);
+                            continue;
+                        }
                     }
                 }
+                usernames.put(value, username);
             }
             // Close the enumeration.
             ne.close();
         }
+        // Search the usernames of the remaining members in batches
+        Set<String> failedDNs = new HashSet<String>();
+        for (int i = 0; i < memberDNs.size(); i += memberBatchSize) {
+            List<String> batch = memberDNs.subList(i, Math.min(memberDNs.size(), i + memberBatchSize));
+            try {
+                usernames.putAll(findUsernames(ctx, batch));
+            }
+            catch (Exception e) {
+                Log.error(e.getMessage(), e);
+                failedDNs.addAll(batch);
+            }
+        }
+        for (String value : usernames.keySet()) {
+            memberJIDs.put(value, getMemberJID(usernames.get(value), server, serverName));
+        }
+        // Members whose username could not be found are not users. Members of batches that
+        // failed are left unresolved so that they are searched again when the group is refreshed
+        for (String value : memberDNs) {
+            if (!memberJIDs.containsKey(value) && !failedDNs.contains(value)) {
+                memberJIDs.put(value, null);
+            }
+        }
+        Set<JID> members = new TreeSet<JID>();
+        for (JID member : memberJIDs.values()) {
+            if (member != null) {
+                members.add(member);
+            }
+        }
         if (manager.isDebugEnabled()) {
             Log.debug("LdapGroupProvider: Adding group \"" + name + "\" with " + members.size() +
                     " members.");
         }
         Collection<JID> admins = Collections.emptyList();
-        return new Group(name, description, members, admins);
+        return new LoadedGroup(new Group(name, description, members, admins), memberJIDs);
+    }
+
+    /**
+     * Searches the usernames of the users with the specified DNs using a single search. Users
+     * are searched by the first component of their DN, e.g. "CN=John Smith", and each result
+     * is matched to a member by its full DN. Usernames found are cached by the LDAP manager.
+     *
+     * @return the username of each DN that belongs to a user that passes the search filter.
+     */
+    private Map<String, String> findUsernames(LdapContext ctx, List<String> memberDNs) throws NamingException {
+        StringBuilder userFilter = new StringBuilder();
+        userFilter.append("(&(|");
+        for (String memberDN : memberDNs) {
+            LdapName memberName = new LdapName(memberDN);
+            Rdn rdn = memberName.getRdn(memberName.size() - 1);
+            userFilter.append("(").append(rdn.getType()).append("=")
+                    .append(LdapManager.sanitizeSearchFilter(rdn.getValue().toString())).append(")");
+        }
+        userFilter.append(")");
+        userFilter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
+        userFilter.append(")");
+
+        SearchControls searchControls = new SearchControls();
+        searchControls.setReturningAttributes(new String[] { manager.getUsernameField() });
+        // See if recursive searching is enabled. Otherwise, only search one level.
+        if (manager.isSubTreeSearch()) {
+            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        }
+        else {
+            searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        }
+        // Usernames found. Key: full DN, Value: username
+        Map<String, String> found = new HashMap<String, String>();
+        // Usernames found by first component of their DN, to match members whose full DN
+        // can not be compared. Key: first component, Value: usernames
+        Map<Rdn, List<String>> foundByRdn = new HashMap<Rdn, List<String>>();
+        NamingEnumeration usrAnswer = ctx.search("", userFilter.toString(), searchControls);
+        try {
+            while (usrAnswer.hasMoreElements()) {
+                SearchResult result = (SearchResult) usrAnswer.next();
+                Attribute usernameAttr = result.getAttributes().get(manager.getUsernameField());
+                if (usernameAttr == null) {
+                    continue;
+                }
+                String username = (String) usernameAttr.get();
+                String userDN;
+                try {
+                    userDN = result.getNameInNamespace();
+                }
+                catch (UnsupportedOperationException e) {
+                    userDN = result.getName();
+                }
+                manager.cacheUsername(username, userDN);
+                found.put(userDN, username);
+                try {
+                    LdapName userName = new LdapName(userDN);
+                    Rdn rdn = userName.getRdn(userName.size() - 1);
+                    List<String> rdnUsernames = foundByRdn.get(rdn);
+                    if (rdnUsernames == null) {
+                        rdnUsernames = new ArrayList<String>();
+                        foundByRdn.put(rdn, rdnUsernames);
+                    }
+                    rdnUsernames.add(username);
+                }
+                catch (NamingException e) {
+                    // Only matched by full DN
+                }
+            }
+        }
+        finally {
+            // Close the enumeration.
+            usrAnswer.close();
+        }
+        Map<String, String> usernames = new HashMap<String, String>();
+        for (String memberDN : memberDNs) {
+            String username = manager.getCachedUsername(memberDN);
+            if (username == null) {
+                LdapName memberName = new LdapName(memberDN);
+                List<String> rdnUsernames = foundByRdn.get(memberName.getRdn(memberName.size() - 1));
+                if (rdnUsernames != null && rdnUsernames.size() == 1) {
+                    username = rdnUsernames.get(0);
+                }
+            }
+            if (username != null) {
+                usernames.put(memberDN, username);
+            }
+        }
+        if (manager.isDebugEnabled()) {
+            Log.debug("LdapGroupProvider: Found " + found.size() + " users for " + memberDNs.size() +
+                    " member DNs.");
+        }
+        return usernames;
+    }
+
+    /**
+     * Returns the JID of the group member with the specified username or <tt>null</tt> if the
+     * user does not exist.
+     */
+    private JID getMemberJID(String username, XMPPServer server, String serverName) {
+        // A search filter may have been defined in the LdapUserProvider.
+        // Therefore, we have to try to load each user we found to see if
+        // it passes the filter.
+        try {
+            int position = username.indexOf("@" + serverName);
+            // Create JID of local user if JID does not match a component's JID
+            if (position == -1) {
+                // In order to lookup a username from the manager, the username
+                // must be a properly escaped JID node.
+                String escapedUsername = JID.escapeNode(username);
+                if (!escapedUsername.equals(username)) {
+                    // Check if escaped username is valid
+                    userManager.getUser(escapedUsername);
+                }
+                // No exception, so the user must exist. Add the user as a group
+                // member using the escaped username.
+                return server.createJID(escapedUsername, null);
+            }
+            else {
+                // This is a JID of a component or node of a server's component
+                String node = username.substring(0, position);
+                String escapedUsername = JID.escapeNode(node);
+                return new JID(escapedUsername + "@" + serverName);
+            }
+        }
+        catch (UserNotFoundException e) {
+            // We can safely ignore this error. It likely means that
+            // the user didn't pass the search filter that's defined.
+            // So, we want to simply ignore the user as a group member.
+            if (manager.isDebugEnabled()) {
+                Log.debug("LdapGroupProvider: User not found: " + username);
+            }
+            return null;
+        }
+    }
+
+    private synchronized void startRefreshTask() {
+        if (refreshTask == null) {
+            refreshTask = new RefreshTask();
+            TaskEngine.getInstance().schedule(refreshTask, refreshInterval, refreshInterval);
+        }
+    }
+
+    /**
+     * Reloads the groups loaded by this provider. Group members that were added or removed
+     * in the directory are added or removed from the rosters of the group users.
+     */
+    private class RefreshTask extends TimerTask {
+
+        @Override
+        public void run() {
+            for (String groupName : new ArrayList<String>(loadedGroups.keySet())) {
+                LoadedGroup previous = loadedGroups.get(groupName);
+                LoadedGroup current;
+                try {
+                    current = loadGroup(groupName, previous);
+                }
+                catch (GroupNotFoundException e) {
+                    loadedGroups.remove(groupName);
+                    continue;
+                }
+                catch (NameNotFoundException e) {
+                    loadedGroups.remove(groupName);
+                    continue;
+                }
+                catch (Exception e) {
+                    // Keep the group until the directory can be reached
+                    Log.error("Error refreshing LDAP group " + groupName, e);
+                    continue;
+                }
+                loadedGroups.put(groupName, current);
+                dispatchMemberChanges(previous.group, current.group);
+            }
+        }
+
+        private void dispatchMemberChanges(Group previous, Group current) {
+            for (JID member : current.getMembers()) {
+                if (!previous.getMembers().contains(member)) {
+                    Map<String, String> params = new HashMap<String, String>();
+                    params.put("member", member.toString());
+                    GroupEventDispatcher.dispatchEvent(current,
+                            GroupEventDispatcher.EventType.member_added, params);
+                }
+            }
+            for (JID member : previous.getMembers()) {
+                if (!current.getMembers().contains(member)) {
+                    Map<String, String> params = new HashMap<String, String>();
+                    params.put("member", member.toString());
+                    GroupEventDispatcher.dispatchEvent(current,
+                            GroupEventDispatcher.EventType.member_removed, params);
+                }
+            }
+        }
+    }
+
+    /**
+     * A group loaded from the directory and the resolved values of its member attribute.
+     */
+    private static class LoadedGroup {
+
+        private final Group group;
+        /**
+         * Key: value of the member attribute, Value: JID of the member or null if the value
+         * does not belong to a user
+         */
+        private final Map<String, JID> members;
+
+        LoadedGroup(Group group, Map<String, JID> members) {
+            this.group = group;
+            this.members = members;
+        }
     }
 }
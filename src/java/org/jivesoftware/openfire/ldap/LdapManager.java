@@ -35,6 +35,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
@@ -43,8 +44,10 @@ import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
 import javax.naming.ldap.PagedResultsControl;
 import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.Rdn;
 import javax.naming.ldap.SortControl;
 import javax.naming.ldap.StartTlsRequest;
 import javax.naming.ldap.StartTlsResponse;
@@ -54,6 +57,8 @@ import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.JiveInitialLdapContext;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -194,6 +199,17 @@ public class LdapManager {
 
     private final Map<String, String> properties;
 
+    /**
+     * Cache of the DNs found by {@link #findUserDN(String)}.
+     * Key: username, Value: DN relative to the base DN where the user was found
+     */
+    private final Cache<String, String> userDNCache;
+    /**
+     * Cache of the usernames of users by their DN. Shared with {@link #findUserDN(String)}.
+     * Key: normalized full DN, Value: username
+     */
+    private final Cache<String, String> usernameCache;
+
     /**
      * Provides singleton access to an instance of the LdapManager class.
      *
@@ -213,6 +229,8 @@ public class LdapManager {
      */
     public LdapManager(Map<String, String> properties) {
         this.properties = properties;
+        userDNCache = CacheFactory.createCache("LDAP UserDN");
+        usernameCache = CacheFactory.createCache("LDAP Usernames");
 
         // Convert XML based provider setup to Database based
         JiveGlobals.migrateProperty("ldap.host");
@@ -908,17 +926,108 @@ public class LdapManager {
      * @throws Exception if the search for the dn fails.
      */
     public String findUserDN(String username) throws Exception {
+        String userDN = userDNCache.get(username);
+        if (userDN != null) {
+            return userDN;
+        }
+        String userBaseDN = baseDN;
         try {
-            return findUserDN(username, baseDN);
+            userDN = findUserDN(username, baseDN);
         }
         catch (Exception e) {
             if (alternateBaseDN != null) {
-                return findUserDN(username, alternateBaseDN);
+                userDN = findUserDN(username, alternateBaseDN);
+                userBaseDN = alternateBaseDN;
             }
             else {
                 throw e;
             }
         }
+        userDNCache.put(username, userDN);
+        String key = getDNKey(userBaseDN.length() == 0 ? userDN : userDN + "," + userBaseDN);
+        if (key != null) {
+            usernameCache.put(key, username);
+        }
+        return userDN;
+    }
+
+    /**
+     * Removes the cached DN of the specified user, so that the next call to
+     * {@link #findUserDN(String)} searches the directory again.
+     *
+     * @param username the username of the user.
+     */
+    public void evictUserDN(String username) {
+        userDNCache.remove(username);
+    }
+
+    /**
+     * Returns the username of the user with the specified full DN if it was found by
+     * {@link #findUserDN(String)} or added with {@link #cacheUsername(String, String)}.
+     *
+     * @param userDN the full DN of the user.
+     * @return the username of the user or <tt>null</tt> if the DN is not cached.
+     */
+    public String getCachedUsername(String userDN) {
+        String key = getDNKey(userDN);
+        return key == null ? null : usernameCache.get(key);
+    }
+
+    /**
+     * Caches the username of the user with the specified full DN. The DN is also used by
+     * {@link #findUserDN(String)} when the user is located in the base DN or in the
+     * alternate base DN.
+     *
+     * @param username the username of the user.
+     * @param userDN the full DN of the user.
+     */
+    public void cacheUsername(String username, String userDN) {
+        String key = getDNKey(userDN);
+        if (key == null) {
+            return;
+        }
+        usernameCache.put(key, username);
+        if (usernameSuffix.length() > 0) {
+            if (!username.endsWith(usernameSuffix)) {
+                return;
+            }
+            username = username.substring(0, username.length() - usernameSuffix.length());
+        }
+        try {
+            LdapName name = new LdapName(userDN);
+            for (String base : new String[] {baseDN, alternateBaseDN}) {
+                if (base == null) {
+                    continue;
+                }
+                LdapName baseName = new LdapName(base);
+                if (name.size() > baseName.size() && name.startsWith(baseName)) {
+                    // Keep the DN relative to the base DN as returned by findUserDN
+                    String relativeDN = name.getSuffix(baseName.size()).toString();
+                    userDNCache.put(username, encloseUserDN ? getEnclosedDN(relativeDN) : relativeDN);
+                    return;
+                }
+            }
+        }
+        catch (InvalidNameException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Returns the DN in a form that can be compared with other DNs, or <tt>null</tt> if
+     * the DN is not valid. Attribute types and values are compared ignoring case.
+     */
+    private static String getDNKey(String dn) {
+        try {
+            StringBuilder key = new StringBuilder();
+            for (Rdn rdn : new LdapName(dn).getRdns()) {
+                key.insert(0, rdn.toString().toLowerCase()).insert(0, ',');
+            }
+            return key.length() == 0 ? key.toString() : key.substring(1);
+        }
+        catch (InvalidNameException e) {
+            return null;
+        }
     }
 
     /**
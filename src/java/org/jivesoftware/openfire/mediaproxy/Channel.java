@@ -23,16 +23,22 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.channels.DatagramChannel;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Listen packets from defined dataSocket and send packets to the defined host.
+ * Listen packets from defined dataSocket and send packets to the defined host.<p>
+ *
+ * When the dataSocket belongs to a {@link DatagramChannel} the packets are received by a
+ * {@link MediaRelay} thread, otherwise the channel must be run by its own thread.
  *
  * @author Thiago Camargo
  */
@@ -45,10 +51,16 @@ abstract class Channel implements Runnable {
     protected DatagramPacket packet;
     protected boolean enabled = true;
 
-    List<DatagramListener> listeners = new ArrayList<DatagramListener>();
+    List<DatagramListener> listeners = new CopyOnWriteArrayList<DatagramListener>();
+
+    protected volatile InetAddress host;
+    protected volatile int port;
+    private volatile InetSocketAddress target;
 
-    protected InetAddress host;
-    protected int port;
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsRelayed = new AtomicLong();
+    private final AtomicLong bytesRelayed = new AtomicLong();
 
     /**
      * Creates a Channel according to the parameters.
@@ -61,6 +73,7 @@ abstract class Channel implements Runnable {
         this.dataSocket = dataSocket;
         this.host = host;
         this.port = port;
+        this.target = null;
     }
 
     /**
@@ -77,6 +90,7 @@ abstract class Channel implements Runnable {
      */
     protected void setHost(InetAddress host) {
         this.host = host;
+        this.target = null;
     }
 
     /**
@@ -95,6 +109,7 @@ abstract class Channel implements Runnable {
      */
     protected void setPort(int port) {
         this.port = port;
+        this.target = null;
     }
 
     /**
@@ -119,7 +134,53 @@ abstract class Channel implements Runnable {
      * Remove every Listeners
      */
     public void removeListeners() {
-        listeners.removeAll(listeners);
+        listeners.clear();
+    }
+
+    /**
+     * Returns the non-blocking channel of the dataSocket, or null if the dataSocket was
+     * not created by a channel.
+     *
+     * @return the channel of the dataSocket or null.
+     */
+    DatagramChannel getDatagramChannel() {
+        return dataSocket == null ? null : dataSocket.getChannel();
+    }
+
+    /**
+     * Returns the number of packets received by the channel.
+     *
+     * @return the number of packets received.
+     */
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    /**
+     * Returns the number of bytes received by the channel.
+     *
+     * @return the number of bytes received.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the number of packets sent by the channel.
+     *
+     * @return the number of packets sent.
+     */
+    public long getPacketsRelayed() {
+        return packetsRelayed.get();
+    }
+
+    /**
+     * Returns the number of bytes sent by the channel.
+     *
+     * @return the number of bytes sent.
+     */
+    public long getBytesRelayed() {
+        return bytesRelayed.get();
     }
 
     public void cancel() {
@@ -139,20 +200,7 @@ abstract class Channel implements Runnable {
                 packet = new DatagramPacket(buf, buf.length);
                 dataSocket.receive(packet);
 
-                if (handle(packet)) {
-                    boolean resend = true;
-
-                    for (DatagramListener dl : listeners) {
-                        boolean send = dl.datagramReceived(packet);
-                        if (resend && !send) {
-                            resend = false;
-                        }
-                    }
-
-                    if (resend) {
-                        relayPacket(packet);
-                    }
-                }
+                receive(packet);
             }
         }
         catch (UnknownHostException uhe) {
@@ -172,13 +220,57 @@ abstract class Channel implements Runnable {
         }
     }
 
+    /**
+     * Processes a packet received by the channel. Listeners are alerted and the packet is
+     * relayed unless a listener asked not to.
+     *
+     * @param packet received datagram packet
+     */
+    void receive(DatagramPacket packet) {
+        packetsReceived.incrementAndGet();
+        bytesReceived.addAndGet(packet.getLength());
+        if (handle(packet)) {
+            boolean resend = true;
+
+            for (DatagramListener dl : listeners) {
+                boolean send = dl.datagramReceived(packet);
+                if (resend && !send) {
+                    resend = false;
+                }
+            }
+
+            if (resend) {
+                relayPacket(packet);
+            }
+        }
+    }
+
     public void relayPacket(DatagramPacket packet) {
         try {
-            DatagramPacket echo = new DatagramPacket(packet.getData(), packet.getLength(), host, port);
-            dataSocket.send(echo);
+            InetSocketAddress address = target;
+            if (address == null) {
+                address = new InetSocketAddress(host, port);
+                target = address;
+            }
+            DatagramChannel datagramChannel = getDatagramChannel();
+            if (datagramChannel != null) {
+                // Datagrams that do not fit in the send buffer are dropped
+                if (datagramChannel.send(MediaRelay.getBuffer(packet), address) == 0) {
+                    return;
+                }
+            }
+            else {
+                DatagramPacket echo = new DatagramPacket(packet.getData(), packet.getOffset(),
+                        packet.getLength(), address);
+                dataSocket.send(echo);
+            }
+            packetsRelayed.incrementAndGet();
+            bytesRelayed.addAndGet(packet.getLength());
         }
         catch (IOException e) {
-            Log.error(e.getMessage(), e);
+            if (enabled) {
+                Log.error(e.getMessage(), e);
+            }
         }
     }
 
@@ -256,5 +256,6 @@ public class MediaProxy implements SessionListener {
             }
         }
         sessions.clear();
+        MediaRelay.shutdown();
     }
 }
\ No newline at end of file
@@ -20,12 +20,13 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,7 +34,10 @@ import org.slf4j.LoggerFactory;
 /**
  * A media proxy session enables two clients to exchange UDP traffic. Each client connects to
  * a UDP port and then the proxy is responsible for exchanging traffic. Each session uses
- * a total of four ports: two for traffic exchange, and two control ports.
+ * a total of four ports: two for traffic exchange, and two control ports.<p>
+ *
+ * The sockets of the session are non-blocking channels served by the {@link MediaRelay}
+ * threads, which also stop the session once it times out.
  *
  * @author Thiago Camargo
  */
@@ -46,7 +50,7 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
     private String id;
     private String pass;
     private String creator = "";
-    private long timestamp = 0;
+    private volatile long timestamp = 0;
 
     protected InetAddress localAddress;
     protected InetAddress hostA;
@@ -68,13 +72,10 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
     protected Channel channelBtoA;
     protected Channel channelBtoAControl;
 
-    protected Thread threadAtoB;
-    protected Thread threadAtoBControl;
-    protected Thread threadBtoA;
-    protected Thread threadBtoAControl;
-
-    private Timer idleTimer = null;
-    private Timer lifeTimer = null;
+    private volatile long idleTimeout = 0;
+    private volatile long idleSince = 0;
+    private volatile long expiration = 0;
+    private volatile boolean stopped = false;
 
     private int minPort = 10000;
     private int maxPort = 20000;
@@ -108,11 +109,11 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
 
             this.localAddress = InetAddress.getByName(localAddress);
             this.localPortA = getFreePort();
-            this.socketA = new DatagramSocket(localPortA, this.localAddress);
-            this.socketAControl = new DatagramSocket(localPortA + 1, this.localAddress);
+            this.socketA = openSocket(localPortA);
+            this.socketAControl = openSocket(localPortA + 1);
             this.localPortB = getFreePort();
-            this.socketB = new DatagramSocket(localPortB, this.localAddress);
-            this.socketBControl = new DatagramSocket(localPortB + 1, this.localAddress);
+            this.socketB = openSocket(localPortB);
+            this.socketBControl = openSocket(localPortB + 1);
             if (Log.isDebugEnabled()) {
                 Log.debug("MediaProxySession: Session Created at: A " + localPortA + " : B " + localPortB);
             }
@@ -122,6 +123,26 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         }
     }
 
+    /**
+     * Opens a non-blocking socket listening on the local address and port.
+     *
+     * @param port the local port.
+     * @return the socket of the new channel.
+     * @throws IOException if the socket could not be bound.
+     */
+    private DatagramSocket openSocket(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(localAddress, port));
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
     /**
      * Obtain a free port with a nested control port we can use.
      *
@@ -198,6 +219,70 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         return timestamp;
     }
 
+    /**
+     * Returns the number of packets received from both hosts.
+     *
+     * @return the number of packets received.
+     */
+    public long getPacketsReceived() {
+        long count = 0;
+        for (Channel channel : getChannels()) {
+            count += channel.getPacketsReceived();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes received from both hosts.
+     *
+     * @return the number of bytes received.
+     */
+    public long getBytesReceived() {
+        long count = 0;
+        for (Channel channel : getChannels()) {
+            count += channel.getBytesReceived();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of packets relayed to both hosts.
+     *
+     * @return the number of packets relayed.
+     */
+    public long getPacketsRelayed() {
+        long count = 0;
+        for (Channel channel : getChannels()) {
+            count += channel.getPacketsRelayed();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes relayed to both hosts.
+     *
+     * @return the number of bytes relayed.
+     */
+    public long getBytesRelayed() {
+        long count = 0;
+        for (Channel channel : getChannels()) {
+            count += channel.getBytesRelayed();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the channels of the session, or an empty list if the session was not started.
+     *
+     * @return the channels of the session.
+     */
+    List<Channel> getChannels() {
+        if (channelAtoB == null) {
+            return new ArrayList<Channel>();
+        }
+        return Arrays.asList(channelAtoB, channelAtoBControl, channelBtoA, channelBtoAControl);
+    }
+
     /**
      * Thread override method
      */
@@ -206,19 +291,17 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         // Create channels for parties
         createChannels();
 
-        // Start a thread for each channel
-        threadAtoB = new Thread(channelAtoB);
-        threadAtoBControl = new Thread(channelAtoBControl);
-        threadBtoA = new Thread(channelBtoA);
-        threadBtoAControl = new Thread(channelBtoAControl);
-
-        threadAtoB.start();
-        threadAtoBControl.start();
-        threadBtoA.start();
-        threadBtoAControl.start();
-
         // Listen to channel events
         addChannelListeners();
+
+        // Let the relay threads receive the packets of the channels
+        try {
+            MediaRelay.register(this);
+        }
+        catch (IOException e) {
+            Log.error("Error starting media proxy session", e);
+            stopAgent();
+        }
     }
 
     /**
@@ -241,37 +324,21 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      * Stop the Session
      */
     public void stopAgent() {
-
-        try {
-            if (idleTimer != null) {
-                idleTimer.cancel();
-                idleTimer.purge();
-                idleTimer = null;
+        synchronized (this) {
+            if (stopped) {
+                return;
             }
-        } catch (Exception e) {
-            Log.error(e.getMessage(), e);
+            stopped = true;
         }
 
-        try {
-            if (lifeTimer != null) {
-                lifeTimer.cancel();
-                lifeTimer.purge();
-                lifeTimer = null;
-            }
-        } catch (Exception e) {
-            Log.error(e.getMessage(), e);
+        for (Channel channel : getChannels()) {
+            channel.removeListeners();
         }
 
-        channelAtoB.removeListeners();
-        channelAtoBControl.removeListeners();
-        channelBtoA.removeListeners();
-        channelBtoAControl.removeListeners();
-
         try {
-            channelAtoB.cancel();
-            channelAtoBControl.cancel();
-            channelBtoA.cancel();
-            channelBtoAControl.cancel();
+            for (Channel channel : getChannels()) {
+                channel.cancel();
+            }
         } catch (Exception e) {
             Log.error(e.getMessage(), e);
         }
@@ -286,6 +353,29 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
         Log.debug("MediaProxySession: Session Stopped");
     }
 
+    /**
+     * Returns true if the session was stopped.
+     *
+     * @return true if the session was stopped.
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Returns true if the session was inactive for longer than its keep alive delay or
+     * was alive for longer than its life time.
+     *
+     * @param now the current time in millis.
+     * @return true if the session should be stopped.
+     */
+    boolean isExpired(long now) {
+        if (expiration > 0 && now >= expiration) {
+            return true;
+        }
+        return idleTimeout > 0 && now - Math.max(idleSince, timestamp) >= idleTimeout;
+    }
+
     /**
      * Get localhost of the Session
      *
@@ -435,20 +525,9 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      * @param delay delay time in millis to check if the channel is inactive
      */
     void addKeepAlive(long delay) {
-        if (idleTimer != null) return;
-        idleTimer = new Timer();
-        idleTimer.scheduleAtFixedRate(new TimerTask() {
-            long lastTimeStamp = getTimestamp();
-
-            @Override
-			public void run() {
-                if (lastTimeStamp == getTimestamp()) {
-                    stopAgent();
-                    return;
-                }
-                lastTimeStamp = getTimestamp();
-            }
-        }, delay, delay);
+        if (idleTimeout > 0) return;
+        idleSince = System.currentTimeMillis();
+        idleTimeout = delay;
     }
 
     /**
@@ -460,14 +539,8 @@ public abstract class MediaProxySession extends Thread implements ProxyCandidate
      */
     void addLifeTime(long lifetime) {
         lifetime *= 1000;
-        if (lifeTimer != null) return;
-        lifeTimer = new Timer();
-        lifeTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-			public void run() {
-                stopAgent();
-            }
-        }, lifetime, lifetime);
+        if (expiration > 0) return;
+        expiration = System.currentTimeMillis() + lifetime;
     }
 
     /**
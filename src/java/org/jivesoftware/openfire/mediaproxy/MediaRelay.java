@@ -0,0 +1,306 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.mediaproxy;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays the UDP traffic of the media proxy sessions. A fixed number of reactor threads
+ * wait on a selector for datagrams to arrive on the non-blocking channels of the sessions,
+ * so the number of threads does not grow with the number of sessions. The number of
+ * threads is set by the <tt>mediaproxy.relay.threads</tt> property (the number of
+ * processors by default).<p>
+ *
+ * All the channels of a session are served by the same reactor. A reactor receives the
+ * datagrams in its own direct buffer and relays them from that same buffer. Reactors also
+ * stop the sessions that were idle or alive for longer than allowed.
+ *
+ * @see MediaProxySession#addKeepAlive(long)
+ * @see MediaProxySession#addLifeTime(long)
+ */
+class MediaRelay {
+
+    private static final Logger Log = LoggerFactory.getLogger(MediaRelay.class);
+
+    /**
+     * Max size of a relayed datagram. Larger datagrams are truncated.
+     */
+    static final int BUFFER_SIZE = 5000;
+
+    /**
+     * Max number of datagrams received from a channel before serving the other channels.
+     */
+    private static final int MAX_DATAGRAMS = 16;
+
+    /**
+     * Time in milliseconds between checks of the session timeouts.
+     */
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    private static Reactor[] reactors;
+    private static final AtomicInteger nextReactor = new AtomicInteger();
+
+    private MediaRelay() {
+    }
+
+    /**
+     * Relays the traffic of the session until it is stopped. The relay threads are
+     * started the first time a session is registered.
+     *
+     * @param session the session to relay.
+     * @throws IOException if the relay threads could not be started.
+     */
+    static void register(MediaProxySession session) throws IOException {
+        getReactor().register(session);
+    }
+
+    /**
+     * Stops the relay threads. Threads are started again when a new session is registered.
+     */
+    static synchronized void shutdown() {
+        if (reactors != null) {
+            for (Reactor reactor : reactors) {
+                reactor.shutdown();
+            }
+            reactors = null;
+        }
+    }
+
+    /**
+     * Returns the number of sessions being relayed.
+     *
+     * @return the number of sessions being relayed.
+     */
+    static synchronized int getSessionCount() {
+        int count = 0;
+        if (reactors != null) {
+            for (Reactor reactor : reactors) {
+                count += reactor.sessionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the content of the packet as a buffer ready to be sent. The buffer of the relay
+     * thread is returned when the packet is the one it just received, so relayed datagrams
+     * are sent without copying them.
+     *
+     * @param packet the packet to send.
+     * @return the content of the packet.
+     */
+    static ByteBuffer getBuffer(DatagramPacket packet) {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Reactor) {
+            Reactor reactor = (Reactor) thread;
+            if (packet == reactor.packet) {
+                reactor.buffer.rewind();
+                return reactor.buffer;
+            }
+        }
+        return ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+    }
+
+    private static synchronized Reactor getReactor() throws IOException {
+        if (reactors == null) {
+            int threads = JiveGlobals.getIntProperty("mediaproxy.relay.threads",
+                    Runtime.getRuntime().availableProcessors());
+            Reactor[] started = new Reactor[Math.max(1, threads)];
+            try {
+                for (int i = 0; i < started.length; i++) {
+                    started[i] = new Reactor("Media Proxy Relay " + (i + 1));
+                    started[i].start();
+                }
+            }
+            catch (IOException e) {
+                for (Reactor reactor : started) {
+                    if (reactor != null) {
+                        reactor.shutdown();
+                    }
+                }
+                throw e;
+            }
+            reactors = started;
+        }
+        return reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+    }
+
+    /**
+     * Thread that receives and relays the datagrams of its sessions.
+     */
+    private static class Reactor extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final List<MediaProxySession> sessions = new ArrayList<MediaProxySession>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final byte[] data = new byte[BUFFER_SIZE];
+        private final DatagramPacket packet = new DatagramPacket(data, data.length);
+        private volatile int sessionCount = 0;
+        private volatile boolean running = true;
+        private long nextTimeoutCheck = 0;
+
+        Reactor(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(final MediaProxySession session) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    for (Channel channel : session.getChannels()) {
+                        DatagramChannel datagramChannel = channel.getDatagramChannel();
+                        if (datagramChannel == null) {
+                            // Sockets not created by a channel are served by their own thread
+                            new Thread(channel).start();
+                            continue;
+                        }
+                        try {
+                            datagramChannel.configureBlocking(false);
+                            datagramChannel.register(selector, SelectionKey.OP_READ, channel);
+                        }
+                        catch (IOException e) {
+                            // The session was stopped
+                            Log.debug("Error registering media proxy channel", e);
+                        }
+                    }
+                    sessions.add(session);
+                    sessionCount = sessions.size();
+                }
+            });
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(TIMEOUT_CHECK_INTERVAL);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid()) {
+                            receive(key);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTimeoutCheck) {
+                        checkTimeouts(now);
+                        nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+                    }
+                }
+            }
+            catch (IOException e) {
+                Log.error("Media proxy relay stopped", e);
+            }
+            catch (ClosedSelectorException e) {
+                // Stopped
+            }
+            finally {
+                try {
+                    selector.close();
+                }
+                catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        /**
+         * Receives the datagrams waiting on the channel of the key.
+         */
+        private void receive(SelectionKey key) {
+            DatagramChannel datagramChannel = (DatagramChannel) key.channel();
+            Channel channel = (Channel) key.attachment();
+            try {
+                for (int i = 0; i < MAX_DATAGRAMS; i++) {
+                    buffer.clear();
+                    SocketAddress source = datagramChannel.receive(buffer);
+                    if (source == null) {
+                        return;
+                    }
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    buffer.get(data, 0, length);
+                    packet.setData(data, 0, length);
+                    packet.setSocketAddress(source);
+                    channel.receive(packet);
+                }
+            }
+            catch (IOException e) {
+                // The session was stopped
+                key.cancel();
+            }
+            catch (Exception e) {
+                Log.error("Error relaying media proxy datagram", e);
+            }
+        }
+
+        /**
+         * Stops the sessions that timed out and forgets the stopped sessions.
+         */
+        private void checkTimeouts(long now) {
+            for (Iterator<MediaProxySession> it = sessions.iterator(); it.hasNext();) {
+                MediaProxySession session = it.next();
+                if (!session.isStopped() && session.isExpired(now)) {
+                    try {
+                        session.stopAgent();
+                    }
+                    catch (Exception e) {
+                        Log.error("Error stopping media proxy session", e);
+                    }
+                }
+                if (session.isStopped()) {
+                    it.remove();
+                }
+            }
+            sessionCount = sessions.size();
+        }
+    }
+}
@@ -48,6 +48,7 @@ import org.jivesoftware.openfire.muc.spi.LocalMUCRoom;
 import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
 import org.jivesoftware.openfire.muc.spi.MUCServicePropertyEventListener;
 import org.jivesoftware.openfire.muc.spi.MultiUserChatServiceImpl;
+import org.jivesoftware.openfire.muc.spi.OccupantFanOut;
 import org.jivesoftware.openfire.stats.Statistic;
 import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.openfire.user.User;
@@ -91,6 +92,11 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
 
     private ConcurrentHashMap<String,MultiUserChatService> mucServices = new ConcurrentHashMap<String,MultiUserChatService>();
 
+    /**
+     * Delivers the stanzas broadcast by rooms to their local occupants.
+     */
+    private OccupantFanOut occupantFanOut;
+
     /**
      * Creates a new MultiUserChatManager instance.
      */
@@ -105,6 +111,9 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
 	public void start() {
         super.start();
 
+        occupantFanOut = new OccupantFanOut();
+        occupantFanOut.start();
+
         loadServices();
 
         for (MultiUserChatService service : mucServices.values()) {
@@ -142,6 +151,19 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         for (MultiUserChatService service : mucServices.values()) {
             unregisterMultiUserChatService(service.getServiceName());
         }
+
+        occupantFanOut.stop();
+        occupantFanOut = null;
+    }
+
+    /**
+     * Returns the engine that delivers the stanzas broadcast by rooms to their local
+     * occupants or null if the manager is not running.
+     *
+     * @return the engine that delivers the stanzas broadcast by rooms.
+     */
+    public OccupantFanOut getOccupantFanOut() {
+        return occupantFanOut;
     }
 
     /**
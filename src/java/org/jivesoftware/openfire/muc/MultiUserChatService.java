@@ -253,12 +253,32 @@ public interface MultiUserChatService extends Component {
     
     /**
      * Retuns a list with a snapshot of all the rooms in the server (i.e. persistent or not,
-     * in memory or not).
+     * in memory or not). Persistent rooms that the service unloaded are loaded again, so
+     * use {@link #getChatRoomNames()} or {@link #getLoadedChatRooms()} when not every room
+     * is needed.
      *
      * @return a list with a snapshot of all the rooms.
      */
     List<MUCRoom> getChatRooms();
 
+    /**
+     * Returns the names of all the rooms in the server (i.e. persistent or not, in memory or
+     * not) without loading the rooms that the service unloaded. Use
+     * {@link #getChatRoom(String)} to get the rooms that are actually needed.
+     *
+     * @return the names of all the rooms.
+     */
+    List<String> getChatRoomNames();
+
+    /**
+     * Retuns a list with a snapshot of the rooms that are loaded in memory. Rooms with
+     * occupants are always loaded, so this list is enough when looking for occupants and it
+     * does not load the persistent rooms that the service unloaded.
+     *
+     * @return a list with a snapshot of the loaded rooms.
+     */
+    List<MUCRoom> getLoadedChatRooms();
+
     /**
      * Returns true if the server includes a chatroom with the requested name.
      * 
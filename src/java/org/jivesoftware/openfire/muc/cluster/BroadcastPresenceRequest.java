@@ -21,7 +21,6 @@
 package org.jivesoftware.openfire.muc.cluster;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRoom;
 import org.jivesoftware.util.cache.ExternalizableUtil;
 import org.xmpp.packet.Presence;
@@ -76,13 +75,13 @@ public class BroadcastPresenceRequest extends MUCRoomTask {
     @Override
 	public void writeExternal(ObjectOutput out) throws IOException {
         super.writeExternal(out);
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) presence.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, presence.getElement());
     }
 
     @Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         super.readExternal(in);
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         presence = new Presence(packetElement, true);
     }
 }
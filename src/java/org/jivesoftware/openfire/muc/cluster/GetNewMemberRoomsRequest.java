@@ -55,7 +55,7 @@ public class GetNewMemberRoomsRequest implements ClusterTask {
         // Get all services that have local occupants and include them in the reply
         for (MultiUserChatService mucService : XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatServices()) {
             // Get rooms that have local occupants and include them in the reply
-            for (MUCRoom room : mucService.getChatRooms()) {
+            for (MUCRoom room : mucService.getLoadedChatRooms()) {
                 LocalMUCRoom localRoom = (LocalMUCRoom) room;
                 Collection<MUCRole> localOccupants = new ArrayList<MUCRole>();
                 for (MUCRole occupant : room.getOccupants()) {
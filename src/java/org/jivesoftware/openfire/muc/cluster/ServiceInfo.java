@@ -59,7 +59,7 @@ public class ServiceInfo implements Externalizable {
         this.isHidden = service.isHidden();
         rooms = new ArrayList<RoomInfo>();
         // Get rooms that have occupants and include them in the reply
-        for (MUCRoom room : service.getChatRooms()) {
+        for (MUCRoom room : service.getLoadedChatRooms()) {
             LocalMUCRoom localRoom = (LocalMUCRoom) room;
             if (!room.getOccupants().isEmpty()) {
                 rooms.add(new RoomInfo(localRoom, localRoom.getOccupants()));
@@ -0,0 +1,420 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.util.JiveConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the conversation logs of the rooms of a service to the database in the
+ * background. Entries are kept in a bounded queue and written by a number of worker
+ * threads using batches.<p>
+ *
+ * A worker writes a batch as soon as it has as many entries as the current batch size,
+ * or when the oldest entry of the batch waited for the linger time (the
+ * <tt>tasks.log.timeout</tt> property of the service). The batch size starts at the
+ * minimum batch size (<tt>tasks.log.batchsize</tt>) and doubles, up to the maximum
+ * batch size, while the queue keeps growing; it halves again when the queue drains.<p>
+ *
+ * When the queue is full the {@link OverflowPolicy overflow policy} decides whether the
+ * thread logging the message waits, or the oldest or newest entry is dropped.
+ */
+class ConversationLogWriter {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConversationLogWriter.class);
+
+    /**
+     * What to do with a new entry when the queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * The thread logging the message waits until there is room in the queue.
+         */
+        block,
+        /**
+         * The new entry is dropped.
+         */
+        drop_newest,
+        /**
+         * The oldest entry in the queue is dropped to make room for the new entry.
+         */
+        drop_oldest
+    }
+
+    /**
+     * Storage of the conversation log entries.
+     */
+    interface LogStore {
+
+        /**
+         * Saves all the entries or none of them.
+         *
+         * @param entries the entries to save.
+         * @return true if the entries were saved.
+         */
+        boolean saveBatch(List<ConversationLogEntry> entries);
+
+        /**
+         * Saves a single entry.
+         *
+         * @param entry the entry to save.
+         * @return true if the entry was saved.
+         */
+        boolean save(ConversationLogEntry entry);
+    }
+
+    /**
+     * Store that saves the entries with {@link MUCPersistenceManager}.
+     */
+    static final LogStore DATABASE = new LogStore() {
+        public boolean saveBatch(List<ConversationLogEntry> entries) {
+            return MUCPersistenceManager.saveConversationLogBatch(entries);
+        }
+
+        public boolean save(ConversationLogEntry entry) {
+            return MUCPersistenceManager.saveConversationLogEntry(entry);
+        }
+    };
+
+    /**
+     * Time to wait before writing again after entries could not be saved.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * Minimum time between two warnings about dropped entries.
+     */
+    private static final long DROP_WARNING_INTERVAL = JiveConstants.MINUTE;
+
+    private final String name;
+    private final LogStore store;
+    private final BlockingQueue<ConversationLogEntry> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxBatchSize;
+    private final Worker[] workers;
+
+    private volatile int minBatchSize;
+    private volatile long lingerTime;
+    private final AtomicInteger batchSize;
+    private volatile boolean running = false;
+
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong lastDropWarning = new AtomicLong(0);
+    private volatile long droppedAtLastWarning = 0;
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final AtomicLong flushNanos = new AtomicLong(0);
+
+    /**
+     * Creates a new writer.
+     *
+     * @param name the name of the writer, used to name its threads.
+     * @param store where entries are saved.
+     * @param queueSize the maximum number of entries waiting to be written.
+     * @param overflowPolicy what to do with a new entry when the queue is full.
+     * @param workerCount the number of threads writing entries.
+     * @param minBatchSize the minimum number of entries of a batch.
+     * @param maxBatchSize the maximum number of entries of a batch.
+     * @param lingerTime the maximum time in milliseconds an entry waits for a batch to fill.
+     */
+    ConversationLogWriter(String name, LogStore store, int queueSize, OverflowPolicy overflowPolicy,
+            int workerCount, int minBatchSize, int maxBatchSize, long lingerTime)
+    {
+        this.name = name;
+        this.store = store;
+        this.queue = new LinkedBlockingQueue<ConversationLogEntry>(Math.max(1, queueSize));
+        this.overflowPolicy = overflowPolicy;
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.batchSize = new AtomicInteger(this.minBatchSize);
+        this.lingerTime = lingerTime;
+        this.workers = new Worker[Math.max(1, workerCount)];
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(name + "-" + (i + 1));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Stops the worker threads once all the queued entries were written. This method
+     * waits until the entries were written.
+     */
+    synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // Entries added while stopping
+        List<ConversationLogEntry> remaining = new ArrayList<ConversationLogEntry>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            write(remaining, false);
+        }
+    }
+
+    /**
+     * Queues an entry to be written to the database.
+     *
+     * @param entry the entry to write.
+     * @return false if the entry was dropped because the queue was full.
+     */
+    boolean add(ConversationLogEntry entry) {
+        if (queue.offer(entry)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case block:
+                try {
+                    queue.put(entry);
+                    return true;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            case drop_oldest:
+                while (!queue.offer(entry)) {
+                    if (queue.poll() != null) {
+                        entryDropped();
+                    }
+                }
+                return true;
+            default:
+                break;
+        }
+        entryDropped();
+        return false;
+    }
+
+    /**
+     * Counts an entry that was dropped because the queue was full. A warning with the
+     * number of entries dropped since the previous one is logged at most once a minute.
+     */
+    private void entryDropped() {
+        long total = dropped.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long last = lastDropWarning.get();
+        if (now - last >= DROP_WARNING_INTERVAL && lastDropWarning.compareAndSet(last, now)) {
+            long count = total - droppedAtLastWarning;
+            droppedAtLastWarning = total;
+            Log.warn(name + " dropped " + count + " conversation log entries because the queue was full (" +
+                    total + " in total). Increase tasks.log.queuesize or set tasks.log.overflow to block " +
+                    "to keep all the entries.");
+        }
+    }
+
+    /**
+     * Returns the number of entries waiting to be written.
+     *
+     * @return the number of entries waiting to be written.
+     */
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of entries dropped because the queue was full.
+     *
+     * @return the number of entries dropped because the queue was full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the current number of entries of a batch.
+     *
+     * @return the current number of entries of a batch.
+     */
+    int getBatchSize() {
+        return batchSize.get();
+    }
+
+    /**
+     * Returns the number of batches written since the last call and resets the counter.
+     *
+     * @return the number of batches written since the last call.
+     */
+    long resetFlushCount() {
+        return flushes.getAndSet(0);
+    }
+
+    /**
+     * Returns the time in nanoseconds spent writing batches since the last call and
+     * resets the counter.
+     *
+     * @return the time in nanoseconds spent writing batches since the last call.
+     */
+    long resetFlushTime() {
+        return flushNanos.getAndSet(0);
+    }
+
+    void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = Math.max(1, Math.min(minBatchSize, maxBatchSize));
+        batchSize.set(this.minBatchSize);
+    }
+
+    void setLingerTime(long lingerTime) {
+        this.lingerTime = lingerTime;
+    }
+
+    /**
+     * Writes the entries as a batch. If the batch fails the entries are written one at a
+     * time, and entries that still fail are queued again when retry is true and there is
+     * room in the queue. Workers never wait for room in the queue.
+     *
+     * @return true if all the entries were written.
+     */
+    private boolean write(List<ConversationLogEntry> entries, boolean retry) {
+        long start = System.nanoTime();
+        boolean success = entries.size() > 1 ? store.saveBatch(entries) : store.save(entries.get(0));
+        if (!success) {
+            success = true;
+            for (ConversationLogEntry entry : entries) {
+                if (!store.save(entry)) {
+                    success = false;
+                    if (retry && running && !queue.offer(entry)) {
+                        entryDropped();
+                    }
+                }
+            }
+        }
+        flushNanos.addAndGet(System.nanoTime() - start);
+        flushes.incrementAndGet();
+        return success;
+    }
+
+    /**
+     * Adapts the batch size to the number of entries left in the queue.
+     */
+    private void adaptBatchSize(int written) {
+        int current = batchSize.get();
+        int waiting = queue.size();
+        if (written >= current && waiting >= current) {
+            batchSize.compareAndSet(current, Math.min(maxBatchSize, current * 2));
+        }
+        else if (waiting < current / 4) {
+            batchSize.compareAndSet(current, Math.max(minBatchSize, current / 2));
+        }
+    }
+
+    /**
+     * Thread that takes batches of entries from the queue and writes them.
+     */
+    private class Worker extends Thread {
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<ConversationLogEntry> batch = new ArrayList<ConversationLogEntry>();
+            while (running || !queue.isEmpty()) {
+                try {
+                    fill(batch);
+                }
+                catch (InterruptedException e) {
+                    // Stopping; write what was collected and drain the queue
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                try {
+                    boolean success = write(batch, true);
+                    adaptBatchSize(batch.size());
+                    if (!success && running) {
+                        Thread.sleep(RETRY_DELAY);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Stopping
+                }
+                catch (Throwable e) {
+                    Log.error("Error writing conversation logs", e);
+                }
+                finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * Adds entries to the batch until it is full or its oldest entry waited for the
+         * linger time. Entries are only collected without waiting once stopping.
+         */
+        private void fill(List<ConversationLogEntry> batch) throws InterruptedException {
+            int size = batchSize.get();
+            if (!running) {
+                queue.drainTo(batch, size);
+                return;
+            }
+            ConversationLogEntry first = queue.poll(1, TimeUnit.SECONDS);
+            if (first == null) {
+                return;
+            }
+            batch.add(first);
+            long deadline = System.currentTimeMillis() + lingerTime;
+            while (batch.size() < size) {
+                queue.drainTo(batch, size - batch.size());
+                long wait = deadline - System.currentTimeMillis();
+                if (batch.size() >= size || wait <= 0 || !running) {
+                    return;
+                }
+                ConversationLogEntry entry = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    batch.add(entry);
+                }
+            }
+        }
+    }
+}
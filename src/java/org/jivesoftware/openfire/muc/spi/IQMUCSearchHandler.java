@@ -22,12 +22,13 @@ import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
 import org.jivesoftware.openfire.muc.MUCRoom;
-import org.jivesoftware.openfire.muc.MultiUserChatService;
 import org.xmpp.forms.DataForm;
 import org.xmpp.forms.FormField;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.PacketError.Condition;
+import org.xmpp.resultsetmanagement.Result;
 import org.xmpp.resultsetmanagement.ResultSet;
 import org.xmpp.resultsetmanagement.ResultSetImpl;
 
@@ -45,7 +46,7 @@ public class IQMUCSearchHandler
 	/**
 	 * The MUC-server to extend with jabber:iq:search functionality.
 	 */
-	private final MultiUserChatService mucService;
+	private final MultiUserChatServiceImpl mucService;
 
 	/**
 	 * Creates a new instance of the search provider.
@@ -53,7 +54,7 @@ public class IQMUCSearchHandler
 	 * @param mucService
 	 *            The server for which to return search results.
 	 */
-	public IQMUCSearchHandler(MultiUserChatService mucService)
+	public IQMUCSearchHandler(MultiUserChatServiceImpl mucService)
 	{
 		this.mucService = mucService;
 	}
@@ -212,9 +213,20 @@ public class IQMUCSearchHandler
 			}
 		}
 
-		// search for chatrooms matching the request params.
-		final List<MUCRoom> mucs = new ArrayList<MUCRoom>();
-		for (MUCRoom room : mucService.getChatRooms())
+		// search for chatrooms matching the request params. Rooms that are not
+		// loaded are matched against their directory entries and stay unloaded.
+		final List<RoomSummary> candidates = new ArrayList<RoomSummary>();
+		for (MUCRoom room : mucService.getLoadedChatRooms())
+		{
+			candidates.add(new RoomSummary(room));
+		}
+		for (RoomDirectory.Entry entry : mucService.getUnloadedChatRooms())
+		{
+			candidates.add(new RoomSummary(entry, mucService.getServiceDomain()));
+		}
+		final boolean discoverLocked = MUCPersistenceManager.getBooleanProperty(mucService.getServiceName(), "discover.locked", true);
+		final List<RoomSummary> mucs = new ArrayList<RoomSummary>();
+		for (RoomSummary room : candidates)
 		{
 			boolean find = false;
 
@@ -224,7 +236,7 @@ public class IQMUCSearchHandler
 				{
 					if (name_is_exact_match)
 					{
-						if (name.equalsIgnoreCase(room.getNaturalLanguageName()))
+						if (name.equalsIgnoreCase(room.naturalLanguageName))
 						{
 							find = true;
 							break;
@@ -232,7 +244,7 @@ public class IQMUCSearchHandler
 					}
 					else
 					{
-						if (room.getNaturalLanguageName().toLowerCase().indexOf(
+						if (room.naturalLanguageName.toLowerCase().indexOf(
 							name.toLowerCase()) != -1)
 						{
 							find = true;
@@ -243,41 +255,41 @@ public class IQMUCSearchHandler
 			}
 
 			if (subject != null
-					&& room.getSubject().toLowerCase().indexOf(
+					&& room.subject.toLowerCase().indexOf(
 						subject.toLowerCase()) != -1)
 			{
 				find = true;
 			}
 
-			if (numusers > -1 && room.getParticipants().size() < numusers)
+			if (numusers > -1 && room.participants < numusers)
 			{
 				find = false;
 			}
 
-			if (numaxusers > -1 && room.getMaxUsers() < numaxusers)
+			if (numaxusers > -1 && room.maxUsers < numaxusers)
 			{
 				find = false;
 			}
 
-			if (!includePasswordProtectedRooms && room.isPasswordProtected())
+			if (!includePasswordProtectedRooms && room.passwordProtected)
 			{
 				find = false;
 			}
 
-			if (find && canBeIncludedInResult(room))
+			if (find && canBeIncludedInResult(room, discoverLocked))
 			{
 				mucs.add(room);
 			}
 		}
 
-		final ResultSet<MUCRoom> searchResults = new ResultSetImpl<MUCRoom>(
+		final ResultSet<RoomSummary> searchResults = new ResultSetImpl<RoomSummary>(
 			sortByUserAmount(mucs));
 
 		// See if the requesting entity would like to apply 'result set
 		// management'
 		final Element set = iq.getChildElement().element(
 			QName.get("set", ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT));
-		final List<MUCRoom> mucrsm;
+		final List<RoomSummary> mucrsm;
 
 		// apply RSM only if the element exists, and the (total) results
 		// set is not empty.
@@ -305,7 +317,7 @@ public class IQMUCSearchHandler
 		else
 		{
 			// if no rsm, all found rooms are part of the result.
-			mucrsm = new ArrayList<MUCRoom>(searchResults);
+			mucrsm = new ArrayList<RoomSummary>(searchResults);
 		}
 
 		final Element res = DocumentHelper.createElement(QName.get("query",
@@ -313,16 +325,16 @@ public class IQMUCSearchHandler
 
 		final DataForm resultform = new DataForm(DataForm.Type.result);
 		boolean atLeastoneResult = false;
-		for (MUCRoom room : mucrsm)
+		for (RoomSummary room : mucrsm)
 		{
 			final Map<String, Object> fields = new HashMap<String, Object>();
-			fields.put("name", room.getNaturalLanguageName());
-			fields.put("subject", room.getSubject());
-			fields.put("num_users", room.getOccupantsCount());
-			fields.put("num_max_users", room.getMaxUsers());
-			fields.put("is_password_protected", room.isPasswordProtected());
-			fields.put("is_member_only", room.isMembersOnly());
-			fields.put("jid", room.getRole().getRoleAddress().toString());
+			fields.put("name", room.naturalLanguageName);
+			fields.put("subject", room.subject);
+			fields.put("num_users", room.occupants);
+			fields.put("num_max_users", room.maxUsers);
+			fields.put("is_password_protected", room.passwordProtected);
+			fields.put("is_member_only", room.membersOnly);
+			fields.put("jid", room.jid.toString());
             resultform.addItemFields(fields);
 			atLeastoneResult = true;
 		}
@@ -355,13 +367,13 @@ public class IQMUCSearchHandler
 	 *            The unordered list that will be sorted.
      * @return The sorted list of MUC rooms.
 	 */
-	private static List<MUCRoom> sortByUserAmount(List<MUCRoom> mucs)
+	private static List<RoomSummary> sortByUserAmount(List<RoomSummary> mucs)
 	{
-		Collections.sort(mucs, new Comparator<MUCRoom>()
+		Collections.sort(mucs, new Comparator<RoomSummary>()
 		{
-			public int compare(MUCRoom o1, MUCRoom o2)
+			public int compare(RoomSummary o1, RoomSummary o2)
 			{
-				return o2.getOccupantsCount() - o1.getOccupantsCount();
+				return o2.occupants - o1.occupants;
 			}
 		});
 
@@ -375,19 +387,75 @@ public class IQMUCSearchHandler
 	 * 
 	 * @param room
 	 *            The room to check
+	 * @param discoverLocked
+	 *            ''true'' if locked rooms may be discovered.
 	 * @return ''true'' if the room may be included in search results, ''false''
 	 *         otherwise.
 	 */
-	private static boolean canBeIncludedInResult(MUCRoom room)
+	private static boolean canBeIncludedInResult(RoomSummary room, boolean discoverLocked)
 	{
 		// Check if locked rooms may be discovered
-		final boolean discoverLocked = MUCPersistenceManager.getBooleanProperty(room.getMUCService().getServiceName(), "discover.locked", true);
-
-		if (!discoverLocked && room.isLocked())
+		if (!discoverLocked && room.locked)
 		{
 			return false;
 		}
-		return room.isPublicRoom();
+		return room.publicRoom;
+	}
+
+	/**
+	 * The information of a room that is searched and returned, taken from a loaded
+	 * room or from the directory entry of a room that is not loaded.
+	 */
+	private static class RoomSummary implements Result
+	{
+		private final String name;
+		private final JID jid;
+		private final String naturalLanguageName;
+		private final String subject;
+		private final int occupants;
+		private final int participants;
+		private final int maxUsers;
+		private final boolean publicRoom;
+		private final boolean membersOnly;
+		private final boolean passwordProtected;
+		private final boolean locked;
+
+		RoomSummary(MUCRoom room)
+		{
+			name = room.getName();
+			jid = room.getRole().getRoleAddress();
+			naturalLanguageName = room.getNaturalLanguageName();
+			subject = room.getSubject();
+			occupants = room.getOccupantsCount();
+			participants = room.getParticipants().size();
+			maxUsers = room.getMaxUsers();
+			publicRoom = room.isPublicRoom();
+			membersOnly = room.isMembersOnly();
+			passwordProtected = room.isPasswordProtected();
+			locked = room.isLocked();
+		}
+
+		RoomSummary(RoomDirectory.Entry entry, String serviceDomain)
+		{
+			// Rooms that are not loaded have no occupants
+			name = entry.getName();
+			jid = new JID(entry.getName().toLowerCase(), serviceDomain, null);
+			naturalLanguageName = entry.getNaturalLanguageName();
+			subject = entry.getSubject();
+			occupants = 0;
+			participants = 0;
+			maxUsers = entry.getMaxUsers();
+			publicRoom = entry.isPublicRoom();
+			membersOnly = entry.isMembersOnly();
+			passwordProtected = entry.isPasswordProtected();
+			locked = entry.isLocked();
+		}
+
+		public String getUID()
+		{
+			// name is unique for each one particular MUC service.
+			return name;
+		}
 	}
 
 	/**
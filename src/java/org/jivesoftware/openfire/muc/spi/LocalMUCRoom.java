@@ -60,6 +60,7 @@ import org.jivesoftware.openfire.muc.MUCEventDispatcher;
 import org.jivesoftware.openfire.muc.MUCRole;
 import org.jivesoftware.openfire.muc.MUCRoom;
 import org.jivesoftware.openfire.muc.MUCRoomHistory;
+import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.openfire.muc.MultiUserChatService;
 import org.jivesoftware.openfire.muc.NotAcceptableException;
 import org.jivesoftware.openfire.muc.NotAllowedException;
@@ -78,6 +79,7 @@ import org.jivesoftware.openfire.muc.cluster.RoomUpdatedEvent;
 import org.jivesoftware.openfire.muc.cluster.UpdateOccupant;
 import org.jivesoftware.openfire.muc.cluster.UpdateOccupantRequest;
 import org.jivesoftware.openfire.muc.cluster.UpdatePresence;
+import org.jivesoftware.openfire.nio.PacketSerializer;
 import org.jivesoftware.openfire.user.UserAlreadyExistsException;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveConstants;
@@ -140,6 +142,17 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
      */
     ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * True once the service unloaded the room. The service loads a new copy of the room
+     * the next time it is used, so nobody may join this copy anymore. Guarded by the lock.
+     */
+    private boolean unloaded = false;
+
+    /**
+     * Keeps the order of the stanzas broadcast to the occupants of the room.
+     */
+    private final OccupantFanOut.RoomState fanOutState = new OccupantFanOut.RoomState();
+
     /**
      * The role of the room itself.
      */
@@ -389,6 +402,41 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         return name;
     }
 
+    /**
+     * Marks the room as unloaded if it has no occupants. Users that looked up the room
+     * before it was unloaded join the copy of the room that the service loads next.
+     *
+     * @return true if the room was marked as unloaded, false if it has occupants.
+     */
+    boolean markUnloaded() {
+        lock.writeLock().lock();
+        try {
+            if (!occupantsByFullJID.isEmpty()) {
+                return false;
+            }
+            unloaded = true;
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true if the service unloaded the room.
+     *
+     * @return true if the service unloaded the room.
+     */
+    boolean isUnloaded() {
+        lock.readLock().lock();
+        try {
+            return unloaded;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
     public JID getJID() {
         return new JID(getName(), getMUCService().getServiceDomain(), null);
     }
@@ -540,6 +588,16 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         }
         LocalMUCRole joinRole = null;
         lock.writeLock().lock();
+        if (unloaded) {
+            lock.writeLock().unlock();
+            // The room was unloaded after the user looked it up, so join the copy that is
+            // loaded now
+            MUCRoom room = mucService.getChatRoom(name);
+            if (room == null) {
+                throw new ServiceUnavailableException();
+            }
+            return room.joinRoom(nickname, password, historyRequest, user, presence);
+        }
         try {
             // If the room has a limit of max user then check if the limit has been reached
             if (!canJoinRoom(user)) {
@@ -1107,54 +1165,13 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
     }
 
     public void broadcast(BroadcastPresenceRequest presenceRequest) {
-        String jid = null;
-        Presence presence = presenceRequest.getPresence();
-        JID to = presence.getTo();
-        Element frag = presence.getChildElement("x", "http://jabber.org/protocol/muc#user");
-        // Don't include the occupant's JID if the room is semi-anon and the new occupant
-        // is not a moderator
-        if (!canAnyoneDiscoverJID()) {
-            jid = frag.element("item").attributeValue("jid");
-        }
+        List<MUCRole> recipients = new ArrayList<MUCRole>(occupantsByFullJID.size());
         for (MUCRole occupant : occupantsByFullJID.values()) {
-            if (!occupant.isLocal()) {
-                continue;
-            }
-            // Don't include the occupant's JID if the room is semi-anon and the new occupant
-            // is not a moderator
-            if (!canAnyoneDiscoverJID()) {
-                if (MUCRole.Role.moderator == occupant.getRole()) {
-                    frag.element("item").addAttribute("jid", jid);
-                }
-                else {
-                    frag.element("item").addAttribute("jid", null);
-                }
-            }
-            // Some status codes should only be included in the "self-presence", which is only sent to the user, but not to other occupants.
-            if (occupant.getPresence().getFrom().equals(to)) {
-                Presence selfPresence = presence.createCopy();
-                Element fragSelfPresence = selfPresence.getChildElement("x", "http://jabber.org/protocol/muc#user");
-                fragSelfPresence.addElement("status").addAttribute("code", "110");
-
-                // Only in the context of entering the room status code 100, 201 and 210 should be sent.
-                // http://xmpp.org/registrar/mucstatus.html
-                if (presenceRequest.isJoinPresence()) {
-                    boolean isRoomNew = isLocked() && creationDate.getTime() == lockedTime;
-                    if (canAnyoneDiscoverJID()) {
-                        // // XEP-0045: Example 26.
-                        // If the user is entering a room that is non-anonymous (i.e., which informs all occupants of each occupant's full JID as shown above), the service MUST warn the user by including a status code of "100" in the initial presence that the room sends to the new occupant
-                        fragSelfPresence.addElement("status").addAttribute("code", "100");
-                    }
-                    if (isRoomNew) {
-                        fragSelfPresence.addElement("status").addAttribute("code", "201");
-                    }
-                }
-
-                occupant.send(selfPresence);
-            } else {
-                occupant.send(presence);
+            if (occupant.isLocal()) {
+                recipients.add(occupant);
             }
         }
+        fanOut(recipients, new PresenceDelivery(presenceRequest.getPresence(), presenceRequest.isJoinPresence()));
     }
 
     private void broadcast(Message message) {
@@ -1173,13 +1190,15 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         // Add message to the room history
         roomHistory.addMessage(message);
         // Send message to occupants connected to this JVM
+        List<MUCRole> recipients = new ArrayList<MUCRole>(occupantsByFullJID.size());
         for (MUCRole occupant : occupantsByFullJID.values()) {
             // Do not send broadcast messages to deaf occupants or occupants hosted in
             // other cluster nodes
             if (occupant.isLocal() && !occupant.isVoiceOnly()) {
-                occupant.send(message);
+                recipients.add(occupant);
             }
         }
+        fanOut(recipients, new MessageDelivery(message, null));
         if (messageRequest.isOriginator() && isLogEnabled()) {
             MUCRole senderRole = null;
             JID senderAddress;
@@ -1203,6 +1222,158 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         mucService.messageBroadcastedTo(messageRequest.getOccupants());
     }
 
+    /**
+     * Delivers a stanza to the specified local occupants. Stanzas of rooms with many
+     * occupants are delivered by the fan-out engine of the MUC manager.
+     *
+     * @param recipients the local occupants that should receive the stanza.
+     * @param delivery the delivery of the stanza.
+     */
+    private void fanOut(List<MUCRole> recipients, OccupantFanOut.Delivery delivery) {
+        MultiUserChatManager manager = XMPPServer.getInstance().getMultiUserChatManager();
+        OccupantFanOut fanOut = manager == null ? null : manager.getOccupantFanOut();
+        if (fanOut == null) {
+            delivery.deliver(recipients);
+        }
+        else {
+            fanOut.broadcast(fanOutState, recipients, delivery);
+        }
+    }
+
+    /**
+     * Delivers a message to occupants of the room. Occupants only differ in the 'to' address
+     * of the message so the serialized message is reused for all of them. Copies delivered
+     * by other threads share the message serialized by the broadcasting thread.
+     */
+    private static class MessageDelivery implements OccupantFanOut.Delivery {
+
+        private final Message message;
+        private PacketSerializer.PreparedBroadcast prepared;
+        private boolean isPrepared;
+
+        MessageDelivery(Message message, PacketSerializer.PreparedBroadcast prepared) {
+            this.message = message;
+            this.prepared = prepared;
+        }
+
+        public OccupantFanOut.Delivery copy() {
+            if (!isPrepared) {
+                isPrepared = true;
+                try {
+                    prepared = PacketSerializer.prepareBroadcast(message);
+                }
+                catch (IOException e) {
+                    Log.debug("Error serializing broadcast message", e);
+                }
+            }
+            return new MessageDelivery(message.createCopy(), prepared);
+        }
+
+        public void deliver(List<MUCRole> occupants) {
+            PacketSerializer.startBroadcast(message, prepared);
+            try {
+                for (MUCRole occupant : occupants) {
+                    occupant.send(message);
+                }
+            }
+            finally {
+                PacketSerializer.endBroadcast();
+            }
+        }
+    }
+
+    /**
+     * Delivers a presence to occupants of the room. The JID of the user that sent the presence
+     * won't be included if the room is semi-anon and the target occupant is not a moderator.
+     * The occupant that sent the presence gets a copy with the "self-presence" status codes.
+     */
+    private class PresenceDelivery implements OccupantFanOut.Delivery {
+
+        private final Presence presence;
+        private final boolean isJoinPresence;
+        private final boolean anyoneCanDiscoverJID;
+        private final String jid;
+
+        PresenceDelivery(Presence presence, boolean isJoinPresence) {
+            this.presence = presence;
+            this.isJoinPresence = isJoinPresence;
+            this.anyoneCanDiscoverJID = canAnyoneDiscoverJID();
+            // Don't include the occupant's JID if the room is semi-anon and the new occupant
+            // is not a moderator
+            if (!anyoneCanDiscoverJID) {
+                Element frag = presence.getChildElement("x", "http://jabber.org/protocol/muc#user");
+                jid = frag.element("item").attributeValue("jid");
+            }
+            else {
+                jid = null;
+            }
+        }
+
+        private PresenceDelivery(PresenceDelivery delivery) {
+            this.presence = delivery.presence.createCopy();
+            this.isJoinPresence = delivery.isJoinPresence;
+            this.anyoneCanDiscoverJID = delivery.anyoneCanDiscoverJID;
+            this.jid = delivery.jid;
+        }
+
+        public OccupantFanOut.Delivery copy() {
+            return new PresenceDelivery(this);
+        }
+
+        public void deliver(List<MUCRole> occupants) {
+            JID to = presence.getTo();
+            Element frag = presence.getChildElement("x", "http://jabber.org/protocol/muc#user");
+            // The presence only differs in its 'to' address when the JID of the user is
+            // visible to every occupant
+            if (anyoneCanDiscoverJID) {
+                PacketSerializer.startBroadcast(presence);
+            }
+            try {
+                for (MUCRole occupant : occupants) {
+                    // Don't include the occupant's JID if the room is semi-anon and the new occupant
+                    // is not a moderator
+                    if (!anyoneCanDiscoverJID) {
+                        if (MUCRole.Role.moderator == occupant.getRole()) {
+                            frag.element("item").addAttribute("jid", jid);
+                        }
+                        else {
+                            frag.element("item").addAttribute("jid", null);
+                        }
+                    }
+                    // Some status codes should only be included in the "self-presence", which is only sent to the user, but not to other occupants.
+                    if (occupant.getPresence().getFrom().equals(to)) {
+                        Presence selfPresence = presence.createCopy();
+                        Element fragSelfPresence = selfPresence.getChildElement("x", "http://jabber.org/protocol/muc#user");
+                        fragSelfPresence.addElement("status").addAttribute("code", "110");
+
+                        // Only in the context of entering the room status code 100, 201 and 210 should be sent.
+                        // http://xmpp.org/registrar/mucstatus.html
+                        if (isJoinPresence) {
+                            boolean isRoomNew = isLocked() && creationDate.getTime() == lockedTime;
+                            if (anyoneCanDiscoverJID) {
+                                // // XEP-0045: Example 26.
+                                // If the user is entering a room that is non-anonymous (i.e., which informs all occupants of each occupant's full JID as shown above), the service MUST warn the user by including a status code of "100" in the initial presence that the room sends to the new occupant
+                                fragSelfPresence.addElement("status").addAttribute("code", "100");
+                            }
+                            if (isRoomNew) {
+                                fragSelfPresence.addElement("status").addAttribute("code", "201");
+                            }
+                        }
+
+                        occupant.send(selfPresence);
+                    } else {
+                        occupant.send(presence);
+                    }
+                }
+            }
+            finally {
+                if (anyoneCanDiscoverJID) {
+                    PacketSerializer.endBroadcast();
+                }
+            }
+        }
+    }
+
     /**
      * An empty role that represents the room itself in the chatroom. Chatrooms need to be able to
      * speak (server messages) and so must have their own role in the chatroom.
@@ -89,6 +89,16 @@ public class MUCPersistenceManager {
         "ofMucConversationLog, ofMucRoom WHERE ofMucConversationLog.roomID = ofMucRoom.roomID AND " +
         "ofMucRoom.serviceID=? AND ofMucConversationLog.logTime>? AND (ofMucConversationLog.nickname IS NOT NULL " +
         "OR ofMucConversationLog.subject IS NOT NULL) ORDER BY ofMucConversationLog.logTime";
+    private static final String LOAD_ROOM_DIRECTORY =
+        "SELECT roomID, name, naturalName, lockedDate, emptyDate, publicRoom, membersOnly, subject, " +
+        "maxUsers, roomPassword FROM ofMucRoom WHERE serviceID=? AND (emptyDate IS NULL or emptyDate > ?)";
+    private static final String LOAD_DIRECTORY_AFFILIATIONS =
+        "SELECT ofMucAffiliation.roomID,ofMucAffiliation.jid FROM ofMucAffiliation,ofMucRoom " +
+        "WHERE ofMucAffiliation.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? AND " +
+        "ofMucRoom.publicRoom=0 AND ofMucAffiliation.affiliation<>?";
+    private static final String LOAD_DIRECTORY_MEMBERS =
+        "SELECT ofMucMember.roomID,ofMucMember.jid FROM ofMucMember,ofMucRoom " +
+        "WHERE ofMucMember.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? AND ofMucRoom.publicRoom=0";
     private static final String UPDATE_ROOM =
         "UPDATE ofMucRoom SET modificationDate=?, naturalName=?, description=?, " +
         "canChangeSubject=?, maxUsers=?, publicRoom=?, moderated=?, membersOnly=?, " +
@@ -468,6 +478,82 @@ public class MUCPersistenceManager {
         return rooms.values();
     }
 
+    /**
+     * Loads the directory entries of the rooms that had occupants after a given date from the
+     * database. Only the information needed to answer disco#items requests is loaded; the
+     * rooms themselves are loaded with {@link #loadFromDB(LocalMUCRoom)} when first used.
+     * This query will be executed only when the service is starting up.
+     *
+     * @param chatserver the chat server whose rooms are loaded.
+     * @param emptyDate rooms that hadn't been used before this date won't be loaded.
+     * @return the directory entries of the persistent rooms.
+     */
+    static Collection<RoomDirectory.Entry> loadRoomDirectoryFromDB(MultiUserChatService chatserver, Date emptyDate) {
+        Long serviceID = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatServiceID(chatserver.getServiceName());
+
+        final Map<Long, RoomDirectory.Entry> entries = new HashMap<Long, RoomDirectory.Entry>();
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = DbConnectionManager.getConnection();
+            statement = connection.prepareStatement(LOAD_ROOM_DIRECTORY);
+            statement.setLong(1, serviceID);
+            statement.setString(2, StringUtils.dateToMillis(emptyDate));
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                // Rooms without an empty date had occupants when the service was stopped
+                Date roomEmptyDate = resultSet.getString(5) != null ?
+                        new Date(Long.parseLong(resultSet.getString(5).trim())) : new Date();
+                String password = resultSet.getString(10);
+                entries.put(resultSet.getLong(1), new RoomDirectory.Entry(resultSet.getString(2),
+                        resultSet.getString(3), resultSet.getString(8), resultSet.getInt(9),
+                        resultSet.getInt(6) == 1, resultSet.getInt(7) == 1,
+                        password != null && password.trim().length() > 0,
+                        Long.parseLong(resultSet.getString(4).trim()) > 0, roomEmptyDate));
+            }
+            DbConnectionManager.fastcloseStmt(resultSet, statement);
+
+            statement = connection.prepareStatement(LOAD_DIRECTORY_AFFILIATIONS);
+            statement.setLong(1, serviceID);
+            statement.setInt(2, MUCRole.Affiliation.outcast.getValue());
+            resultSet = statement.executeQuery();
+            addDirectoryAffiliates(entries, resultSet);
+            DbConnectionManager.fastcloseStmt(resultSet, statement);
+
+            statement = connection.prepareStatement(LOAD_DIRECTORY_MEMBERS);
+            statement.setLong(1, serviceID);
+            resultSet = statement.executeQuery();
+            addDirectoryAffiliates(entries, resultSet);
+        }
+        catch (SQLException sqle) {
+            Log.error("A database error prevented the MUC room directory to be loaded from the database.", sqle);
+            return Collections.emptyList();
+        }
+        finally {
+            DbConnectionManager.closeConnection(resultSet, statement, connection);
+        }
+        return entries.values();
+    }
+
+    private static void addDirectoryAffiliates(Map<Long, RoomDirectory.Entry> entries, ResultSet resultSet)
+            throws SQLException
+    {
+        while (resultSet.next()) {
+            RoomDirectory.Entry entry = entries.get(resultSet.getLong(1));
+            // Skip to the next position if the room does not exist
+            if (entry == null) {
+                continue;
+            }
+            try {
+                entry.addAffiliate(new JID(resultSet.getString(2)));
+            }
+            catch (IllegalArgumentException e) {
+                Log.warn("Invalid JID of an affiliate of MUC room " + entry.getName(), e);
+            }
+        }
+    }
+
     private static Map<Long, LocalMUCRoom> loadRooms(Long serviceID, Date emptyDate, MultiUserChatService chatserver, PacketRouter packetRouter) throws SQLException {
         final Map<Long, LocalMUCRoom> rooms = new HashMap<Long, LocalMUCRoom>();
 
@@ -1049,6 +1135,52 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Saves the conversation log entries to the database in a single transaction, using a
+     * JDBC batch when supported by the database. If the entries can not be saved as a
+     * whole then nothing is saved and each entry should be saved separately with
+     * {@link #saveConversationLogEntry(ConversationLogEntry)}.
+     *
+     * @param entries the ConversationLogEntries to save to the database.
+     * @return true if all the ConversationLogEntries were saved successfully to the database.
+     */
+    public static boolean saveConversationLogBatch(List<ConversationLogEntry> entries) {
+        boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = true;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(ADD_CONVERSATION_LOG);
+            for (ConversationLogEntry entry : entries) {
+                pstmt.setLong(1, entry.getRoomID());
+                pstmt.setString(2, entry.getSender().toString());
+                pstmt.setString(3, entry.getNickname());
+                pstmt.setString(4, StringUtils.dateToMillis(entry.getDate()));
+                pstmt.setString(5, entry.getSubject());
+                pstmt.setString(6, entry.getBody());
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            abortTransaction = false;
+            return true;
+        }
+        catch (SQLException sqle) {
+            Log.warn("Error saving batch of " + entries.size() + " conversation log entries", sqle);
+            return false;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+    }
+
     /**
      * Returns an integer based on the binary representation of the roles to broadcast.
      * 
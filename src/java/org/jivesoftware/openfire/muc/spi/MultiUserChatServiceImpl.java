@@ -27,10 +27,8 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -60,6 +58,8 @@ import org.jivesoftware.openfire.muc.cluster.GetNumberConnectedUsers;
 import org.jivesoftware.openfire.muc.cluster.OccupantAddedEvent;
 import org.jivesoftware.openfire.muc.cluster.RoomAvailableEvent;
 import org.jivesoftware.openfire.muc.cluster.RoomRemovedEvent;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.util.JiveProperties;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.TaskEngine;
@@ -93,6 +93,12 @@ import org.xmpp.resultsetmanagement.ResultSet;
  * have been forgotten or abandoned this class includes a clean up process. The clean up process
  * will remove from memory rooms that haven't had occupants for a while. Moreover, forgotten or
  * abandoned rooms won't be loaded into memory when the Multi-User Chat service starts up.</p>
+ * <p>
+ * When the <tt>load.lazy</tt> property of the service is true, only a {@link RoomDirectory} of
+ * the persistent rooms is loaded when the service starts up. Rooms are loaded from the database
+ * the first time they are used, and persistent rooms that have been empty for
+ * <tt>unload.idle_minutes</tt> are unloaded again while more than <tt>unload.max_rooms</tt>
+ * rooms are loaded.</p>
  *
  * @author Gaston Dombiak
  */
@@ -114,17 +120,34 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private UserTimeoutTask userTimeoutTask;
     /**
-     * The time to elapse between logging the room conversations.
+     * The maximum time that a message to log waits for a batch to fill before the batch
+     * is written to the database.
      */
     private int log_timeout = 300000;
     /**
-     * The number of messages to log on each run of the logging process.
+     * The minimum number of messages written to the database in a batch.
      */
     private int log_batch_size = 50;
     /**
-     * Task that flushes room conversation logs to the database.
+     * The maximum number of messages written to the database in a batch.
+     */
+    private int log_batch_size_max = 1000;
+    /**
+     * The maximum number of messages waiting to be logged.
+     */
+    private int log_queue_size = 100000;
+    /**
+     * What to do with messages to log when the queue is full.
+     */
+    private ConversationLogWriter.OverflowPolicy log_overflow = ConversationLogWriter.OverflowPolicy.drop_newest;
+    /**
+     * The number of threads writing the room conversations to the database.
+     */
+    private int log_workers = 2;
+    /**
+     * Writes the room conversations to the database.
      */
-    private LogConversationTask logConversationTask;
+    private ConversationLogWriter logWriter;
     /**
      * the chat service's hostname (subdomain)
      */
@@ -202,11 +225,6 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private GroupAwareList<JID> sysadmins = new ConcurrentGroupList<JID>();
 
-    /**
-     * Queue that holds the messages to log for the rooms that need to log their conversations.
-     */
-    private Queue<ConversationLogEntry> logQueue = new LinkedBlockingQueue<ConversationLogEntry>(100000);
-
     /**
      * Max number of hours that a persistent room may be empty before the service removes the
      * room from memory. Unloaded rooms will exist in the database and may be loaded by a user
@@ -223,6 +241,35 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private static final long CLEANUP_FREQUENCY = 60 * 60 * 1000;
 
+    /**
+     * Flag that indicates if only the directory of the persistent rooms is loaded when the
+     * service starts up, instead of the rooms themselves.
+     */
+    private boolean lazyLoading = false;
+    /**
+     * Persistent rooms that are not loaded in memory, when loading rooms lazily.
+     */
+    private final RoomDirectory roomDirectory = new RoomDirectory();
+    /**
+     * Max number of loaded rooms before the service unloads empty persistent rooms, when
+     * loading rooms lazily.
+     */
+    private int maxLoadedRooms = 10000;
+    /**
+     * Number of minutes a persistent room must be empty before it may be unloaded, when
+     * loading rooms lazily.
+     */
+    private int unloadIdleMinutes = 30;
+    /**
+     * Task that unloads empty persistent rooms while too many rooms are loaded.
+     */
+    private UnloadTask unloadTask;
+    /**
+     * The time to elapse between each check of the number of loaded rooms. Default frequency
+     * is 1 minute.
+     */
+    private static final long UNLOAD_FREQUENCY = 60 * 1000;
+
     /**
      * Total number of received messages in all rooms since the last reset. The counter
      * is reset each time the Statistic makes a sampling.
@@ -445,13 +492,18 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     /**
-     * Logs the conversation of the rooms that have this feature enabled.
+     * Removes from memory rooms that have been without activity for a period of time. A room is
+     * considered without activity when no occupants are present in the room for a while.
      */
-    private class LogConversationTask extends TimerTask {
+    private class CleanupTask extends TimerTask {
         @Override
 		public void run() {
+            if (ClusterManager.isClusteringStarted() && !ClusterManager.isSeniorClusterMember()) {
+                // Do nothing if we are in a cluster and this JVM is not the senior cluster member
+                return;
+            }
             try {
-                logConversation();
+                cleanupRooms();
             }
             catch (Throwable e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
@@ -459,47 +511,28 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
     }
 
-    private void logConversation() {
-        ConversationLogEntry entry;
-        boolean success;
-        for (int index = 0; index <= log_batch_size && !logQueue.isEmpty(); index++) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                success = MUCPersistenceManager.saveConversationLogEntry(entry);
-                if (!success) {
-                    logQueue.add(entry);
-                }
-            }
-        }
-    }
-
-    /**
-     * Logs all the remaining conversation log entries to the database. Use this method to force
-     * saving all the conversation log entries before the service becomes unavailable.
-     */
-    private void logAllConversation() {
-        ConversationLogEntry entry;
-        while (!logQueue.isEmpty()) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                MUCPersistenceManager.saveConversationLogEntry(entry);
+    private void cleanupRooms() {
+        for (MUCRoom room : rooms.values()) {
+            if (room.getEmptyDate() != null && room.getEmptyDate().before(getCleanupDate())) {
+                removeChatRoom(room.getName());
             }
         }
+        roomDirectory.removeEmptyBefore(getCleanupDate());
     }
 
     /**
-     * Removes from memory rooms that have been without activity for a period of time. A room is
-     * considered without activity when no occupants are present in the room for a while.
+     * Unloads empty persistent rooms while too many rooms are loaded. Unloaded rooms are kept
+     * in the room directory and loaded again from the database when used.
      */
-    private class CleanupTask extends TimerTask {
+    private class UnloadTask extends TimerTask {
         @Override
-		public void run() {
-            if (ClusterManager.isClusteringStarted() && !ClusterManager.isSeniorClusterMember()) {
-                // Do nothing if we are in a cluster and this JVM is not the senior cluster member
+        public void run() {
+            if (ClusterManager.isClusteringStarted()) {
+                // Other cluster nodes hold copies of the rooms loaded by this JVM
                 return;
             }
             try {
-                cleanupRooms();
+                unloadRooms(maxLoadedRooms, unloadIdleMinutes * 60000L);
             }
             catch (Throwable e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
@@ -507,12 +540,32 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
     }
 
-    private void cleanupRooms() {
-        for (MUCRoom room : rooms.values()) {
-            if (room.getEmptyDate() != null && room.getEmptyDate().before(getCleanupDate())) {
-                removeChatRoom(room.getName());
+    /**
+     * Unloads the persistent rooms that have been empty for at least the given idle time while
+     * more than the given number of rooms are loaded.
+     *
+     * @param maxRooms the max number of rooms to keep loaded.
+     * @param idleTime the time in milliseconds a room must have been empty to be unloaded.
+     */
+    void unloadRooms(int maxRooms, long idleTime) {
+        List<MUCRoom> idleRooms = RoomDirectory.selectRoomsToUnload(rooms.values(), maxRooms, idleTime,
+                System.currentTimeMillis());
+        for (MUCRoom room : idleRooms) {
+            String roomName = room.getName();
+            synchronized (roomName.intern()) {
+                // Skip the room if it was removed or has occupants again. Users that
+                // looked up the room before join the room loaded next.
+                if (rooms.get(roomName) != room || !((LocalMUCRoom) room).markUnloaded()) {
+                    continue;
+                }
+                roomDirectory.put(RoomDirectory.Entry.fromRoom(room));
+                rooms.remove(roomName);
+                totalChatTime += room.getChatLength();
             }
         }
+        if (!idleRooms.isEmpty()) {
+            Log.debug("Unloaded " + idleRooms.size() + " empty rooms of service " + chatServiceName);
+        }
     }
 
     public MUCRoom getChatRoom(String roomName, JID userjid) throws NotAllowedException {
@@ -528,7 +581,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                     // Try to load the room's configuration from the database (if the room is
                     // persistent but was added to the DB after the server was started up or the
                     // room may be an old room that was not present in memory)
-                    MUCPersistenceManager.loadFromDB(room);
+                    loadRoom(room);
                     loaded = true;
                 }
                 catch (IllegalArgumentException e) {
@@ -565,6 +618,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                     }
                 }
                 rooms.put(roomName, room);
+                roomDirectory.remove(roomName);
             }
         }
         if (created) {
@@ -597,13 +651,15 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                         // Try to load the room's configuration from the database (if the room is
                         // persistent but was added to the DB after the server was started up or the
                         // room may be an old room that was not present in memory)
-                        MUCPersistenceManager.loadFromDB(room);
+                        loadRoom(room);
                         loaded = true;
                         rooms.put(roomName, room);
+                        roomDirectory.remove(roomName);
                     }
                     catch (IllegalArgumentException e) {
                         // The room does not exist so do nothing
                         room = null;
+                        roomDirectory.remove(roomName);
                     }
                 }
             }
@@ -615,6 +671,16 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         return room;
     }
 
+    /**
+     * Loads the configuration of a persistent room from the database.
+     *
+     * @param room the room to load.
+     * @throws IllegalArgumentException if the room was not found in the database.
+     */
+    void loadRoom(LocalMUCRoom room) {
+        MUCPersistenceManager.loadFromDB(room);
+    }
+
     public void refreshChatRoom(String roomName) {
         rooms.remove(roomName);
         getChatRoom(roomName);
@@ -625,9 +691,40 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     public List<MUCRoom> getChatRooms() {
+        // Load the persistent rooms that were unloaded
+        for (RoomDirectory.Entry entry : roomDirectory.getEntries()) {
+            getChatRoom(entry.getName().toLowerCase());
+        }
         return new ArrayList<MUCRoom>(rooms.values());
     }
 
+    public List<MUCRoom> getLoadedChatRooms() {
+        return new ArrayList<MUCRoom>(rooms.values());
+    }
+
+    public List<String> getChatRoomNames() {
+        List<String> names = new ArrayList<String>(rooms.keySet());
+        for (RoomDirectory.Entry entry : getUnloadedChatRooms()) {
+            names.add(entry.getName().toLowerCase());
+        }
+        return names;
+    }
+
+    /**
+     * Returns the directory entries of the persistent rooms that are not loaded.
+     *
+     * @return the directory entries of the rooms that are not loaded.
+     */
+    List<RoomDirectory.Entry> getUnloadedChatRooms() {
+        List<RoomDirectory.Entry> entries = new ArrayList<RoomDirectory.Entry>();
+        for (RoomDirectory.Entry entry : roomDirectory.getEntries()) {
+            if (!rooms.containsKey(entry.getName().toLowerCase())) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
     public boolean hasChatRoom(String roomName) {
         return getChatRoom(roomName) != null;
     }
@@ -654,10 +751,12 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     public void chatRoomAdded(LocalMUCRoom room) {
         rooms.put(room.getName(), room);
+        roomDirectory.remove(room.getName());
     }
 
     private void removeChatRoom(String roomName, boolean notify) {
         MUCRoom room = rooms.remove(roomName);
+        roomDirectory.remove(roomName);
         if (room != null) {
             totalChatTime += room.getChatLength();
             if (notify) {
@@ -787,14 +886,10 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         if (this.log_timeout == timeout) {
             return;
         }
-        // Cancel the existing task because the timeout has changed
-        if (logConversationTask != null) {
-            logConversationTask.cancel();
-        }
         this.log_timeout = timeout;
-        // Create a new task and schedule it with the new timeout
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        if (logWriter != null) {
+            logWriter.setLingerTime(timeout);
+        }
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.timeout", Integer.toString(timeout));
     }
@@ -808,6 +903,9 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
             return;
         }
         this.log_batch_size = size;
+        if (logWriter != null) {
+            logWriter.setMinBatchSize(size);
+        }
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.batchsize", Integer.toString(size));
     }
@@ -1072,6 +1170,46 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                 Log.error("Wrong number format of property tasks.log.batchsize for service "+chatServiceName, e);
             }
         }
+        value = MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.batchsize.max");
+        log_batch_size_max = 1000;
+        if (value != null) {
+            try {
+                log_batch_size_max = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                Log.error("Wrong number format of property tasks.log.batchsize.max for service "+chatServiceName, e);
+            }
+        }
+        value = MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.queuesize");
+        log_queue_size = 100000;
+        if (value != null) {
+            try {
+                log_queue_size = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                Log.error("Wrong number format of property tasks.log.queuesize for service "+chatServiceName, e);
+            }
+        }
+        value = MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.workers");
+        log_workers = 2;
+        if (value != null) {
+            try {
+                log_workers = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                Log.error("Wrong number format of property tasks.log.workers for service "+chatServiceName, e);
+            }
+        }
+        value = MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.overflow");
+        log_overflow = ConversationLogWriter.OverflowPolicy.drop_newest;
+        if (value != null) {
+            try {
+                log_overflow = ConversationLogWriter.OverflowPolicy.valueOf(value.trim().toLowerCase());
+            }
+            catch (IllegalArgumentException e) {
+                Log.error("Wrong value of property tasks.log.overflow for service "+chatServiceName, e);
+            }
+        }
         value = MUCPersistenceManager.getProperty(chatServiceName, "unload.empty_days");
         emptyLimit = 30 * 24;
         if (value != null) {
@@ -1082,6 +1220,27 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                 Log.error("Wrong number format of property unload.empty_days for service "+chatServiceName, e);
             }
         }
+        lazyLoading = MUCPersistenceManager.getBooleanProperty(chatServiceName, "load.lazy", false);
+        value = MUCPersistenceManager.getProperty(chatServiceName, "unload.max_rooms");
+        maxLoadedRooms = 10000;
+        if (value != null) {
+            try {
+                maxLoadedRooms = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                Log.error("Wrong number format of property unload.max_rooms for service "+chatServiceName, e);
+            }
+        }
+        value = MUCPersistenceManager.getProperty(chatServiceName, "unload.idle_minutes");
+        unloadIdleMinutes = 30;
+        if (value != null) {
+            try {
+                unloadIdleMinutes = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                Log.error("Wrong number format of property unload.idle_minutes for service "+chatServiceName, e);
+            }
+        }
     }
 
     public void start() {
@@ -1089,10 +1248,11 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         // values)
         userTimeoutTask = new UserTimeoutTask();
         TaskEngine.getInstance().schedule(userTimeoutTask, user_timeout, user_timeout);
-        // Log the room conversations every 5 minutes after a 5 minutes server startup delay
-        // (default values)
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        // Log the room conversations in the background
+        logWriter = new ConversationLogWriter("MUC-log-" + chatServiceName, ConversationLogWriter.DATABASE,
+                log_queue_size, log_overflow, log_workers, log_batch_size, log_batch_size_max, log_timeout);
+        logWriter.start();
+        addLogStatistics();
         // Remove unused rooms from memory
         cleanupTask = new CleanupTask();
         TaskEngine.getInstance().schedule(cleanupTask, CLEANUP_FREQUENCY, CLEANUP_FREQUENCY);
@@ -1106,6 +1266,18 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         params.clear();
         params.add(getServiceDomain());
         Log.info(LocaleUtils.getLocalizedString("startup.starting.muc", params));
+        if (lazyLoading) {
+            // Load the directory of the persistent rooms. Rooms are loaded when first used.
+            for (RoomDirectory.Entry entry : MUCPersistenceManager.loadRoomDirectoryFromDB(this, this.getCleanupDate())) {
+                if (!rooms.containsKey(entry.getName().toLowerCase())) {
+                    roomDirectory.put(entry);
+                }
+            }
+            // Unload empty rooms while too many rooms are loaded
+            unloadTask = new UnloadTask();
+            TaskEngine.getInstance().schedule(unloadTask, UNLOAD_FREQUENCY, UNLOAD_FREQUENCY);
+            return;
+        }
         // Load all the persistent rooms to memory
         for (LocalMUCRoom room : MUCPersistenceManager.loadRoomsFromDB(this, this.getCleanupDate(), router)) {
             rooms.put(room.getName().toLowerCase(), room);
@@ -1118,8 +1290,111 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         XMPPServer.getInstance().getServerItemsProviders().remove(this);
         // Remove the route to this service
         routingTable.removeComponentRoute(getAddress());
-        logAllConversation();
+        // Write the remaining conversation log entries before the service becomes unavailable
+        if (logWriter != null) {
+            StatisticsManager.getInstance().removeStatistic("muc_log_queue_" + chatServiceName);
+            StatisticsManager.getInstance().removeStatistic("muc_log_flush_" + chatServiceName);
+            StatisticsManager.getInstance().removeStatistic("muc_log_dropped_" + chatServiceName);
+            logWriter.stop();
+            logWriter = null;
+        }
+        if (unloadTask != null) {
+            unloadTask.cancel();
+            unloadTask = null;
+        }
+        roomDirectory.clear();
+    }
+
+    /**
+     * Registers the statistics of the conversation log writer of this service.
+     */
+    private void addLogStatistics() {
+        final ConversationLogWriter writer = logWriter;
+        final List<String> params = Collections.singletonList(chatServiceName);
+        StatisticsManager.getInstance().addStatistic("muc_log_queue_" + chatServiceName, new Statistic() {
+            public String getName() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.name", params);
+            }
 
+            public Type getStatType() {
+                return Type.count;
+            }
+
+            public String getDescription() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.description", params);
+            }
+
+            public String getUnits() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.label");
+            }
+
+            public double sample() {
+                return writer.getQueueSize();
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic("muc_log_flush_" + chatServiceName, new Statistic() {
+            public String getName() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_flush.name", params);
+            }
+
+            public Type getStatType() {
+                return Type.count;
+            }
+
+            public String getDescription() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_flush.description", params);
+            }
+
+            public String getUnits() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_flush.label");
+            }
+
+            public double sample() {
+                // Average time it took to write a batch since the last sample
+                long flushes = writer.resetFlushCount();
+                long nanos = writer.resetFlushTime();
+                return flushes == 0 ? 0 : nanos / (flushes * 1000000d);
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic("muc_log_dropped_" + chatServiceName, new Statistic() {
+            private long lastDropped = 0;
+
+            public String getName() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_dropped.name", params);
+            }
+
+            public Type getStatType() {
+                return Type.rate;
+            }
+
+            public String getDescription() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_dropped.description", params);
+            }
+
+            public String getUnits() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_dropped.label");
+            }
+
+            public synchronized double sample() {
+                // Entries dropped since the last sample
+                long dropped = writer.getDroppedCount();
+                long delta = dropped - lastDropped;
+                lastDropped = dropped;
+                return delta;
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
     }
 
     public void enableService(boolean enabled, boolean persistent) {
@@ -1156,7 +1431,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      * @return the number of existing rooms in the server.
      */
     public int getNumberChatRooms() {
-        return rooms.size();
+        return rooms.size() + roomDirectory.size();
     }
 
     /**
@@ -1232,7 +1507,10 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     public void logConversation(MUCRoom room, Message message, JID sender) {
         // Only log messages that have a subject or body. Otherwise ignore it.
         if (message.getSubject() != null || message.getBody() != null) {
-            logQueue.add(new ConversationLogEntry(new Date(), room, message, sender));
+            ConversationLogWriter writer = logWriter;
+            if (writer == null || !writer.add(new ConversationLogEntry(new Date(), room, message, sender))) {
+                Log.debug("Dropped conversation log entry of room " + room.getJID());
+            }
         }
     }
 
@@ -1509,6 +1787,15 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
 						room.getNaturalLanguageName(), null, null));
 				}
 			}
+			// Answer the rooms that are not loaded
+			for (RoomDirectory.Entry entry : getUnloadedChatRooms())
+			{
+				if (canDiscoverRoom(entry, senderJID))
+				{
+					answer.add(new DiscoItem(new JID(entry.getName().toLowerCase(), getServiceDomain(), null),
+						entry.getNaturalLanguageName(), null, null));
+				}
+			}
 		}
         else if (name != null && node == null) {
             // Answer the room occupants as items if that info is publicly available
@@ -1542,6 +1829,25 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         return true;
     }
 
+    private boolean canDiscoverRoom(RoomDirectory.Entry entry, JID senderJID) {
+        // Check if locked rooms may be discovered
+        if (!allowToDiscoverLockedRooms && entry.isLocked()) {
+            return false;
+        }
+        if (!entry.isPublicRoom()) {
+            if (!allowToDiscoverMembersOnlyRooms && entry.isMembersOnly()) {
+                return false;
+            }
+            if (entry.hasGroupAffiliates() && !entry.isAffiliate(senderJID.toBareJID())) {
+                // Only the loaded room knows the members of its groups
+                MUCRoom room = getChatRoom(entry.getName().toLowerCase());
+                return room != null && canDiscoverRoom(room, senderJID);
+            }
+            return entry.isAffiliate(senderJID.toBareJID());
+        }
+        return true;
+    }
+
     /**
      * Converts an array to a comma-delimited String.
      *
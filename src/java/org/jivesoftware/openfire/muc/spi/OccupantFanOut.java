@@ -0,0 +1,421 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.muc.MUCRole;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the stanzas broadcast by rooms to their local occupants. Occupants of rooms
+ * with many local occupants are partitioned among a fixed number of delivery threads
+ * (lanes) so that the thread broadcasting the stanza only needs to hand over the work.
+ * Rooms with fewer occupants than <tt>xmpp.muc.fanout.threshold</tt> are served by the
+ * broadcasting thread, as before.<p>
+ *
+ * An occupant is always served by the same lane and lanes process their work in order,
+ * so occupants receive the stanzas of a room in the order in which they were broadcast.
+ * A room only goes back to delivering from the broadcasting thread once the lanes have
+ * no pending work for the room.<p>
+ *
+ * The stanzas of a room served by a lane are kept in a backlog of the room, and the lane
+ * queue only holds one task per room that delivers the backlog. A room with pending work
+ * in a lane adds the stanza to its backlog, so no stanza is dropped or delivered out of
+ * order. Lanes deliver up to {@link #BACKLOG_BATCH} stanzas of a room before serving the
+ * other rooms of their queue.<p>
+ *
+ * Lane queues are bounded. Broadcasting threads never wait for room in a lane, since
+ * they hold the room's lock and occupants served by a lane may need it. When the queue
+ * of a lane is full the room has no pending work in the lane, so the broadcasting thread
+ * delivers to the occupants of that lane itself.<p>
+ *
+ * The time it takes to deliver a stanza to all the local occupants of a room is tracked
+ * in statistics grouped by the number of occupants.
+ */
+public class OccupantFanOut {
+
+    private static final Logger Log = LoggerFactory.getLogger(OccupantFanOut.class);
+
+    /**
+     * Upper bounds (exclusive) of the number of recipients of each latency statistic.
+     */
+    private static final int[] SIZE_BOUNDS = {10, 100, 1000, Integer.MAX_VALUE};
+    private static final String[] SIZE_NAMES = {"tiny", "small", "medium", "large"};
+
+    /**
+     * Max number of stanzas of a room that a lane delivers before serving other rooms.
+     */
+    static final int BACKLOG_BATCH = 32;
+
+    private final LatencyStatistic[] latencies = new LatencyStatistic[SIZE_BOUNDS.length];
+
+    private final int threshold;
+    private final Lane[] lanes;
+    private volatile boolean running = false;
+
+    /**
+     * Creates a new fan-out engine configured with the <tt>xmpp.muc.fanout.*</tt> properties.
+     */
+    public OccupantFanOut() {
+        this(JiveGlobals.getIntProperty("xmpp.muc.fanout.threads", Runtime.getRuntime().availableProcessors()),
+                JiveGlobals.getIntProperty("xmpp.muc.fanout.queue", 1000),
+                JiveGlobals.getIntProperty("xmpp.muc.fanout.threshold", 100));
+    }
+
+    OccupantFanOut(int threads, int queueSize, int threshold) {
+        this.threshold = threshold;
+        lanes = new Lane[Math.max(1, threads)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane("MUC-fanout-" + (i + 1), Math.max(1, queueSize));
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyStatistic("muc.fanout.latency." + SIZE_NAMES[i]);
+        }
+    }
+
+    /**
+     * Starts the delivery threads and registers the latency statistics.
+     */
+    public void start() {
+        running = true;
+        for (Lane lane : lanes) {
+            lane.start();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            StatisticsManager.getInstance().addStatistic("muc_fanout_latency_" + SIZE_NAMES[i], latencies[i]);
+        }
+    }
+
+    /**
+     * Stops the delivery threads once they delivered the queued stanzas and removes
+     * the latency statistics.
+     */
+    public void stop() {
+        running = false;
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+        for (String name : SIZE_NAMES) {
+            StatisticsManager.getInstance().removeStatistic("muc_fanout_latency_" + name);
+        }
+    }
+
+    /**
+     * Delivers a stanza of a room to the specified local occupants.
+     *
+     * @param state the fan-out state of the room.
+     * @param recipients the local occupants that should receive the stanza.
+     * @param delivery the delivery of the stanza.
+     */
+    public void broadcast(RoomState state, List<MUCRole> recipients, Delivery delivery) {
+        final long start = System.nanoTime();
+        final int size = recipients.size();
+        synchronized (state) {
+            // Lanes may also broadcast (e.g. when an occupant is a component that answers
+            // synchronously). Those broadcasts are delivered right away so that lanes never
+            // wait for room in their own queue
+            boolean inline = !running || Thread.currentThread() instanceof Lane ||
+                    (size < threshold && state.pending.get() == 0);
+            if (inline) {
+                // Delivered while holding the state so that no stanza of the room can be
+                // handed over to the lanes between the check and the delivery
+                try {
+                    delivery.deliver(recipients);
+                }
+                finally {
+                    record(size, start);
+                }
+                return;
+            }
+            if (state.backlogs == null || state.backlogs.length != lanes.length) {
+                state.backlogs = new Backlog[lanes.length];
+                for (int i = 0; i < lanes.length; i++) {
+                    state.backlogs[i] = new Backlog(lanes[i]);
+                }
+            }
+            List<List<MUCRole>> partitions = partition(recipients);
+            final AtomicInteger remaining = new AtomicInteger(0);
+            for (List<MUCRole> partition : partitions) {
+                if (partition != null) {
+                    remaining.incrementAndGet();
+                }
+            }
+            for (int i = 0; i < lanes.length; i++) {
+                final List<MUCRole> partition = partitions.get(i);
+                if (partition == null) {
+                    continue;
+                }
+                final AtomicInteger roomPending = state.pending;
+                final Delivery copy = delivery.copy();
+                roomPending.incrementAndGet();
+                Backlog backlog = state.backlogs[i];
+                boolean scheduled = backlog.add(new Runnable() {
+                    public void run() {
+                        try {
+                            copy.deliver(partition);
+                        }
+                        finally {
+                            roomPending.decrementAndGet();
+                            if (remaining.decrementAndGet() == 0) {
+                                record(size, start);
+                            }
+                        }
+                    }
+                });
+                if (!scheduled && !lanes[i].submit(backlog)) {
+                    // The lane is stopping or busy with other rooms and has no pending work
+                    // for the room, so deliver from this thread
+                    backlog.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the recipients served by each lane or null for lanes that serve none of them.
+     */
+    List<List<MUCRole>> partition(List<MUCRole> recipients) {
+        List<List<MUCRole>> partitions = new ArrayList<List<MUCRole>>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            partitions.add(null);
+        }
+        int expectedSize = recipients.size() / lanes.length + 1;
+        for (MUCRole recipient : recipients) {
+            int index = (recipient.getUserAddress().hashCode() & 0x7fffffff) % lanes.length;
+            List<MUCRole> partition = partitions.get(index);
+            if (partition == null) {
+                partition = new ArrayList<MUCRole>(expectedSize);
+                partitions.set(index, partition);
+            }
+            partition.add(recipient);
+        }
+        return partitions;
+    }
+
+    private void record(int size, long start) {
+        long elapsed = System.nanoTime() - start;
+        for (int i = 0; i < SIZE_BOUNDS.length; i++) {
+            if (size < SIZE_BOUNDS[i]) {
+                latencies[i].add(elapsed);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delivery of a broadcast stanza to a group of occupants.
+     */
+    public interface Delivery {
+
+        /**
+         * Returns a delivery of a copy of the stanza that can be used by a lane while
+         * other lanes deliver the stanza to other occupants. This method is invoked by
+         * the broadcasting thread.
+         *
+         * @return a delivery of a copy of the stanza.
+         */
+        Delivery copy();
+
+        /**
+         * Delivers the stanza to the specified occupants.
+         *
+         * @param occupants the occupants that should receive the stanza.
+         */
+        void deliver(List<MUCRole> occupants);
+    }
+
+    /**
+     * Fan-out state kept by each room. Rooms synchronize on their state while handing over
+     * stanzas to the lanes so that all lanes get the stanzas of a room in the same order.
+     */
+    public static class RoomState {
+
+        /**
+         * Number of partitions of the room that are queued or being delivered by lanes.
+         */
+        private final AtomicInteger pending = new AtomicInteger(0);
+
+        /**
+         * Stanzas of the room to deliver by each lane. Created by the broadcasting thread
+         * while holding the state.
+         */
+        private Backlog[] backlogs;
+    }
+
+    /**
+     * Partitions of a room to deliver by a lane, in the order in which they were broadcast.
+     * While the backlog has partitions it is queued in the lane, or being delivered by it.
+     */
+    private static class Backlog implements Runnable {
+
+        private final Lane lane;
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean scheduled = false;
+
+        Backlog(Lane lane) {
+            this.lane = lane;
+        }
+
+        /**
+         * Adds the delivery of a partition to the backlog.
+         *
+         * @param task the delivery of a partition.
+         * @return true if the backlog is already queued in the lane, false if it has to be
+         *         queued or run by the caller.
+         */
+        synchronized boolean add(Runnable task) {
+            tasks.add(task);
+            if (scheduled) {
+                return true;
+            }
+            scheduled = true;
+            return false;
+        }
+
+        public void run() {
+            int delivered = 0;
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                }
+                catch (Throwable e) {
+                    Log.error("Error delivering broadcast stanza", e);
+                }
+                if (++delivered == BACKLOG_BATCH && Thread.currentThread() == lane) {
+                    synchronized (this) {
+                        if (tasks.isEmpty()) {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    // Let the other rooms of the lane be served, unless the queue is full
+                    if (lane.submit(this)) {
+                        return;
+                    }
+                    delivered = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread that delivers the backlogs of the rooms queued in it, one room at a time.
+     */
+    private static class Lane extends Thread {
+
+        private final BlockingQueue<Runnable> queue;
+        private volatile boolean stopped = false;
+
+        Lane(String name, int queueSize) {
+            super(name);
+            setDaemon(true);
+            queue = new LinkedBlockingQueue<Runnable>(queueSize);
+        }
+
+        boolean submit(Runnable task) {
+            // Never waits for room in the queue
+            return !stopped && queue.offer(task);
+        }
+
+        void shutdown() {
+            stopped = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                if (stopped) {
+                    // Deliver what was queued before stopping
+                    task = queue.poll();
+                    if (task == null) {
+                        return;
+                    }
+                }
+                else {
+                    try {
+                        task = queue.take();
+                    }
+                    catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+                try {
+                    task.run();
+                }
+                catch (Throwable e) {
+                    Log.error("Error delivering broadcast stanza", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Average time in milliseconds that it took to deliver a stanza to all the recipients
+     * since the last sample.
+     */
+    private static class LatencyStatistic extends i18nStatistic {
+
+        private final AtomicLong totalNanos = new AtomicLong(0);
+        private final AtomicLong count = new AtomicLong(0);
+
+        LatencyStatistic(String resourceKey) {
+            super(resourceKey, Statistic.Type.count);
+        }
+
+        void add(long nanos) {
+            totalNanos.addAndGet(nanos);
+            count.incrementAndGet();
+        }
+
+        public double sample() {
+            long samples = count.getAndSet(0);
+            long nanos = totalNanos.getAndSet(0);
+            return samples == 0 ? 0 : nanos / (samples * 1000000d);
+        }
+
+        public boolean isPartialSample() {
+            return false;
+        }
+    }
+}
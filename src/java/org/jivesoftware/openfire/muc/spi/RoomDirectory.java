@@ -0,0 +1,260 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.openfire.group.GroupJID;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.xmpp.packet.JID;
+
+/**
+ * Compact description of the persistent rooms of a service that are not loaded in memory.
+ * When the service loads its rooms lazily only the directory is read at startup, which is
+ * enough to answer disco#items and room search requests. The room itself, with its affiliations and history,
+ * is loaded from the database the first time it is used, and unloaded again when it has been
+ * empty for a while and too many rooms are loaded.<p>
+ *
+ * Entries of non-public rooms keep the bare JIDs of their owners, admins and members so that
+ * the rooms can be discovered by them.
+ */
+class RoomDirectory {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Adds or replaces the entry of a room. Entries are kept by the lowercase name of the
+     * room, like the loaded rooms.
+     *
+     * @param entry the entry of the room.
+     */
+    void put(Entry entry) {
+        entries.put(entry.getName().toLowerCase(), entry);
+    }
+
+    /**
+     * Removes the entry of a room, because the room was loaded or destroyed.
+     *
+     * @param roomName the name of the room.
+     */
+    void remove(String roomName) {
+        entries.remove(roomName);
+    }
+
+    Entry get(String roomName) {
+        return entries.get(roomName);
+    }
+
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Removes the entries of the rooms that have been empty since before the given date.
+     *
+     * @param cleanupDate the date before which empty rooms are forgotten.
+     */
+    void removeEmptyBefore(Date cleanupDate) {
+        for (Entry entry : entries.values()) {
+            if (entry.getEmptyDate() != null && entry.getEmptyDate().before(cleanupDate)) {
+                entries.remove(entry.getName().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Returns the persistent rooms to unload so that no more than the given number of rooms
+     * stay loaded. Only rooms that have been empty for at least the given idle time are
+     * unloaded, the ones that have been empty for longer first.
+     *
+     * @param rooms the loaded rooms.
+     * @param maxRooms the max number of rooms to keep loaded.
+     * @param idleTime the time in milliseconds a room must have been empty to be unloaded.
+     * @param now the current time in milliseconds.
+     * @return the rooms to unload.
+     */
+    static List<MUCRoom> selectRoomsToUnload(Collection<? extends MUCRoom> rooms, int maxRooms, long idleTime,
+            long now)
+    {
+        int excess = rooms.size() - maxRooms;
+        if (excess <= 0) {
+            return Collections.emptyList();
+        }
+        List<MUCRoom> idle = new ArrayList<MUCRoom>();
+        for (MUCRoom room : rooms) {
+            Date emptyDate = room.getEmptyDate();
+            if (room.isPersistent() && room.getOccupantsCount() == 0 && emptyDate != null &&
+                    emptyDate.getTime() <= now - idleTime) {
+                idle.add(room);
+            }
+        }
+        Collections.sort(idle, new Comparator<MUCRoom>() {
+            public int compare(MUCRoom room1, MUCRoom room2) {
+                return room1.getEmptyDate().compareTo(room2.getEmptyDate());
+            }
+        });
+        return idle.size() > excess ? idle.subList(0, excess) : idle;
+    }
+
+    /**
+     * The information of a room needed to answer disco#items and room search requests.
+     */
+    static class Entry {
+
+        private final String name;
+        private final String naturalLanguageName;
+        private final String subject;
+        private final int maxUsers;
+        private final boolean publicRoom;
+        private final boolean membersOnly;
+        private final boolean passwordProtected;
+        private final boolean locked;
+        private final Date emptyDate;
+        private final Set<String> affiliates = new HashSet<String>();
+        private boolean groupAffiliates = false;
+
+        Entry(String name, String naturalLanguageName, String subject, int maxUsers, boolean publicRoom,
+                boolean membersOnly, boolean passwordProtected, boolean locked, Date emptyDate)
+        {
+            this.name = name;
+            this.naturalLanguageName = naturalLanguageName;
+            this.subject = subject == null ? "" : subject;
+            this.maxUsers = maxUsers;
+            this.publicRoom = publicRoom;
+            this.membersOnly = membersOnly;
+            this.passwordProtected = passwordProtected;
+            this.locked = locked;
+            this.emptyDate = emptyDate;
+        }
+
+        /**
+         * Creates the entry of a loaded room that is about to be unloaded.
+         *
+         * @param room the room.
+         * @return the entry of the room.
+         */
+        static Entry fromRoom(MUCRoom room) {
+            Entry entry = new Entry(room.getName(), room.getNaturalLanguageName(), room.getSubject(),
+                    room.getMaxUsers(), room.isPublicRoom(), room.isMembersOnly(), room.isPasswordProtected(),
+                    room.isLocked(), room.getEmptyDate());
+            if (!room.isPublicRoom()) {
+                for (JID jid : room.getOwners()) {
+                    entry.addAffiliate(jid);
+                }
+                for (JID jid : room.getAdmins()) {
+                    entry.addAffiliate(jid);
+                }
+                for (JID jid : room.getMembers()) {
+                    entry.addAffiliate(jid);
+                }
+            }
+            return entry;
+        }
+
+        /**
+         * Adds an owner, admin or member of the room. Group JIDs are not resolved here;
+         * entries with groups are checked against the loaded room instead.
+         *
+         * @param jid the JID of the owner, admin or member.
+         */
+        void addAffiliate(JID jid) {
+            if (GroupJID.isGroup(jid)) {
+                groupAffiliates = true;
+            }
+            else {
+                affiliates.add(jid.toBareJID());
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getNaturalLanguageName() {
+            return naturalLanguageName;
+        }
+
+        String getSubject() {
+            return subject;
+        }
+
+        int getMaxUsers() {
+            return maxUsers;
+        }
+
+        boolean isPublicRoom() {
+            return publicRoom;
+        }
+
+        boolean isMembersOnly() {
+            return membersOnly;
+        }
+
+        boolean isPasswordProtected() {
+            return passwordProtected;
+        }
+
+        boolean isLocked() {
+            return locked;
+        }
+
+        Date getEmptyDate() {
+            return emptyDate;
+        }
+
+        /**
+         * Returns true if the user is an owner, admin or member of the room.
+         *
+         * @param bareJID the bare JID of the user.
+         * @return true if the user is an owner, admin or member of the room.
+         */
+        boolean isAffiliate(String bareJID) {
+            return affiliates.contains(bareJID);
+        }
+
+        /**
+         * Returns true if groups are owners, admins or members of the room. The affiliation
+         * of a user is then only known by the loaded room.
+         *
+         * @return true if groups are owners, admins or members of the room.
+         */
+        boolean hasGroupAffiliates() {
+            return groupAffiliates;
+        }
+    }
+}
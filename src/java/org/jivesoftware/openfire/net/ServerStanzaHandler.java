@@ -22,6 +22,7 @@ package org.jivesoftware.openfire.net;
 import org.dom4j.Element;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.openfire.session.LocalIncomingServerSession;
@@ -31,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.Presence;
@@ -45,9 +47,7 @@ import org.xmpp.packet.StreamError;
  * Server-to-server communication requires two TCP connections between the servers where
  * one is used for sending packets whilst the other connection is used for receiving packets.
  * The connection used for receiving packets will use a ServerStanzaHandler since the other
- * connection will not receive packets.<p>
- *
- * TODO Finish migration of s2s to use NIO instead of blocking threads. Migrate from ServerSocketReader.
+ * connection will not receive packets.
  *
  * @author Gaston Dombiak
  */
@@ -93,26 +93,53 @@ public class ServerStanzaHandler extends StanzaHandler {
         return false;
     }
 
+    @Override
+	boolean isHostUnknown(String host) {
+        if (!super.isHostUnknown(host)) {
+            return false;
+        }
+        // Check if the host matches a subdomain of this host
+        return !XMPPServer.getInstance().getRoutingTable().hasComponentRoute(new JID(host));
+    }
+
     @Override
 	boolean createSession(String namespace, String serverName, XmlPullParser xpp, Connection connection)
             throws XmlPullParserException {
-        // TODO Finish implementation
-        /*if ("jabber:server".equals(namespace)) {
+        if ("jabber:server".equals(namespace)) {
             // The connected client is a server so create an IncomingServerSession
-            session = LocalIncomingServerSession.createSession(serverName, reader, connection);
+            session = LocalIncomingServerSession.createSession(serverName, xpp, connection);
+            if (session == null) {
+                // The session was rejected (e.g. TLS is required but no certificates were created)
+                connection.close();
+            }
             return true;
-        }*/
+        }
         return false;
     }
 
     @Override
 	void startTLS() throws Exception {
-        // TODO Finish implementation. We need to get the name of the remote server if we want to validate certificates of the remote server that requested TLS
+        // Request the certificate of the remote server during the TLS handshake, so that it may
+        // authenticate using SASL EXTERNAL once TLS was negotiated
+        String remoteServer = ((LocalIncomingServerSession) session).getDefaultIdentity();
+        connection.startTLS(false, remoteServer != null ? remoteServer : "", getClientAuthPolicy(
+                JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_VERIFY, true),
+                JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_CHAIN_VERIFY, true),
+                JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ACCEPT_SELFSIGNED_CERTS, false)));
+    }
 
-        boolean needed = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_VERIFY, true) &&
-                JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_CHAIN_VERIFY, true) &&
-                !JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ACCEPT_SELFSIGNED_CERTS, false);
-        connection.startTLS(false, "IMPLEMENT_ME", needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
+    /**
+     * Returns whether the certificate of a remote server is required or only requested during
+     * the TLS handshake. Certificates are only required if they are fully verified.
+     *
+     * @param verify true if the certificates of remote servers are verified.
+     * @param verifyChain true if the certificate chains of remote servers are verified.
+     * @param acceptSelfSigned true if self-signed certificates are accepted.
+     * @return the client authentication policy of incoming server connections.
+     */
+    static Connection.ClientAuth getClientAuthPolicy(boolean verify, boolean verifyChain, boolean acceptSelfSigned) {
+        boolean needed = verify && verifyChain && !acceptSelfSigned;
+        return needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted;
     }
     @Override
 	protected void processIQ(IQ packet) throws UnauthorizedException {
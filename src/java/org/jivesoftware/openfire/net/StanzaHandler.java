@@ -107,10 +107,7 @@ public abstract class StanzaHandler {
             if (!initialStream) {
                 // Allow requests for flash socket policy files directly on the client listener port
                 if (stanza.startsWith("<policy-file-request/>")) {
-                    String crossDomainText = FlashCrossDomainServlet.CROSS_DOMAIN_TEXT +
-                            XMPPServer.getInstance().getConnectionManager().getClientListenerPort() +
-                            FlashCrossDomainServlet.CROSS_DOMAIN_END_TEXT + '\0';
-                    connection.deliverRawText(crossDomainText);
+                    deliverCrossDomainPolicy();
                     return;
                 }
                 else {
@@ -155,6 +152,29 @@ public abstract class StanzaHandler {
             // No document found.
             return;
         }
+        processDocument(doc);
+    }
+
+    /**
+     * Processes a stanza that was already parsed into an element while reading
+     * from the connection. Stream headers and the closing stream tag are still
+     * received as Strings through {@link #process(String, XMPPPacketReader)}.
+     *
+     * @param doc the received element.
+     * @throws Exception if an error occured while processing the element.
+     */
+    public void processElement(Element doc) throws Exception {
+        if (!sessionCreated) {
+            // Allow requests for flash socket policy files directly on the client listener port
+            if ("policy-file-request".equals(doc.getName())) {
+                deliverCrossDomainPolicy();
+            }
+            return;
+        }
+        processDocument(doc);
+    }
+
+    private void processDocument(Element doc) throws Exception {
         String tag = doc.getName();
         if ("starttls".equals(tag)) {
             // Negotiate TLS
@@ -188,6 +208,13 @@ public abstract class StanzaHandler {
         }
     }
 
+    private void deliverCrossDomainPolicy() {
+        String crossDomainText = FlashCrossDomainServlet.CROSS_DOMAIN_TEXT +
+                XMPPServer.getInstance().getConnectionManager().getClientListenerPort() +
+                FlashCrossDomainServlet.CROSS_DOMAIN_END_TEXT + '\0';
+        connection.deliverRawText(crossDomainText);
+    }
+
     private void process(Element doc) throws UnauthorizedException {
         if (doc == null) {
             return;
@@ -644,7 +671,7 @@ public abstract class StanzaHandler {
 
     }
 
-    private boolean isHostUnknown(String host) {
+    boolean isHostUnknown(String host) {
         if (host == null) {
             // Answer false since when using server dialback the stream header will not
             // have a TO attribute
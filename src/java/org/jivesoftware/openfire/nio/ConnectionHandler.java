@@ -27,11 +27,15 @@ import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
 import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.Timer;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
@@ -50,16 +54,25 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 
 	private static final Logger Log = LoggerFactory.getLogger(ConnectionHandler.class);
 
+    /**
+     * Time spent processing the stanzas read from the connections.
+     */
+    private static final Timer readTimer = StatisticsManager.getInstance().getMetrics().getTimer("nio.read");
+
     /**
      * The utf-8 charset for decoding and encoding Jabber packet streams.
      */
     static final String CHARSET = "UTF-8";
     static final String XML_PARSER = "XML-PARSER";
+    /**
+     * Property that enables parsing stanzas into elements straight from the received bytes.
+     */
+    static final String STREAMING_PARSER_PROPERTY = "xmpp.parser.streaming";
     protected static final String HANDLER = "HANDLER";
     protected static final String CONNECTION = "CONNECTION";
 
     protected String serverName;
-    private static final ThreadLocal<XMPPPacketReader> PARSER_CACHE = new ThreadLocal<XMPPPacketReader>()
+    static final ThreadLocal<XMPPPacketReader> PARSER_CACHE = new ThreadLocal<XMPPPacketReader>()
             {
                @Override
                protected XMPPPacketReader initialValue()
@@ -91,8 +104,12 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
-        final XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
-        session.setAttribute(XML_PARSER, parser);
+        if (useStreamingParser()) {
+            session.setAttribute(XML_PARSER, new XMLStreamingParser());
+        }
+        else {
+            session.setAttribute(XML_PARSER, new XMLLightweightParser(CHARSET));
+        }
         // Create a new NIOConnection for the new session
         final NIOConnection connection = createNIOConnection(session);
         session.setAttribute(CONNECTION, connection);
@@ -185,13 +202,23 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         updateReadBytesCounter(session);
         //System.out.println("RCVD: " + message);
         // Let the stanza handler process the received stanza
+        long start = System.nanoTime();
         try {
-            handler.process((String) message, parser);
+            if (message instanceof Element) {
+                // Stanza was already parsed by the XMPPDecoder
+                handler.processElement((Element) message);
+            }
+            else {
+                handler.process((String) message, parser);
+            }
         } catch (Exception e) {
             Log.error("Closing connection due to error while processing message: " + message, e);
             Connection connection = (Connection) session.getAttribute(CONNECTION);
             connection.close();
         }
+        finally {
+            readTimer.update(System.nanoTime() - start);
+        }
     }
 
     @Override
@@ -202,6 +229,16 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         //System.out.println("SENT: " + Charset.forName("UTF-8").decode(((ByteBuffer)message).buf()));
     }
 
+    /**
+     * Returns true if stanzas should be parsed into elements straight from the received
+     * bytes by an {@link XMLStreamingParser}.
+     *
+     * @return true if stanzas should be parsed by an XMLStreamingParser.
+     */
+    boolean useStreamingParser() {
+        return JiveGlobals.getBooleanProperty(STREAMING_PARSER_PROPERTY, false);
+    }
+
     abstract NIOConnection createNIOConnection(IoSession session);
 
     abstract StanzaHandler createStanzaHandler(NIOConnection connection);
@@ -220,7 +257,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that read more bytes from the socket.
      */
-    private void updateReadBytesCounter(IoSession session) {
+    static void updateReadBytesCounter(IoSession session) {
         long currentBytes = session.getReadBytes();
         Long prevBytes = (Long) session.getAttribute("_read_bytes");
         long delta;
@@ -240,7 +277,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that wrote more bytes to the socket.
      */
-    private void updateWrittenBytesCounter(IoSession session) {
+    static void updateWrittenBytesCounter(IoSession session) {
         long currentBytes = session.getWrittenBytes();
         Long prevBytes = (Long) session.getAttribute("_written_bytes");
         long delta;
@@ -26,9 +26,6 @@ import static org.jivesoftware.openfire.spi.ConnectionManagerImpl.TLS_FILTER_NAM
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.util.concurrent.locks.ReentrantLock;
@@ -44,7 +41,6 @@ import org.apache.mina.core.filterchain.IoFilterChain;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.compression.CompressionFilter;
 import org.apache.mina.filter.ssl.SslFilter;
-import org.dom4j.io.OutputFormat;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.ConnectionCloseListener;
 import org.jivesoftware.openfire.PacketDeliverer;
@@ -54,11 +50,12 @@ import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.SSLJiveKeyManagerFactory;
 import org.jivesoftware.openfire.net.SSLJiveTrustManagerFactory;
 import org.jivesoftware.openfire.net.ServerTrustManager;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.Timer;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.openfire.session.LocalSession;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.XMLWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.Packet;
@@ -75,6 +72,11 @@ public class NIOConnection implements Connection {
 
 	private static final Logger Log = LoggerFactory.getLogger(NIOConnection.class);
 
+    /**
+     * Time spent serializing and writing the packets delivered to the connections.
+     */
+    private static final Timer writeTimer = StatisticsManager.getInstance().getMetrics().getTimer("nio.write");
+
     /**
      * The utf-8 charset for decoding and encoding XMPP packet streams.
      */
@@ -106,7 +108,6 @@ public class NIOConnection implements Connection {
      * Compression policy currently in use for this connection.
      */
     private CompressionPolicy compressionPolicy = CompressionPolicy.disabled;
-    private static ThreadLocal<CharsetEncoder> encoder = new ThreadLocalEncoder();
     /**
      * Flag that specifies if the connection should be considered closed. Closing a NIO connection
      * is an asynch operation so instead of waiting for the connection to be actually closed just
@@ -267,27 +268,20 @@ public class NIOConnection implements Connection {
         }
         else {
             boolean errorDelivering = false;
-            IoBuffer buffer = IoBuffer.allocate(4096);
-            buffer.setAutoExpand(true);
             try {
             	// OF-464: if the connection has been dropped, fail over to backupDeliverer (offline)
             	if (!ioSession.isConnected()) {
             		throw new IOException("Connection reset/closed by peer");
             	}
-                XMLWriter xmlSerializer =
-                        new XMLWriter(new ByteBufferWriter(buffer, encoder.get()), new OutputFormat());
-                xmlSerializer.write(packet.getElement());
-                xmlSerializer.flush();
-                if (flashClient) {
-                    buffer.put((byte) '\0');
-                }
-                buffer.flip();
-                
+                long start = System.nanoTime();
+                IoBuffer buffer = PacketSerializer.serialize(packet, flashClient);
+
                 ioSessionLock.lock();
                 try {
                     ioSession.write(buffer);
                 } finally {
                     ioSessionLock.unlock();
+                    writeTimer.update(System.nanoTime() - start);
                 }
             }
             catch (Exception e) {
@@ -314,16 +308,8 @@ public class NIOConnection implements Connection {
     private void deliverRawText(String text, boolean asynchronous) {
         if (!isClosed()) {
             boolean errorDelivering = false;
-            IoBuffer buffer = IoBuffer.allocate(text.length());
-            buffer.setAutoExpand(true);
             try {
-                //Charset charset = Charset.forName(CHARSET);
-                //buffer.putString(text, charset.newEncoder());
-                buffer.put(text.getBytes(CHARSET));
-                if (flashClient) {
-                    buffer.put((byte) '\0');
-                }
-                buffer.flip();
+                IoBuffer buffer = PacketSerializer.serialize(text, flashClient);
                 ioSessionLock.lock();
                 try {
                     if (asynchronous) {
@@ -403,10 +389,10 @@ public class NIOConnection implements Connection {
             filter.setWantClientAuth(true);
         }
         ioSession.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, TLS_FILTER_NAME, filter);
-        ioSession.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
 
         if (!clientMode) {
             // Indicate the client that the server is ready to negotiate TLS
+            ioSession.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
             deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
         }
     }
@@ -478,14 +464,4 @@ public class NIOConnection implements Connection {
 	public String toString() {
         return super.toString() + " MINA Session: " + ioSession;
     }
-
-    private static class ThreadLocalEncoder extends ThreadLocal<CharsetEncoder> {
-
-        @Override
-		protected CharsetEncoder initialValue() {
-            return Charset.forName(CHARSET).newEncoder()
-				.onMalformedInput(CodingErrorAction.REPORT)
-				.onUnmappableCharacter(CodingErrorAction.REPORT);
-        }
-    }
 }
@@ -0,0 +1,137 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionInitializer;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
+import org.jivesoftware.openfire.server.RemoteServerManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handler of the connections that this server establishes with remote servers. Outgoing
+ * connections only receive stream headers and the few elements used while negotiating
+ * the session (e.g. stream features, TLS and dialback answers) so the received elements
+ * are queued in the {@link OutgoingServerSocketReader} of the connection instead of
+ * being processed by a StanzaHandler. Stream headers are queued as <tt>stream</tt>
+ * elements with no children.
+ */
+public class OutgoingServerConnectionHandler extends IoHandlerAdapter {
+
+    private static final Logger Log = LoggerFactory.getLogger(OutgoingServerConnectionHandler.class);
+
+    private static final String READER = "READER";
+
+    /**
+     * Establishes a new NIO connection with a remote server. The elements sent by the
+     * remote server will be queued in the specified reader.
+     *
+     * @param connector the connector to use for establishing the connection.
+     * @param address the address of the remote server.
+     * @param reader the reader that will hold the elements sent by the remote server.
+     * @return the new connection with the remote server.
+     * @throws IOException if the connection could not be established.
+     */
+    public static NIOConnection connect(NioSocketConnector connector, InetSocketAddress address,
+            final OutgoingServerSocketReader reader) throws IOException {
+        ConnectFuture future = connector.connect(address, new IoSessionInitializer<ConnectFuture>() {
+            public void initializeSession(IoSession session, ConnectFuture future) {
+                // Set up the session before any event is fired for it
+                session.setAttribute(ConnectionHandler.XML_PARSER, new XMLStreamingParser());
+                session.setAttribute(ConnectionHandler.CONNECTION,
+                        new NIOConnection(session, XMPPServer.getInstance().getPacketDeliverer()));
+                session.setAttribute(READER, reader);
+            }
+        });
+        if (!future.awaitUninterruptibly(RemoteServerManager.getSocketTimeout())) {
+            future.cancel();
+            throw new IOException("Timeout connecting to " + address);
+        }
+        if (!future.isConnected()) {
+            throw new IOException("Error connecting to " + address, future.getException());
+        }
+        return (NIOConnection) future.getSession().getAttribute(ConnectionHandler.CONNECTION);
+    }
+
+    @Override
+    public void sessionClosed(IoSession session) throws Exception {
+        Connection connection = (Connection) session.getAttribute(ConnectionHandler.CONNECTION);
+        connection.close();
+        OutgoingServerSocketReader reader = (OutgoingServerSocketReader) session.getAttribute(READER);
+        reader.connectionClosed();
+    }
+
+    @Override
+    public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+        if (cause instanceof IOException) {
+            Log.debug("OutgoingServerConnectionHandler reports IOException for session: " + session, cause);
+            if (cause instanceof SSLHandshakeException) {
+                session.close(true);
+            }
+        }
+        else if (cause instanceof ProtocolDecoderException) {
+            Log.warn("Closing session due to exception: " + session, cause);
+            session.close(true);
+        }
+        else {
+            Log.error("OutgoingServerConnectionHandler reports unexpected exception for session: " + session, cause);
+        }
+    }
+
+    @Override
+    public void messageReceived(IoSession session, Object message) throws Exception {
+        ConnectionHandler.updateReadBytesCounter(session);
+        OutgoingServerSocketReader reader = (OutgoingServerSocketReader) session.getAttribute(READER);
+        if (message instanceof Element) {
+            reader.elementReceived((Element) message);
+        }
+        else if ("</stream:stream>".equals(message)) {
+            // The remote server closed the stream
+            reader.connectionClosed();
+            ((Connection) session.getAttribute(ConnectionHandler.CONNECTION)).close();
+        }
+        else {
+            // Parse the stream header into an element so that its attributes are available
+            String header = (String) message;
+            Element stream = ConnectionHandler.PARSER_CACHE.get()
+                    .read(new StringReader(header + "</stream:stream>")).getRootElement();
+            reader.elementReceived(stream);
+        }
+    }
+
+    @Override
+    public void messageSent(IoSession session, Object message) throws Exception {
+        ConnectionHandler.updateWrittenBytesCounter(session);
+    }
+}
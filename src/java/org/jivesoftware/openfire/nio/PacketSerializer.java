@@ -0,0 +1,579 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.XMLWriter;
+import org.xmpp.packet.Packet;
+
+/**
+ * Serializes outgoing stanzas into IoBuffers for NIO connections. Each thread reuses
+ * its own XMLWriter and character buffer, so serializing a stanza only allocates the
+ * IoBuffer that is handed to MINA, which is sized to fit the encoded stanza exactly.
+ * A character buffer that grew over {@link #MAX_RETAINED_CHARS} to serialize a large
+ * stanza is discarded once the stanza was encoded.<p>
+ *
+ * Threads that send the same packet to many recipients, only changing its <tt>to</tt>
+ * attribute between deliveries (e.g. a MUC room broadcasting a message), can call
+ * {@link #startBroadcast(Packet)} before the first delivery and {@link #endBroadcast()}
+ * after the last one. While the broadcast is active the packet is serialized and encoded
+ * once, and the bytes are reused for every recipient by only encoding the new <tt>to</tt>
+ * JID. Before reusing the bytes the content of the packet (names, attributes and text
+ * of all its nodes, except the <tt>to</tt> JID) is compared with the content it had when
+ * it was encoded, and the packet is serialized again if anything changed, e.g. when an
+ * interceptor rewrote its body for a recipient.<p>
+ *
+ * When copies of the same packet are delivered by several threads, the packet can be
+ * encoded once using {@link #prepareBroadcast(Packet)} and the result passed to
+ * {@link #startBroadcast(Packet, PreparedBroadcast)} by each of the threads.
+ */
+public final class PacketSerializer {
+
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Initial size of the character buffer of a thread.
+     */
+    private static final int INITIAL_CHARS = 1024;
+
+    /**
+     * Max size of the character buffer kept by a thread between stanzas.
+     */
+    static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private static final String hitsStatKey = "nio_serialization_buffer_hits";
+    private static final String missesStatKey = "nio_serialization_buffer_misses";
+    private static final String reusesStatKey = "nio_serialization_broadcast_reuses";
+
+    /**
+     * Number of stanzas serialized using the existing buffer of the thread.
+     */
+    private static final AtomicLong bufferHits = new AtomicLong(0);
+    /**
+     * Number of stanzas for which the buffer of the thread had to be created or grown.
+     */
+    private static final AtomicLong bufferMisses = new AtomicLong(0);
+    /**
+     * Number of deliveries that reused the bytes of a broadcast stanza.
+     */
+    private static final AtomicLong broadcastReuses = new AtomicLong(0);
+
+    /**
+     * Marks the end of the content of an element.
+     */
+    private static final Object END_OF_ELEMENT = new Object();
+
+    private static final ThreadLocal<SerializerState> state = new ThreadLocal<SerializerState>() {
+        @Override
+        protected SerializerState initialValue() {
+            return new SerializerState();
+        }
+    };
+
+    private PacketSerializer() {
+    }
+
+    /**
+     * Creates and adds statistics to statistic manager.
+     */
+    public static void initStatistics() {
+        StatisticsManager statisticsManager = StatisticsManager.getInstance();
+        statisticsManager.addStatistic(hitsStatKey, new CounterStatistic("nio.serialization.hits", bufferHits));
+        statisticsManager.addStatistic(missesStatKey, new CounterStatistic("nio.serialization.misses", bufferMisses));
+        statisticsManager.addStatistic(reusesStatKey, new CounterStatistic("nio.serialization.reuses", broadcastReuses));
+    }
+
+    /**
+     * Starts a broadcast of the specified packet by the current thread. Until
+     * {@link #endBroadcast()} is called the encoded stanza will be reused for every
+     * delivery of the same packet by this thread.
+     *
+     * @param packet the packet that is going to be delivered to many recipients.
+     */
+    public static void startBroadcast(Packet packet) {
+        SerializerState current = state.get();
+        current.broadcast = packet.getElement();
+        current.head = null;
+        current.tail = null;
+        current.content = null;
+    }
+
+    /**
+     * Starts a broadcast of the specified packet by the current thread reusing the bytes
+     * of a broadcast prepared by another thread. The packet must be a copy of the packet
+     * that was used to prepare the broadcast.
+     *
+     * @param packet the packet that is going to be delivered to many recipients.
+     * @param prepared the encoded packet or null if the packet should be encoded by
+     *        this thread.
+     */
+    public static void startBroadcast(Packet packet, PreparedBroadcast prepared) {
+        startBroadcast(packet);
+        if (prepared != null) {
+            SerializerState current = state.get();
+            current.head = prepared.head;
+            current.tail = prepared.tail;
+            current.content = prepared.content;
+        }
+    }
+
+    /**
+     * Encodes the packet so that copies of it can be broadcast by other threads without
+     * encoding the packet again. The packet is not modified.
+     *
+     * @param packet the packet that is going to be delivered to many recipients.
+     * @return the encoded packet or null if the packet could not be encoded.
+     * @throws IOException if the packet could not be serialized.
+     */
+    public static PreparedBroadcast prepareBroadcast(Packet packet) throws IOException {
+        SerializerState current = state.get();
+        // Keep the broadcast of the thread, if any
+        byte[] head = current.head;
+        byte[] tail = current.tail;
+        List<Object> content = current.content;
+        try {
+            Element element = packet.getElement();
+            if (!current.encodeBroadcast(element, element.attributeValue("to"))) {
+                return null;
+            }
+            return new PreparedBroadcast(current.head, current.tail, current.content);
+        }
+        finally {
+            current.head = head;
+            current.tail = tail;
+            current.content = content;
+        }
+    }
+
+    /**
+     * Ends the broadcast started by the current thread, if any.
+     */
+    public static void endBroadcast() {
+        SerializerState current = state.get();
+        current.broadcast = null;
+        current.head = null;
+        current.tail = null;
+        current.content = null;
+    }
+
+    /**
+     * Returns a buffer, ready to be written, with the encoded packet.
+     *
+     * @param packet the packet to serialize.
+     * @param flashClient true if a NULL char needs to be appended after the stanza.
+     * @return a buffer with the encoded packet.
+     * @throws IOException if the packet could not be serialized.
+     */
+    public static IoBuffer serialize(Packet packet, boolean flashClient) throws IOException {
+        SerializerState current = state.get();
+        Element element = packet.getElement();
+        if (element == current.broadcast) {
+            IoBuffer buffer = current.serializeBroadcast(element, flashClient);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        current.write(element);
+        try {
+            return current.encode(current.chars.buf, 0, current.chars.count, null, flashClient);
+        }
+        finally {
+            current.chars.trim();
+        }
+    }
+
+    /**
+     * Returns the size of the character buffer of the current thread.
+     *
+     * @return the size of the character buffer of the current thread.
+     */
+    static int getBufferCapacity() {
+        return state.get().chars.capacity();
+    }
+
+    /**
+     * Returns a buffer, ready to be written, with the encoded text.
+     *
+     * @param text the text to encode.
+     * @param flashClient true if a NULL char needs to be appended after the text.
+     * @return a buffer with the encoded text.
+     * @throws IOException if the text could not be encoded.
+     */
+    public static IoBuffer serialize(String text, boolean flashClient) throws IOException {
+        IoBuffer buffer = IoBuffer.allocate(utf8Length(text) + (flashClient ? 1 : 0));
+        buffer.setAutoExpand(true);
+        buffer.putString(text, state.get().encoder);
+        if (flashClient) {
+            buffer.put((byte) '\0');
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the number of bytes needed to encode the text with UTF-8.
+     */
+    private static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0, size = text.length(); i < size; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c)) {
+                // Counts for both chars of the surrogate pair
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Serialization state of a thread.
+     */
+    private static class SerializerState {
+
+        private final ReusableCharWriter chars = new ReusableCharWriter();
+        private StanzaWriter writer = new StanzaWriter(chars);
+        private final CharsetEncoder encoder = Charset.forName(CHARSET).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        /**
+         * Element being broadcast by the thread, or null if none.
+         */
+        private Element broadcast;
+        /**
+         * Encoded broadcast stanza, up to and after the value of its <tt>to</tt> attribute.
+         */
+        private byte[] head;
+        private byte[] tail;
+        /**
+         * Content of the broadcast element when it was encoded.
+         */
+        private List<Object> content;
+        /**
+         * Current content of the broadcast element, compared with the encoded content.
+         */
+        private final List<Object> scratch = new ArrayList<Object>();
+
+        void write(Element element) throws IOException {
+            int capacity = chars.buf.length;
+            chars.count = 0;
+            try {
+                writer.write(element);
+                writer.flush();
+            }
+            catch (IOException e) {
+                // Do not reuse a writer that may have been left in an inconsistent state
+                writer = new StanzaWriter(chars);
+                throw e;
+            }
+            catch (RuntimeException e) {
+                writer = new StanzaWriter(chars);
+                throw e;
+            }
+            if (capacity == chars.buf.length) {
+                bufferHits.incrementAndGet();
+            }
+            else {
+                bufferMisses.incrementAndGet();
+            }
+        }
+
+        IoBuffer encode(char[] buf, int offset, int length, byte[] prefix, boolean flashClient)
+                throws CharacterCodingException {
+            CharBuffer charBuffer = CharBuffer.wrap(buf, offset, length);
+            int size = utf8Length(charBuffer) + (prefix == null ? 0 : prefix.length) + (flashClient ? 1 : 0);
+            IoBuffer buffer = IoBuffer.allocate(size);
+            buffer.setAutoExpand(true);
+            if (prefix != null) {
+                buffer.put(prefix);
+            }
+            buffer.putString(charBuffer, encoder);
+            if (flashClient) {
+                buffer.put((byte) '\0');
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Returns the broadcast element encoded for its current <tt>to</tt> JID, or null
+         * if the element can not be encoded as a broadcast.
+         */
+        IoBuffer serializeBroadcast(Element element, boolean flashClient) throws IOException {
+            String to = element.attributeValue("to");
+            if (to == null) {
+                return null;
+            }
+            if (head != null && isUnchanged(element)) {
+                broadcastReuses.incrementAndGet();
+            }
+            else if (!encodeBroadcast(element, to)) {
+                return null;
+            }
+            String escapedTo = writer.escapeAttribute(to);
+            CharBuffer charBuffer = CharBuffer.wrap(escapedTo);
+            IoBuffer buffer = IoBuffer.allocate(head.length + utf8Length(charBuffer) + tail.length + (flashClient ? 1 : 0));
+            buffer.setAutoExpand(true);
+            buffer.put(head);
+            buffer.putString(charBuffer, encoder);
+            buffer.put(tail);
+            if (flashClient) {
+                buffer.put((byte) '\0');
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Encodes the element with a placeholder as the value of its <tt>to</tt> attribute
+         * and keeps the bytes before and after the placeholder. A null <tt>to</tt> means
+         * that the attribute is removed once the element was encoded.
+         */
+        private boolean encodeBroadcast(Element element, String to) throws IOException {
+            head = null;
+            tail = null;
+            String placeholder = "broadcast-" + System.identityHashCode(element) + "-" + System.nanoTime();
+            element.addAttribute("to", placeholder);
+            try {
+                write(element);
+            }
+            finally {
+                element.addAttribute("to", to);
+            }
+            try {
+                int index = indexOf(chars.buf, chars.count, placeholder);
+                if (index < 0) {
+                    return false;
+                }
+                int end = index + placeholder.length();
+                head = toBytes(encode(chars.buf, 0, index, null, false));
+                tail = toBytes(encode(chars.buf, end, chars.count - end, null, false));
+            }
+            finally {
+                chars.trim();
+            }
+            content = new ArrayList<Object>();
+            collectContent(element, content, true);
+            return true;
+        }
+
+        /**
+         * Returns true if the content of the element is the content it had when it was encoded.
+         */
+        private boolean isUnchanged(Element element) {
+            scratch.clear();
+            try {
+                collectContent(element, scratch, true);
+                return scratch.equals(content);
+            }
+            finally {
+                scratch.clear();
+            }
+        }
+
+        /**
+         * Adds the names, attributes and text of the element and its descendants to the list,
+         * in document order. The <tt>to</tt> attribute of the root element is skipped.
+         */
+        private static void collectContent(Element element, List<Object> list, boolean root) {
+            list.add(element.getQualifiedName());
+            list.add(element.getNamespaceURI());
+            for (int i = 0, size = element.attributeCount(); i < size; i++) {
+                Attribute attribute = element.attribute(i);
+                if (root && "to".equals(attribute.getQualifiedName())) {
+                    continue;
+                }
+                list.add(attribute.getQualifiedName());
+                list.add(attribute.getValue());
+            }
+            for (int i = 0, size = element.nodeCount(); i < size; i++) {
+                Node node = element.node(i);
+                if (node instanceof Element) {
+                    collectContent((Element) node, list, false);
+                }
+                else {
+                    list.add(node.getNodeType());
+                    list.add(node.getText());
+                }
+            }
+            list.add(END_OF_ELEMENT);
+        }
+
+        private static byte[] toBytes(IoBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        private static int indexOf(char[] buf, int count, String text) {
+            int last = count - text.length();
+            for (int i = 0; i <= last; i++) {
+                int j = 0;
+                while (j < text.length() && buf[i + j] == text.charAt(j)) {
+                    j++;
+                }
+                if (j == text.length()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Packet encoded by {@link PacketSerializer#prepareBroadcast(Packet)}, split around
+     * the value of its <tt>to</tt> attribute.
+     */
+    public static final class PreparedBroadcast {
+
+        private final byte[] head;
+        private final byte[] tail;
+        private final List<Object> content;
+
+        private PreparedBroadcast(byte[] head, byte[] tail, List<Object> content) {
+            this.head = head;
+            this.tail = tail;
+            this.content = content;
+        }
+    }
+
+    /**
+     * XMLWriter that allows escaping attribute values with the same rules used
+     * when serializing elements.
+     */
+    private static class StanzaWriter extends XMLWriter {
+
+        StanzaWriter(Writer writer) {
+            super(writer);
+        }
+
+        String escapeAttribute(String text) {
+            return escapeAttributeEntities(text);
+        }
+    }
+
+    /**
+     * Writer over a char array that is reused between stanzas. The array is discarded
+     * once it grew over {@link #MAX_RETAINED_CHARS}.
+     */
+    static class ReusableCharWriter extends Writer {
+
+        private char[] buf = new char[INITIAL_CHARS];
+        private int count = 0;
+
+        /**
+         * Discards the array if it is larger than the max size kept between stanzas.
+         */
+        void trim() {
+            if (buf.length > MAX_RETAINED_CHARS) {
+                buf = new char[INITIAL_CHARS];
+                count = 0;
+            }
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(cbuf, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(count + len);
+            str.getChars(off, off + len, buf, count);
+            count += len;
+        }
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(count + 1);
+            buf[count++] = (char) c;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                char[] newBuf = new char[Math.max(buf.length * 2, capacity)];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Ignore
+        }
+
+        @Override
+        public void close() {
+            // Ignore
+        }
+    }
+
+    private static class CounterStatistic extends i18nStatistic {
+
+        private final AtomicLong counter;
+
+        CounterStatistic(String resourceKey, AtomicLong counter) {
+            super(resourceKey, Statistic.Type.rate);
+            this.counter = counter;
+        }
+
+        public double sample() {
+            return counter.getAndSet(0);
+        }
+
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
+}
@@ -387,6 +387,16 @@ class XMLLightweightParser {
         }
     }
 
+    /**
+     * Returns the max number of chars that can be queued while waiting for a
+     * stanza to be completed.
+     *
+     * @return the max number of chars of a stanza.
+     */
+    static int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
 	/**
 	 * This method verifies if the provided argument contains at least one numeric character reference (
 	 * <code>CharRef	   ::=   	'&#' [0-9]+ ';' | '&#x' [0-9a-fA-F]+ ';</code>) for which the decimal or hexidecimal
@@ -0,0 +1,782 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.QName;
+
+/**
+ * Incremental XML parser that decodes UTF-8 bytes straight from the received
+ * IoBuffer and builds dom4j elements as the markup arrives. Unlike
+ * {@link XMLLightweightParser}, complete stanzas are not collected as Strings
+ * that have to be parsed again by the StanzaHandler; the parser produces the
+ * element tree itself.<p>
+ *
+ * Messages returned by {@link #getMsgs()} are either:<ul>
+ *
+ * <li> a String with the opening <tt>stream:stream</tt> (or <tt>flash:stream</tt>)
+ * tag, rebuilt from the parsed attributes.
+ * <li> the String <tt>&lt;/stream:stream&gt;</tt> when the stream is closed.
+ * <li> an {@link Element} for every other top level element (i.e. stanzas and
+ * stream negotiation elements).</ul><p>
+ *
+ * Elements are built the same way {@link org.dom4j.io.XMPPPacketReader} builds them
+ * when a stanza is parsed in isolation, so that the rest of the server can not tell
+ * both parsers apart. Prefixes declared in the stream header (e.g. <tt>stream</tt>
+ * or <tt>db</tt>) stay in scope for all stanzas of the stream.
+ */
+class XMLStreamingParser {
+
+    private static final DocumentFactory docFactory = DocumentFactory.getInstance();
+
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+    // ---- INTERNAL STATUS -------
+    // Reading character data or whitespace between tags
+    private static final int CONTENT = 0;
+    // A '<' was found
+    private static final int MARKUP = 1;
+    // Reading the name of a start tag
+    private static final int START_NAME = 2;
+    // Inside a start tag, between attributes
+    private static final int INSIDE_TAG = 3;
+    // Reading the name of an attribute
+    private static final int ATTR_NAME = 4;
+    // Attribute name was read, waiting for '='
+    private static final int ATTR_EQUALS = 5;
+    // '=' was read, waiting for the opening quote
+    private static final int ATTR_QUOTE = 6;
+    // Reading an attribute value
+    private static final int ATTR_VALUE = 7;
+    // Found '/' inside a start tag, waiting for '>'
+    private static final int EMPTY_TAG = 8;
+    // Reading the name of an end tag
+    private static final int END_NAME = 9;
+    // End tag name was read, waiting for '>'
+    private static final int END_TAG = 10;
+    // Inside a processing instruction
+    private static final int PI = 11;
+    // Found "<!", looking for a CDATA section or a comment
+    private static final int BANG = 12;
+    // Inside a CDATA section
+    private static final int CDATA = 13;
+    // Inside a comment
+    private static final int COMMENT = 14;
+    // Reading an entity or character reference
+    private static final int ENTITY = 15;
+
+    private static final String CDATA_START = "[CDATA[";
+    private static final int MAX_ENTITY_LENGTH = 32;
+
+    private int status = CONTENT;
+
+    // State to go back to once an entity reference was read
+    private int entityReturnStatus;
+    // Number of chars of "[CDATA[", "--", "]]>" or "-->" that were matched so far
+    private int matched;
+    // True when "<!-" was found
+    private boolean inComment;
+    // Quote char used by the attribute value being read
+    private char quote;
+    // Previous char while inside a processing instruction
+    private char previous;
+
+    // Name of the tag or attribute, or the attribute value being read
+    private final StringBuilder token = new StringBuilder(64);
+    // Character data or CDATA section being read
+    private final StringBuilder text = new StringBuilder(256);
+    private final StringBuilder entity = new StringBuilder(MAX_ENTITY_LENGTH);
+
+    private String tagName;
+    private String attributeName;
+    private final List<String> attributeNames = new ArrayList<String>();
+    private final List<String> attributeValues = new ArrayList<String>();
+
+    // Namespace declarations in scope, as prefix and URI pairs. The first
+    // pairs are the prefixes declared by the stream header.
+    private final List<String> namespaces = new ArrayList<String>();
+    // Size of the namespaces list before each open element was started
+    private int[] namespaceMarks = new int[16];
+
+    // Element being built, or null when between stanzas
+    private Element current;
+    private int depth = 0;
+
+    // Number of chars read since the last complete message
+    private int stanzaLength = 0;
+
+    // State of the UTF-8 decoder
+    private int utf8Remaining = 0;
+    private int codePoint;
+    private int minCodePoint;
+
+    private boolean failed = false;
+
+    // List with all finished messages found.
+    private final List<Object> msgs = new ArrayList<Object>();
+
+    /*
+    * true if the parser has found some complete xml message.
+    */
+    public boolean areThereMsgs() {
+        return !msgs.isEmpty();
+    }
+
+    /*
+    * @return an array with all messages found
+    */
+    public Object[] getMsgs() {
+        Object[] res = msgs.toArray();
+        msgs.clear();
+        return res;
+    }
+
+    /*
+    * Main reading method. All available bytes are consumed; incomplete UTF-8
+    * sequences and markup are kept as parser state until more data arrives.
+    */
+    public void read(IoBuffer byteBuffer) throws Exception {
+        if (failed) {
+            // exception was thrown before, avoid duplicate exception(s)
+            // "read" and discard remaining data
+            byteBuffer.position(byteBuffer.limit());
+            return;
+        }
+        try {
+            if (byteBuffer.hasArray()) {
+                byte[] array = byteBuffer.array();
+                int start = byteBuffer.arrayOffset() + byteBuffer.position();
+                int end = byteBuffer.arrayOffset() + byteBuffer.limit();
+                byteBuffer.position(byteBuffer.limit());
+                for (int i = start; i < end; i++) {
+                    decode(array[i]);
+                }
+            }
+            else {
+                while (byteBuffer.hasRemaining()) {
+                    decode(byteBuffer.get());
+                }
+            }
+        }
+        catch (Exception e) {
+            failed = true;
+            byteBuffer.position(byteBuffer.limit());
+            throw e;
+        }
+    }
+
+    /**
+     * Feeds one byte of UTF-8 encoded data. Malformed sequences are replaced by
+     * U+FFFD, like the CharsetDecoder used by {@link XMLLightweightParser} does.
+     */
+    private void decode(byte b) throws Exception {
+        int value = b & 0xFF;
+        if (utf8Remaining > 0) {
+            if ((value & 0xC0) == 0x80) {
+                codePoint = (codePoint << 6) | (value & 0x3F);
+                if (--utf8Remaining == 0) {
+                    if (codePoint < minCodePoint || codePoint > 0x10FFFF ||
+                            (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                        codePoint = 0xFFFD;
+                    }
+                    if (codePoint >= 0x10000) {
+                        parse(Character.highSurrogate(codePoint));
+                        parse(Character.lowSurrogate(codePoint));
+                    }
+                    else {
+                        parse((char) codePoint);
+                    }
+                }
+                return;
+            }
+            // Truncated sequence
+            utf8Remaining = 0;
+            parse('\uFFFD');
+        }
+        if (value < 0x80) {
+            parse((char) value);
+        }
+        else if ((value & 0xE0) == 0xC0) {
+            codePoint = value & 0x1F;
+            minCodePoint = 0x80;
+            utf8Remaining = 1;
+        }
+        else if ((value & 0xF0) == 0xE0) {
+            codePoint = value & 0x0F;
+            minCodePoint = 0x800;
+            utf8Remaining = 2;
+        }
+        else if ((value & 0xF8) == 0xF0) {
+            codePoint = value & 0x07;
+            minCodePoint = 0x10000;
+            utf8Remaining = 3;
+        }
+        else {
+            parse('\uFFFD');
+        }
+    }
+
+    /**
+     * Robot. Feeds one decoded char to the parser.
+     */
+    private void parse(char ch) throws Exception {
+        if (ch < 0x20 && ch != 0x9 && ch != 0xA && ch != 0xD && (ch != 0x0 || current != null)) {
+            // Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
+            // We need to allow the NULL character between stanzas, however, for Flash XMLSocket clients to work.
+            throw new XMLNotWellFormedException("Character is invalid in: " + (int) ch);
+        }
+        if (++stanzaLength > XMLLightweightParser.getMaxBufferSize()) {
+            // For security reasons we will abort parsing when too many chars were queued
+            final ProtocolDecoderException ex = new ProtocolDecoderException("Stopped parsing never ending stanza");
+            ex.setHexdump("(redacted hex dump of never ending stanza)");
+            throw ex;
+        }
+
+        switch (status) {
+            case CONTENT:
+                if (ch == '<') {
+                    flushText();
+                    status = MARKUP;
+                }
+                else if (current != null) {
+                    if (ch == '&') {
+                        startEntity(CONTENT);
+                    }
+                    else {
+                        text.append(ch);
+                    }
+                }
+                else {
+                    // Ignore whitespace, NULL chars and any other text between stanzas
+                    stanzaLength = 0;
+                }
+                break;
+
+            case MARKUP:
+                if (ch == '/') {
+                    status = END_NAME;
+                }
+                else if (ch == '?') {
+                    previous = 0;
+                    status = PI;
+                }
+                else if (ch == '!') {
+                    matched = 0;
+                    status = BANG;
+                }
+                else if (isWhitespace(ch) || ch == '>' || ch == '<' || ch == '=') {
+                    throw new XMLNotWellFormedException("Invalid start of tag: " + ch);
+                }
+                else {
+                    token.append(ch);
+                    status = START_NAME;
+                }
+                break;
+
+            case START_NAME:
+                if (isWhitespace(ch)) {
+                    tagName = takeToken();
+                    status = INSIDE_TAG;
+                }
+                else if (ch == '>') {
+                    tagName = takeToken();
+                    startElement(false);
+                }
+                else if (ch == '/') {
+                    tagName = takeToken();
+                    status = EMPTY_TAG;
+                }
+                else {
+                    token.append(ch);
+                }
+                break;
+
+            case INSIDE_TAG:
+                if (ch == '>') {
+                    startElement(false);
+                }
+                else if (ch == '/') {
+                    status = EMPTY_TAG;
+                }
+                else if (!isWhitespace(ch)) {
+                    if (ch == '=' || ch == '"' || ch == '\'' || ch == '<') {
+                        throw new XMLNotWellFormedException("Invalid char in tag " + tagName + ": " + ch);
+                    }
+                    token.append(ch);
+                    status = ATTR_NAME;
+                }
+                break;
+
+            case ATTR_NAME:
+                if (ch == '=') {
+                    attributeName = takeToken();
+                    status = ATTR_QUOTE;
+                }
+                else if (isWhitespace(ch)) {
+                    attributeName = takeToken();
+                    status = ATTR_EQUALS;
+                }
+                else if (ch == '>' || ch == '/' || ch == '<' || ch == '"' || ch == '\'') {
+                    throw new XMLNotWellFormedException("Attribute without value in tag " + tagName);
+                }
+                else {
+                    token.append(ch);
+                }
+                break;
+
+            case ATTR_EQUALS:
+                if (ch == '=') {
+                    status = ATTR_QUOTE;
+                }
+                else if (!isWhitespace(ch)) {
+                    throw new XMLNotWellFormedException("Attribute without value in tag " + tagName);
+                }
+                break;
+
+            case ATTR_QUOTE:
+                if (ch == '"' || ch == '\'') {
+                    quote = ch;
+                    status = ATTR_VALUE;
+                }
+                else if (!isWhitespace(ch)) {
+                    throw new XMLNotWellFormedException("Unquoted attribute value in tag " + tagName);
+                }
+                break;
+
+            case ATTR_VALUE:
+                if (ch == quote) {
+                    for (String name : attributeNames) {
+                        if (name.equals(attributeName)) {
+                            throw new XMLNotWellFormedException("Duplicated attribute " + name +
+                                    " in tag " + tagName);
+                        }
+                    }
+                    attributeNames.add(attributeName);
+                    attributeValues.add(takeToken());
+                    status = INSIDE_TAG;
+                }
+                else if (ch == '&') {
+                    startEntity(ATTR_VALUE);
+                }
+                else if (ch == '<') {
+                    throw new XMLNotWellFormedException("Invalid char in attribute value: " + ch);
+                }
+                else if (ch == 0x9 || ch == 0xA || ch == 0xD) {
+                    // Attribute value normalization
+                    token.append(' ');
+                }
+                else {
+                    token.append(ch);
+                }
+                break;
+
+            case EMPTY_TAG:
+                if (ch != '>') {
+                    throw new XMLNotWellFormedException("Expected '>' after '/' in tag " + tagName);
+                }
+                startElement(true);
+                break;
+
+            case END_NAME:
+                if (ch == '>') {
+                    endElement(takeToken());
+                }
+                else if (isWhitespace(ch)) {
+                    status = END_TAG;
+                }
+                else {
+                    token.append(ch);
+                }
+                break;
+
+            case END_TAG:
+                if (ch == '>') {
+                    endElement(takeToken());
+                }
+                else if (!isWhitespace(ch)) {
+                    throw new XMLNotWellFormedException("Invalid char in end tag: " + ch);
+                }
+                break;
+
+            case PI:
+                // Processing instructions (e.g. <?xml version="1.0"?>) are ignored
+                if (ch == '>' && previous == '?') {
+                    status = CONTENT;
+                    if (current == null) {
+                        stanzaLength = 0;
+                    }
+                }
+                previous = ch;
+                break;
+
+            case BANG:
+                if (matched == 0 && ch == '-') {
+                    inComment = true;
+                    matched = 1;
+                }
+                else if (inComment) {
+                    if (ch != '-') {
+                        throw new XMLNotWellFormedException("Invalid markup declaration");
+                    }
+                    inComment = false;
+                    matched = 0;
+                    status = COMMENT;
+                }
+                else if (ch == CDATA_START.charAt(matched)) {
+                    matched++;
+                    if (matched == CDATA_START.length()) {
+                        matched = 0;
+                        if (current == null) {
+                            throw new XMLNotWellFormedException("CDATA section found outside of a stanza");
+                        }
+                        status = CDATA;
+                    }
+                }
+                else {
+                    throw new XMLNotWellFormedException("Invalid markup declaration");
+                }
+                break;
+
+            case CDATA:
+                if (ch == ']' && matched < 2) {
+                    matched++;
+                }
+                else if (ch == ']') {
+                    // Only the first of three or more ']' chars is text, the last two may end the section
+                    text.append(']');
+                }
+                else if (ch == '>' && matched == 2) {
+                    matched = 0;
+                    current.addCDATA(text.toString());
+                    text.setLength(0);
+                    status = CONTENT;
+                }
+                else {
+                    // False alarm, add the skipped ']' chars
+                    for (; matched > 0; matched--) {
+                        text.append(']');
+                    }
+                    text.append(ch);
+                }
+                break;
+
+            case COMMENT:
+                // Comments are ignored
+                if (ch == '-' && matched < 2) {
+                    matched++;
+                }
+                else if (ch == '>' && matched == 2) {
+                    matched = 0;
+                    status = CONTENT;
+                }
+                else if (ch != '-') {
+                    matched = 0;
+                }
+                break;
+
+            case ENTITY:
+                if (ch == ';') {
+                    resolveEntity();
+                    status = entityReturnStatus;
+                }
+                else if (entity.length() >= MAX_ENTITY_LENGTH || isWhitespace(ch) || ch == '&' || ch == '<') {
+                    throw new XMLNotWellFormedException("Unterminated entity reference: &" + entity);
+                }
+                else {
+                    entity.append(ch);
+                }
+                break;
+        }
+    }
+
+    private void startEntity(int returnStatus) {
+        entityReturnStatus = returnStatus;
+        entity.setLength(0);
+        status = ENTITY;
+    }
+
+    private void resolveEntity() throws XMLNotWellFormedException {
+        StringBuilder target = entityReturnStatus == ATTR_VALUE ? token : text;
+        String name = entity.toString();
+        if ("amp".equals(name)) {
+            target.append('&');
+        }
+        else if ("lt".equals(name)) {
+            target.append('<');
+        }
+        else if ("gt".equals(name)) {
+            target.append('>');
+        }
+        else if ("quot".equals(name)) {
+            target.append('"');
+        }
+        else if ("apos".equals(name)) {
+            target.append('\'');
+        }
+        else if (name.length() > 1 && name.charAt(0) == '#') {
+            int value;
+            try {
+                if (name.charAt(1) == 'x' || name.charAt(1) == 'X') {
+                    value = Integer.parseInt(name.substring(2), 16);
+                }
+                else {
+                    value = Integer.parseInt(name.substring(1));
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new XMLNotWellFormedException("Invalid character reference: &" + name + ";");
+            }
+            if (!XMLLightweightParser.isLegalXmlCharacter(value)) {
+                throw new XMLNotWellFormedException("Illegal character reference found: &" + name + ";");
+            }
+            target.appendCodePoint(value);
+        }
+        else {
+            throw new XMLNotWellFormedException("Undefined entity: &" + name + ";");
+        }
+    }
+
+    /**
+     * Creates the element for the start tag that was just read. Stream headers
+     * are reported as messages and are not kept as parent elements.
+     */
+    private void startElement(boolean empty) throws XMLNotWellFormedException {
+        status = CONTENT;
+        if (current == null && isStreamTag(tagName)) {
+            if (empty) {
+                throw new XMLNotWellFormedException("Empty stream header found");
+            }
+            // A new stream replaces the previous one (e.g. after TLS, SASL or compression)
+            namespaces.clear();
+            for (int i = 0; i < attributeNames.size(); i++) {
+                String name = attributeNames.get(i);
+                if (name.startsWith("xmlns:")) {
+                    namespaces.add(name.substring(6));
+                    namespaces.add(attributeValues.get(i));
+                }
+            }
+            foundMsg(buildStreamHeader());
+            return;
+        }
+
+        // Register namespaces declared by this element
+        if (depth == namespaceMarks.length) {
+            int[] marks = new int[depth * 2];
+            System.arraycopy(namespaceMarks, 0, marks, 0, depth);
+            namespaceMarks = marks;
+        }
+        namespaceMarks[depth] = namespaces.size();
+        for (int i = 0; i < attributeNames.size(); i++) {
+            String name = attributeNames.get(i);
+            if (name.equals("xmlns")) {
+                namespaces.add("");
+                namespaces.add(attributeValues.get(i));
+            }
+            else if (name.startsWith("xmlns:")) {
+                namespaces.add(name.substring(6));
+                namespaces.add(attributeValues.get(i));
+            }
+        }
+
+        // Create the element like XMPPPacketReader does
+        String prefix = getPrefix(tagName);
+        String localName = prefix == null ? tagName : tagName.substring(prefix.length() + 1);
+        String namespace = getNamespaceURI(prefix == null ? "" : prefix);
+        if (namespace == null) {
+            if (prefix != null) {
+                throw new XMLNotWellFormedException("Undeclared namespace prefix in tag " + tagName);
+            }
+            namespace = "";
+        }
+        Element element;
+        // Do not include the namespace if this is the start tag of a new packet
+        // This avoids including "jabber:client", "jabber:server" or
+        // "jabber:component:accept"
+        if ("jabber:client".equals(namespace) ||
+                "jabber:server".equals(namespace) ||
+                "jabber:connectionmanager".equals(namespace) ||
+                "jabber:component:accept".equals(namespace) ||
+                "http://jabber.org/protocol/httpbind".equals(namespace)) {
+            element = docFactory.createElement(localName);
+        }
+        else if (prefix == null) {
+            element = docFactory.createElement(docFactory.createQName(localName, namespace));
+        }
+        else {
+            element = docFactory.createElement(docFactory.createQName(localName, prefix, namespace));
+        }
+        for (int i = namespaceMarks[depth]; i < namespaces.size(); i += 2) {
+            if (namespaces.get(i).length() > 0) {
+                element.addNamespace(namespaces.get(i), namespaces.get(i + 1));
+            }
+        }
+        for (int i = 0; i < attributeNames.size(); i++) {
+            String name = attributeNames.get(i);
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                continue;
+            }
+            String attributePrefix = getPrefix(name);
+            QName qname;
+            if (attributePrefix == null) {
+                qname = docFactory.createQName(name);
+            }
+            else {
+                String uri = "xml".equals(attributePrefix) ? XML_NAMESPACE : getNamespaceURI(attributePrefix);
+                if (uri == null) {
+                    throw new XMLNotWellFormedException("Undeclared namespace prefix in attribute " + name);
+                }
+                qname = docFactory.createQName(name.substring(attributePrefix.length() + 1), attributePrefix, uri);
+            }
+            element.addAttribute(qname, attributeValues.get(i));
+        }
+        attributeNames.clear();
+        attributeValues.clear();
+
+        if (current == null) {
+            docFactory.createDocument().add(element);
+        }
+        else {
+            current.add(element);
+        }
+        current = element;
+        depth++;
+        if (empty) {
+            closeElement();
+        }
+    }
+
+    private void endElement(String name) throws XMLNotWellFormedException {
+        status = CONTENT;
+        if (current == null) {
+            if (isStreamTag(name)) {
+                // Found closing stream:stream
+                foundMsg("</stream:stream>");
+                return;
+            }
+            throw new XMLNotWellFormedException("Unexpected end tag: " + name);
+        }
+        if (!name.equals(current.getQualifiedName()) && !name.equals(current.getName())) {
+            throw new XMLNotWellFormedException("End tag " + name + " does not match start tag " +
+                    current.getQualifiedName());
+        }
+        closeElement();
+    }
+
+    private void closeElement() {
+        depth--;
+        int mark = namespaceMarks[depth];
+        while (namespaces.size() > mark) {
+            namespaces.remove(namespaces.size() - 1);
+        }
+        Element parent = current.getParent();
+        if (parent == null) {
+            // Complete stanza found!
+            Element stanza = current;
+            current = null;
+            foundMsg(stanza);
+        }
+        else {
+            current = parent;
+        }
+    }
+
+    /*
+    * Method that add a message to the list and reinit parser.
+    */
+    private void foundMsg(Object msg) {
+        msgs.add(msg);
+        stanzaLength = 0;
+    }
+
+    private void flushText() {
+        if (text.length() > 0) {
+            if (current != null) {
+                current.addText(text.toString());
+            }
+            text.setLength(0);
+        }
+    }
+
+    private String takeToken() {
+        String value = token.toString();
+        token.setLength(0);
+        return value;
+    }
+
+    private String buildStreamHeader() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append('<').append(tagName);
+        for (int i = 0; i < attributeNames.size(); i++) {
+            sb.append(' ').append(attributeNames.get(i)).append("=\"");
+            String value = attributeValues.get(i);
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '&') {
+                    sb.append("&amp;");
+                }
+                else if (c == '<') {
+                    sb.append("&lt;");
+                }
+                else if (c == '"') {
+                    sb.append("&quot;");
+                }
+                else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        sb.append('>');
+        attributeNames.clear();
+        attributeValues.clear();
+        return sb.toString();
+    }
+
+    private String getNamespaceURI(String prefix) {
+        // Look for the most recent declaration of the prefix. Only prefixed namespaces of
+        // the stream header are kept, so its default namespace is never inherited.
+        for (int i = namespaces.size() - 2; i >= 0; i -= 2) {
+            if (namespaces.get(i).equals(prefix)) {
+                return namespaces.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String getPrefix(String qualifiedName) {
+        int index = qualifiedName.indexOf(':');
+        return index > 0 ? qualifiedName.substring(0, index) : null;
+    }
+
+    private static boolean isStreamTag(String name) {
+        return "stream:stream".equals(name) || "flash:stream".equals(name);
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t';
+    }
+}
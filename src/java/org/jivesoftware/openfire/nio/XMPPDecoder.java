@@ -26,7 +26,9 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 
 /**
  * Decoder class that parses ByteBuffers and generates XML stanzas. Generated
- * stanzas are then passed to the next filters.
+ * stanzas are then passed to the next filters. Stanzas are generated as Strings
+ * by default, or as dom4j Elements when the <tt>xmpp.parser.streaming</tt>
+ * property is <tt>true</tt>.
  *
  * @author Gaston Dombiak
  */
@@ -35,8 +37,21 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
     @Override
 	protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out)
             throws Exception {
+        Object xmlParser = session.getAttribute(ConnectionHandler.XML_PARSER);
+        if (xmlParser instanceof XMLStreamingParser) {
+            // Parse elements straight from the received bytes
+            XMLStreamingParser parser = (XMLStreamingParser) xmlParser;
+            parser.read(in);
+
+            if (parser.areThereMsgs()) {
+                for (Object stanza : parser.getMsgs()) {
+                    out.write(stanza);
+                }
+            }
+            return !in.hasRemaining();
+        }
         // Get the XML light parser from the IoSession
-        XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
+        XMLLightweightParser parser = (XMLLightweightParser) xmlParser;
         // Parse as many stanzas as possible from the received data
         parser.read(in);
 
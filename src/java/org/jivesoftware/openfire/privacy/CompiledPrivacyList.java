@@ -0,0 +1,366 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.privacy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Decision structure built from the items of a {@link PrivacyList}. Finding the first item
+ * that matches a packet does not iterate over the items of the list:
+ * <ul>
+ *      <li>Each item has a bitmask of the kinds of packets it applies to. A kind combines
+ *      the stanza type with the address that is checked (sender, recipient or none).</li>
+ *      <li>JID items are found with hash lookups of the full JID, bare JID and domain of
+ *      the address.</li>
+ *      <li>Group and subscription items are resolved against the roster when the list is
+ *      compiled, so contacts are found with a single hash lookup of their bare JID.</li>
+ * </ul>
+ * The first matching item is the one with the lowest position among the candidates found.
+ * A compiled list that uses the roster must be compiled again when the roster changes.
+ */
+class CompiledPrivacyList {
+
+    // Stanza types that items may filter
+    private static final int MESSAGE = 0;
+    private static final int IQ_STANZA = 1;
+    private static final int PRESENCE_IN = 2;
+    private static final int PRESENCE_OUT = 3;
+    private static final int OTHER = 4;
+    // Address of the packet that is checked against the item
+    private static final int SENDER = 0;
+    private static final int RECIPIENT = 1;
+    private static final int NO_ADDRESS = 2;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final JID userJID;
+    private final boolean[] allow;
+    /**
+     * Kinds of packets each item applies to. Bit <tt>type * 3 + address</tt> is set if the
+     * item applies to packets of that stanza type whose address is checked.
+     */
+    private final int[] kinds;
+    /**
+     * Position of the first fall-through item (i.e. with no type) of each kind of packet.
+     */
+    private final int[] fallThrough = new int[15];
+    private final Map<String, int[]> fullJIDItems = new HashMap<String, int[]>();
+    private final Map<String, int[]> bareJIDItems = new HashMap<String, int[]>();
+    private final Map<String, int[]> domainItems = new HashMap<String, int[]>();
+    /**
+     * Group and subscription items matched by each contact in the roster. Key: bare JID
+     */
+    private final Map<String, int[]> contactItems = new HashMap<String, int[]>();
+    /**
+     * Subscription items matched by contacts that are not in the roster.
+     */
+    private final int[] noContactItems;
+    private final Roster roster;
+    /**
+     * Positions and values of the subscription items, used for contacts that are only
+     * subscribed due to shared groups.
+     */
+    private final int[] subscriptionPositions;
+    private final RosterItem.SubType[] subscriptionValues;
+    private final long rosterVersion;
+    private final long creationTime = System.currentTimeMillis();
+
+    CompiledPrivacyList(JID userJID, List<PrivacyItem> items, Roster roster, long rosterVersion) {
+        this.userJID = userJID;
+        this.roster = roster;
+        this.rosterVersion = rosterVersion;
+        int size = items.size();
+        allow = new boolean[size];
+        kinds = new int[size];
+        Arrays.fill(fallThrough, Integer.MAX_VALUE);
+        Map<String, List<Integer>> fullJIDs = new HashMap<String, List<Integer>>();
+        Map<String, List<Integer>> bareJIDs = new HashMap<String, List<Integer>>();
+        Map<String, List<Integer>> domains = new HashMap<String, List<Integer>>();
+        // Positions of the group and subscription items
+        List<Integer> rosterItems = new ArrayList<Integer>();
+        List<Integer> subscriptions = new ArrayList<Integer>();
+        List<Integer> noContact = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            PrivacyItem item = items.get(i);
+            allow[i] = item.isAllow();
+            kinds[i] = getKinds(item);
+            JID jidValue = item.getJIDValue();
+            if (item.isFallThrough()) {
+                for (int kind = 0; kind < fallThrough.length; kind++) {
+                    if ((kinds[i] & (1 << kind)) != 0 && fallThrough[kind] == Integer.MAX_VALUE) {
+                        fallThrough[kind] = i;
+                    }
+                }
+            }
+            else if (item.isRosterRequired()) {
+                rosterItems.add(i);
+                if (item.getSubscriptionValue() != null) {
+                    subscriptions.add(i);
+                    if (item.getSubscriptionValue() == RosterItem.SUB_NONE) {
+                        noContact.add(i);
+                    }
+                }
+            }
+            else {
+                if (jidValue.getResource() != null) {
+                    // Rule is filtering by exact resource match
+                    // (e.g. <user@domain/resource> or <domain/resource>)
+                    add(fullJIDs, jidValue.toString(), i);
+                }
+                else if (jidValue.getNode() != null) {
+                    // Rule is filtering by any resource matches (e.g. <user@domain>)
+                    add(bareJIDs, jidValue.toBareJID(), i);
+                }
+                else {
+                    // Rule is filtering by domain (e.g. <domain>)
+                    add(domains, jidValue.getDomain(), i);
+                }
+            }
+        }
+        toArrays(fullJIDs, fullJIDItems);
+        toArrays(bareJIDs, bareJIDItems);
+        toArrays(domains, domainItems);
+        noContactItems = toArray(noContact);
+        subscriptionPositions = toArray(subscriptions);
+        subscriptionValues = new RosterItem.SubType[subscriptionPositions.length];
+        for (int i = 0; i < subscriptionPositions.length; i++) {
+            subscriptionValues[i] = items.get(subscriptionPositions[i]).getSubscriptionValue();
+        }
+        if (roster != null && !rosterItems.isEmpty()) {
+            // Precompute the group and subscription items matched by each contact of the roster
+            for (RosterItem rosterItem : roster.getRosterItems()) {
+                List<Integer> matches = new ArrayList<Integer>();
+                for (int i : rosterItems) {
+                    PrivacyItem item = items.get(i);
+                    if (item.getSubscriptionValue() != null ? item.getSubscriptionValue() == rosterItem.getSubStatus() :
+                            rosterItem.getGroups().contains(item.getGroupValue())) {
+                        matches.add(i);
+                    }
+                }
+                contactItems.put(rosterItem.getJid().toBareJID(), matches.isEmpty() ? EMPTY : toArray(matches));
+            }
+        }
+    }
+
+    /**
+     * Returns the version of the roster that was used to compile the list.
+     *
+     * @return the version of the roster that was used to compile the list.
+     */
+    long getRosterVersion() {
+        return rosterVersion;
+    }
+
+    /**
+     * Returns the time when the list was compiled.
+     *
+     * @return the time when the list was compiled.
+     */
+    long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Returns the position of the first item that matches the packet or -1 if no item
+     * matches the packet. The packet must have a sender.
+     *
+     * @param packet the packet to analyze.
+     * @return the position of the first item that matches the packet or -1 if none matches.
+     */
+    int getMatchingItem(Packet packet) {
+        Class<? extends Packet> packetClass = packet.getClass();
+        boolean isPresence = Presence.class.equals(packetClass);
+        boolean incoming = !userJID.toBareJID().equals(packet.getFrom().toBareJID());
+        int type;
+        if (Message.class.equals(packetClass)) {
+            type = MESSAGE;
+        }
+        else if (isPresence) {
+            Presence.Type presenceType = ((Presence) packet).getType();
+            // Only filter presences of type available or unavailable
+            // (ignore subscription-related presences)
+            if (presenceType == null || presenceType == Presence.Type.unavailable) {
+                // Calculate if packet is being received by the user
+                JID to = packet.getTo();
+                type = to != null && to.toBareJID().equals(userJID.toBareJID()) ? PRESENCE_IN : PRESENCE_OUT;
+            }
+            else {
+                type = OTHER;
+            }
+        }
+        else if (IQ.class.equals(packetClass)) {
+            type = IQ_STANZA;
+        }
+        else {
+            type = OTHER;
+        }
+        JID jid = null;
+        int address = NO_ADDRESS;
+        if (incoming) {
+            jid = packet.getFrom();
+            address = SENDER;
+        }
+        else if (isPresence) {
+            // Outgoing presences use the receipient of the packet in the analysis
+            jid = packet.getTo();
+            address = RECIPIENT;
+        }
+        int kind = 1 << (type * 3 + address);
+        int match = fallThrough[type * 3 + address];
+        if (jid != null) {
+            match = first(fullJIDItems.get(jid.toString()), kind, match);
+            match = first(bareJIDItems.get(jid.toBareJID()), kind, match);
+            match = first(domainItems.get(jid.getDomain()), kind, match);
+            int[] contact = contactItems.get(jid.toBareJID());
+            if (contact != null) {
+                match = first(contact, kind, match);
+            }
+            else {
+                match = first(getNoContactItems(jid), kind, match);
+            }
+        }
+        return match == Integer.MAX_VALUE ? -1 : match;
+    }
+
+    /**
+     * Returns true if the item at the specified position allows the packet.
+     *
+     * @param position the position of the item.
+     * @return true if the item allows the packet.
+     */
+    boolean isAllow(int position) {
+        return allow[position];
+    }
+
+    /**
+     * Returns the subscription items matched by a contact that is not in the roster of
+     * the user. The contact may still have a subscription due to shared groups.
+     */
+    private int[] getNoContactItems(JID jid) {
+        if (subscriptionPositions.length == 0 || roster == null) {
+            return noContactItems;
+        }
+        RosterItem.SubType subscription = RosterItem.SUB_NONE;
+        try {
+            subscription = roster.getRosterItem(jid).getSubStatus();
+        }
+        catch (UserNotFoundException e) {
+            // Sender is not in the user's roster
+        }
+        if (subscription == RosterItem.SUB_NONE) {
+            return noContactItems;
+        }
+        List<Integer> matches = new ArrayList<Integer>();
+        for (int i = 0; i < subscriptionPositions.length; i++) {
+            if (subscriptionValues[i] == subscription) {
+                matches.add(subscriptionPositions[i]);
+            }
+        }
+        return toArray(matches);
+    }
+
+    /**
+     * Returns the position of the first item of the specified positions that applies to
+     * the kind of packet, if it comes before the current match.
+     */
+    private int first(int[] positions, int kind, int match) {
+        if (positions != null) {
+            for (int position : positions) {
+                if (position >= match) {
+                    break;
+                }
+                if ((kinds[position] & kind) != 0) {
+                    return position;
+                }
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Returns the kinds of packets the item applies to.
+     */
+    private static int getKinds(PrivacyItem item) {
+        boolean fallThrough = item.isFallThrough();
+        int kinds = 0;
+        for (int type = MESSAGE; type <= OTHER; type++) {
+            if (!item.filtersStanzaType(type == MESSAGE, type == IQ_STANZA, type == PRESENCE_IN,
+                    type == PRESENCE_OUT)) {
+                continue;
+            }
+            for (int address = SENDER; address <= NO_ADDRESS; address++) {
+                boolean applies;
+                if (fallThrough) {
+                    applies = true;
+                }
+                else if (address == SENDER) {
+                    applies = item.filtersIncoming();
+                }
+                else if (address == RECIPIENT) {
+                    applies = item.filtersPresenceOut();
+                }
+                else {
+                    applies = false;
+                }
+                if (applies) {
+                    kinds |= 1 << (type * 3 + address);
+                }
+            }
+        }
+        return kinds;
+    }
+
+    private static void add(Map<String, List<Integer>> map, String key, int position) {
+        List<Integer> positions = map.get(key);
+        if (positions == null) {
+            positions = new ArrayList<Integer>();
+            map.put(key, positions);
+        }
+        positions.add(position);
+    }
+
+    private static void toArrays(Map<String, List<Integer>> source, Map<String, int[]> target) {
+        for (Map.Entry<String, List<Integer>> entry : source.entrySet()) {
+            target.put(entry.getKey(), toArray(entry.getValue()));
+        }
+    }
+
+    private static int[] toArray(List<Integer> positions) {
+        int[] array = new int[positions.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = positions.get(i);
+        }
+        return array;
+    }
+}
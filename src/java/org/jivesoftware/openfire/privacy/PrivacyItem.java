@@ -141,6 +141,78 @@ class PrivacyItem implements Cacheable, Comparable {
         return allow;
     }
 
+    /**
+     * Returns true if this item matches any sender or recipient (i.e. the item has no type).
+     *
+     * @return true if this item matches any sender or recipient.
+     */
+    boolean isFallThrough() {
+        return type == null;
+    }
+
+    /**
+     * Returns the JID to match or <tt>null</tt> if this item is not based on JIDs.
+     *
+     * @return the JID to match or null if this item is not based on JIDs.
+     */
+    JID getJIDValue() {
+        return jidValue;
+    }
+
+    /**
+     * Returns the roster group to match or <tt>null</tt> if this item is not based on groups.
+     *
+     * @return the roster group to match or null if this item is not based on groups.
+     */
+    String getGroupValue() {
+        return groupValue;
+    }
+
+    /**
+     * Returns the subscription status to match or <tt>null</tt> if this item is not based
+     * on subscription types.
+     *
+     * @return the subscription status to match or null if this item is not based on
+     *         subscription types.
+     */
+    RosterItem.SubType getSubscriptionValue() {
+        return subscriptionValue;
+    }
+
+    /**
+     * Returns true if this item filters the specified type of stanza. Stanzas of none of
+     * the specified types (e.g. subscription-related presences) are only filtered when the
+     * item filters everything.
+     *
+     * @param message true if the stanza is a message.
+     * @param iq true if the stanza is an IQ.
+     * @param presenceIn true if the stanza is a presence sent to the user.
+     * @param presenceOut true if the stanza is a presence sent by the user.
+     * @return true if this item filters the specified type of stanza.
+     */
+    boolean filtersStanzaType(boolean message, boolean iq, boolean presenceIn, boolean presenceOut) {
+        return filterEverything || (message && filterMessage) || (iq && filterIQ) ||
+                (presenceIn && filterPresence_in) || (presenceOut && filterPresence_out);
+    }
+
+    /**
+     * Returns true if the sender of incoming stanzas is checked by this item.
+     *
+     * @return true if the sender of incoming stanzas is checked by this item.
+     */
+    boolean filtersIncoming() {
+        return filterEverything || filterPresence_in || filterIQ || filterMessage;
+    }
+
+    /**
+     * Returns true if the recipient of outgoing presences is checked by this item.
+     *
+     * @return true if the recipient of outgoing presences is checked by this item.
+     */
+    boolean filtersPresenceOut() {
+        return filterEverything || filterPresence_out;
+    }
+
     private boolean matchesPacketSenderCondition(Packet packet, Roster roster, JID userJID) {
         if (type == null) {
             // This is the "fall-through" case
@@ -33,6 +33,7 @@ import org.dom4j.DocumentFactory;
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.roster.Roster;
 import org.jivesoftware.openfire.user.UserNotFoundException;
@@ -55,7 +56,12 @@ import org.xmpp.packet.Packet;
  * offline). A user may configure is he wants to have a default list or not. When no default list
  * is defined then communication will not be blocked. However, users may define an active list
  * for a particular session. Active lists override default list (if there is one) and will be used
- * only for the duration of the session.
+ * only for the duration of the session.<p>
+ *
+ * Packets are analyzed using a {@link CompiledPrivacyList} that is built from the list items
+ * the first time a packet is analyzed. The compiled list is built again when the list is
+ * modified, and when the roster of the user changes if the list has group or subscription
+ * items.
  *
  * @author Gaston Dombiak
  */
@@ -93,6 +99,14 @@ public class PrivacyList implements Cacheable, Externalizable {
     private String name;
     private boolean isDefault;
     private List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+    private boolean rosterRequired;
+    private volatile CompiledPrivacyList compiledList;
+
+    /**
+     * Time in milliseconds after which a compiled list that uses the roster is built again
+     * when running in a cluster, since the roster may have been modified by another node.
+     */
+    private static final long CLUSTER_ROSTER_REFRESH = 5000;
 
     /**
      * Constructor added for Externalizable. Do not use this constructor.
@@ -162,21 +176,50 @@ public class PrivacyList implements Cacheable, Externalizable {
             // Sender is the server so it's not denied
             return false;
         }
-        // Iterate over the rules and check each rule condition
-        Roster roster = getRoster();
-        for (PrivacyItem item : items) {
-            if (item.matchesCondition(packet, roster, userJID)) {
-                if (item.isAllow()) {
-                    return false;
-                }
-                if (Log.isDebugEnabled()) {
-                    Log.debug("PrivacyList: Packet was blocked: " + packet);
-                }
-                return true;
+        // Find the first rule whose condition matches the packet
+        CompiledPrivacyList compiled = getCompiledList();
+        int position = compiled.getMatchingItem(packet);
+        if (position == -1 || compiled.isAllow(position)) {
+            // If no rule blocked the communication then allow the packet to flow
+            return false;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("PrivacyList: Packet was blocked: " + packet);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the compiled form of this list, building it if this list or the roster of
+     * the user changed since it was built.
+     */
+    private CompiledPrivacyList getCompiledList() {
+        CompiledPrivacyList compiled = compiledList;
+        if (compiled != null && rosterRequired) {
+            long rosterVersion = PrivacyListManager.getInstance().getRosterVersion(userJID.getNode());
+            if (compiled.getRosterVersion() != rosterVersion || (ClusterManager.isClusteringStarted() &&
+                    System.currentTimeMillis() - compiled.getCreationTime() > CLUSTER_ROSTER_REFRESH)) {
+                compiled = null;
             }
         }
-        // If no rule blocked the communication then allow the packet to flow
-        return false;
+        if (compiled == null) {
+            List<PrivacyItem> listItems = items;
+            boolean useRoster = rosterRequired;
+            // Get the version before the roster so that later changes are detected
+            long rosterVersion = useRoster ?
+                    PrivacyListManager.getInstance().getRosterVersion(userJID.getNode()) : 0;
+            compiled = new CompiledPrivacyList(userJID, listItems, useRoster ? getRoster() : null, rosterVersion);
+            compiledList = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * Discards the compiled form of this list. The list will be compiled again the next
+     * time a packet is analyzed.
+     */
+    void invalidateCompiledList() {
+        compiledList = null;
     }
 
     /**
@@ -215,24 +258,32 @@ public class PrivacyList implements Cacheable, Externalizable {
      */
     private void updateList(Element listElement, boolean notify) {
         // Reset the list of items of this list
-        items = new ArrayList<PrivacyItem>();
+        List<PrivacyItem> newItems = new ArrayList<PrivacyItem>();
+        boolean newRosterRequired = false;
 
         List<Element> itemsElements = listElement.elements("item");
         for (Element itemElement : itemsElements) {
             PrivacyItem newItem = new PrivacyItem(itemElement);
-            items.add(newItem);
+            newItems.add(newItem);
             // If the user's roster is required to evaluation whether a packet must be blocked
             // then ensure that the roster is available
             if (newItem.isRosterRequired()) {
                 Roster roster = getRoster();
                 if (roster == null) {
                     Log.warn("Privacy item removed since roster of user was not found: " + userJID.getNode());
-                    items.remove(newItem);
+                    newItems.remove(newItem);
+                }
+                else {
+                    newRosterRequired = true;
                 }
             }
         }
         // Sort items collections
-        Collections.sort(items);
+        Collections.sort(newItems);
+        items = newItems;
+        rosterRequired = newRosterRequired;
+        // The compiled list has to be built with the new items
+        compiledList = null;
         if (notify) {
             // Trigger event that this list has been modified
             PrivacyListManager.getInstance().dispatchModifiedEvent(this);
@@ -17,11 +17,24 @@
 package org.jivesoftware.openfire.privacy;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.event.SessionEventDispatcher;
+import org.jivesoftware.openfire.event.SessionEventListener;
+import org.jivesoftware.openfire.event.UserEventAdapter;
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterEventDispatcher;
+import org.jivesoftware.openfire.roster.RosterEventListener;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Privacy list manager creates, gets, updates and removes privacy lists. Loaded lists
@@ -38,6 +51,16 @@ public class PrivacyListManager {
 
     private List<PrivacyListEventListener> listeners = new CopyOnWriteArrayList<PrivacyListEventListener>();
 
+    /**
+     * Version of the roster of each user. Compiled privacy lists that use the roster are
+     * built again when the version of the roster changes. Versions are taken from a single
+     * sequence, so an entry can be removed at any time: the next version handed out for
+     * the user differs from every version a compiled list may have kept.
+     * Key: username, Value: version of the roster
+     */
+    private final ConcurrentHashMap<String, Long> rosterVersions = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong rosterVersionSequence = new AtomicLong();
+
     static {
         PrivacyListEventListener eventListener = new PrivacyListEventListener() {
             public void privacyListCreated(PrivacyList list) {
@@ -49,12 +72,68 @@ public class PrivacyListManager {
             }
 
             public void privacyListModified(PrivacyList list) {
+                // The compiled list no longer matches the list
+                list.invalidateCompiledList();
                 // Set object again in cache. This is done so that other cluster nodes
                 // get refreshed with latest version of the object
                 listsCache.put(getCacheKey(list.getUserJID().getNode(), list.getName()), list);
             }
         };
         instance.addListener(eventListener);
+
+        RosterEventDispatcher.addListener(new RosterEventListener() {
+            public void rosterLoaded(Roster roster) {
+                instance.rosterModified(roster.getUsername());
+            }
+
+            public boolean addingContact(Roster roster, RosterItem item, boolean persistent) {
+                return true;
+            }
+
+            public void contactAdded(Roster roster, RosterItem item) {
+                instance.rosterModified(roster.getUsername());
+            }
+
+            public void contactUpdated(Roster roster, RosterItem item) {
+                instance.rosterModified(roster.getUsername());
+            }
+
+            public void contactDeleted(Roster roster, RosterItem item) {
+                instance.rosterModified(roster.getUsername());
+            }
+        });
+
+        // Forget the roster versions of users that are no longer connected or deleted
+        SessionEventDispatcher.addListener(new SessionEventListener() {
+            public void sessionCreated(Session session) {
+                // Do nothing
+            }
+
+            public void sessionDestroyed(Session session) {
+                String username = session.getAddress().getNode();
+                if (username != null) {
+                    instance.rosterVersions.remove(username);
+                }
+            }
+
+            public void anonymousSessionCreated(Session session) {
+                // Do nothing
+            }
+
+            public void anonymousSessionDestroyed(Session session) {
+                // Do nothing
+            }
+
+            public void resourceBound(Session session) {
+                // Do nothing
+            }
+        });
+        UserEventDispatcher.addListener(new UserEventAdapter() {
+            @Override
+            public void userDeleting(User user, Map params) {
+                instance.rosterVersions.remove(user.getUsername());
+            }
+        });
     }
 
     /**
@@ -244,6 +323,29 @@ public class PrivacyListManager {
         return getCacheKey(username, "__d_e_f_a_u_l_t__");
     }
 
+    /**
+     * Returns the version of the roster of the specified user. The version changes every
+     * time the roster is loaded or modified.
+     *
+     * @param username the name of the user.
+     * @return the version of the roster of the user.
+     */
+    long getRosterVersion(String username) {
+        Long version = rosterVersions.get(username);
+        if (version == null) {
+            version = rosterVersionSequence.incrementAndGet();
+            Long existing = rosterVersions.putIfAbsent(username, version);
+            if (existing != null) {
+                version = existing;
+            }
+        }
+        return version;
+    }
+
+    private void rosterModified(String username) {
+        rosterVersions.put(username, rosterVersionSequence.incrementAndGet());
+    }
+
     void dispatchModifiedEvent(PrivacyList privacyList) {
         // Trigger event that a privacy list has been modified
         for (PrivacyListEventListener listener : listeners) {
@@ -29,6 +29,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,6 +58,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
 import org.xmpp.packet.Presence;
 
 /**
@@ -595,6 +597,8 @@ public class Roster implements Cacheable, Externalizable {
             // No privacy list was found (based on the session) so check if there is a default list
             list = PrivacyListManager.getInstance().getDefaultPrivacyList(username);
         }
+        // Bare JIDs of the entities that should receive the presence and the address of each one
+        Map<JID, JID> contacts = new LinkedHashMap<JID, JID>();
         // Broadcast presence to subscribed entities
         for (RosterItem item : rosterItems.values()) {
             if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
@@ -604,14 +608,7 @@ public class Roster implements Cacheable, Externalizable {
                     continue;
                 }
                 JID searchNode = new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true);
-                for (JID jid : routingTable.getRoutes(searchNode, null)) {
-                    try {
-                        routingTable.routePacket(jid, packet, false);
-                    } catch (Exception e) {
-                        // Theoretically only happens if session has been closed.
-                        Log.debug(e.getMessage(), e);
-                    }
-                }
+                contacts.put(searchNode, item.getJid());
             }
         }
         // Broadcast presence to shared contacts whose subscription status is FROM
@@ -628,15 +625,31 @@ public class Roster implements Cacheable, Externalizable {
                 // Outgoing presence notifications are blocked for this contact
                 continue;
             }
-            for (JID jid : routingTable.getRoutes(new JID(contact), null)) {
-                try {
-                    routingTable.routePacket(jid, packet, false);
-                } catch (Exception e) {
-                    // Theoretically only happens if session has been closed.
-                    Log.debug(e.getMessage(), e);
-                }
+            JID contactJID = new JID(contact);
+            if (!contacts.containsKey(contactJID)) {
+                contacts.put(contactJID, contactJID);
             }
         }
+        // Resolve the routes of all the contacts at once and route the presences in batches
+        List<JID> jids = new ArrayList<JID>();
+        List<Packet> packets = new ArrayList<Packet>();
+        for (Map.Entry<JID, List<JID>> entry : routingTable.getRoutes(contacts.keySet(), null).entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            Presence presence = packet.createCopy();
+            presence.setTo(contacts.get(entry.getKey()));
+            for (JID jid : entry.getValue()) {
+                jids.add(jid);
+                packets.add(presence);
+            }
+        }
+        try {
+            routingTable.routePackets(jids, packets, false);
+        } catch (Exception e) {
+            // Theoretically only happens if session has been closed.
+            Log.debug(e.getMessage(), e);
+        }
         if (from != null) {
             // Broadcast presence to other user's resources
             sessionManager.broadcastPresenceToOtherResources(from, packet);
@@ -1016,6 +1029,8 @@ public class Roster implements Cacheable, Externalizable {
                 }
                 // Brodcast to all the user resources of the updated roster item
                 broadcast(item, false);
+                // Fire event indicating that a roster item has been updated
+                RosterEventDispatcher.contactUpdated(this, item);
             }
         } catch (SharedGroupException e) {
             // Do nothing. Checkings are disabled so this exception should never happen.
@@ -1077,6 +1092,8 @@ public class Roster implements Cacheable, Externalizable {
                 }
                 // Brodcast to all the user resources of the updated roster item
                 broadcast(item, false);
+                // Fire event indicating that a roster item has been updated
+                RosterEventDispatcher.contactUpdated(this, item);
             }
         } catch (SharedGroupException e) {
             // Do nothing. Checkings are disabled so this exception should never happen.
@@ -38,7 +38,10 @@ import org.slf4j.LoggerFactory;
  * Authoritative Server verified the key sent by this server).<p>
  *
  * This class is also responsible for closing the outgoing connection if the remote server sent
- * an end of the stream element.
+ * an end of the stream element.<p>
+ *
+ * Readers of NIO connections do not read from the connection. Instead, the elements sent by
+ * the remote server are pushed using {@link #elementReceived(Element)}.
  *
  * @author Gaston Dombiak
  */
@@ -59,6 +62,13 @@ public class OutgoingServerSocketReader {
         init();
     }
 
+    /**
+     * Creates a reader for a NIO connection. Received elements will be pushed by the
+     * connection so no thread is created for reading from the connection.
+     */
+    public OutgoingServerSocketReader() {
+    }
+
     /**
      * Returns the OutgoingServerSession for which this reader is working for or <tt>null</tt> if
      * a OutgoingServerSession was not created yet. While the OutgoingServerSession is being
@@ -94,6 +104,23 @@ public class OutgoingServerSocketReader {
         return elements.poll(timeout, unit);
     }
 
+    /**
+     * Stores an element that was received from the remote server through a NIO connection.
+     *
+     * @param doc the received element.
+     */
+    public void elementReceived(Element doc) {
+        elements.add(doc);
+    }
+
+    /**
+     * Closes the session since the remote server has sent an end of stream element
+     * or the underlying NIO connection was closed.
+     */
+    public void connectionClosed() {
+        closeSession();
+    }
+
     private void init() {
         // Create a thread that will read and store DOM Elements.
         Thread thread = new Thread("Outgoing Server Reader") {
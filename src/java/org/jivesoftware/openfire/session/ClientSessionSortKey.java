@@ -0,0 +1,126 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.session;
+
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.xmpp.packet.JID;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Snapshot of the values of a client session that are used for sorting sessions. Sorting
+ * snapshots instead of sessions guarantees a consistent order while the sessions keep
+ * changing, and allows cluster nodes to return their sorted sessions without sending the
+ * sessions themselves.
+ *
+ * @see org.jivesoftware.openfire.SessionResultFilter#getSortKeyComparator()
+ */
+public class ClientSessionSortKey implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private String address;
+    private String username;
+    private String resource;
+    private long creationDate;
+    private long lastActiveDate;
+    private long numClientPackets;
+    private long numServerPackets;
+
+    public ClientSessionSortKey() {
+    }
+
+    public ClientSessionSortKey(ClientSession session) {
+        JID jid = session.getAddress();
+        address = jid.toString();
+        username = session.isAnonymousUser() || jid.getNode() == null ? "" : jid.getNode();
+        resource = jid.getResource() == null ? "" : jid.getResource();
+        creationDate = session.getCreationDate().getTime();
+        lastActiveDate = session.getLastActiveDate().getTime();
+        numClientPackets = session.getNumClientPackets();
+        numServerPackets = session.getNumServerPackets();
+    }
+
+    /**
+     * Returns the full JID of the session.
+     *
+     * @return the full JID of the session.
+     */
+    public JID getAddress() {
+        return new JID(address, true);
+    }
+
+    /**
+     * Returns the username of the session or an empty string for anonymous sessions.
+     *
+     * @return the username of the session or an empty string for anonymous sessions.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public long getCreationDate() {
+        return creationDate;
+    }
+
+    public long getLastActiveDate() {
+        return lastActiveDate;
+    }
+
+    public long getNumClientPackets() {
+        return numClientPackets;
+    }
+
+    public long getNumServerPackets() {
+        return numServerPackets;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeSafeUTF(out, address);
+        ExternalizableUtil.getInstance().writeSafeUTF(out, username);
+        ExternalizableUtil.getInstance().writeSafeUTF(out, resource);
+        ExternalizableUtil.getInstance().writeLong(out, creationDate);
+        ExternalizableUtil.getInstance().writeLong(out, lastActiveDate);
+        ExternalizableUtil.getInstance().writeLong(out, numClientPackets);
+        ExternalizableUtil.getInstance().writeLong(out, numServerPackets);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        address = ExternalizableUtil.getInstance().readSafeUTF(in);
+        username = ExternalizableUtil.getInstance().readSafeUTF(in);
+        resource = ExternalizableUtil.getInstance().readSafeUTF(in);
+        creationDate = ExternalizableUtil.getInstance().readLong(in);
+        lastActiveDate = ExternalizableUtil.getInstance().readLong(in);
+        numClientPackets = ExternalizableUtil.getInstance().readLong(in);
+        numServerPackets = ExternalizableUtil.getInstance().readLong(in);
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
@@ -38,6 +38,7 @@ public final class ConnectionSettings {
         public static final String PORT = "xmpp.server.socket.port";
         public static final String REMOTE_SERVER_PORT = "xmpp.server.socket.remotePort";
         public static final String SOCKET_READ_TIMEOUT = "xmpp.server.read.timeout";
+        public static final String NIO_ENABLED = "xmpp.server.nio.enabled";
 
         public static final String QUEUE_MAX_THREADS = "xmpp.server.outgoing.max.threads";
         public static final String QUEUE_SIZE = "xmpp.server.outgoing.queue";
@@ -0,0 +1,76 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.session;
+
+import org.jivesoftware.openfire.SessionResultFilter;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.List;
+
+/**
+ * Task that will be executed in cluster nodes to get the first client sessions hosted by
+ * the cluster node in the sort order of a {@link SessionResultFilter}. Snapshots of the
+ * sessions are returned so that the requester can merge the results of all the nodes.
+ */
+public class GetSortedSessionsTask implements ClusterTask {
+    private static final long serialVersionUID = 1L;
+
+    private int sortField;
+    private int sortOrder;
+    private int maxResults;
+    private List<ClientSessionSortKey> sessions;
+
+    public GetSortedSessionsTask() {
+    }
+
+    public GetSortedSessionsTask(SessionResultFilter filter, int maxResults) {
+        this.sortField = filter.getSortField();
+        this.sortOrder = filter.getSortOrder();
+        this.maxResults = maxResults;
+    }
+
+    public Object getResult() {
+        return sessions;
+    }
+
+    public void run() {
+        SessionResultFilter filter = new SessionResultFilter();
+        filter.setSortField(sortField);
+        filter.setSortOrder(sortOrder);
+        sessions = XMPPServer.getInstance().getRoutingTable().getClientsRoutes(filter, maxResults);
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeInt(out, sortField);
+        ExternalizableUtil.getInstance().writeInt(out, sortOrder);
+        ExternalizableUtil.getInstance().writeInt(out, maxResults);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        sortField = ExternalizableUtil.getInstance().readInt(in);
+        sortOrder = ExternalizableUtil.getInstance().readInt(in);
+        maxResults = ExternalizableUtil.getInstance().readInt(in);
+    }
+}
@@ -29,10 +29,13 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLHandshakeException;
 
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
@@ -46,11 +49,14 @@ import org.jivesoftware.openfire.net.DNSUtil;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.SASLAuthentication;
 import org.jivesoftware.openfire.net.SocketConnection;
+import org.jivesoftware.openfire.nio.NIOConnection;
+import org.jivesoftware.openfire.nio.OutgoingServerConnectionHandler;
 import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
 import org.jivesoftware.openfire.server.RemoteServerConfiguration;
 import org.jivesoftware.openfire.server.RemoteServerManager;
 import org.jivesoftware.openfire.server.ServerDialback;
 import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
+import org.jivesoftware.openfire.spi.ConnectionManagerImpl;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
 import org.slf4j.Logger;
@@ -202,6 +208,18 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
     private static LocalOutgoingServerSession createOutgoingSession(String domain, String hostname,
             int port) {
 
+        NioSocketConnector connector =
+                ((ConnectionManagerImpl) XMPPServer.getInstance().getConnectionManager()).getServerSocketConnector();
+        if (connector != null) {
+            // Connect to remote server using XMPP 1.0 and fall back to server dialback (pre XMPP 1.0)
+            LocalOutgoingServerSession session = createOutgoingNIOSession(connector, domain, hostname, port, false);
+            if (session == null && ServerDialback.isEnabled()) {
+                Log.debug("LocalOutgoingServerSession: OS - Going to try connecting using server dialback with: " + hostname);
+                session = createOutgoingNIOSession(connector, domain, hostname, port, true);
+            }
+            return session;
+        }
+
         String localDomainName = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
         boolean useTLS = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ENABLED, true);
         RemoteServerConfiguration configuration = RemoteServerManager.getConfiguration(hostname);
@@ -302,15 +320,10 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                     // Check if we are going to try server dialback (XMPP 1.0)
                     else if (ServerDialback.isEnabled() && features.element("dialback") != null) {
                         Log.debug("LocalOutgoingServerSession: OS - About to try connecting using server dialback XMPP 1.0 with: " + hostname);
-                        ServerDialback method = new ServerDialback(connection, domain);
-                        OutgoingServerSocketReader newSocketReader = new OutgoingServerSocketReader(reader);
-                        if (method.authenticateDomain(newSocketReader, domain, hostname, id)) {
+                        LocalOutgoingServerSession session = authenticateWithDialback(connection,
+                                new OutgoingServerSocketReader(reader), domain, hostname, id);
+                        if (session != null) {
                             Log.debug("LocalOutgoingServerSession: OS - SERVER DIALBACK XMPP 1.0 with " + hostname + " was successful");
-                            StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
-                            LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, newSocketReader, streamID);
-                            connection.init(session);
-                            // Set the hostname as the address of the session
-                            session.setAddress(new JID(null, hostname, null));
                             return session;
                         }
                         else {
@@ -496,7 +509,7 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
             	}
             	if (result == null) {
             		// SASL unavailable or failed, try dialback.
-            		result = attemptDialbackOverTLS(connection, reader, domain, hostname, id);
+            		result = attemptDialbackOverTLS(connection, new OutgoingServerSocketReader(reader), domain, hostname, id);
             	}
                 
                 return result;
@@ -512,19 +525,13 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         }
     }
 
-    private static LocalOutgoingServerSession attemptDialbackOverTLS(Connection connection, XMPPPacketReader reader, String domain, String hostname, String id) {
+    private static LocalOutgoingServerSession attemptDialbackOverTLS(Connection connection, OutgoingServerSocketReader socketReader, String domain, String hostname, String id) {
     	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
         if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
             log.debug("Trying to connecting using dialback over TLS.");
-            ServerDialback method = new ServerDialback(connection, domain);
-            OutgoingServerSocketReader newSocketReader = new OutgoingServerSocketReader(reader);
-            if (method.authenticateDomain(newSocketReader, domain, hostname, id)) {
+            LocalOutgoingServerSession session = authenticateWithDialback(connection, socketReader, domain, hostname, id);
+            if (session != null) {
                 log.debug("Dialback over TLS was successful.");
-                StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
-                LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, newSocketReader, streamID);
-                connection.init(session);
-                // Set the hostname as the address of the session
-                session.setAddress(new JID(null, hostname, null));
                 return session;
             }
             else {
@@ -586,6 +593,264 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         return response != null && "success".equals(response.getName());
     }
 
+    /**
+     * Authenticates the domain with the remote server using server dialback and creates a
+     * new session for the connection if the remote server accepted the domain.
+     *
+     * @param connection the connection with the remote server.
+     * @param socketReader the reader of the elements sent by the remote server.
+     * @param domain the local domain to authenticate with the remote server.
+     * @param hostname the hostname of the remote server.
+     * @param id the stream id sent by the remote server.
+     * @return the new outgoing session or null if the domain was not authenticated.
+     */
+    private static LocalOutgoingServerSession authenticateWithDialback(Connection connection,
+            OutgoingServerSocketReader socketReader, String domain, String hostname, String id) {
+        ServerDialback method = new ServerDialback(connection, domain);
+        if (method.authenticateDomain(socketReader, domain, hostname, id)) {
+            StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
+            LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, socketReader, streamID);
+            connection.init(session);
+            // Set the hostname as the address of the session
+            session.setAddress(new JID(null, hostname, null));
+            return session;
+        }
+        return null;
+    }
+
+    /**
+     * Establishes a new outgoing session to a remote server over a NIO connection. The session
+     * is negotiated the same way as when using blocking sockets but elements sent by the remote
+     * server are read by the shared NIO threads and queued in the reader of the connection.
+     *
+     * @param connector the connector to use for establishing the connection.
+     * @param domain the local domain to authenticate with the remote server.
+     * @param hostname the hostname of the remote server.
+     * @param port default port to use to establish the connection.
+     * @param dialbackOnly true if server dialback should be used without negotiating TLS or SASL.
+     * @return new outgoing session to a remote server or null if none was established.
+     */
+    private static LocalOutgoingServerSession createOutgoingNIOSession(NioSocketConnector connector,
+            String domain, String hostname, int port, boolean dialbackOnly) {
+
+        String localDomainName = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+        boolean useTLS = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ENABLED, true);
+
+        String realHostname = null;
+        int realPort = port;
+        OutgoingServerSocketReader socketReader = new OutgoingServerSocketReader();
+        NIOConnection connection = null;
+        // Get a list of real hostnames to connect to using DNS lookup of the specified hostname
+        for (DNSUtil.HostAddress address : DNSUtil.resolveXMPPDomain(hostname, port)) {
+            realHostname = address.getHost();
+            realPort = address.getPort();
+            try {
+                Log.debug("LocalOutgoingServerSession: OS - Trying to connect to " + hostname + ":" + port +
+                        "(DNS lookup: " + realHostname + ":" + realPort + ")");
+                // Establish a TCP connection to the Receiving Server
+                connection = OutgoingServerConnectionHandler.connect(connector,
+                        new InetSocketAddress(realHostname, realPort), socketReader);
+                Log.debug("LocalOutgoingServerSession: OS - Plain connection to " + hostname + ":" + port + " successful");
+                break;
+            }
+            catch (IOException e) {
+                Log.warn("Error trying to connect to remote server: " + hostname +
+                        "(DNS lookup: " + realHostname + ":" + realPort + "): " + e.toString());
+            }
+        }
+        if (connection == null) {
+            return null;
+        }
+
+        try {
+            // Send the stream header
+            StringBuilder openingStream = new StringBuilder();
+            openingStream.append("<stream:stream");
+            openingStream.append(" xmlns:db=\"jabber:server:dialback\"");
+            openingStream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+            openingStream.append(" xmlns=\"jabber:server\"");
+            openingStream.append(" from=\"").append(localDomainName).append("\""); // OF-673
+            openingStream.append(" to=\"").append(hostname).append("\"");
+            openingStream.append(" version=\"1.0\">");
+            connection.deliverRawText(openingStream.toString());
+
+            // Get the answer from the Receiving Server
+            Element stream = nextElement(socketReader);
+            if (stream == null || !"stream".equals(stream.getName())) {
+                Log.debug("LocalOutgoingServerSession: OS - Error, no stream header was received from " + hostname);
+            }
+            else if (dialbackOnly || stream.attributeValue("version") == null ||
+                    decodeVersion(stream.attributeValue("version"))[0] < 1) {
+                // Use server dialback (pre XMPP 1.0) over the plain connection
+                if ("jabber:server:dialback".equals(stream.getNamespaceForPrefix("db"))) {
+                    LocalOutgoingServerSession session = authenticateWithDialback(connection, socketReader,
+                            domain, hostname, stream.attributeValue("id"));
+                    if (session != null) {
+                        return session;
+                    }
+                }
+                else {
+                    Log.debug("LocalOutgoingServerSession: OS - Server dialback is not supported by " + hostname);
+                }
+            }
+            else {
+                // Get the stream features
+                Element features = nextElement(socketReader);
+                if (features != null && "features".equals(features.getName())) {
+                    // Check if TLS is enabled
+                    if (useTLS && features.element("starttls") != null) {
+                        // Secure the connection with TLS and authenticate using SASL
+                        LocalOutgoingServerSession answer =
+                                secureAndAuthenticate(hostname, connection, socketReader, openingStream, domain);
+                        if (answer != null) {
+                            // Everything went fine so return the secured and
+                            // authenticated connection
+                            return answer;
+                        }
+                    }
+                    // Check if we are going to try server dialback (XMPP 1.0)
+                    else if (ServerDialback.isEnabled() && features.element("dialback") != null) {
+                        Log.debug("LocalOutgoingServerSession: OS - About to try connecting using server dialback XMPP 1.0 with: " + hostname);
+                        LocalOutgoingServerSession session = authenticateWithDialback(connection, socketReader,
+                                domain, hostname, stream.attributeValue("id"));
+                        if (session != null) {
+                            Log.debug("LocalOutgoingServerSession: OS - SERVER DIALBACK XMPP 1.0 with " + hostname + " was successful");
+                            return session;
+                        }
+                        Log.debug("LocalOutgoingServerSession: OS - Error, SERVER DIALBACK with " + hostname + " failed");
+                    }
+                }
+                else {
+                    Log.debug("LocalOutgoingServerSession: OS - Error, <starttls> was not received");
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error creating secured outgoing session to remote server: " + hostname +
+                    "(DNS lookup: " + realHostname + ":" + realPort + "): " + e.toString());
+        }
+        // Something went wrong so close the connection
+        connection.close();
+        return null;
+    }
+
+    private static LocalOutgoingServerSession secureAndAuthenticate(String hostname,
+            NIOConnection connection, OutgoingServerSocketReader socketReader, StringBuilder openingStream,
+            String domain) throws Exception {
+        final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
+        log.debug("Indicating we want TLS to " + hostname);
+        connection.deliverRawText("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+
+        // Wait for the <proceed> response
+        Element proceed = nextElement(socketReader);
+        if (proceed == null || !proceed.getName().equals("proceed")) {
+            log.debug("Error, <proceed> was not received!");
+            return null;
+        }
+        log.debug("Negotiating TLS...");
+        boolean needed = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_VERIFY, true) &&
+                JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_CHAIN_VERIFY, true) &&
+                !JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ACCEPT_SELFSIGNED_CERTS, false);
+        connection.startTLS(true, hostname, needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
+        // Initiate a new stream. The stream header will be sent once the TLS handshake is done
+        connection.deliverRawText(openingStream.toString());
+
+        // The remote server sends a new stream header once TLS was negotiated
+        Element stream = nextElement(socketReader);
+        if (stream == null || !"stream".equals(stream.getName())) {
+            log.debug("Got no stream header after negotiating TLS.");
+            return null;
+        }
+        log.debug("TLS negotiation was successful.");
+        if (!SASLAuthentication.verifyCertificates(connection.getPeerCertificates(), hostname)) {
+            log.debug("X.509/PKIX failure on outbound session");
+            if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
+                log.debug("Will continue with dialback.");
+            } else {
+                log.warn("No TLS auth, but TLS auth required.");
+                return null;
+            }
+        }
+
+        // Get new stream features. Stream compression is not requested since it is
+        // currently unsupported for outgoing sessions
+        Element features = nextElement(socketReader);
+        if (features == null) {
+            log.debug("Cannot create outgoing server session, as neither SASL mechanisms nor SERVER DIALBACK were offered by " + hostname);
+            return null;
+        }
+
+        // Bookkeeping: determine what functionality the remote server offers.
+        boolean saslEXTERNALoffered = false;
+        if (features.element("mechanisms") != null) {
+            Iterator<Element> it = features.element("mechanisms").elementIterator();
+            while (it.hasNext()) {
+                Element mechanism = it.next();
+                if ("EXTERNAL".equals(mechanism.getTextTrim())) {
+                    saslEXTERNALoffered = true;
+                    break;
+                }
+            }
+        }
+        log.debug("Offering dialback functionality: {}", features.element("dialback") != null);
+        log.debug("Offering EXTERNAL SASL: {}", saslEXTERNALoffered);
+
+        LocalOutgoingServerSession result = null;
+        // first, try SASL
+        if (saslEXTERNALoffered) {
+            result = attemptSASLexternal(connection, socketReader, domain, hostname, openingStream);
+        }
+        if (result == null) {
+            // SASL unavailable or failed, try dialback.
+            result = attemptDialbackOverTLS(connection, socketReader, domain, hostname, stream.attributeValue("id"));
+        }
+        return result;
+    }
+
+    private static LocalOutgoingServerSession attemptSASLexternal(NIOConnection connection,
+            OutgoingServerSocketReader socketReader, String domain, String hostname,
+            StringBuilder openingStream) throws InterruptedException {
+        final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
+        log.debug("Starting EXTERNAL SASL.");
+        StringBuilder sb = new StringBuilder();
+        sb.append("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">");
+        sb.append(StringUtils.encodeBase64(domain));
+        sb.append("</auth>");
+        connection.deliverRawText(sb.toString());
+
+        Element response = nextElement(socketReader);
+        if (response == null || !"success".equals(response.getName())) {
+            log.debug("EXTERNAL SASL failed.");
+            return null;
+        }
+        log.debug("EXTERNAL SASL was successful.");
+        // SASL was successful so initiate a new stream
+        connection.deliverRawText(openingStream.toString());
+        Element stream = nextElement(socketReader);
+        if (stream == null || !"stream".equals(stream.getName())) {
+            log.debug("Got no stream header after EXTERNAL SASL.");
+            return null;
+        }
+
+        // SASL authentication was successful so create new OutgoingServerSession
+        StreamID streamID = new BasicStreamIDFactory().createStreamID(stream.attributeValue("id"));
+        LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, socketReader, streamID);
+        connection.init(session);
+        // Set the hostname as the address of the session
+        session.setAddress(new JID(null, hostname, null));
+        // Set that the session was created using TLS+SASL (no server dialback)
+        session.usingServerDialback = false;
+        return session;
+    }
+
+    /**
+     * Returns the next element sent by the remote server or null if none was received
+     * before the socket timeout elapsed.
+     */
+    private static Element nextElement(OutgoingServerSocketReader socketReader) throws InterruptedException {
+        return socketReader.getElement(RemoteServerManager.getSocketTimeout(), TimeUnit.MILLISECONDS);
+    }
+
     public LocalOutgoingServerSession(String serverName, Connection connection,
             OutgoingServerSocketReader socketReader, StreamID streamID) {
         super(serverName, connection, streamID);
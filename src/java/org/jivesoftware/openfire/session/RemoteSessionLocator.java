@@ -22,6 +22,8 @@ package org.jivesoftware.openfire.session;
 
 import org.xmpp.packet.JID;
 
+import java.util.Collection;
+
 /**
  * Locator of sessions that are being hosted by other cluster nodes. Use
  * {@link org.jivesoftware.openfire.XMPPServer#setRemoteSessionLocator(RemoteSessionLocator)} to
@@ -91,4 +93,15 @@ public interface RemoteSessionLocator {
      * @return a session surrogate of an incoming server session hosted by a remote cluster node.
      */
     OutgoingServerSession getOutgoingServerSession(byte[] nodeID, JID address);
+
+    /**
+     * Reads in advance the details (stream ID, dates, packet counters, etc.) of the session
+     * surrogates among the specified sessions. Use this method before reading the details
+     * of many sessions so that surrogates do not have to ask their cluster nodes one value
+     * and one session at a time. Sessions that are not surrogates created by this locator
+     * are ignored.
+     *
+     * @param sessions the sessions whose details are going to be read.
+     */
+    void prefetchSessionDetails(Collection<? extends Session> sessions);
 }
@@ -57,6 +57,7 @@ import org.apache.mina.integration.jmx.IoServiceMBean;
 import org.apache.mina.integration.jmx.IoSessionMBean;
 import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
 import org.jivesoftware.openfire.ConnectionManager;
 import org.jivesoftware.openfire.JMXManager;
 import org.jivesoftware.openfire.PacketDeliverer;
@@ -79,6 +80,8 @@ import org.jivesoftware.openfire.net.StalledSessionsFilter;
 import org.jivesoftware.openfire.nio.ClientConnectionHandler;
 import org.jivesoftware.openfire.nio.ComponentConnectionHandler;
 import org.jivesoftware.openfire.nio.MultiplexerConnectionHandler;
+import org.jivesoftware.openfire.nio.OutgoingServerConnectionHandler;
+import org.jivesoftware.openfire.nio.ServerConnectionHandler;
 import org.jivesoftware.openfire.nio.XMPPCodecFactory;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.util.CertificateEventListener;
@@ -102,6 +105,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private static final String CLIENT_SSL_SOCKET_ACCEPTOR_NAME = "client_ssl";
     private static final String COMPONENT_SOCKET_ACCEPTOR_NAME = "component";
     private static final String MULTIPLEXER_SOCKET_ACCEPTOR_NAME = "multiplexer";
+    private static final String SERVER_SOCKET_ACCEPTOR_NAME = "server";
 
     private static final Logger Log = LoggerFactory.getLogger(ConnectionManagerImpl.class);
 
@@ -109,6 +113,8 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private NioSocketAcceptor sslSocketAcceptor;
     private NioSocketAcceptor componentAcceptor;
     private SocketAcceptThread serverSocketThread;
+    private NioSocketAcceptor serverSocketAcceptor;
+    private NioSocketConnector serverSocketConnector;
     private NioSocketAcceptor multiplexerSocketAcceptor;
     private ArrayList<ServerPort> ports;
 
@@ -133,6 +139,8 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         }
         // Create the port listener for s2s communication
         createServerListener(localIPAddress);
+        // Create the connector for outgoing s2s connections
+        createServerConnector();
         // Create the port listener for Connections Multiplexers
         createConnectionManagerListener();
         // Create the port listener for external components
@@ -189,7 +197,15 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
 
     private void createServerListener(String localIPAddress) {
         // Start servers socket unless it's been disabled.
-        if (isServerListenerEnabled()) {
+        if (isServerListenerEnabled() && isServerNIOEnabled()) {
+            // Create SocketAcceptor with correct number of processors
+            serverSocketAcceptor = buildSocketAcceptor(SERVER_SOCKET_ACCEPTOR_NAME);
+            serverSocketAcceptor.getFilterChain().addFirst(EXECUTOR_FILTER_NAME,
+                    buildServerExecutorFilter("Server-Thread-"));
+            // Add the XMPP codec filter
+            serverSocketAcceptor.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
+        }
+        else if (isServerListenerEnabled()) {
             int port = getServerListenerPort();
             try {
                 serverSocketThread = new SocketAcceptThread(this, new ServerPort(port, serverName,
@@ -208,7 +224,34 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
 
     private void startServerListener() {
         // Start servers socket unless it's been disabled.
-        if (isServerListenerEnabled()) {
+        if (isServerListenerEnabled() && serverSocketAcceptor != null) {
+            int port = getServerListenerPort();
+            try {
+                // Listen on a specific network interface if it has been set.
+                String interfaceName = JiveGlobals.getXMLProperty("network.interface");
+                InetAddress bindInterface = null;
+                if (interfaceName != null) {
+                    if (interfaceName.trim().length() > 0) {
+                        bindInterface = InetAddress.getByName(interfaceName);
+                    }
+                }
+                // Start accepting connections
+                serverSocketAcceptor.setHandler(new ServerConnectionHandler(serverName));
+                serverSocketAcceptor.bind(new InetSocketAddress(bindInterface, port));
+
+                ports.add(new ServerPort(port, serverName, localIPAddress, false, null, ServerPort.Type.server));
+
+                List<String> params = new ArrayList<String>();
+                params.add(Integer.toString(port));
+                Log.info(LocaleUtils.getLocalizedString("startup.server", params));
+            }
+            catch (Exception e) {
+                System.err.println("Error starting server listener on port " + port + ": " +
+                        e.getMessage());
+                Log.error(LocaleUtils.getLocalizedString("admin.error.socket-setup"), e);
+            }
+        }
+        else if (isServerListenerEnabled() && serverSocketThread != null) {
             int port = getServerListenerPort();
             try {
                 serverSocketThread.start();
@@ -226,6 +269,16 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     }
 
     private void stopServerListener() {
+        if (serverSocketAcceptor != null) {
+            serverSocketAcceptor.unbind();
+            for (ServerPort port : ports) {
+                if (port.isServerPort()) {
+                    ports.remove(port);
+                    break;
+                }
+            }
+            serverSocketAcceptor = null;
+        }
         if (serverSocketThread != null) {
             serverSocketThread.shutdown();
             ports.remove(serverSocketThread.getServerPort());
@@ -233,6 +286,43 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         }
     }
 
+    private void createServerConnector() {
+        // Outgoing s2s connections share a connector unless NIO has been disabled for s2s
+        if (isServerNIOEnabled() && serverSocketConnector == null) {
+            int processorCount = JiveGlobals.getIntProperty("xmpp.processor.count", Runtime.getRuntime().availableProcessors());
+            serverSocketConnector = new NioSocketConnector(processorCount);
+            serverSocketConnector.getSessionConfig().setTcpNoDelay(
+                    JiveGlobals.getBooleanProperty("xmpp.socket.tcp-nodelay", serverSocketConnector.getSessionConfig().isTcpNoDelay()));
+            serverSocketConnector.getFilterChain().addFirst(EXECUTOR_FILTER_NAME,
+                    buildServerExecutorFilter("Outgoing-Server-Thread-"));
+            // Add the XMPP codec filter
+            serverSocketConnector.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
+            serverSocketConnector.setHandler(new OutgoingServerConnectionHandler());
+        }
+    }
+
+    private void stopServerConnector() {
+        if (serverSocketConnector != null) {
+            serverSocketConnector.dispose();
+            serverSocketConnector = null;
+        }
+    }
+
+    private ExecutorFilter buildServerExecutorFilter(String threadNamePrefix) {
+        // Customize Executor that will be used by processors to process incoming stanzas
+        int maxPoolSize = JiveGlobals.getIntProperty("xmpp.server.processing.threads", 16);
+        ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60, TimeUnit.SECONDS);
+        ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
+        ThreadFactory threadFactory = eventExecutor.getThreadFactory();
+        threadFactory = new DelegatingThreadFactory(threadNamePrefix, threadFactory);
+        eventExecutor.setThreadFactory(threadFactory);
+        return executorFilter;
+    }
+
+    private boolean isServerNIOEnabled() {
+        return JiveGlobals.getBooleanProperty(ConnectionSettings.Server.NIO_ENABLED, true);
+    }
+
     private void createConnectionManagerListener() {
         // Start multiplexers socket unless it's been disabled.
         if (isConnectionManagerListenerEnabled()) {
@@ -787,6 +877,20 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         return JiveGlobals.getIntProperty(ConnectionSettings.Server.PORT, DEFAULT_SERVER_PORT);
     }
 
+    public NioSocketAcceptor getServerSocketAcceptor() {
+        return serverSocketAcceptor;
+    }
+
+    /**
+     * Returns the connector used for establishing connections with remote servers or
+     * <tt>null</tt> if outgoing s2s connections are using blocking sockets.
+     *
+     * @return the connector used for establishing connections with remote servers.
+     */
+    public NioSocketConnector getServerSocketConnector() {
+        return serverSocketConnector;
+    }
+
     public NioSocketAcceptor getMultiplexerSocketAcceptor() {
         return multiplexerSocketAcceptor;
     }
@@ -927,6 +1031,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         stopComponentListener();
         stopConnectionManagerListener();
         stopServerListener();
+        stopServerConnector();
         HttpBindManager.getInstance().stop();
         SocketSendingTracker.getInstance().shutdown();
         CertificateManager.removeListener(this);
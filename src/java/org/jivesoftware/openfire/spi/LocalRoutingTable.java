@@ -22,13 +22,20 @@ package org.jivesoftware.openfire.spi;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.jivesoftware.openfire.RoutableChannelHandler;
 import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.SessionResultFilter;
+import org.jivesoftware.openfire.session.ClientSessionSortKey;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
 import org.jivesoftware.openfire.session.LocalSession;
@@ -44,7 +51,10 @@ import org.xmpp.packet.JID;
  * Internal component used by the RoutingTable to keep references to routes hosted by this JVM. When
  * running in a cluster each cluster member will have its own RoutingTable containing an instance of
  * this class. Each LocalRoutingTable is responsible for storing routes to components, client sessions
- * and outgoing server sessions hosted by local cluster node.
+ * and outgoing server sessions hosted by local cluster node.<p>
+ *
+ * Client sessions are also kept sorted by user and by creation date so that a page of
+ * sessions sorted by either field can be read without sorting all the sessions.
  *
  * @author Gaston Dombiak
  */
@@ -54,6 +64,25 @@ class LocalRoutingTable {
 
     Map<String, RoutableChannelHandler> routes = new ConcurrentHashMap<String, RoutableChannelHandler>();
 
+    /**
+     * Sort keys of the indexed client sessions. Key: the string representation of the JID
+     * associated to the route.
+     */
+    private final Map<String, ClientSessionSortKey> clientKeys = new ConcurrentHashMap<String, ClientSessionSortKey>();
+    private final NavigableMap<ClientSessionSortKey, LocalClientSession> clientsByUser =
+            new ConcurrentSkipListMap<ClientSessionSortKey, LocalClientSession>(
+                    createSortKeyComparator(SessionResultFilter.SORT_USER));
+    private final NavigableMap<ClientSessionSortKey, LocalClientSession> clientsByCreationDate =
+            new ConcurrentSkipListMap<ClientSessionSortKey, LocalClientSession>(
+                    createSortKeyComparator(SessionResultFilter.SORT_CREATION_DATE));
+
+    private static Comparator<ClientSessionSortKey> createSortKeyComparator(int sortField) {
+        SessionResultFilter filter = new SessionResultFilter();
+        filter.setSortField(sortField);
+        filter.setSortOrder(SessionResultFilter.ASCENDING);
+        return filter.getSortKeyComparator();
+    }
+
     /**
      * Adds a route of a local {@link RoutableChannelHandler}
      *
@@ -62,7 +91,11 @@ class LocalRoutingTable {
      * @return true if the element was added or false if was already present.
      */
     boolean addRoute(String address, RoutableChannelHandler route) {
-        return routes.put(address, route) != route;
+        RoutableChannelHandler previous = routes.put(address, route);
+        if (previous != route && route instanceof LocalClientSession) {
+            indexClientRoute(address, (LocalClientSession) route);
+        }
+        return previous != route;
     }
 
     /**
@@ -90,6 +123,65 @@ class LocalRoutingTable {
         return sessions;
     }
 
+    /**
+     * Returns snapshots of the client sessions that are connected to this JVM sorted as
+     * specified by the filter. Only the first <tt>maxResults</tt> sessions in sort order
+     * are returned. When sorting by user or by creation date the sessions are read from
+     * the indexes in order, otherwise the first sessions are selected without sorting all
+     * of them.
+     *
+     * @param filter the filter that specifies the sort field and order.
+     * @param maxResults the number of sessions to return or SessionResultFilter.NO_RESULT_LIMIT
+     *        to return all the sessions.
+     * @return snapshots of the first client sessions in sort order.
+     */
+    List<ClientSessionSortKey> getClientRoutes(SessionResultFilter filter, int maxResults) {
+        if (maxResults == SessionResultFilter.NO_RESULT_LIMIT) {
+            maxResults = Integer.MAX_VALUE;
+        }
+        List<ClientSessionSortKey> keys = new ArrayList<ClientSessionSortKey>();
+        if (maxResults == 0) {
+            return keys;
+        }
+        NavigableMap<ClientSessionSortKey, LocalClientSession> index = null;
+        if (filter.getSortField() == SessionResultFilter.SORT_USER) {
+            index = clientsByUser;
+        }
+        else if (filter.getSortField() == SessionResultFilter.SORT_CREATION_DATE) {
+            index = clientsByCreationDate;
+        }
+        if (index != null) {
+            if (filter.getSortOrder() == SessionResultFilter.DESCENDING) {
+                index = index.descendingMap();
+            }
+            for (LocalClientSession session : index.values()) {
+                if (keys.size() >= maxResults) {
+                    break;
+                }
+                keys.add(new ClientSessionSortKey(session));
+            }
+            return keys;
+        }
+        // Keep the first sessions in a heap whose head is the last of them in sort order
+        Comparator<ClientSessionSortKey> comparator = filter.getSortKeyComparator();
+        PriorityQueue<ClientSessionSortKey> selected = new PriorityQueue<ClientSessionSortKey>(
+                Math.min(maxResults, Math.max(1, clientKeys.size())) + 1,
+                Collections.reverseOrder(comparator));
+        for (LocalClientSession session : clientsByUser.values()) {
+            ClientSessionSortKey key = new ClientSessionSortKey(session);
+            if (selected.size() < maxResults) {
+                selected.add(key);
+            }
+            else if (comparator.compare(key, selected.peek()) < 0) {
+                selected.poll();
+                selected.add(key);
+            }
+        }
+        keys.addAll(selected);
+        Collections.sort(keys, comparator);
+        return keys;
+    }
+
     /**
      * Returns the outgoing server sessions that are connected to this JVM.
      *
@@ -126,7 +218,33 @@ class LocalRoutingTable {
      * @param address the string representation of the JID associated to the route.
      */
     void removeRoute(String address) {
-        routes.remove(address);
+        if (routes.remove(address) instanceof LocalClientSession) {
+            unindexClientRoute(address);
+        }
+    }
+
+    private synchronized void indexClientRoute(String address, LocalClientSession session) {
+        removeClientKey(address);
+        // Only the fields that do not change while the session is alive are used by the indexes
+        ClientSessionSortKey key = new ClientSessionSortKey(session);
+        clientKeys.put(address, key);
+        clientsByUser.put(key, session);
+        clientsByCreationDate.put(key, session);
+    }
+
+    private synchronized void unindexClientRoute(String address) {
+        // The route may have been added again by another thread
+        if (!routes.containsKey(address)) {
+            removeClientKey(address);
+        }
+    }
+
+    private void removeClientKey(String address) {
+        ClientSessionSortKey key = clientKeys.remove(address);
+        if (key != null) {
+            clientsByUser.remove(key);
+            clientsByCreationDate.remove(key);
+        }
     }
 
     public void start() {
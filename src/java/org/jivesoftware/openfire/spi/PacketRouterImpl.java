@@ -22,6 +22,9 @@ package org.jivesoftware.openfire.spi;
 
 import org.jivesoftware.openfire.*;
 import org.jivesoftware.openfire.container.BasicModule;
+import org.jivesoftware.openfire.stats.MetricsRegistry;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.Timer;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
@@ -37,6 +40,11 @@ import org.xmpp.packet.Presence;
  */
 public class PacketRouterImpl extends BasicModule implements PacketRouter {
 
+    private static final MetricsRegistry metrics = StatisticsManager.getInstance().getMetrics();
+    private static final Timer iqTimer = metrics.getTimer("router.iq");
+    private static final Timer messageTimer = metrics.getTimer("router.message");
+    private static final Timer presenceTimer = metrics.getTimer("router.presence");
+
     private IQRouter iqRouter;
     private PresenceRouter presenceRouter;
     private MessageRouter messageRouter;
@@ -73,15 +81,33 @@ public class PacketRouterImpl extends BasicModule implements PacketRouter {
     }
 
     public void route(IQ packet) {
-        iqRouter.route(packet);
+        long start = System.nanoTime();
+        try {
+            iqRouter.route(packet);
+        }
+        finally {
+            iqTimer.update(System.nanoTime() - start);
+        }
     }
 
     public void route(Message packet) {
-        messageRouter.route(packet);
+        long start = System.nanoTime();
+        try {
+            messageRouter.route(packet);
+        }
+        finally {
+            messageTimer.update(System.nanoTime() - start);
+        }
     }
 
     public void route(Presence packet) {
-        presenceRouter.route(packet);
+        long start = System.nanoTime();
+        try {
+            presenceRouter.route(packet);
+        }
+        finally {
+            presenceTimer.update(System.nanoTime() - start);
+        }
     }
 
     @Override
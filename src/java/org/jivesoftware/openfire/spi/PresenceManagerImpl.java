@@ -55,6 +55,7 @@ import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
 
@@ -67,8 +68,15 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
 
 	private static final Logger Log = LoggerFactory.getLogger(PresenceManagerImpl.class);
 
+    /**
+     * Maximum number of users whose offline presence is loaded with a single query.
+     */
+    private static final int OFFLINE_PRESENCE_BATCH_SIZE = 100;
+
     private static final String LOAD_OFFLINE_PRESENCE =
             "SELECT offlinePresence, offlineDate FROM ofPresence WHERE username=?";
+    private static final String LOAD_OFFLINE_PRESENCES =
+            "SELECT username, offlinePresence, offlineDate FROM ofPresence WHERE username IN ";
     private static final String INSERT_OFFLINE_PRESENCE =
             "INSERT INTO ofPresence(username, offlinePresence, offlineDate) VALUES(?,?,?)";
     private static final String DELETE_OFFLINE_PRESENCE =
@@ -449,6 +457,111 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         }
     }
 
+    public void probePresence(JID prober, Collection<JID> probees) {
+        Collection<JID> localProbees = new LinkedHashSet<JID>();
+        List<JID> remoteProbees = new ArrayList<JID>();
+        for (JID probee : probees) {
+            if (server.isLocal(probee)) {
+                localProbees.add(probee.asBareJID());
+            }
+            else if (!routingTable.hasComponentRoute(probee) && server.isRemote(probee)) {
+                remoteProbees.add(probee);
+            }
+            else {
+                // Components process the probes themselves
+                probePresence(prober, probee);
+            }
+        }
+        // Presences to send, each one to the receipient at the same position
+        List<JID> receipients = new ArrayList<JID>();
+        List<Packet> packets = new ArrayList<Packet>();
+        try {
+            if (!localProbees.isEmpty()) {
+                // Local probers should receive presences of probees in all connected resources
+                Collection<JID> proberFullJIDs = new ArrayList<JID>();
+                if (prober.getResource() == null && server.isLocal(prober)) {
+                    for (ClientSession session : sessionManager.getSessions(prober.getNode())) {
+                        proberFullJIDs.add(session.getAddress());
+                    }
+                }
+                else {
+                    proberFullJIDs.add(prober);
+                }
+                List<JID> offlineProbees = new ArrayList<JID>();
+                List<String> offlineUsernames = new ArrayList<String>();
+                for (JID probee : localProbees) {
+                    // Connected sessions count even if they are not available, in which case
+                    // their unavailable presence is sent
+                    Collection<ClientSession> sessions = sessionManager.getSessions(probee.getNode());
+                    if (sessions.isEmpty()) {
+                        offlineProbees.add(probee);
+                        offlineUsernames.add(probee.getNode());
+                        continue;
+                    }
+                    // The contact is online so send to the prober all the resources where the
+                    // probee is connected
+                    for (ClientSession session : sessions) {
+                        Presence presencePacket = session.getPresence().createCopy();
+                        presencePacket.setFrom(session.getAddress());
+                        // Check if a privacy list of the probee blocks the outgoing presence
+                        PrivacyList list = session.getActiveList();
+                        list = list == null ? session.getDefaultList() : list;
+                        addPresences(presencePacket, proberFullJIDs, list, receipients, packets);
+                    }
+                }
+                // Retrieve the last unavailable presence of the probees that are not online
+                loadOfflinePresences(offlineUsernames);
+                for (JID probee : offlineProbees) {
+                    String presenceXML = offlinePresenceCache.get(probee.getNode());
+                    if (presenceXML == null || NULL_STRING.equals(presenceXML)) {
+                        continue;
+                    }
+                    try {
+                        Document element = DocumentHelper.parseText(presenceXML);
+                        Presence presencePacket = new Presence(element.getRootElement());
+                        presencePacket.setFrom(probee);
+                        // Check if default privacy list of the probee blocks the
+                        // outgoing presence
+                        PrivacyList list = PrivacyListManager.getInstance()
+                                .getDefaultPrivacyList(probee.getNode());
+                        addPresences(presencePacket, proberFullJIDs, list, receipients, packets);
+                    }
+                    catch (Exception e) {
+                        Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+                    }
+                }
+            }
+            // Send the probe presences to the remote servers
+            for (JID probee : remoteProbees) {
+                Presence probePresence = new Presence();
+                probePresence.setType(Presence.Type.probe);
+                probePresence.setFrom(prober);
+                probePresence.setTo(probee.toBareJID());
+                receipients.add(probePresence.getTo());
+                packets.add(probePresence);
+            }
+            routingTable.routePackets(receipients, packets, false);
+        }
+        catch (Exception e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        }
+    }
+
+    /**
+     * Adds a copy of the presence for each of the receipients unless blocked by the privacy list.
+     */
+    private static void addPresences(Presence presence, Collection<JID> receipients, PrivacyList list,
+            List<JID> jids, List<Packet> packets) {
+        for (JID receipient : receipients) {
+            Presence presencePacket = presence.createCopy();
+            presencePacket.setTo(receipient);
+            if (list == null || !list.shouldBlockPacket(presencePacket)) {
+                jids.add(receipient);
+                packets.add(presencePacket);
+            }
+        }
+    }
+
     public void sendUnavailableFromSessions(JID recipientJID, JID userJID) {
         if (XMPPServer.getInstance().isLocal(userJID) && userManager.isRegisteredUser(userJID.getNode())) {
             for (ClientSession session : sessionManager.getSessions(userJID.getNode())) {
@@ -540,6 +653,73 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
      *
      * @param username the username.
      */
+    /**
+     * Loads the offline presence of the users that are not cached yet. Presences are loaded
+     * with a query per {@link #OFFLINE_PRESENCE_BATCH_SIZE} users.
+     *
+     * @param usernames the users whose offline presence may be loaded.
+     */
+    private void loadOfflinePresences(Collection<String> usernames) {
+        List<String> missing = new ArrayList<String>();
+        for (String username : usernames) {
+            if (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username)) {
+                missing.add(username);
+            }
+        }
+        for (int start = 0; start < missing.size(); start += OFFLINE_PRESENCE_BATCH_SIZE) {
+            List<String> batch = missing.subList(start, Math.min(missing.size(), start + OFFLINE_PRESENCE_BATCH_SIZE));
+            Map<String, String> presences = new HashMap<String, String>();
+            Map<String, Long> dates = new HashMap<String, Long>();
+            StringBuilder sql = new StringBuilder(LOAD_OFFLINE_PRESENCES).append('(');
+            for (int i = 0; i < batch.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(')');
+            Connection con = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                con = DbConnectionManager.getConnection();
+                pstmt = con.prepareStatement(sql.toString());
+                for (int i = 0; i < batch.size(); i++) {
+                    pstmt.setString(i + 1, batch.get(i));
+                }
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    String username = rs.getString(1);
+                    String offlinePresence = DbConnectionManager.getLargeTextField(rs, 2);
+                    if (rs.wasNull()) {
+                        offlinePresence = NULL_STRING;
+                    }
+                    presences.put(username, offlinePresence);
+                    dates.put(username, Long.parseLong(rs.getString(3).trim()));
+                }
+            }
+            catch (SQLException sqle) {
+                Log.error(sqle.getMessage(), sqle);
+                continue;
+            }
+            finally {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
+            }
+            for (String username : batch) {
+                Lock lock = CacheFactory.getLock(username, offlinePresenceCache);
+                try {
+                    lock.lock();
+                    // The presence may have changed while loading
+                    if (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username)) {
+                        String offlinePresence = presences.get(username);
+                        offlinePresenceCache.put(username, offlinePresence != null ? offlinePresence : NULL_STRING);
+                        lastActivityCache.put(username, offlinePresence != null ? dates.get(username) : NULL_LONG);
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
     private void loadOfflinePresence(String username) {
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -272,6 +272,90 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
     }
 
+    public void routePackets(List<JID> jids, List<Packet> packets, boolean fromServer) {
+        // Packets for sessions hosted by other cluster nodes, grouped by node
+        Map<NodeID, List<JID>> nodeJIDs = new HashMap<NodeID, List<JID>>();
+        Map<NodeID, List<Packet>> nodePackets = new HashMap<NodeID, List<Packet>>();
+        // Position of packets for remote servers, grouped by domain
+        Map<String, List<Integer>> domains = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < jids.size(); i++) {
+            JID jid = jids.get(i);
+            Packet packet = packets.get(i);
+            if (serverName.equals(jid.getDomain())) {
+                ClientRoute clientRoute = null;
+                if (jid.getResource() != null && remotePacketRouter != null &&
+                        !localRoutingTable.isLocalRoute(jid)) {
+                    clientRoute = usersCache.get(jid.toString());
+                    if (clientRoute == null) {
+                        clientRoute = anonymousUsersCache.get(jid.toString());
+                    }
+                }
+                if (clientRoute != null && (clientRoute.isAvailable() || !routeOnlyAvailable(packet, fromServer) ||
+                        presenceUpdateHandler.hasDirectPresence(packet.getTo(), packet.getFrom()))) {
+                    // This is a route to a local user hosted in other node
+                    List<JID> nodeList = nodeJIDs.get(clientRoute.getNodeID());
+                    if (nodeList == null) {
+                        nodeList = new ArrayList<JID>();
+                        nodeJIDs.put(clientRoute.getNodeID(), nodeList);
+                        nodePackets.put(clientRoute.getNodeID(), new ArrayList<Packet>());
+                    }
+                    nodeList.add(jid);
+                    nodePackets.get(clientRoute.getNodeID()).add(packet);
+                }
+                else {
+                    routeIsolated(jid, packet, fromServer);
+                }
+            }
+            else if (jid.getDomain().endsWith(serverName) && hasComponentRoute(jid)) {
+                routeIsolated(jid, packet, fromServer);
+            }
+            else {
+                List<Integer> positions = domains.get(jid.getDomain());
+                if (positions == null) {
+                    positions = new ArrayList<Integer>();
+                    domains.put(jid.getDomain(), positions);
+                }
+                positions.add(i);
+            }
+        }
+        for (Map.Entry<NodeID, List<JID>> entry : nodeJIDs.entrySet()) {
+            List<JID> nodeList = entry.getValue();
+            List<Packet> packetList = nodePackets.get(entry.getKey());
+            boolean routed = false;
+            try {
+                routed = remotePacketRouter.routePackets(entry.getKey().toByteArray(), nodeList, packetList);
+            }
+            catch (Exception e) {
+                Log.error("Primary packet routing failed", e);
+            }
+            if (!routed) {
+                // Let each packet be routed, or its routing fail, as if sent alone
+                for (int i = 0; i < nodeList.size(); i++) {
+                    routeIsolated(nodeList.get(i), packetList.get(i), fromServer);
+                }
+            }
+        }
+        for (List<Integer> positions : domains.values()) {
+            for (int i : positions) {
+                routeIsolated(jids.get(i), packets.get(i), fromServer);
+            }
+        }
+    }
+
+    /**
+     * Routes a packet of a batch. A packet that cannot be routed must not prevent the
+     * rest of the batch from being routed.
+     */
+    private void routeIsolated(JID jid, Packet packet, boolean fromServer) {
+        try {
+            routePacket(jid, packet, fromServer);
+        }
+        catch (Exception e) {
+            // Theoretically only happens if session has been closed.
+            Log.debug("Failed to route packet to JID: " + jid, e);
+        }
+    }
+
 	/**
 	 * Routes packets that are sent to the XMPP domain itself (excluding subdomains).
 	 * 
@@ -703,6 +787,10 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         return session;
     }
 
+    public List<ClientSessionSortKey> getClientsRoutes(SessionResultFilter filter, int maxResults) {
+        return localRoutingTable.getClientRoutes(filter, maxResults);
+    }
+
     public Collection<ClientSession> getClientsRoutes(boolean onlyLocal) {
         // Add sessions hosted by this cluster node
         Collection<ClientSession> sessions = new ArrayList<ClientSession>(localRoutingTable.getClientRoutes());
@@ -831,6 +919,43 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         return jids;
     }
 
+    public Map<JID, List<JID>> getRoutes(Collection<JID> routes, JID requester) {
+        Map<JID, List<JID>> result = new LinkedHashMap<JID, List<JID>>();
+        for (JID route : routes) {
+            if (result.containsKey(route)) {
+                continue;
+            }
+            if (serverName.equals(route.getDomain()) && route.getResource() == null) {
+                // Address is a bare JID so return all AVAILABLE resources of user. The lock of the
+                // user is not needed since the sessions of a user are kept in a concurrent set
+                // (or a copy is returned when clustered) so new sessions do not affect this read.
+                // Addresses in the cache were already prepared so stringprep is skipped
+                List<JID> jids = new ArrayList<JID>();
+                Collection<String> sessions = usersSessions.get(route.toBareJID());
+                if (sessions != null) {
+                    for (String address : sessions) {
+                        ClientRoute clientRoute = usersCache.get(address);
+                        if (clientRoute == null) {
+                            clientRoute = anonymousUsersCache.get(address);
+                        }
+                        if (clientRoute == null) {
+                            continue;
+                        }
+                        JID jid = new JID(address, true);
+                        if (clientRoute.isAvailable() || presenceUpdateHandler.hasDirectPresence(jid, requester)) {
+                            jids.add(jid);
+                        }
+                    }
+                }
+                result.put(route, jids);
+            }
+            else {
+                result.put(route, getRoutes(route, requester));
+            }
+        }
+        return result;
+    }
+
     public boolean removeClientRoute(JID route) {
         boolean anonymous = false;
         String address = route.toString();
@@ -0,0 +1,90 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update without contention. The count is kept in several
+ * cells and each thread updates the cell of its thread ID; the cells are added up when the
+ * count is read.
+ */
+public class Counter extends Metric {
+
+    /**
+     * Longs between the cells, so that each cell lies on its own cache line.
+     */
+    private static final int PADDING = 8;
+    private static final int CELLS;
+
+    static {
+        int cells = 1;
+        while (cells < Runtime.getRuntime().availableProcessors() * 2) {
+            cells <<= 1;
+        }
+        CELLS = cells;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds the specified amount to the count.
+     *
+     * @param amount the amount to add.
+     */
+    public void add(long amount) {
+        int cell = (int) Thread.currentThread().getId() & (CELLS - 1);
+        cells.addAndGet(cell * PADDING, amount);
+    }
+
+    /**
+     * Returns the current count.
+     *
+     * @return the current count.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < CELLS; i++) {
+            count += cells.get(i * PADDING);
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Number> getValues() {
+        return Collections.<String, Number>singletonMap("Count", getCount());
+    }
+
+    @Override
+    void writeText(String name, StringBuilder out) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(getCount()).append('\n');
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A metric whose value is read from the server when the metric is published, such as the
+ * size of a cache or of a queue.
+ */
+public abstract class Gauge extends Metric {
+
+    /**
+     * Returns the current value of the gauge.
+     *
+     * @return the current value of the gauge.
+     */
+    public abstract long getValue();
+
+    @Override
+    public Map<String, Number> getValues() {
+        return Collections.<String, Number>singletonMap("Value", getValue());
+    }
+
+    @Override
+    void writeText(String name, StringBuilder out) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(getValue()).append('\n');
+    }
+}
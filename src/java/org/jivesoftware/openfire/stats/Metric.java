@@ -0,0 +1,50 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.util.Map;
+
+/**
+ * A metric kept by the {@link MetricsRegistry}. Unlike a {@link Statistic}, which is sampled,
+ * a metric is updated by the code being measured and can be read at any time.
+ *
+ * @see Counter
+ * @see Timer
+ * @see Gauge
+ */
+public abstract class Metric {
+
+    /**
+     * Returns the current values of the metric. Keys are the names of the values, as
+     * published through JMX.
+     *
+     * @return the current values of the metric.
+     */
+    public abstract Map<String, Number> getValues();
+
+    /**
+     * Appends the metric to the text exposition of the registry.
+     *
+     * @param name the name of the metric in the text exposition.
+     * @param out where the metric is written.
+     */
+    abstract void writeText(String name, StringBuilder out);
+}
@@ -0,0 +1,218 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link Counter counters}, {@link Timer timers} and {@link Gauge gauges} of the
+ * server. Metrics are identified by a dotted name such as <tt>router.iq</tt>. Code that
+ * updates a metric often should get it once and keep a reference to it.<p>
+ *
+ * Metrics are published through JMX once {@link #registerMBeans(MBeanServer)} was called,
+ * and as text in the Prometheus exposition format by {@link #writeText(StringBuilder)}.
+ *
+ * @see StatisticsManager#getMetrics()
+ */
+public class MetricsRegistry {
+
+    private static final Logger Log = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private static final String MBEAN_DOMAIN = "org.jivesoftware.openfire";
+
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private volatile MBeanServer mbeanServer;
+
+    /**
+     * Returns the counter with the specified name, creating it if needed.
+     *
+     * @param name the name of the counter.
+     * @return the counter with the specified name.
+     * @throws IllegalArgumentException if a metric of another kind has the name.
+     */
+    public Counter getCounter(String name) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = register(name, new Counter(), false);
+        }
+        if (!(metric instanceof Counter)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a counter");
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * Returns the timer with the specified name, creating it if needed.
+     *
+     * @param name the name of the timer.
+     * @return the timer with the specified name.
+     * @throws IllegalArgumentException if a metric of another kind has the name.
+     */
+    public Timer getTimer(String name) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = register(name, new Timer(), false);
+        }
+        if (!(metric instanceof Timer)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a timer");
+        }
+        return (Timer) metric;
+    }
+
+    /**
+     * Adds a gauge to the registry, replacing any metric with the same name.
+     *
+     * @param name the name of the gauge.
+     * @param gauge the gauge.
+     */
+    public void addGauge(String name, Gauge gauge) {
+        register(name, gauge, true);
+    }
+
+    /**
+     * Returns the metric with the specified name or <tt>null</tt> if none was found.
+     *
+     * @param name the name of the metric.
+     * @return the metric with the specified name or null if none was found.
+     */
+    public Metric getMetric(String name) {
+        return metrics.get(name);
+    }
+
+    /**
+     * Returns all the metrics sorted by name.
+     *
+     * @return all the metrics sorted by name.
+     */
+    public Map<String, Metric> getMetrics() {
+        return new TreeMap<String, Metric>(metrics);
+    }
+
+    /**
+     * Removes a metric from the registry.
+     *
+     * @param name the name of the metric.
+     */
+    public void removeMetric(String name) {
+        if (metrics.remove(name) != null) {
+            unregisterMBean(name);
+        }
+    }
+
+    /**
+     * Publishes the metrics through JMX, including the metrics added later on.
+     *
+     * @param server the server where the metrics are registered.
+     */
+    public void registerMBeans(MBeanServer server) {
+        mbeanServer = server;
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            registerMBean(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Appends all the metrics to the specified buffer in the Prometheus text exposition
+     * format. Names are prefixed with <tt>openfire_</tt> and characters that are not valid
+     * in a name are replaced by underscores.
+     *
+     * @param out where the metrics are written.
+     */
+    public void writeText(StringBuilder out) {
+        for (Map.Entry<String, Metric> entry : getMetrics().entrySet()) {
+            entry.getValue().writeText(getTextName(entry.getKey()), out);
+        }
+    }
+
+    static String getTextName(String name) {
+        StringBuilder textName = new StringBuilder("openfire_");
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                textName.append(c);
+            }
+            else {
+                textName.append('_');
+            }
+        }
+        return textName.toString();
+    }
+
+    private Metric register(String name, Metric metric, boolean replace) {
+        if (replace) {
+            if (metrics.put(name, metric) != null) {
+                unregisterMBean(name);
+            }
+        }
+        else {
+            Metric existing = metrics.putIfAbsent(name, metric);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        if (mbeanServer != null) {
+            registerMBean(name, metric);
+        }
+        return metric;
+    }
+
+    private void registerMBean(String name, Metric metric) {
+        try {
+            ObjectName objectName = getObjectName(name);
+            if (!mbeanServer.isRegistered(objectName)) {
+                mbeanServer.registerMBean(new MetricMBean(metric), objectName);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Unable to register the MBean of metric " + name, e);
+        }
+    }
+
+    private void unregisterMBean(String name) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = getObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Unable to unregister the MBean of metric " + name, e);
+        }
+    }
+
+    private static ObjectName getObjectName(String name) throws JMException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+    }
+}
@@ -23,7 +23,9 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Stores statistics being tracked by the server.
+ * Stores statistics being tracked by the server. Statistics are sampled when they are
+ * read; counters, timers and gauges that the server updates as it runs are kept by the
+ * {@link MetricsRegistry} returned by {@link #getMetrics()}.
  */
 public class StatisticsManager {
 
@@ -36,6 +38,7 @@ public class StatisticsManager {
     private final Map<String, Statistic> statistics = new ConcurrentHashMap<String, Statistic>();
     private final Map<String, List<String>> multiStatGroups = new ConcurrentHashMap<String, List<String>>();
     private final Map<String, String> keyToGroupMap = new ConcurrentHashMap<String, String>();
+    private final MetricsRegistry metrics = new MetricsRegistry();
 
     private StatisticsManager() {
         
@@ -88,6 +91,15 @@ public class StatisticsManager {
         return statistics.entrySet();
     }
 
+    /**
+     * Returns the registry of the counters, timers and gauges of the server.
+     *
+     * @return the registry of the counters, timers and gauges of the server.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     /**
      * Removes a statistic from the server.
      *
@@ -0,0 +1,206 @@
+/**
+ * $RCSfile  $
+ * $Revision  $
+ * $Date  $
+ *
+ * Copyright (C) 1999-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of the duration of an operation. Durations are counted in a
+ * histogram of buckets whose width grows with the duration, in the manner of HdrHistogram:
+ * each power of two is split in 16 buckets, so percentiles are accurate to within about 3%
+ * of the duration. Recording a duration updates a few counters and never locks.<p>
+ *
+ * Durations are recorded in nanoseconds and published in milliseconds through JMX and in
+ * seconds in the text exposition.
+ */
+public class Timer extends Metric {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Longest duration that is counted in its own bucket, about 18 minutes. Longer
+     * durations are counted in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private static final double[] PERCENTILES = {0.5, 0.75, 0.95, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"50thPercentile", "75thPercentile",
+            "95thPercentile", "99thPercentile", "999thPercentile"};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final Counter count = new Counter();
+    private final Counter total = new Counter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the duration of an operation.
+     *
+     * @param nanos the duration in nanoseconds.
+     */
+    public void update(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(getBucket(nanos));
+        count.increment();
+        total.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        return count.getCount();
+    }
+
+    /**
+     * Returns the sum of the recorded durations in nanoseconds.
+     *
+     * @return the sum of the recorded durations in nanoseconds.
+     */
+    public long getTotal() {
+        return total.getCount();
+    }
+
+    /**
+     * Returns the longest recorded duration in nanoseconds.
+     *
+     * @return the longest recorded duration in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the duration in nanoseconds below which the specified fraction of the
+     * recorded durations fall, or 0 if no duration was recorded.
+     *
+     * @param percentile the fraction of the durations, between 0 and 1.
+     * @return the duration in nanoseconds below which the fraction of the durations fall.
+     */
+    public long getPercentile(double percentile) {
+        return getPercentiles(new double[] {percentile})[0];
+    }
+
+    private long[] getPercentiles(double[] percentiles) {
+        long[] counts = new long[BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            recorded += counts[i];
+        }
+        long[] values = new long[percentiles.length];
+        if (recorded == 0) {
+            return values;
+        }
+        long longest = max.get();
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] * recorded));
+            if (rank >= recorded) {
+                // The longest duration is known exactly
+                values[p] = longest;
+                continue;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    values[p] = Math.min(longest, (getLowerBound(i) + getLowerBound(i + 1) - 1) / 2);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the bucket in which the duration is counted.
+     */
+    static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the shortest duration counted in the bucket.
+     */
+    static long getLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    @Override
+    public Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        long recorded = getCount();
+        values.put("Count", recorded);
+        values.put("Mean", recorded == 0 ? 0.0 : toMillis(getTotal()) / recorded);
+        values.put("Max", toMillis(getMax()));
+        long[] percentiles = getPercentiles(PERCENTILES);
+        for (int i = 0; i < percentiles.length; i++) {
+            values.put(PERCENTILE_NAMES[i], toMillis(percentiles[i]));
+        }
+        return values;
+    }
+
+    @Override
+    void writeText(String name, StringBuilder out) {
+        long[] percentiles = getPercentiles(PERCENTILES);
+        out.append("# TYPE ").append(name).append("_seconds summary\n");
+        for (int i = 0; i < percentiles.length; i++) {
+            out.append(name).append("_seconds{quantile=\"").append(PERCENTILES[i]).append("\"} ")
+                    .append(toSeconds(percentiles[i])).append('\n');
+        }
+        out.append(name).append("_seconds_sum ").append(toSeconds(getTotal())).append('\n');
+        out.append(name).append("_seconds_count ").append(getCount()).append('\n');
+        out.append("# TYPE ").append(name).append("_seconds_max gauge\n");
+        out.append(name).append("_seconds_max ").append(toSeconds(getMax())).append('\n');
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / 1000000000.0;
+    }
+}
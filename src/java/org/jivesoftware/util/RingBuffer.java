@@ -0,0 +1,166 @@
+/**
+ * $RCSfile$
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue backed by an array that many threads may add elements to while a single
+ * thread takes them. Adding an element never locks: a thread claims a slot by advancing
+ * the tail and then publishes the element in the slot. The capacity is rounded up to a
+ * power of two.<p>
+ *
+ * Only one thread at a time may call {@link #poll()} or {@link #drainTo(Collection, int)}.
+ *
+ * @param <E> the type of elements held in this buffer.
+ */
+public class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    private final int mask;
+    /**
+     * Sequence of the next slot to claim.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Sequence of the next slot to take. Only updated by the consuming thread.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates a new buffer that holds at least the specified number of elements.
+     *
+     * @param capacity the minimum number of elements the buffer holds.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<E>(this.capacity);
+    }
+
+    /**
+     * Adds the element to the buffer if there is room for it.
+     *
+     * @param element the element to add.
+     * @return false if the buffer was full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head.get() >= capacity) {
+                return false;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                slots.set((int) sequence & mask, element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest element of the buffer, or returns null if the buffer is empty.
+     *
+     * @return the oldest element of the buffer, or null if the buffer is empty.
+     */
+    public E poll() {
+        long sequence = head.get();
+        if (sequence >= tail.get()) {
+            return null;
+        }
+        int index = (int) sequence & mask;
+        E element = slots.get(index);
+        if (element == null) {
+            // The slot was claimed but the element is not published yet
+            return null;
+        }
+        slots.set(index, null);
+        head.set(sequence + 1);
+        return element;
+    }
+
+    /**
+     * Takes up to the specified number of elements, oldest first, and adds them to the
+     * collection.
+     *
+     * @param collection where the elements are added.
+     * @param maxElements the maximum number of elements to take.
+     * @return the number of elements taken.
+     */
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        long sequence = head.get();
+        long end = Math.min(tail.get(), sequence + maxElements);
+        int count = 0;
+        while (sequence < end) {
+            int index = (int) sequence & mask;
+            E element = slots.get(index);
+            if (element == null) {
+                break;
+            }
+            slots.set(index, null);
+            collection.add(element);
+            sequence++;
+            count++;
+        }
+        head.set(sequence);
+        return count;
+    }
+
+    /**
+     * Returns the number of elements in the buffer.
+     *
+     * @return the number of elements in the buffer.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    /**
+     * Returns true if the buffer has no elements.
+     *
+     * @return true if the buffer has no elements.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the maximum number of elements the buffer holds.
+     *
+     * @return the maximum number of elements the buffer holds.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
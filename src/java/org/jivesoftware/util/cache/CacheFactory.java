@@ -37,6 +37,9 @@ import org.jivesoftware.openfire.cluster.ClusterNodeInfo;
 import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginClassLoader;
 import org.jivesoftware.openfire.container.PluginManager;
+import org.jivesoftware.openfire.stats.Gauge;
+import org.jivesoftware.openfire.stats.MetricsRegistry;
+import org.jivesoftware.openfire.stats.StatisticsManager;
 import org.jivesoftware.util.InitializationException;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
@@ -115,6 +118,8 @@ public class CacheFactory {
         cacheNames.put("File Transfer", "transferProxy");
         cacheNames.put("POP3 Authentication", "pop3");
         cacheNames.put("LDAP Authentication", "ldap");
+        cacheNames.put("LDAP UserDN", "ldapUserDN");
+        cacheNames.put("LDAP Usernames", "ldapUsername");
         cacheNames.put("Routing Servers Cache", "routeServer");
         cacheNames.put("Routing Components Cache", "routeComponent");
         cacheNames.put("Routing Users Cache", "routeUser");
@@ -158,6 +163,10 @@ public class CacheFactory {
         cacheProps.put("cache.javascript.maxLifetime", 3600 * 24 * 10l);
         cacheProps.put("cache.ldap.size", 512 * 1024l);
         cacheProps.put("cache.ldap.maxLifetime", JiveConstants.HOUR * 2);
+        cacheProps.put("cache.ldapUserDN.size", 512 * 1024l);
+        cacheProps.put("cache.ldapUserDN.maxLifetime", JiveConstants.HOUR * 2);
+        cacheProps.put("cache.ldapUsername.size", 512 * 1024l);
+        cacheProps.put("cache.ldapUsername.maxLifetime", JiveConstants.HOUR * 2);
         cacheProps.put("cache.listsCache.size", 512 * 1024l);
         cacheProps.put("cache.offlinePresence.size", 512 * 1024l);
         cacheProps.put("cache.lastActivity.size", 128 * 1024l);
@@ -388,6 +397,10 @@ public class CacheFactory {
     public static synchronized void destroyCache(String name) {
         Cache cache = caches.remove(name);
         if (cache != null) {
+            MetricsRegistry metrics = StatisticsManager.getInstance().getMetrics();
+            for (String metric : new String[] {"size", "hits", "misses", "get", "put"}) {
+                metrics.removeMetric("cache." + name + "." + metric);
+            }
             if (localOnly.contains(name)) {
             	localOnly.remove(name);
             	localCacheFactoryStrategy.destroyCache(cache);
@@ -429,9 +442,35 @@ public class CacheFactory {
         cache.setName(name);
 
         caches.put(name, cache);
+        addCacheGauges(cache, name);
         return cache;
     }
 
+    /**
+     * Publishes the size, hits and misses of the cache as gauges of the metrics registry.
+     */
+    private static void addCacheGauges(final Cache cache, String name) {
+        MetricsRegistry metrics = StatisticsManager.getInstance().getMetrics();
+        metrics.addGauge("cache." + name + ".size", new Gauge() {
+            @Override
+            public long getValue() {
+                return cache.size();
+            }
+        });
+        metrics.addGauge("cache." + name + ".hits", new Gauge() {
+            @Override
+            public long getValue() {
+                return cache.getCacheHits();
+            }
+        });
+        metrics.addGauge("cache." + name + ".misses", new Gauge() {
+            @Override
+            public long getValue() {
+                return cache.getCacheMisses();
+            }
+        });
+    }
+
     /**
      * Returns true if clustering is installed and can be used by this JVM
      * to join a cluster. A false value could mean that either clustering
@@ -22,19 +22,48 @@ package org.jivesoftware.util.cache;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.Timer;
+import org.jivesoftware.util.JiveGlobals;
 
 /**
  * Acts as a proxy for a Cache implementation. The Cache implementation can be switched on the fly,
  * which enables users to hold a reference to a CacheWrapper object, but for the underlying
- * Cache implementation to switch from clustered to local, etc.
+ * Cache implementation to switch from clustered to local, etc.<p>
+ *
+ * The duration of gets and puts is recorded by the <tt>cache.[name].get</tt> and
+ * <tt>cache.[name].put</tt> timers of the {@link StatisticsManager#getMetrics() metrics registry}.
+ * Only one of every <tt>cache.metrics.sampling</tt> operations (64 by default) is timed, so
+ * that the timers do not slow down the cache. A value of 0 disables the timers.
  *
  */
 public class CacheWrapper<K, V> implements Cache<K, V> {
 
     private Cache<K, V> cache;
+    private Timer getTimer;
+    private Timer putTimer;
+    /**
+     * One of every <tt>sampling</tt> gets and puts is timed.
+     */
+    private int sampling;
 
     public CacheWrapper(Cache<K, V> cache) {
         this.cache = cache;
+        createTimers(cache.getName());
+    }
+
+    private void createTimers(String name) {
+        sampling = JiveGlobals.getIntProperty("cache.metrics.sampling", 64);
+        if (name != null && sampling > 0) {
+            getTimer = StatisticsManager.getInstance().getMetrics().getTimer("cache." + name + ".get");
+            putTimer = StatisticsManager.getInstance().getMetrics().getTimer("cache." + name + ".put");
+        }
+        else {
+            getTimer = null;
+            putTimer = null;
+        }
     }
 
     public Cache<K, V> getWrappedCache() {
@@ -51,6 +80,7 @@ public class CacheWrapper<K, V> implements Cache<K, V> {
 
     public void setName(String name) {
         cache.setName(name);
+        createTimers(name);
     }
 
     public long getMaxCacheSize() {
@@ -118,7 +148,17 @@ public class CacheWrapper<K, V> implements Cache<K, V> {
     }
 
     public V get(Object key) {
-        return cache.get(key);
+        Timer timer = getTimer;
+        if (timer == null || !isSampled()) {
+            return cache.get(key);
+        }
+        long start = System.nanoTime();
+        try {
+            return cache.get(key);
+        }
+        finally {
+            timer.update(System.nanoTime() - start);
+        }
     }
 
     public V remove(Object key) {
@@ -126,7 +166,25 @@ public class CacheWrapper<K, V> implements Cache<K, V> {
     }
 
     public V put(K key, V value) {
-        return cache.put(key, value);
-    }
-
-}
\ No newline at end of file
+        Timer timer = putTimer;
+        if (timer == null || !isSampled()) {
+            return cache.put(key, value);
+        }
+        long start = System.nanoTime();
+        try {
+            return cache.put(key, value);
+        }
+        finally {
+            timer.update(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns true if the current operation should be timed. A thread local random is used
+     * so that threads do not share any state to decide.
+     */
+    private boolean isSampled() {
+        int rate = sampling;
+        return rate <= 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+}
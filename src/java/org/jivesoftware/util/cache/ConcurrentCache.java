@@ -0,0 +1,533 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-distributed implementation of the Cache interface that does not serialize
+ * readers and writers on a single monitor. Use {@link ConcurrentLocalCacheStrategy}
+ * to have {@link CacheFactory} create local caches of this type.<p>
+ *
+ * The algorithm for this cache is as follows: a ConcurrentHashMap is used for
+ * lookups, so reads never block. Instead of relinking nodes in an access ordered
+ * list on every hit, each cache object carries a <i>referenced</i> flag that is
+ * set when the object is read. Two lock-free queues are maintained:<ul>
+ *
+ * <li> The eviction queue, used as the hand of a CLOCK (second chance)
+ * algorithm. When the cache is too full, objects are taken from the head of the
+ * queue. Objects that were referenced since the last pass get their flag cleared
+ * and are put back at the tail; others are removed. This approximates LRU order.
+ * <li> The age queue, which keeps objects in the order they were added to the
+ * cache. Since all objects share the same maximum lifetime, the head of the queue
+ * is always the next object to expire.</ul><p>
+ *
+ * Expiration is lazy: an expired object is never returned by a lookup, and expired
+ * objects are purged from the head of the age queue when the cache is modified or
+ * its contents are listed. Only one thread at a time purges or culls; other
+ * threads do not wait for it. A writer that finds the cache past its maximum size
+ * while another thread culls evicts objects itself, so that the cache does not keep
+ * growing when objects are added faster than one thread can evict them.<p>
+ *
+ * Object sizes are computed once, when they are added, and the same size budget
+ * rules as {@link DefaultCache} apply. Unlike DefaultCache, <tt>null</tt> keys
+ * cannot be stored.
+ *
+ * @see DefaultCache
+ */
+public class ConcurrentCache<K, V> implements Cache<K, V> {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConcurrentCache.class);
+
+    /**
+     * The map the keys and values are stored in.
+     */
+    private final ConcurrentHashMap<K, CacheObject<K, V>> map;
+
+    /**
+     * Queue used by the CLOCK eviction algorithm. May hold objects that were
+     * already removed from the map; those are skipped and dropped.
+     */
+    private final ConcurrentLinkedQueue<CacheObject<K, V>> evictionQueue =
+            new ConcurrentLinkedQueue<CacheObject<K, V>>();
+
+    /**
+     * Queue of objects in the order they were added to the cache, oldest first.
+     * May hold objects that were already removed from the map.
+     */
+    private final ConcurrentLinkedQueue<CacheObject<K, V>> ageQueue =
+            new ConcurrentLinkedQueue<CacheObject<K, V>>();
+
+    /**
+     * Number of objects that were removed from the map but may still be referenced
+     * by the queues. Used to decide when the queues need to be compacted.
+     */
+    private final AtomicInteger removedObjects = new AtomicInteger();
+
+    /**
+     * Guards eviction, expiration and queue compaction. The read and write paths
+     * only ever use tryLock(), so they never wait for maintenance to complete.
+     */
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+
+    /**
+     * Maximum size in bytes that the cache can grow to.
+     */
+    private volatile long maxCacheSize;
+
+    /**
+     * Maintains the current size of the cache in bytes.
+     */
+    private final AtomicLong cacheSize = new AtomicLong();
+
+    /**
+     * Maximum length of time objects can exist in cache before expiring.
+     */
+    private volatile long maxLifetime;
+
+    /**
+     * Maintain the number of cache hits and misses.
+     */
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * The name of the cache.
+     */
+    private String name;
+
+    /**
+     * Create a new concurrent cache and specify the maximum size of for the cache in
+     * bytes, and the maximum lifetime of objects.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     */
+    public ConcurrentCache(String name, long maxSize, long maxLifetime) {
+        this.name = name;
+        this.maxCacheSize = maxSize;
+        this.maxLifetime = maxLifetime;
+
+        map = new ConcurrentHashMap<K, CacheObject<K, V>>(103, 0.75f,
+                Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    public V put(K key, V value) {
+        int objectSize = 1;
+        try {
+             objectSize = CacheSizes.sizeOfAnything(value);
+        }
+        catch (CannotCalculateSizeException e) {
+             Log.warn(e.getMessage(), e);
+        }
+
+        // If the object is bigger than the entire cache, simply don't add it.
+        if (maxCacheSize > 0 && objectSize > maxCacheSize * .90) {
+            Log.warn("Cache: " + name + " -- object with key " + key +
+                    " is too large to fit in cache. Size is " + objectSize);
+            remove(key);
+            return value;
+        }
+
+        CacheObject<K, V> cacheObject = new CacheObject<K, V>(key, value, objectSize);
+        cacheSize.addAndGet(objectSize);
+        CacheObject<K, V> old = map.put(key, cacheObject);
+        ageQueue.add(cacheObject);
+        evictionQueue.add(cacheObject);
+
+        V answer = null;
+        if (old != null) {
+            discard(old);
+            if (!isExpired(old, System.currentTimeMillis())) {
+                answer = old.object;
+            }
+        }
+
+        // Expire old entries and evict until there is room, unless another thread is
+        // already doing so.
+        if (maintenanceLock.tryLock()) {
+            try {
+                deleteExpiredEntries();
+                cullCache();
+                compactQueues();
+            }
+            finally {
+                maintenanceLock.unlock();
+            }
+        }
+        else if (maxCacheSize > 0 && cacheSize.get() > maxCacheSize) {
+            evict(maxCacheSize);
+        }
+        return answer;
+    }
+
+    public V get(Object key) {
+        CacheObject<K, V> cacheObject = key == null ? null : map.get(key);
+        if (cacheObject == null) {
+            // The object didn't exist in cache, so increment cache misses.
+            cacheMisses.incrementAndGet();
+            return null;
+        }
+        if (isExpired(cacheObject, System.currentTimeMillis())) {
+            // Lazily expire the object.
+            if (map.remove(key, cacheObject)) {
+                discard(cacheObject);
+            }
+            cacheMisses.incrementAndGet();
+            return null;
+        }
+
+        cacheHits.incrementAndGet();
+        // Avoid writing to shared memory when the flag is already set.
+        if (!cacheObject.referenced) {
+            cacheObject.referenced = true;
+        }
+        return cacheObject.object;
+    }
+
+    public V remove(Object key) {
+        CacheObject<K, V> cacheObject = key == null ? null : map.remove(key);
+        // If the object is not in cache, stop trying to remove it.
+        if (cacheObject == null) {
+            return null;
+        }
+        discard(cacheObject);
+        return cacheObject.object;
+    }
+
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+        maintenanceLock.lock();
+        try {
+            compactQueues();
+        }
+        finally {
+            maintenanceLock.unlock();
+        }
+        cacheHits.set(0);
+        cacheMisses.set(0);
+    }
+
+    public int size() {
+        purgeExpiredEntries();
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        purgeExpiredEntries();
+        return map.isEmpty();
+    }
+
+    public Collection<V> values() {
+        long now = System.currentTimeMillis();
+        List<V> result = new ArrayList<V>(map.size());
+        for (CacheObject<K, V> cacheObject : map.values()) {
+            if (!isExpired(cacheObject, now)) {
+                result.add(cacheObject.object);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public boolean containsKey(Object key) {
+        CacheObject<K, V> cacheObject = key == null ? null : map.get(key);
+        return cacheObject != null && !isExpired(cacheObject, System.currentTimeMillis());
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean containsValue(Object value) {
+        for (V object : values()) {
+            if (value == null ? object == null : value.equals(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        long now = System.currentTimeMillis();
+        final Map<K, V> result = new HashMap<K, V>();
+        for (final Entry<K, CacheObject<K, V>> entry : map.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                result.put(entry.getKey(), entry.getValue().object);
+            }
+        }
+        return result.entrySet();
+    }
+
+    public Set<K> keySet() {
+        long now = System.currentTimeMillis();
+        final Set<K> result = new HashSet<K>();
+        for (final Entry<K, CacheObject<K, V>> entry : map.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public int getCacheSize() {
+        return (int) cacheSize.get();
+    }
+
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+        CacheFactory.setMaxSizeProperty(name, maxCacheSize);
+        // It's possible that the new max size is smaller than our current cache
+        // size. If so, we need to delete infrequently used items.
+        maintenanceLock.lock();
+        try {
+            cullCache();
+        }
+        finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        CacheFactory.setMaxLifetimeProperty(name, maxLifetime);
+    }
+
+    /**
+     * Returns true if the object has been in cache longer than the maximum
+     * defined lifetime.
+     */
+    private boolean isExpired(CacheObject<K, V> cacheObject, long now) {
+        long lifetime = maxLifetime;
+        return lifetime > 0 && now - cacheObject.creationTime > lifetime;
+    }
+
+    /**
+     * Accounts for an object that was just removed from the map by the caller.
+     */
+    private void discard(CacheObject<K, V> cacheObject) {
+        cacheSize.addAndGet(-cacheObject.size);
+        removedObjects.incrementAndGet();
+    }
+
+    /**
+     * Removes expired entries if no other thread is already doing so.
+     */
+    private void purgeExpiredEntries() {
+        if (maxLifetime > 0 && maintenanceLock.tryLock()) {
+            try {
+                deleteExpiredEntries();
+            }
+            finally {
+                maintenanceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Clears all entries out of cache where the entries are older than the
+     * maximum defined age. Must be called while holding the maintenance lock.
+     */
+    private void deleteExpiredEntries() {
+        // Check if expiration is turned on.
+        if (maxLifetime <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        CacheObject<K, V> cacheObject;
+        while ((cacheObject = ageQueue.peek()) != null) {
+            if (map.get(cacheObject.key) != cacheObject) {
+                // Already removed or replaced.
+                ageQueue.poll();
+                continue;
+            }
+            if (!isExpired(cacheObject, now)) {
+                return;
+            }
+            ageQueue.poll();
+            if (map.remove(cacheObject.key, cacheObject)) {
+                discard(cacheObject);
+            }
+        }
+    }
+
+    /**
+     * Removes objects from cache if the cache is too full. "Too full" is
+     * defined as within 3% of the maximum cache size. Whenever the cache is
+     * is too big, the least recently referenced elements are deleted until the
+     * cache is at least 10% empty. Must be called while holding the maintenance lock.
+     */
+    private void cullCache() {
+        long max = maxCacheSize;
+        // Check if a max cache size is defined.
+        if (max < 0) {
+            return;
+        }
+
+        // See if the cache size is within 3% of being too big. If so, clean out
+        // cache until it's 10% free.
+        long desiredSize = (long) (max * .97);
+        if (cacheSize.get() >= desiredSize) {
+            // First, delete any old entries to see how much memory that frees.
+            deleteExpiredEntries();
+            desiredSize = (long) (max * .90);
+            if (cacheSize.get() > desiredSize) {
+                long t = System.currentTimeMillis();
+                evict(desiredSize);
+                t = System.currentTimeMillis() - t;
+                Log.warn("Cache " + name + " was full, shrinked to 90% in " + t + "ms.");
+            }
+        }
+    }
+
+    /**
+     * Removes objects from the head of the eviction queue until the cache is no bigger
+     * than the desired size. Referenced objects get a second chance, but no more second
+     * chances than there are objects in the cache, so objects that are read again while
+     * the queue is swept cannot keep the cache from shrinking. May be called by several
+     * threads at once.
+     */
+    private void evict(long desiredSize) {
+        int secondChances = map.size();
+        CacheObject<K, V> cacheObject;
+        while (cacheSize.get() > desiredSize && (cacheObject = evictionQueue.poll()) != null) {
+            if (map.get(cacheObject.key) != cacheObject) {
+                // Already removed or replaced.
+                continue;
+            }
+            if (cacheObject.referenced && secondChances-- > 0) {
+                // Give the object a second chance.
+                cacheObject.referenced = false;
+                evictionQueue.add(cacheObject);
+            }
+            else if (map.remove(cacheObject.key, cacheObject)) {
+                discard(cacheObject);
+            }
+        }
+    }
+
+    /**
+     * Drops objects that are no longer in the map from the queues once they
+     * outnumber the live objects. Must be called while holding the maintenance lock.
+     */
+    private void compactQueues() {
+        int removed = removedObjects.get();
+        if (removed <= map.size()) {
+            return;
+        }
+        removedObjects.addAndGet(-removed);
+        compact(evictionQueue);
+        compact(ageQueue);
+    }
+
+    private void compact(ConcurrentLinkedQueue<CacheObject<K, V>> queue) {
+        for (Iterator<CacheObject<K, V>> it = queue.iterator(); it.hasNext();) {
+            CacheObject<K, V> cacheObject = it.next();
+            if (map.get(cacheObject.key) != cacheObject) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Wrapper for all objects put into cache. Holds the key so that queued objects
+     * can be matched against the map, and the state used for eviction and expiration.
+     */
+    private static class CacheObject<K, V> {
+
+        /**
+         * Key the object was stored under.
+         */
+        final K key;
+
+        /**
+         * Underlying object wrapped by the CacheObject.
+         */
+        final V object;
+
+        /**
+         * The size of the Cacheable object, computed once when it is added to the cache.
+         */
+        final int size;
+
+        /**
+         * Time the object was added to the cache.
+         */
+        final long creationTime;
+
+        /**
+         * Set when the object is read, cleared when the eviction hand passes it.
+         */
+        volatile boolean referenced;
+
+        CacheObject(K key, V object, int size) {
+            this.key = key;
+            this.object = object;
+            this.size = size;
+            this.creationTime = System.currentTimeMillis();
+        }
+    }
+}
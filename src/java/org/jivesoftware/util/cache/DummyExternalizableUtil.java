@@ -19,6 +19,8 @@
  */
 package org.jivesoftware.util.cache;
 
+import org.dom4j.Element;
+
 import java.io.*;
 import java.util.*;
 
@@ -241,4 +243,13 @@ public class DummyExternalizableUtil implements ExternalizableUtilStrategy {
         // Do nothing
         return 0;
     }
+
+    public void writeElement(DataOutput out, Element element) throws IOException {
+        // Do nothing
+    }
+
+    public Element readElement(DataInput in) throws IOException {
+        // Do nothing
+        return null;
+    }
 }
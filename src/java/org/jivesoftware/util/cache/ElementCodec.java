@@ -0,0 +1,386 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom4j.Attribute;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.QName;
+
+/**
+ * Compact binary format for XML elements sent between cluster nodes. It replaces the
+ * Java serialization of dom4j elements, which writes the whole object graph and reads
+ * it back with reflection.<p>
+ *
+ * Elements are written as tokens. Names, namespaces, prefixes and attribute values are
+ * written as references: common XMPP namespaces, names and values are found in a fixed
+ * dictionary shared by all nodes, and other strings (typically JIDs) are written once
+ * per element and then referenced by index. Text is written as length-prefixed UTF-8,
+ * so it is not limited to 64K like {@link DataOutput#writeUTF(String)}.<p>
+ *
+ * The dictionary is part of the format. Changing it requires changing the version,
+ * and all the nodes of a cluster must use the same version.
+ */
+public class ElementCodec {
+
+    /**
+     * Version of the format written before each element. A zero is written instead of
+     * the version for a <tt>null</tt> element.
+     */
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int ELEMENT = 1;
+    private static final int TEXT = 2;
+    private static final int CDATA = 3;
+    private static final int COMMENT = 4;
+
+    /**
+     * Strings known by all the nodes. Entries must never be changed or reordered
+     * without changing the version.
+     */
+    private static final String[] DICTIONARY = {
+            // Prefixes
+            "", "xml", "stream",
+            // Namespaces
+            "jabber:client", "jabber:server", "jabber:component:accept",
+            "http://www.w3.org/XML/1998/namespace",
+            "http://jabber.org/protocol/muc", "http://jabber.org/protocol/muc#user",
+            "http://jabber.org/protocol/muc#admin", "http://jabber.org/protocol/muc#owner",
+            "http://jabber.org/protocol/disco#info", "http://jabber.org/protocol/disco#items",
+            "http://jabber.org/protocol/caps", "http://jabber.org/protocol/chatstates",
+            "http://jabber.org/protocol/xhtml-im", "http://www.w3.org/1999/xhtml",
+            "http://jabber.org/protocol/pubsub", "http://jabber.org/protocol/pubsub#event",
+            "http://jabber.org/protocol/pubsub#owner", "http://jabber.org/protocol/nick",
+            "http://jabber.org/protocol/address", "urn:ietf:params:xml:ns:xmpp-stanzas",
+            "urn:xmpp:delay", "jabber:x:delay", "jabber:x:data", "jabber:x:event",
+            "jabber:x:conference", "jabber:iq:roster", "jabber:iq:private", "jabber:iq:privacy",
+            "jabber:iq:last", "jabber:iq:version", "vcard-temp", "vcard-temp:x:update",
+            "urn:xmpp:ping", "urn:xmpp:receipts", "urn:xmpp:time", "urn:xmpp:carbons:2",
+            "urn:xmpp:forward:0",
+            // Element names
+            "message", "presence", "iq", "body", "subject", "thread", "show", "status",
+            "priority", "error", "x", "item", "items", "query", "c", "delay", "actor", "reason",
+            "text", "feature", "identity", "event", "html", "nick", "photo", "ping", "request",
+            "received", "sent", "forwarded", "addresses", "address", "composing", "active",
+            "paused", "inactive", "gone", "publish", "retract", "field", "value",
+            // Attribute names
+            "to", "from", "id", "type", "lang", "jid", "role", "affiliation", "code", "node",
+            "ver", "hash", "stamp", "name", "category", "var", "subscription", "ask", "by",
+            // Attribute values
+            "chat", "groupchat", "normal", "headline", "get", "set", "result", "unavailable",
+            "subscribe", "subscribed", "unsubscribe", "unsubscribed", "probe", "away", "xa",
+            "dnd", "moderator", "participant", "visitor", "none", "owner", "admin", "member",
+            "outcast", "both", "remove", "sha-1", "en", "cancel", "modify", "auth", "wait",
+            "continue", "110", "100", "170", "201", "210", "303", "307", "321", "322"
+    };
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i);
+        }
+    }
+
+    private static final DocumentFactory factory = DocumentFactory.getInstance();
+
+    private ElementCodec() {
+    }
+
+    /**
+     * Writes an element, its attributes and its content. This method handles the case
+     * when the element is <tt>null</tt>.
+     *
+     * @param out the output stream.
+     * @param element the element to write.
+     * @throws IOException if an error occurs.
+     */
+    public static void writeElement(DataOutput out, Element element) throws IOException {
+        if (element == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(VERSION);
+        new Writer(out).writeElement(element);
+    }
+
+    /**
+     * Reads an element written by {@link #writeElement(DataOutput, Element)}. This method
+     * will return <tt>null</tt> if the element written to the stream was <tt>null</tt>.
+     *
+     * @param in the input stream.
+     * @return the element read.
+     * @throws IOException if an error occurs or the element was written with another
+     *         version of the format.
+     */
+    public static Element readElement(DataInput in) throws IOException {
+        int version = in.readByte();
+        if (version == 0) {
+            return null;
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported element format version: " + version);
+        }
+        return new Reader(in).readElement();
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static void writeText(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException("Invalid text length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Writes the strings of an element as references. Index 0 is followed by a new
+     * string, other indexes refer to the dictionary and then to the strings already
+     * written for the element.
+     */
+    private static class Writer {
+
+        private final DataOutput out;
+        private Map<String, Integer> strings;
+
+        Writer(DataOutput out) {
+            this.out = out;
+        }
+
+        void writeString(String value) throws IOException {
+            Integer index = DICTIONARY_INDEX.get(value);
+            if (index == null && strings != null) {
+                index = strings.get(value);
+            }
+            if (index != null) {
+                writeVarInt(out, index + 1);
+                return;
+            }
+            if (strings == null) {
+                strings = new HashMap<String, Integer>();
+            }
+            strings.put(value, DICTIONARY.length + strings.size());
+            writeVarInt(out, 0);
+            writeText(out, value);
+        }
+
+        void writeElement(Element element) throws IOException {
+            writeString(element.getNamespacePrefix());
+            writeString(element.getName());
+            writeString(element.getNamespaceURI());
+
+            // Namespaces declared by the element, including its own namespace
+            int nodeCount = element.nodeCount();
+            int declared = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                if (element.node(i).getNodeType() == Node.NAMESPACE_NODE) {
+                    declared++;
+                }
+            }
+            writeVarInt(out, declared);
+            for (int i = 0; i < nodeCount && declared > 0; i++) {
+                Node node = element.node(i);
+                if (node.getNodeType() == Node.NAMESPACE_NODE) {
+                    Namespace namespace = (Namespace) node;
+                    writeString(namespace.getPrefix());
+                    writeString(namespace.getURI());
+                }
+            }
+
+            int attributeCount = element.attributeCount();
+            writeVarInt(out, attributeCount);
+            for (int i = 0; i < attributeCount; i++) {
+                Attribute attribute = element.attribute(i);
+                writeString(attribute.getNamespacePrefix());
+                writeString(attribute.getName());
+                writeString(attribute.getNamespaceURI());
+                writeString(attribute.getValue());
+            }
+
+            int written = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                if (isWritten(element.node(i))) {
+                    written++;
+                }
+            }
+            writeVarInt(out, written);
+            for (int i = 0; i < nodeCount; i++) {
+                Node node = element.node(i);
+                switch (node.getNodeType()) {
+                    case Node.ELEMENT_NODE:
+                        out.writeByte(ELEMENT);
+                        writeElement((Element) node);
+                        break;
+                    case Node.TEXT_NODE:
+                    case Node.ENTITY_REFERENCE_NODE:
+                        out.writeByte(TEXT);
+                        writeText(out, node.getText());
+                        break;
+                    case Node.CDATA_SECTION_NODE:
+                        out.writeByte(CDATA);
+                        writeText(out, node.getText());
+                        break;
+                    case Node.COMMENT_NODE:
+                        out.writeByte(COMMENT);
+                        writeText(out, node.getText());
+                        break;
+                    default:
+                        // Namespace declarations were written with the element, and
+                        // processing instructions are not allowed in XMPP
+                        break;
+                }
+            }
+        }
+
+        private boolean isWritten(Node node) {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                case Node.TEXT_NODE:
+                case Node.ENTITY_REFERENCE_NODE:
+                case Node.CDATA_SECTION_NODE:
+                case Node.COMMENT_NODE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Reads the strings of an element from their references.
+     */
+    private static class Reader {
+
+        private final DataInput in;
+        private List<String> strings;
+
+        Reader(DataInput in) {
+            this.in = in;
+        }
+
+        String readString() throws IOException {
+            int index = readVarInt(in);
+            if (index == 0) {
+                String value = readText(in);
+                if (strings == null) {
+                    strings = new ArrayList<String>();
+                }
+                strings.add(value);
+                return value;
+            }
+            index--;
+            if (index < DICTIONARY.length) {
+                return DICTIONARY[index];
+            }
+            index -= DICTIONARY.length;
+            if (strings == null || index >= strings.size()) {
+                throw new IOException("Invalid string reference: " + (index + DICTIONARY.length));
+            }
+            return strings.get(index);
+        }
+
+        Element readElement() throws IOException {
+            String prefix = readString();
+            String name = readString();
+            String uri = readString();
+            Element element = factory.createElement(factory.createQName(name, prefix, uri));
+
+            int namespaceCount = readVarInt(in);
+            for (int i = 0; i < namespaceCount; i++) {
+                String namespacePrefix = readString();
+                String namespaceURI = readString();
+                element.add(Namespace.get(namespacePrefix, namespaceURI));
+            }
+
+            int attributeCount = readVarInt(in);
+            for (int i = 0; i < attributeCount; i++) {
+                String attributePrefix = readString();
+                String attributeName = readString();
+                String attributeURI = readString();
+                String value = readString();
+                QName qName = factory.createQName(attributeName, attributePrefix, attributeURI);
+                element.addAttribute(qName, value);
+            }
+
+            int nodeCount = readVarInt(in);
+            for (int i = 0; i < nodeCount; i++) {
+                int type = in.readByte();
+                switch (type) {
+                    case ELEMENT:
+                        element.add(readElement());
+                        break;
+                    case TEXT:
+                        element.addText(readText(in));
+                        break;
+                    case CDATA:
+                        element.addCDATA(readText(in));
+                        break;
+                    case COMMENT:
+                        element.addComment(readText(in));
+                        break;
+                    default:
+                        throw new IOException("Unknown node type: " + type);
+                }
+            }
+            return element;
+        }
+    }
+}
@@ -20,6 +20,8 @@
 
 package org.jivesoftware.util.cache;
 
+import org.dom4j.Element;
+
 import java.io.*;
 import java.util.Collection;
 import java.util.List;
@@ -376,4 +378,28 @@ public class ExternalizableUtil {
     public int readStrings(DataInput in, Collection<String> collection) throws IOException {
         return strategy.readStrings(in, collection);
     }
+
+    /**
+     * Writes an XML element, such as the element of a packet. This method handles the
+     * case when the element is <tt>null</tt>.
+     *
+     * @param out the output stream.
+     * @param element the element to write.
+     * @throws IOException if an error occurs.
+     */
+    public void writeElement(DataOutput out, Element element) throws IOException {
+        strategy.writeElement(out, element);
+    }
+
+    /**
+     * Reads an XML element. This method will return <tt>null</tt> if the element
+     * written to the stream was <tt>null</tt>.
+     *
+     * @param in the input stream.
+     * @return the element read from the input stream.
+     * @throws IOException if an error occurs.
+     */
+    public Element readElement(DataInput in) throws IOException {
+        return strategy.readElement(in);
+    }
 }
@@ -19,6 +19,8 @@
  */
 package org.jivesoftware.util.cache;
 
+import org.dom4j.Element;
+
 import java.io.*;
 import java.util.Collection;
 import java.util.List;
@@ -163,4 +165,8 @@ public interface ExternalizableUtilStrategy {
     void writeInt(DataOutput out, int value) throws IOException;
 
     int readInt(DataInput in) throws IOException;
+
+    void writeElement(DataOutput out, Element element) throws IOException;
+
+    Element readElement(DataInput in) throws IOException;
 }
\ No newline at end of file
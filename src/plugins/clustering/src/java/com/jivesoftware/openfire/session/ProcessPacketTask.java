@@ -20,7 +20,6 @@
 package com.jivesoftware.openfire.session;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.session.Session;
@@ -99,7 +98,7 @@ public class ProcessPacketTask implements ClusterTask {
         } else if (packet instanceof Presence) {
             ExternalizableUtil.getInstance().writeInt(out, 3);
         }
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) packet.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, packet.getElement());
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
@@ -111,7 +110,7 @@ public class ProcessPacketTask implements ClusterTask {
         }
         sessionType = SessionType.values()[ExternalizableUtil.getInstance().readInt(in)];
         int packetType = ExternalizableUtil.getInstance().readInt(in);
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         switch (packetType) {
             case 1:
                 packet = new IQ(packetElement, true);
@@ -22,6 +22,8 @@ package com.jivesoftware.openfire.session;
 import org.jivesoftware.openfire.session.*;
 import org.xmpp.packet.JID;
 
+import java.util.Collection;
+
 /**
  * Locator of sessions that know how to talk to Coherence cluster nodes.
  *
@@ -50,4 +52,8 @@ public class RemoteSessionLocator implements org.jivesoftware.openfire.session.R
     public OutgoingServerSession getOutgoingServerSession(byte[] nodeID, JID address) {
         return new RemoteOutgoingServerSession(nodeID, address);
     }
+
+    public void prefetchSessionDetails(Collection<? extends Session> sessions) {
+        // Surrogates read their details on demand
+    }
 }
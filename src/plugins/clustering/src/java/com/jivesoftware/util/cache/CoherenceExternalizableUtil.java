@@ -21,6 +21,8 @@
 package com.jivesoftware.util.cache;
 
 import com.tangosol.util.ExternalizableHelper;
+import org.dom4j.Element;
+import org.jivesoftware.util.cache.ElementCodec;
 import org.jivesoftware.util.cache.ExternalizableUtilStrategy;
 
 import java.io.*;
@@ -341,4 +343,12 @@ public class CoherenceExternalizableUtil implements ExternalizableUtilStrategy {
         Collections.addAll(collection, strings);
         return strings.length;
     }
+
+    public void writeElement(DataOutput out, Element element) throws IOException {
+        ElementCodec.writeElement(out, element);
+    }
+
+    public Element readElement(DataInput in) throws IOException {
+        return ElementCodec.readElement(in);
+    }
 }
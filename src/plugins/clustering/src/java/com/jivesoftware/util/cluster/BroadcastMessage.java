@@ -19,7 +19,6 @@
 package com.jivesoftware.util.cluster;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.util.cache.ClusterTask;
 import org.jivesoftware.util.cache.ExternalizableUtil;
@@ -57,11 +56,11 @@ public class BroadcastMessage implements ClusterTask {
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) packet.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, packet.getElement());
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         packet = new Message(packetElement, true);
     }
 }
@@ -26,6 +26,8 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
+import java.util.List;
+
 /**
  * Route packets to other nodes of the cluster. If the remote node was not found or failed
  * to be reached then depending on the type of packet an error packet will be returned. In case
@@ -53,6 +55,17 @@ public class CoherencePacketRouter implements RemotePacketRouter {
         }
     }
 
+    public boolean routePackets(byte[] nodeID, List<JID> receipients, List<Packet> packets) {
+        // Send all the packets to the specified node in a single task
+        try {
+            CacheFactory.doClusterTask(new RemotePacketsExecution(receipients, packets), nodeID);
+            return true;
+        } catch (IllegalStateException  e) {
+            Log.warn("Error while routing packets to remote node", e);
+            return false;
+        }
+    }
+
     public void broadcastPacket(Message packet) {
         // Execute the broadcast task across the cluster
         CacheFactory.doClusterTask(new BroadcastMessage(packet));
@@ -20,7 +20,6 @@
 package com.jivesoftware.util.cluster;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.util.cache.ClusterTask;
 import org.jivesoftware.util.cache.ExternalizableUtil;
@@ -71,7 +70,7 @@ public class RemotePacketExecution implements ClusterTask {
         else if (packet instanceof Presence) {
             ExternalizableUtil.getInstance().writeInt(out, 3);
         }
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) packet.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, packet.getElement());
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
@@ -82,7 +81,7 @@ public class RemotePacketExecution implements ClusterTask {
         receipient = new JID(jid);
 
         int packetType = ExternalizableUtil.getInstance().readInt(in);
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         switch (packetType) {
             case 1:
                 packet = new IQ(packetElement, true);
@@ -0,0 +1,81 @@
+/**
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jivesoftware.util.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+/**
+ * Task to be executed by remote nodes to deliver a batch of packets to receivers
+ * hosted by the node. Each packet is delivered as if sent by a {@link RemotePacketExecution}.
+ */
+public class RemotePacketsExecution implements ClusterTask {
+
+    private List<RemotePacketExecution> executions;
+
+    public RemotePacketsExecution() {
+    }
+
+    public RemotePacketsExecution(List<JID> recipients, List<Packet> packets) {
+        executions = new ArrayList<RemotePacketExecution>(recipients.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            executions.add(new RemotePacketExecution(recipients.get(i), packets.get(i)));
+        }
+    }
+
+    public Object getResult() {
+        return null;
+    }
+
+    public void run() {
+        for (RemotePacketExecution execution : executions) {
+            execution.run();
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeInt(out, executions.size());
+        for (RemotePacketExecution execution : executions) {
+            execution.writeExternal(out);
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = ExternalizableUtil.getInstance().readInt(in);
+        executions = new ArrayList<RemotePacketExecution>(size);
+        for (int i = 0; i < size; i++) {
+            RemotePacketExecution execution = new RemotePacketExecution();
+            execution.readExternal(in);
+            executions.add(execution);
+        }
+    }
+
+    public String toString() {
+        return super.toString() + " packets: " + executions.size();
+    }
+}
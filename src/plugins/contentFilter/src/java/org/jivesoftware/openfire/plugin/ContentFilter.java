@@ -21,6 +21,7 @@
 package org.jivesoftware.openfire.plugin;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.regex.Matcher;
@@ -44,6 +45,15 @@ public class ContentFilter {
 
     private String mask;
 
+    /**
+     * flags if patterns should be matched in a single pass over the content
+     */
+    private boolean automatonEnabled = false;
+
+    /**
+     * matcher of the patterns when the automaton is enabled
+     */
+    private MultiPatternMatcher multiMatcher;
 
     /**
      * A default instance will allow all message content.
@@ -65,10 +75,14 @@ public class ContentFilter {
             String[] data = patterns.split(",");
 
             compiledPatterns.clear();
+            multiMatcher = null;
 
             for (int i = 0; i < data.length; i++) {
                 compiledPatterns.add(Pattern.compile(data[i]));
             }
+            if (automatonEnabled) {
+                multiMatcher = new MultiPatternMatcher(Arrays.asList(data));
+            }
         }
         else {
             clearPatterns();
@@ -87,6 +101,30 @@ public class ContentFilter {
     public void clearPatterns() {
         patterns = null;
         compiledPatterns.clear();
+        multiMatcher = null;
+    }
+
+    /**
+     * Sets if the patterns should be matched in a single pass over the content.
+     * Literal words are then matched with an Aho-Corasick automaton and the other
+     * patterns with a single combined regular expression. When masking, overlapping
+     * matches are masked once (leftmost and then longest match first) and the mask
+     * is used literally. By default patterns are applied one after the other.
+     *
+     * @param enabled true if patterns should be matched in a single pass.
+     */
+    public void setAutomatonEnabled(boolean enabled) {
+        automatonEnabled = enabled;
+        if (patterns != null) {
+            setPatterns(patterns);
+        }
+    }
+
+    /**
+     * @return true if patterns are matched in a single pass over the content
+     */
+    public boolean isAutomatonEnabled() {
+        return automatonEnabled;
     }
 
     /**
@@ -157,7 +195,20 @@ public class ContentFilter {
         String content = element.getText();
         
         if ((content != null) && (content.length() > 0)) {
-            
+
+            MultiPatternMatcher multiMatcher = this.multiMatcher;
+            if (multiMatcher != null) {
+                if (!isMaskingContent()) {
+                    return multiMatcher.find(content);
+                }
+                String masked = multiMatcher.mask(content, mask);
+                if (masked != null) {
+                    element.setText(masked);
+                    return true;
+                }
+                return false;
+            }
+
             for (Pattern pattern : compiledPatterns) {                
                 
                 Matcher matcher = pattern.matcher(content);
@@ -138,6 +138,14 @@ public class ContentFilterPlugin implements Plugin, PacketInterceptor {
      */
     public static final String ALLOW_ON_MATCH_PROPERTY = "plugin.contentFilter.allow.on.match";
 
+    /**
+     * The expected value is a boolean, if true all the patterns are matched in a
+     * single pass over the content, using an Aho-Corasick automaton for the patterns
+     * that are literal words. Overlapping matches are then masked once and the mask
+     * is not interpreted as a replacement expression. The default value is false.
+     */
+    public static final String AUTOMATON_ENABLED_PROPERTY = "plugin.contentFilter.automaton.enabled";
+
     /**
      * the hook into the inteceptor chain
      */
@@ -335,6 +343,17 @@ public class ContentFilterPlugin implements Plugin, PacketInterceptor {
         return patterns;
     }
 
+    public boolean isAutomatonEnabled() {
+        return contentFilter.isAutomatonEnabled();
+    }
+
+    public void setAutomatonEnabled(boolean enabled) {
+        JiveGlobals.setProperty(AUTOMATON_ENABLED_PROPERTY, enabled ? "true"
+                : "false");
+
+        contentFilter.setAutomatonEnabled(enabled);
+    }
+
     public boolean isRejectionNotificationEnabled() {
         return rejectionNotificationEnabled;
     }
@@ -450,6 +469,10 @@ public class ContentFilterPlugin implements Plugin, PacketInterceptor {
         // default to "fox,dog"
         patterns = JiveGlobals.getProperty(PATTERNS_PROPERTY, "fox,dog");
 
+        // default to false
+        contentFilter.setAutomatonEnabled(JiveGlobals.getBooleanProperty(
+                AUTOMATON_ENABLED_PROPERTY, false));
+
         try {
             changeContentFilterPatterns();
         }
@@ -0,0 +1,239 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a list of regular expressions against content using as few passes over the
+ * content as possible. Patterns are split in three groups when compiled:
+ *
+ * <ul>
+ *  <li>Literal words, optionally preceded by <tt>(?i)</tt> and surrounded by <tt>\b</tt>,
+ *      are added to a {@link PatternAutomaton} that finds all of them in one pass.</li>
+ *  <li>Other patterns are combined into a single regular expression of alternatives so
+ *      that the content is only scanned once for all of them.</li>
+ *  <li>Patterns that can match empty content or that use back references can not be
+ *      combined and are applied one at a time, as done by {@link ContentFilter}.</li>
+ * </ul>
+ *
+ * When masking, the matches of the automaton and of the combined expression are masked
+ * together in one pass, preferring the leftmost and then the longest match when matches
+ * overlap. The mask is inserted literally. Patterns that could not be combined are then
+ * applied to the masked content in order.<p>
+ *
+ * Instances are immutable and can be used by several threads.
+ */
+class MultiPatternMatcher {
+
+    /**
+     * Orders matches by start and then by decreasing length.
+     */
+    private static final Comparator<int[]> MATCH_ORDER = new Comparator<int[]>() {
+        public int compare(int[] m1, int[] m2) {
+            if (m1[0] != m2[0]) {
+                return m1[0] < m2[0] ? -1 : 1;
+            }
+            return m1[1] > m2[1] ? -1 : (m1[1] == m2[1] ? 0 : 1);
+        }
+    };
+
+    private final PatternAutomaton automaton = new PatternAutomaton();
+    private final Pattern combined;
+    private final List<Pattern> separate = new ArrayList<Pattern>();
+
+    /**
+     * Compiles the specified patterns.
+     *
+     * @param patterns the regular expressions to match.
+     * @throws java.util.regex.PatternSyntaxException if a pattern is not valid.
+     */
+    MultiPatternMatcher(Collection<String> patterns) {
+        StringBuilder alternatives = new StringBuilder();
+        for (String pattern : patterns) {
+            // Validate every pattern as ContentFilter does
+            Pattern compiled = Pattern.compile(pattern);
+            if (addLiteral(pattern)) {
+                continue;
+            }
+            if (compiled.matcher("").find() || hasBackReference(pattern)) {
+                separate.add(compiled);
+            }
+            else {
+                if (alternatives.length() > 0) {
+                    alternatives.append('|');
+                }
+                alternatives.append("(?:").append(pattern).append(')');
+            }
+        }
+        automaton.build();
+        combined = alternatives.length() > 0 ? Pattern.compile(alternatives.toString()) : null;
+    }
+
+    /**
+     * Returns true if the content matches any of the patterns.
+     *
+     * @param content the content to search.
+     * @return true if the content matches any of the patterns.
+     */
+    boolean find(String content) {
+        if (automaton.find(content, true, null)) {
+            return true;
+        }
+        if (combined != null && combined.matcher(content).find()) {
+            return true;
+        }
+        for (Pattern pattern : separate) {
+            if (pattern.matcher(content).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the matches of the patterns in the content with the mask.
+     *
+     * @param content the content to mask.
+     * @param mask the text that replaces each match.
+     * @return the masked content or null if the content does not match any pattern.
+     */
+    String mask(String content, String mask) {
+        List<int[]> matches = new ArrayList<int[]>();
+        automaton.find(content, false, matches);
+        if (combined != null) {
+            Matcher matcher = combined.matcher(content);
+            while (matcher.find()) {
+                matches.add(new int[] {matcher.start(), matcher.end()});
+            }
+        }
+        boolean matched = !matches.isEmpty();
+        if (matched) {
+            Collections.sort(matches, MATCH_ORDER);
+            StringBuilder masked = new StringBuilder(content.length());
+            int position = 0;
+            for (int[] match : matches) {
+                if (match[0] < position) {
+                    // Overlaps a match that was already masked
+                    continue;
+                }
+                masked.append(content, position, match[0]).append(mask);
+                position = match[1];
+            }
+            masked.append(content, position, content.length());
+            content = masked.toString();
+        }
+        for (Pattern pattern : separate) {
+            Matcher matcher = pattern.matcher(content);
+            if (matcher.find()) {
+                matched = true;
+                content = matcher.replaceAll(Matcher.quoteReplacement(mask));
+            }
+        }
+        return matched ? content : null;
+    }
+
+    /**
+     * Returns the number of patterns matched by the automaton.
+     *
+     * @return the number of patterns matched by the automaton.
+     */
+    int getLiteralCount() {
+        return automaton.size();
+    }
+
+    /**
+     * Adds the pattern to the automaton if it is a literal word, optionally preceded by
+     * <tt>(?i)</tt> and surrounded by word boundaries.
+     */
+    private boolean addLiteral(String pattern) {
+        int start = 0;
+        int end = pattern.length();
+        boolean ignoreCase = pattern.startsWith("(?i)");
+        if (ignoreCase) {
+            start += 4;
+        }
+        boolean startBoundary = pattern.startsWith("\\b", start);
+        if (startBoundary) {
+            start += 2;
+        }
+        boolean endBoundary = false;
+        if (end - start >= 2 && pattern.startsWith("\\b", end - 2) && !isEscaped(pattern, start, end - 2)) {
+            endBoundary = true;
+            end -= 2;
+        }
+        StringBuilder word = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                // Escaped punctuation stands for itself
+                if (i + 1 >= end || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                    return false;
+                }
+                word.append(pattern.charAt(++i));
+            }
+            else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                return false;
+            }
+            else {
+                word.append(c);
+            }
+        }
+        if (word.length() == 0) {
+            return false;
+        }
+        automaton.addWord(word.toString(), ignoreCase, startBoundary, endBoundary);
+        return true;
+    }
+
+    /**
+     * Returns true if the char at the specified index is escaped by an odd number of
+     * backslashes.
+     */
+    private static boolean isEscaped(String pattern, int start, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= start && pattern.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static boolean hasBackReference(String pattern) {
+        for (int i = 0; i < pattern.length() - 1; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                char next = pattern.charAt(i + 1);
+                if ((next >= '1' && next <= '9') || next == 'k') {
+                    return true;
+                }
+                // Skip the escaped char
+                i++;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton that finds all the occurrences of a set of words in a
+ * single pass over the text. Words may be matched ignoring case, using the ASCII
+ * only case folding of <tt>Pattern.CASE_INSENSITIVE</tt>, and may require a word
+ * boundary (as <tt>\b</tt> in a regular expression) before or after them.<p>
+ *
+ * Words are added with {@link #addWord(String, boolean, boolean, boolean)} and the
+ * automaton must be built with {@link #build()} before searching. A built automaton
+ * is immutable and can be used by several threads.
+ */
+class PatternAutomaton {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    private final Node caseSensitiveRoot = new Node();
+    private final Node caseInsensitiveRoot = new Node();
+    private final List<Word> words = new ArrayList<Word>();
+    private boolean built = false;
+
+    /**
+     * Adds a word to the automaton.
+     *
+     * @param word the word to find.
+     * @param ignoreCase true if ASCII letters should match ignoring case.
+     * @param startBoundary true if a word boundary is required before the word.
+     * @param endBoundary true if a word boundary is required after the word.
+     */
+    void addWord(String word, boolean ignoreCase, boolean startBoundary, boolean endBoundary) {
+        if (built) {
+            throw new IllegalStateException("Automaton was already built");
+        }
+        if (word.length() == 0) {
+            throw new IllegalArgumentException("Empty word");
+        }
+        Node node = ignoreCase ? caseInsensitiveRoot : caseSensitiveRoot;
+        for (int i = 0; i < word.length(); i++) {
+            char c = ignoreCase ? fold(word.charAt(i)) : word.charAt(i);
+            Node next = node.get(c);
+            if (next == null) {
+                next = node.add(c, new Node());
+            }
+            node = next;
+        }
+        Word w = new Word(word.length(), startBoundary, endBoundary);
+        words.add(w);
+        node.addOutput(w);
+    }
+
+    /**
+     * Returns the number of words added to the automaton.
+     *
+     * @return the number of words added to the automaton.
+     */
+    int size() {
+        return words.size();
+    }
+
+    /**
+     * Computes the failure links of the automaton. No more words can be added once the
+     * automaton is built.
+     */
+    void build() {
+        link(caseSensitiveRoot);
+        link(caseInsensitiveRoot);
+        built = true;
+    }
+
+    private static void link(Node root) {
+        LinkedList<Node> queue = new LinkedList<Node>();
+        for (int i = 0; i < root.size; i++) {
+            Node child = root.children[i];
+            child.fail = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.removeFirst();
+            for (int i = 0; i < node.size; i++) {
+                char c = node.keys[i];
+                Node child = node.children[i];
+                Node fail = node.fail;
+                while (fail != root && fail.get(c) == null) {
+                    fail = fail.fail;
+                }
+                Node target = fail.get(c);
+                child.fail = target != null && target != child ? target : root;
+                child.outputLink = child.fail.outputs != null ? child.fail : child.fail.outputLink;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Finds the occurrences of the words in the text.
+     *
+     * @param text the text to search.
+     * @param firstOnly true if the search should stop at the first occurrence.
+     * @param matches list where the start and end (exclusive) of each occurrence is added.
+     * @return true if an occurrence was found.
+     */
+    boolean find(CharSequence text, boolean firstOnly, List<int[]> matches) {
+        if (!built) {
+            throw new IllegalStateException("Automaton was not built");
+        }
+        boolean found = false;
+        Node sensitive = caseSensitiveRoot;
+        Node insensitive = caseInsensitiveRoot;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            sensitive = next(caseSensitiveRoot, sensitive, c);
+            insensitive = next(caseInsensitiveRoot, insensitive, fold(c));
+            if (report(sensitive, text, i + 1, firstOnly, matches)
+                    | report(insensitive, text, i + 1, firstOnly, matches)) {
+                found = true;
+                if (firstOnly) {
+                    return true;
+                }
+            }
+        }
+        return found;
+    }
+
+    private static Node next(Node root, Node node, char c) {
+        if (root.size == 0) {
+            return root;
+        }
+        while (true) {
+            Node next = node.get(c);
+            if (next != null) {
+                return next;
+            }
+            if (node == root) {
+                return root;
+            }
+            node = node.fail;
+        }
+    }
+
+    private static boolean report(Node node, CharSequence text, int end, boolean firstOnly, List<int[]> matches) {
+        boolean found = false;
+        for (Node n = node.outputs != null ? node : node.outputLink; n != null; n = n.outputLink) {
+            for (Word word : n.outputs) {
+                int start = end - word.length;
+                if ((word.startBoundary && !isBoundary(text, start)) ||
+                        (word.endBoundary && !isBoundary(text, end))) {
+                    continue;
+                }
+                found = true;
+                if (firstOnly) {
+                    return true;
+                }
+                matches.add(new int[] {start, end});
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns true if there is a word boundary at the specified index, using the same
+     * definition of word characters as <tt>\b</tt> in java.util.regex.
+     */
+    private static boolean isBoundary(CharSequence text, int index) {
+        boolean before = index > 0 && isWordChar(text.charAt(index - 1));
+        boolean after = index < text.length() && isWordChar(text.charAt(index));
+        return before != after;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Folds ASCII letters to lower case, which is how <tt>Pattern.CASE_INSENSITIVE</tt>
+     * compares characters when <tt>UNICODE_CASE</tt> is not set.
+     */
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static class Word {
+
+        private final int length;
+        private final boolean startBoundary;
+        private final boolean endBoundary;
+
+        Word(int length, boolean startBoundary, boolean endBoundary) {
+            this.length = length;
+            this.startBoundary = startBoundary;
+            this.endBoundary = endBoundary;
+        }
+    }
+
+    /**
+     * Node of the automaton. Transitions are kept sorted by char so that looking up a
+     * transition is a binary search.
+     */
+    private static class Node {
+
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_NODES;
+        private int size = 0;
+        private Node fail;
+        /**
+         * Closest node in the chain of failure links that has outputs.
+         */
+        private Node outputLink;
+        private Word[] outputs;
+
+        Node get(char c) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char key = keys[mid];
+                if (key < c) {
+                    low = mid + 1;
+                }
+                else if (key > c) {
+                    high = mid - 1;
+                }
+                else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        Node add(char c, Node child) {
+            if (size == keys.length) {
+                int capacity = Math.max(2, size * 2);
+                char[] newKeys = new char[capacity];
+                Node[] newChildren = new Node[capacity];
+                System.arraycopy(keys, 0, newKeys, 0, size);
+                System.arraycopy(children, 0, newChildren, 0, size);
+                keys = newKeys;
+                children = newChildren;
+            }
+            int index = size;
+            while (index > 0 && keys[index - 1] > c) {
+                keys[index] = keys[index - 1];
+                children[index] = children[index - 1];
+                index--;
+            }
+            keys[index] = c;
+            children[index] = child;
+            size++;
+            return child;
+        }
+
+        void addOutput(Word word) {
+            if (outputs == null) {
+                outputs = new Word[] {word};
+            }
+            else {
+                Word[] newOutputs = new Word[outputs.length + 1];
+                System.arraycopy(outputs, 0, newOutputs, 0, outputs.length);
+                newOutputs[outputs.length] = word;
+                outputs = newOutputs;
+            }
+        }
+    }
+}
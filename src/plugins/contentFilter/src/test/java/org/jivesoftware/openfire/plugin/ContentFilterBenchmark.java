@@ -0,0 +1,80 @@
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Random;
+
+import org.xmpp.packet.Message;
+
+/**
+ * Compares the time it takes {@link ContentFilter} to mask messages with and
+ * without the pattern automaton, for growing numbers of patterns. Run it as a
+ * plain Java application, optionally passing the number of iterations.
+ */
+public class ContentFilterBenchmark {
+
+    private static final int[] PATTERN_COUNTS = {10, 1000, 10000};
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(1);
+        String[] bodies = new String[100];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = createText(random, 40);
+        }
+        for (int count : PATTERN_COUNTS) {
+            StringBuilder patterns = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    patterns.append(',');
+                }
+                patterns.append(i % 10 == 0 ? "(?i)" : "").append(createWord(random));
+            }
+            // Fewer iterations for large pattern lists as the sequential filter is slow
+            int runs = Math.max(10, iterations * 10 / count);
+            long sequential = run(patterns.toString(), false, bodies, runs);
+            long automaton = run(patterns.toString(), true, bodies, runs);
+            System.out.println(count + " patterns: sequential " + sequential / 1000 + " us/msg, automaton "
+                    + automaton / 1000 + " us/msg");
+        }
+    }
+
+    /**
+     * Returns the average time in nanoseconds that it took to filter a message.
+     */
+    private static long run(String patterns, boolean automatonEnabled, String[] bodies, int runs) {
+        ContentFilter filter = new ContentFilter();
+        filter.setAutomatonEnabled(automatonEnabled);
+        filter.setPatterns(patterns);
+        filter.setMask("***");
+        // Warm up
+        for (int i = 0; i < runs; i++) {
+            filter(filter, bodies[i % bodies.length]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            filter(filter, bodies[i % bodies.length]);
+        }
+        return (System.nanoTime() - start) / runs;
+    }
+
+    private static void filter(ContentFilter filter, String body) {
+        Message message = new Message();
+        message.setBody(body);
+        filter.filter(message);
+    }
+
+    private static String createText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(createWord(random)).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static String createWord(Random random) {
+        char[] word = new char[3 + random.nextInt(5)];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(word);
+    }
+}
@@ -0,0 +1,89 @@
+package org.jivesoftware.openfire.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MultiPatternMatcher}.
+ */
+public class MultiPatternMatcherTest {
+
+    private static MultiPatternMatcher create(String... patterns) {
+        return new MultiPatternMatcher(Arrays.asList(patterns));
+    }
+
+    @Test
+    public void testLiterals() {
+        MultiPatternMatcher matcher = create("fox", "dog", "c\\.a", "(?i)cat", "\\bowl\\b");
+        assertEquals(5, matcher.getLiteralCount());
+        assertTrue(matcher.find("the quick brown fox"));
+        assertTrue(matcher.find("a CaT"));
+        assertTrue(matcher.find("c.a"));
+        assertFalse(matcher.find("cxa"));
+        assertFalse(matcher.find("a Fox"));
+        assertFalse(matcher.find("howling"));
+        assertTrue(matcher.find("an owl."));
+        assertEquals("the ** jumps over the **", matcher.mask("the fox jumps over the dog", "**"));
+        assertEquals("** owls **!", matcher.mask("CAT owls owl!", "**"));
+        assertNull(matcher.mask("nothing here", "**"));
+    }
+
+    @Test
+    public void testOverlappingMatches() {
+        MultiPatternMatcher matcher = create("he", "she", "hers", "[0-9]+");
+        assertEquals("u*rs and *", matcher.mask("ushers and 1234", "*"));
+        assertEquals("*", matcher.mask("she", "*"));
+    }
+
+    @Test
+    public void testMaskIsLiteral() {
+        MultiPatternMatcher matcher = create("fox", "d.g");
+        assertEquals("$1 and $1", matcher.mask("fox and dog", "$1"));
+    }
+
+    @Test
+    public void testSeparatePatterns() {
+        // Patterns matching empty content or using back references can not be combined
+        MultiPatternMatcher matcher = create("(a)\\1", "fox");
+        assertEquals(1, matcher.getLiteralCount());
+        assertTrue(matcher.find("aa"));
+        assertEquals("-b-", matcher.mask("aabaa", "-"));
+        assertEquals("x- -", matcher.mask("xfox fox", "-"));
+        assertEquals("axb".replaceAll("x*", "-"), create("x*").mask("axb", "-"));
+    }
+
+    @Test
+    public void testSameMatchesAsPatterns() {
+        // Without overlaps the automaton finds the same matches as the regular expressions
+        String[] words = {"alpha", "beta", "gamma", "delta", "(?i)epsilon", "\\bzeta\\b", "eta\\b", "\\btheta"};
+        MultiPatternMatcher matcher = create(words);
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String word : words) {
+            patterns.add(Pattern.compile(word));
+        }
+        String[] tokens = {"alpha", "beta", "GAMMA", "EpSiLoN", "zeta", "zetas", "eta", "theta", "_theta",
+                "x", " ", ".", "-", "9"};
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 8; j++) {
+                text.append(tokens[random.nextInt(tokens.length)]);
+            }
+            boolean expected = false;
+            for (Pattern pattern : patterns) {
+                expected |= pattern.matcher(text).find();
+            }
+            assertEquals(text.toString(), expected, matcher.find(text.toString()));
+        }
+    }
+}
@@ -20,7 +20,6 @@
 package com.jivesoftware.openfire.session;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.privacy.PrivacyList;
 import org.jivesoftware.openfire.privacy.PrivacyListManager;
@@ -198,12 +197,12 @@ public class RemoteClientSession extends RemoteSession implements ClientSession
 
         public void writeExternal(ObjectOutput out) throws IOException {
             super.writeExternal(out);
-            ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) presence.getElement());
+            ExternalizableUtil.getInstance().writeElement(out, presence.getElement());
         }
 
         public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
             super.readExternal(in);
-            Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+            Element packetElement = ExternalizableUtil.getInstance().readElement(in);
             presence = new Presence(packetElement, true);
         }
     }
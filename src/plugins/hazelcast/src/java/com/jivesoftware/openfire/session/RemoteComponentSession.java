@@ -20,7 +20,6 @@
 package com.jivesoftware.openfire.session;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.session.ComponentSession;
 import org.jivesoftware.util.Log;
@@ -212,13 +211,13 @@ public class RemoteComponentSession extends RemoteSession implements ComponentSe
             } else if (packet instanceof Presence) {
                 ExternalizableUtil.getInstance().writeInt(out, 3);
             }
-            ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) packet.getElement());
+            ExternalizableUtil.getInstance().writeElement(out, packet.getElement());
         }
 
         public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
             super.readExternal(in);
             int packetType = ExternalizableUtil.getInstance().readInt(in);
-            Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+            Element packetElement = ExternalizableUtil.getInstance().readElement(in);
             switch (packetType) {
                 case 1:
                     packet = new IQ(packetElement, true);
@@ -20,24 +20,43 @@
 package com.jivesoftware.openfire.session;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.cluster.ClusterNodeInfo;
+import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.jivesoftware.util.cache.ClusterTask;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 
+import com.jivesoftware.util.cluster.ClusterPacketQueue;
+
 /**
  * Base class for sessions being hosted in other cluster nodes. Almost all
  * messages will be forwarded to the actual session in some remote cluster node.
  * Only some few messages will be local operations like getting the session's address
  * or the session status. And only some operations will be cached locally for a brief
- * period for content that is highly used and not frequently modified.
+ * period for content that is highly used and not frequently modified.<p>
+ *
+ * The details of the session (stream ID, dates, packet counters, etc.) are read at once
+ * as a {@link SessionSnapshot}. Values that never change are kept for the lifetime of the
+ * surrogate, or until a snapshot shows that another session with the same address replaced
+ * the session. The rest of the values are kept for <tt>hazelcast.session.snapshot.ttl</tt>
+ * milliseconds (two seconds by default). Use {@link #loadSnapshots(Collection)} to read
+ * the details of many sessions with one call per cluster node. Surrogates are reused for a
+ * short time by the {@link RemoteSessionLocator}, so that the cached values are shared by
+ * lookups of the same session.
  *
  * @author Gaston Dombiak
  */
@@ -53,6 +72,10 @@ public abstract class RemoteSession implements Session {
     private String hostAddress;
     private String hostName;
 
+    // Cache content that changes for a brief period
+    private volatile SessionSnapshot snapshot;
+    private volatile long snapshotTime;
+
     public RemoteSession(byte[] nodeID, JID address) {
         this.nodeID = nodeID;
         this.address = address;
@@ -76,17 +99,17 @@ public abstract class RemoteSession implements Session {
     public StreamID getStreamID() {
         // Get it once and cache it since it never changes
         if (streamID == null) {
-            ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getStreamID);
-            String id = (String) doSynchronousClusterTask(task);
-            streamID = new BasicStreamID(id);
+            SessionSnapshot current = getSnapshot();
+            if (current != null && current.getStreamID() != null) {
+                streamID = new BasicStreamID(current.getStreamID());
+            }
         }
         return streamID;
     }
 
     public String getServerName() {
         if (serverName == null) {
-            ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getServerName);
-            serverName = (String) doSynchronousClusterTask(task);
+            getSnapshot();
         }
         return serverName;
     }
@@ -94,34 +117,33 @@ public abstract class RemoteSession implements Session {
     public Date getCreationDate() {
         // Get it once and cache it since it never changes
         if (creationDate == null) {
-            ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getCreationDate);
-            creationDate = (Date) doSynchronousClusterTask(task);
+            getSnapshot();
         }
         return creationDate;
     }
 
     public Date getLastActiveDate() {
-        ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getLastActiveDate);
-        return (Date) doSynchronousClusterTask(task);
+        SessionSnapshot current = getSnapshot();
+        return current == null ? null : current.getLastActiveDate();
     }
 
     public long getNumClientPackets() {
-        ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getNumClientPackets);
-        return (Long) doSynchronousClusterTask(task);
+        SessionSnapshot current = getSnapshot();
+        return current == null ? 0 : current.getNumClientPackets();
     }
 
     public long getNumServerPackets() {
-        ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getNumServerPackets);
-        return (Long) doSynchronousClusterTask(task);
+        SessionSnapshot current = getSnapshot();
+        return current == null ? 0 : current.getNumServerPackets();
     }
 
     public String getCipherSuiteName() {
-        ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getCipherSuiteName);
-        return (String) doSynchronousClusterTask(task);
+        SessionSnapshot current = getSnapshot();
+        return current == null ? null : current.getCipherSuiteName();
     }
 
     public void process(Packet packet) {
-        doClusterTask(getProcessPacketTask(packet));
+        doPacketClusterTask(getProcessPacketTask(packet));
     }
 
     public void close() {
@@ -134,28 +156,26 @@ public abstract class RemoteSession implements Session {
     }
 
     public boolean isSecure() {
-        ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.isSecure);
-        return (Boolean) doSynchronousClusterTask(task);
+        SessionSnapshot current = getSnapshot();
+        return current != null && current.isSecure();
     }
 
     public String getHostAddress() throws UnknownHostException {
         if (hostAddress == null) {
-            ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getHostAddress);
-            hostAddress = (String) doSynchronousClusterTask(task);
+            getSnapshot();
         }
         return hostAddress;
     }
 
     public String getHostName() throws UnknownHostException {
         if (hostName == null) {
-            ClusterTask task = getRemoteSessionTask(RemoteSessionTask.Operation.getHostName);
-            hostName = (String) doSynchronousClusterTask(task);
+            getSnapshot();
         }
         return hostName;
     }
 
     public void deliverRawText(String text) {
-        doClusterTask(getDeliverRawTextTask(text));
+        doPacketClusterTask(getDeliverRawTextTask(text));
     }
 
     public boolean validate() {
@@ -163,6 +183,117 @@ public abstract class RemoteSession implements Session {
         return (Boolean) doSynchronousClusterTask(task);
     }
 
+    /**
+     * Returns the details of the session read from the cluster node hosting the session.
+     * A new snapshot is only requested when the cached one expired.
+     *
+     * @return the details of the session or null if the node could not return them.
+     */
+    private SessionSnapshot getSnapshot() {
+        if (isSnapshotExpired(System.currentTimeMillis())) {
+            List<RemoteSessionTask> sessions = Collections.singletonList(getRemoteSessionTask(null));
+            List<SessionSnapshot> result =
+                    (List<SessionSnapshot>) doSynchronousClusterTask(new SessionSnapshotTask(sessions));
+            if (result != null && !result.isEmpty()) {
+                setSnapshot(result.get(0));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the time in milliseconds to keep the values of the session that change.
+     *
+     * @return the time in milliseconds to keep the values of the session that change.
+     */
+    static long getSnapshotTTL() {
+        return JiveGlobals.getLongProperty("hazelcast.session.snapshot.ttl", 2000);
+    }
+
+    private boolean isSnapshotExpired(long now) {
+        return snapshot == null || now - snapshotTime >= getSnapshotTTL();
+    }
+
+    private void setSnapshot(SessionSnapshot snapshot) {
+        if (snapshot == null) {
+            // The session is gone; keep the last known values
+            return;
+        }
+        SessionSnapshot previous = this.snapshot;
+        if (previous != null && previous.getStreamID() != null &&
+                !previous.getStreamID().equals(snapshot.getStreamID())) {
+            // Another session with the same address replaced the session
+            streamID = null;
+            serverName = null;
+            creationDate = null;
+            hostAddress = null;
+            hostName = null;
+        }
+        if (serverName == null) {
+            serverName = snapshot.getServerName();
+        }
+        if (creationDate == null) {
+            creationDate = snapshot.getCreationDate();
+        }
+        if (hostAddress == null) {
+            hostAddress = snapshot.getHostAddress();
+        }
+        if (hostName == null) {
+            hostName = snapshot.getHostName();
+        }
+        this.snapshot = snapshot;
+        this.snapshotTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the details of the remote sessions among the specified sessions with one call
+     * per cluster node. Only sessions whose cached details expired are requested. Use this
+     * method before reading the details of many sessions, like when listing sessions.
+     *
+     * @param sessions the sessions whose details are going to be read.
+     */
+    static void loadSnapshots(Collection<? extends Session> sessions) {
+        long now = System.currentTimeMillis();
+        // Group the sessions by the node hosting them
+        Map<NodeID, List<RemoteSession>> sessionsByNode = new HashMap<NodeID, List<RemoteSession>>();
+        for (Session session : sessions) {
+            if (!(session instanceof RemoteSession)) {
+                continue;
+            }
+            RemoteSession remoteSession = (RemoteSession) session;
+            if (!remoteSession.isSnapshotExpired(now)) {
+                continue;
+            }
+            NodeID nodeID = NodeID.getInstance(remoteSession.nodeID);
+            List<RemoteSession> nodeSessions = sessionsByNode.get(nodeID);
+            if (nodeSessions == null) {
+                nodeSessions = new ArrayList<RemoteSession>();
+                sessionsByNode.put(nodeID, nodeSessions);
+            }
+            nodeSessions.add(remoteSession);
+        }
+        for (List<RemoteSession> nodeSessions : sessionsByNode.values()) {
+            List<RemoteSessionTask> tasks = new ArrayList<RemoteSessionTask>(nodeSessions.size());
+            for (RemoteSession remoteSession : nodeSessions) {
+                tasks.add(remoteSession.getRemoteSessionTask(null));
+            }
+            List<SessionSnapshot> result = null;
+            try {
+                result = (List<SessionSnapshot>) nodeSessions.get(0)
+                        .doSynchronousClusterTask(new SessionSnapshotTask(tasks));
+            }
+            catch (IllegalStateException e) {
+                // The node left the cluster; the sessions will read their details on demand
+            }
+            if (result == null || result.size() != nodeSessions.size()) {
+                continue;
+            }
+            for (int i = 0; i < result.size(); i++) {
+                nodeSessions.get(i).setSnapshot(result.get(i));
+            }
+        }
+    }
+
     abstract RemoteSessionTask getRemoteSessionTask(RemoteSessionTask.Operation operation);
     abstract ClusterTask getDeliverRawTextTask(String text);
     abstract ClusterTask getProcessPacketTask(Packet packet);
@@ -205,6 +336,22 @@ public abstract class RemoteSession implements Session {
 	    }
     }
 
+    /**
+     * Sends a task that delivers a packet through the outbound queue of the remote cluster
+     * member so that packets are delivered in batches and in order.
+     *
+     * @param task the task to be invoked on the specified cluster member.
+     */
+    private void doPacketClusterTask(ClusterTask task) {
+        ClusterPacketQueue queue = ClusterPacketQueue.getInstance();
+        if (queue == null || CacheFactory.getClusterNodeInfo(nodeID) == null) {
+            doClusterTask(task);
+        }
+        else {
+            queue.send(nodeID, task);
+        }
+    }
+
     /**
      * Simple implementation of the StreamID interface to hold the stream ID of
      * the surrogated session.
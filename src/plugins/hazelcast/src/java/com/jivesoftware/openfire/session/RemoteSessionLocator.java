@@ -20,34 +20,168 @@
 package com.jivesoftware.openfire.session;
 
 import org.jivesoftware.openfire.session.*;
+import org.jivesoftware.util.JiveGlobals;
 import org.xmpp.packet.JID;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
- * Locator of sessions that know how to talk to Hazelcast cluster nodes.
+ * Locator of sessions that know how to talk to Hazelcast cluster nodes.<p>
+ *
+ * The surrogates of remote sessions are kept for <tt>hazelcast.session.surrogate.ttl</tt>
+ * milliseconds (ten seconds by default) and returned again when the same session is looked
+ * up, so that lookups share the details cached by the surrogate instead of reading them
+ * from the cluster node again.
  *
  * @author Gaston Dombiak
  */
 public class RemoteSessionLocator implements org.jivesoftware.openfire.session.RemoteSessionLocator {
 
-    // TODO Keep a cache for a brief moment so we can reuse same instances (that use their own cache)
+    private final Map<SurrogateKey, Surrogate> surrogates = new ConcurrentHashMap<SurrogateKey, Surrogate>();
+    private volatile long lastPurge = System.currentTimeMillis();
 
     public ClientSession getClientSession(byte[] nodeID, JID address) {
-        return new RemoteClientSession(nodeID, address);
+        SurrogateKey key = new SurrogateKey(SurrogateKey.CLIENT, nodeID, address.toString());
+        RemoteSession session = getSurrogate(key);
+        if (session == null) {
+            session = addSurrogate(key, new RemoteClientSession(nodeID, address));
+        }
+        return (ClientSession) session;
     }
 
     public ComponentSession getComponentSession(byte[] nodeID, JID address) {
-        return new RemoteComponentSession(nodeID, address);
+        SurrogateKey key = new SurrogateKey(SurrogateKey.COMPONENT, nodeID, address.toString());
+        RemoteSession session = getSurrogate(key);
+        if (session == null) {
+            session = addSurrogate(key, new RemoteComponentSession(nodeID, address));
+        }
+        return (ComponentSession) session;
     }
 
     public ConnectionMultiplexerSession getConnectionMultiplexerSession(byte[] nodeID, JID address) {
-        return new RemoteConnectionMultiplexerSession(nodeID, address);
+        SurrogateKey key = new SurrogateKey(SurrogateKey.MULTIPLEXER, nodeID, address.toString());
+        RemoteSession session = getSurrogate(key);
+        if (session == null) {
+            session = addSurrogate(key, new RemoteConnectionMultiplexerSession(nodeID, address));
+        }
+        return (ConnectionMultiplexerSession) session;
     }
 
     public IncomingServerSession getIncomingServerSession(byte[] nodeID, String streamID) {
-        return new RemoteIncomingServerSession(nodeID, streamID);
+        SurrogateKey key = new SurrogateKey(SurrogateKey.INCOMING_SERVER, nodeID, streamID);
+        RemoteSession session = getSurrogate(key);
+        if (session == null) {
+            session = addSurrogate(key, new RemoteIncomingServerSession(nodeID, streamID));
+        }
+        return (IncomingServerSession) session;
     }
 
     public OutgoingServerSession getOutgoingServerSession(byte[] nodeID, JID address) {
-        return new RemoteOutgoingServerSession(nodeID, address);
+        SurrogateKey key = new SurrogateKey(SurrogateKey.OUTGOING_SERVER, nodeID, address.toString());
+        RemoteSession session = getSurrogate(key);
+        if (session == null) {
+            session = addSurrogate(key, new RemoteOutgoingServerSession(nodeID, address));
+        }
+        return (OutgoingServerSession) session;
+    }
+
+    public void prefetchSessionDetails(Collection<? extends Session> sessions) {
+        RemoteSession.loadSnapshots(sessions);
+    }
+
+    /**
+     * Returns the time in milliseconds to reuse the surrogate of a remote session.
+     *
+     * @return the time in milliseconds to reuse the surrogate of a remote session.
+     */
+    static long getSurrogateTTL() {
+        return JiveGlobals.getLongProperty("hazelcast.session.surrogate.ttl", 10000);
+    }
+
+    private RemoteSession getSurrogate(SurrogateKey key) {
+        Surrogate surrogate = surrogates.get(key);
+        if (surrogate == null || System.currentTimeMillis() - surrogate.creationTime >= getSurrogateTTL()) {
+            return null;
+        }
+        return surrogate.session;
+    }
+
+    private RemoteSession addSurrogate(SurrogateKey key, RemoteSession session) {
+        long now = System.currentTimeMillis();
+        long ttl = getSurrogateTTL();
+        if (ttl > 0) {
+            surrogates.put(key, new Surrogate(session, now));
+        }
+        if (now - lastPurge >= Math.max(ttl, 1000)) {
+            // Forget the surrogates of sessions that are no longer looked up
+            lastPurge = now;
+            for (Iterator<Surrogate> it = surrogates.values().iterator(); it.hasNext();) {
+                if (now - it.next().creationTime >= ttl) {
+                    it.remove();
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Returns the number of surrogates that may be reused.
+     *
+     * @return the number of surrogates that may be reused.
+     */
+    int getSurrogateCount() {
+        return surrogates.size();
+    }
+
+    private static class Surrogate {
+
+        private final RemoteSession session;
+        private final long creationTime;
+
+        Surrogate(RemoteSession session, long creationTime) {
+            this.session = session;
+            this.creationTime = creationTime;
+        }
+    }
+
+    /**
+     * Identifies a remote session by its kind, the node hosting it and its address or
+     * stream ID.
+     */
+    private static class SurrogateKey {
+
+        static final int CLIENT = 0;
+        static final int COMPONENT = 1;
+        static final int MULTIPLEXER = 2;
+        static final int INCOMING_SERVER = 3;
+        static final int OUTGOING_SERVER = 4;
+
+        private final int type;
+        private final byte[] nodeID;
+        private final String id;
+
+        SurrogateKey(int type, byte[] nodeID, String id) {
+            this.type = type;
+            this.nodeID = nodeID;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SurrogateKey)) {
+                return false;
+            }
+            SurrogateKey other = (SurrogateKey) o;
+            return type == other.type && id.equals(other.id) && Arrays.equals(nodeID, other.nodeID);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * type + id.hashCode()) * 31 + Arrays.hashCode(nodeID);
+        }
     }
 }
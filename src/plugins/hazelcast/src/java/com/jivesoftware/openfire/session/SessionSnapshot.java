@@ -0,0 +1,159 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2007-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jivesoftware.openfire.session;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.net.UnknownHostException;
+import java.util.Date;
+
+import org.jivesoftware.openfire.StreamID;
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+/**
+ * Values of a session read at once in the cluster node hosting the session. Remote
+ * sessions keep the values that never change for their lifetime, and the rest of the
+ * values for a brief period.
+ *
+ * @see SessionSnapshotTask
+ */
+public class SessionSnapshot implements Externalizable {
+
+    // Values that never change
+    private String streamID;
+    private String serverName;
+    private long creationDate;
+    private String hostAddress;
+    private String hostName;
+
+    // Values that change while the session is open
+    private long lastActiveDate;
+    private long numClientPackets;
+    private long numServerPackets;
+    private String cipherSuiteName;
+    private boolean secure;
+
+    public SessionSnapshot() {
+    }
+
+    public SessionSnapshot(Session session) {
+        StreamID id = session.getStreamID();
+        streamID = id != null ? id.getID() : null;
+        serverName = session.getServerName();
+        creationDate = session.getCreationDate().getTime();
+        try {
+            hostAddress = session.getHostAddress();
+            hostName = session.getHostName();
+        }
+        catch (UnknownHostException e) {
+            // Leave the unknown values empty
+        }
+        lastActiveDate = session.getLastActiveDate().getTime();
+        numClientPackets = session.getNumClientPackets();
+        numServerPackets = session.getNumServerPackets();
+        cipherSuiteName = session.getCipherSuiteName();
+        secure = session.isSecure();
+    }
+
+    public String getStreamID() {
+        return streamID;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public Date getCreationDate() {
+        return new Date(creationDate);
+    }
+
+    public String getHostAddress() {
+        return hostAddress;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public Date getLastActiveDate() {
+        return new Date(lastActiveDate);
+    }
+
+    public long getNumClientPackets() {
+        return numClientPackets;
+    }
+
+    public long getNumServerPackets() {
+        return numServerPackets;
+    }
+
+    public String getCipherSuiteName() {
+        return cipherSuiteName;
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeString(out, streamID);
+        writeString(out, serverName);
+        ExternalizableUtil.getInstance().writeLong(out, creationDate);
+        writeString(out, hostAddress);
+        writeString(out, hostName);
+        ExternalizableUtil.getInstance().writeLong(out, lastActiveDate);
+        ExternalizableUtil.getInstance().writeLong(out, numClientPackets);
+        ExternalizableUtil.getInstance().writeLong(out, numServerPackets);
+        writeString(out, cipherSuiteName);
+        ExternalizableUtil.getInstance().writeBoolean(out, secure);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        streamID = readString(in);
+        serverName = readString(in);
+        creationDate = ExternalizableUtil.getInstance().readLong(in);
+        hostAddress = readString(in);
+        hostName = readString(in);
+        lastActiveDate = ExternalizableUtil.getInstance().readLong(in);
+        numClientPackets = ExternalizableUtil.getInstance().readLong(in);
+        numServerPackets = ExternalizableUtil.getInstance().readLong(in);
+        cipherSuiteName = readString(in);
+        secure = ExternalizableUtil.getInstance().readBoolean(in);
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        ExternalizableUtil.getInstance().writeBoolean(out, value != null);
+        if (value != null) {
+            ExternalizableUtil.getInstance().writeSafeUTF(out, value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        if (ExternalizableUtil.getInstance().readBoolean(in)) {
+            return ExternalizableUtil.getInstance().readSafeUTF(in);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2007-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jivesoftware.openfire.session;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Task that will be executed in a cluster node to get a {@link SessionSnapshot} of many
+ * sessions hosted by the node with a single call. Sessions are identified by the remote
+ * session tasks of their surrogates, so any kind of session can be requested. The result
+ * is a list with the snapshots in the same order as the requested sessions, and a null
+ * snapshot for sessions that are no longer hosted by the node.
+ */
+public class SessionSnapshotTask implements ClusterTask {
+
+    private static final Logger Log = LoggerFactory.getLogger(SessionSnapshotTask.class);
+
+    private List<RemoteSessionTask> sessions = new ArrayList<RemoteSessionTask>();
+    private List<SessionSnapshot> snapshots;
+
+    public SessionSnapshotTask() {
+    }
+
+    /**
+     * Creates a task that gets the snapshots of the specified sessions.
+     *
+     * @param sessions the tasks of the surrogates of the sessions, as returned by
+     *        {@link RemoteSession#getRemoteSessionTask(RemoteSessionTask.Operation)}.
+     */
+    SessionSnapshotTask(List<RemoteSessionTask> sessions) {
+        this.sessions = sessions;
+    }
+
+    public Object getResult() {
+        return snapshots;
+    }
+
+    public void run() {
+        List<SessionSnapshot> result = new ArrayList<SessionSnapshot>(sessions.size());
+        for (RemoteSessionTask task : sessions) {
+            SessionSnapshot snapshot = null;
+            try {
+                Session session = task.getSession();
+                // Never ask other nodes while answering a node
+                if (session != null && !(session instanceof RemoteSession) && !session.isClosed()) {
+                    snapshot = new SessionSnapshot(session);
+                }
+            }
+            catch (Exception e) {
+                Log.debug("Error getting snapshot of session: " + task, e);
+            }
+            result.add(snapshot);
+        }
+        snapshots = result;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeExternalizableCollection(out, sessions);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        sessions = new ArrayList<RemoteSessionTask>();
+        ExternalizableUtil.getInstance().readExternalizableCollection(in, sessions, getClass().getClassLoader());
+    }
+
+    public String toString() {
+        return super.toString() + " sessions: " + sessions.size();
+    }
+}
@@ -37,6 +37,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.dom4j.Element;
+import org.jivesoftware.util.cache.ElementCodec;
 import org.jivesoftware.util.cache.ExternalizableUtilStrategy;
 
 import com.hazelcast.core.HazelcastInstance;
@@ -347,6 +349,29 @@ public class ClusterExternalizableUtil implements ExternalizableUtilStrategy {
         return result.size();
     }
     
+    /**
+     * Writes an XML element with the compact {@link ElementCodec} format instead of
+     * Java serialization. This method handles the case when the element is <tt>null</tt>.
+     *
+     * @param out the output stream.
+     * @param element the element to write.
+     * @throws IOException if an error occurs.
+     */
+    public void writeElement(DataOutput out, Element element) throws IOException {
+        ElementCodec.writeElement(out, element);
+    }
+
+    /**
+     * Reads an XML element written by {@link #writeElement(DataOutput, Element)}.
+     *
+     * @param in the input stream.
+     * @return the element read, or <tt>null</tt> if a <tt>null</tt> element was written.
+     * @throws IOException if an error occurs.
+     */
+    public Element readElement(DataInput in) throws IOException {
+        return ElementCodec.readElement(in);
+    }
+
     // serialization helpers
     
     public static void writeObject(DataOutput out, Object obj) throws IOException {
@@ -64,6 +64,7 @@ import com.hazelcast.core.Member;
 import com.hazelcast.core.MemberAttributeEvent;
 import com.hazelcast.core.MembershipEvent;
 import com.hazelcast.core.MembershipListener;
+import com.jivesoftware.util.cluster.ClusterPacketQueue;
 import com.jivesoftware.util.cluster.HazelcastClusterNodeInfo;
 
 /**
@@ -671,6 +672,12 @@ public class ClusterListener implements MembershipListener, LifecycleListener {
             // Trigger event that a node left the cluster
             ClusterManager.fireLeftCluster(nodeID);
 
+            // Discard the packets waiting to be sent to the leaving node
+            ClusterPacketQueue queue = ClusterPacketQueue.getInstance();
+            if (queue != null) {
+                queue.nodeLeft(nodeID);
+            }
+
             // Clean up directed presences sent from entities hosted in the leaving node to local entities
             // Clean up directed presences sent to entities hosted in the leaving node from local entities
             cleanupDirectedPresences(NodeID.getInstance(nodeID));
@@ -55,10 +55,12 @@ import org.slf4j.LoggerFactory;
 import com.hazelcast.config.ClasspathXmlConfig;
 import com.hazelcast.config.Config;
 import com.hazelcast.core.Cluster;
+import com.hazelcast.core.ExecutionCallback;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.Member;
 import com.jivesoftware.openfire.session.RemoteSessionLocator;
+import com.jivesoftware.util.cluster.ClusterPacketQueue;
 import com.jivesoftware.util.cluster.ClusterPacketRouter;
 import com.jivesoftware.util.cluster.HazelcastClusterNodeInfo;
 
@@ -115,6 +117,8 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
         XMPPServer.getInstance().setRemoteSessionLocator(new RemoteSessionLocator());
         // Set packet router to use to deliver packets to remote cluster nodes
         XMPPServer.getInstance().getRoutingTable().setRemotePacketRouter(new ClusterPacketRouter());
+        // Start the queues that send packets to remote cluster nodes in batches
+        ClusterPacketQueue.start(this);
 
         ClassLoader oldLoader = null;
         // Store previous class loader (in case we change it)
@@ -169,6 +173,8 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
         cacheStats = null;
         // Update the running state of the cluster
         state = State.stopped;
+        // Discard the packets waiting to be sent to remote cluster nodes
+        ClusterPacketQueue.stop();
         // Stop the cluster
         Hazelcast.shutdownAll();
         cluster = null;
@@ -308,6 +314,29 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
 		}
     }
 
+    /*
+     * Execute the given task on the designated cluster member without waiting
+     * for it to run. The callback is notified once the task ran or failed.
+     */
+    public void doClusterTask(final ClusterTask task, byte[] nodeID, ExecutionCallback<Object> callback) {
+    	if (cluster == null) {
+    		callback.onFailure(new IllegalStateException("Not in a cluster"));
+    		return;
+    	}
+    	Member member = getMember(nodeID);
+        // Check that the requested member was found
+        if (member != null) {
+            // Asynchronously execute the task on the target member
+    		logger.debug("Executing asynchronous DistributedTask: " + task.getClass().getName());
+	        hazelcast.getExecutorService(HAZELCAST_EXECUTOR_SERVICE_NAME).submitToMember(
+	        		new CallableTask<Object>(task), member, callback);
+        } else {
+        	String msg = MessageFormat.format("Requested node {0} not found in cluster", StringUtils.getString(nodeID));
+	        logger.warn(msg);
+        	throw new IllegalArgumentException(msg);
+		}
+    }
+
     /*
      * Execute the given task on the designated cluster members.
      * Note that this method blocks for up to MAX_CLUSTER_EXECUTION_TIME
@@ -478,6 +507,8 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
     	}
 
         public Object call() {
+            // Packets routed by the task must not wait for room in the outbound queues
+            ClusterPacketQueue.setExecutorThread();
             task.run();
             logger.debug("CallableTask[" + task.getClass().getName() + "] result: " + task.getResult());
             return (Object) task.getResult();
@@ -0,0 +1,417 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2007-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jivesoftware.util.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.openfire.stats.Counter;
+import org.jivesoftware.openfire.stats.Gauge;
+import org.jivesoftware.openfire.stats.MetricsRegistry;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.Timer;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.MemberLeftException;
+import com.jivesoftware.util.cache.ClusteredCacheFactory;
+
+/**
+ * Outbound channels that deliver packets to other cluster nodes. Packet tasks sent to the
+ * same node are queued and sent in batches as a {@link RemotePacketsExecution}, so bursts of
+ * stanzas need one executor submission per batch instead of one per stanza.<p>
+ *
+ * Every node has its own queue and thread. The thread takes the queued tasks, waiting up to
+ * <tt>hazelcast.packet.batch.delay</tt> milliseconds (1 by default) for up to
+ * <tt>hazelcast.packet.batch.size</tt> tasks (500 by default), and submits them as a batch
+ * without waiting for the batch to run. The next batch of the node is only submitted once
+ * the node reported that the previous one ran or failed, and the receiving node runs the
+ * tasks of a batch in order, so packets to the same session are delivered in the order they
+ * were sent. While a batch is in flight new packets keep queuing and are sent in the next
+ * batch. Batches that failed are logged and counted, and are not sent again.<p>
+ *
+ * The queue of a node holds up to <tt>hazelcast.packet.queue.size</tt> tasks (10000 by
+ * default). When a node falls behind and its queue is full, senders wait up to
+ * <tt>hazelcast.packet.queue.timeout</tt> milliseconds (1000 by default) and the packet is
+ * rejected if there is still no room. Threads of the cluster executor never wait: a task run
+ * for another node that routes packets back through a full queue would otherwise hold up the
+ * batches of that node.<p>
+ *
+ * The queue depth, the number of packets and batches sent and the number of packets that
+ * failed are published as the <tt>cluster.outbound.*</tt> metrics. The average batch size
+ * is the number of packets divided by the number of batches.
+ */
+public class ClusterPacketQueue {
+
+    private static final Logger Log = LoggerFactory.getLogger(ClusterPacketQueue.class);
+
+    private static final String[] METRICS = {"queue", "packets", "batches", "rejected", "failed", "send"};
+
+    private static volatile ClusterPacketQueue instance;
+
+    /**
+     * True for the threads that run tasks sent by other cluster nodes.
+     */
+    private static final ThreadLocal<Boolean> executorThread = new ThreadLocal<Boolean>();
+
+    private final ClusteredCacheFactory cacheFactory;
+
+    private final Map<NodeID, NodeChannel> channels = new ConcurrentHashMap<NodeID, NodeChannel>();
+    private final int queueSize;
+    private final long queueTimeout;
+    private final int batchSize;
+    private final long batchDelay;
+    private volatile boolean running = true;
+
+    private final Counter packets;
+    private final Counter batches;
+    private final Counter rejected;
+    private final Counter failed;
+    private final Timer sendTimer;
+
+    /**
+     * Returns the running outbound queue or null when not in a cluster.
+     *
+     * @return the running outbound queue or null when not in a cluster.
+     */
+    public static ClusterPacketQueue getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts the outbound queue. Threads are started as packets are sent to other nodes.
+     *
+     * @param cacheFactory the cache factory that submits the batches to other nodes.
+     */
+    public static synchronized void start(ClusteredCacheFactory cacheFactory) {
+        if (instance == null) {
+            instance = new ClusterPacketQueue(cacheFactory, JiveGlobals.getIntProperty("hazelcast.packet.queue.size", 10000),
+                    JiveGlobals.getLongProperty("hazelcast.packet.queue.timeout", 1000),
+                    JiveGlobals.getIntProperty("hazelcast.packet.batch.size", 500),
+                    JiveGlobals.getLongProperty("hazelcast.packet.batch.delay", 1));
+        }
+    }
+
+    /**
+     * Stops the outbound queue. Packets that were not sent yet are discarded.
+     */
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Marks the current thread as a thread of the cluster executor. Packets queued by the
+     * thread are rejected right away when the queue of their node is full.
+     */
+    public static void setExecutorThread() {
+        executorThread.set(Boolean.TRUE);
+    }
+
+    ClusterPacketQueue(ClusteredCacheFactory cacheFactory, int queueSize, long queueTimeout, int batchSize,
+            long batchDelay)
+    {
+        this.cacheFactory = cacheFactory;
+        this.queueSize = Math.max(1, queueSize);
+        this.queueTimeout = queueTimeout;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchDelay = batchDelay;
+        MetricsRegistry metrics = StatisticsManager.getInstance().getMetrics();
+        packets = metrics.getCounter("cluster.outbound.packets");
+        batches = metrics.getCounter("cluster.outbound.batches");
+        rejected = metrics.getCounter("cluster.outbound.rejected");
+        failed = metrics.getCounter("cluster.outbound.failed");
+        sendTimer = metrics.getTimer("cluster.outbound.send");
+        metrics.addGauge("cluster.outbound.queue", new Gauge() {
+            @Override
+            public long getValue() {
+                return getQueueSize();
+            }
+        });
+    }
+
+    /**
+     * Queues a packet task to be sent to a node. The calling thread waits while the queue
+     * of the node is full, unless it is a thread of the cluster executor.
+     *
+     * @param nodeID the ID of the node that will run the task.
+     * @param task the task that delivers a packet.
+     * @return false if the task was rejected because the queue of the node remained full
+     *         or the queue was stopped.
+     */
+    public boolean send(byte[] nodeID, ClusterTask task) {
+        NodeChannel channel = getChannel(NodeID.getInstance(nodeID));
+        if (channel == null) {
+            return false;
+        }
+        try {
+            if (channel.queue.offer(task)) {
+                return true;
+            }
+            if (executorThread.get() == null &&
+                    channel.queue.offer(task, queueTimeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.increment();
+        Log.warn("Outbound queue to cluster node " + channel.nodeID + " is full. Packet was not sent.");
+        return false;
+    }
+
+    /**
+     * Discards the queue of a node that left the cluster.
+     *
+     * @param nodeID the ID of the node that left the cluster.
+     */
+    public void nodeLeft(byte[] nodeID) {
+        NodeChannel channel = channels.remove(NodeID.getInstance(nodeID));
+        if (channel != null) {
+            channel.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent to all the nodes.
+     *
+     * @return the number of packets waiting to be sent to all the nodes.
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (NodeChannel channel : channels.values()) {
+            size += channel.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent to a node.
+     *
+     * @param nodeID the ID of the node.
+     * @return the number of packets waiting to be sent to the node.
+     */
+    public int getQueueSize(byte[] nodeID) {
+        NodeChannel channel = channels.get(NodeID.getInstance(nodeID));
+        return channel == null ? 0 : channel.queue.size();
+    }
+
+    /**
+     * Returns the average number of packets of the batches sent so far.
+     *
+     * @return the average number of packets of the batches sent so far.
+     */
+    public double getAverageBatchSize() {
+        long count = batches.getCount();
+        return count == 0 ? 0 : (double) packets.getCount() / count;
+    }
+
+    /**
+     * Submits a task to a node without waiting for the node to run it.
+     *
+     * @param nodeID the ID of the node that will run the task.
+     * @param task the task to run.
+     * @param callback the callback to notify once the task ran or failed.
+     */
+    void deliver(byte[] nodeID, ClusterTask task, ExecutionCallback<Object> callback) {
+        cacheFactory.doClusterTask(task, nodeID, callback);
+    }
+
+    private NodeChannel getChannel(NodeID nodeID) {
+        NodeChannel channel = channels.get(nodeID);
+        if (channel == null) {
+            synchronized (channels) {
+                if (!running) {
+                    return null;
+                }
+                channel = channels.get(nodeID);
+                if (channel == null) {
+                    channel = new NodeChannel(nodeID);
+                    channels.put(nodeID, channel);
+                    channel.start();
+                }
+            }
+        }
+        return channel;
+    }
+
+    void shutdown() {
+        synchronized (channels) {
+            running = false;
+        }
+        for (NodeChannel channel : channels.values()) {
+            channel.shutdown();
+        }
+        channels.clear();
+        MetricsRegistry metrics = StatisticsManager.getInstance().getMetrics();
+        for (String metric : METRICS) {
+            metrics.removeMetric("cluster.outbound." + metric);
+        }
+    }
+
+    /**
+     * Thread that sends the queued tasks of a node in batches, one batch at a time.
+     */
+    private class NodeChannel extends Thread {
+
+        private final NodeID nodeID;
+        private final BlockingQueue<ClusterTask> queue = new LinkedBlockingQueue<ClusterTask>(queueSize);
+        private volatile boolean open = true;
+
+        /**
+         * True while a batch was submitted and the node did not report yet that it ran or
+         * failed. Guarded by the channel.
+         */
+        private boolean inFlight = false;
+
+        NodeChannel(NodeID nodeID) {
+            super("Cluster outbound " + nodeID);
+            setDaemon(true);
+            this.nodeID = nodeID;
+        }
+
+        void shutdown() {
+            open = false;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            List<ClusterTask> batch = new ArrayList<ClusterTask>();
+            while (open) {
+                try {
+                    awaitCompletion();
+                    fill(batch);
+                    if (!batch.isEmpty()) {
+                        send(batch);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Stopping
+                }
+                catch (Exception e) {
+                    Log.error("Error sending " + batch.size() + " packets to cluster node " + nodeID, e);
+                }
+                finally {
+                    batch.clear();
+                }
+            }
+            if (!queue.isEmpty()) {
+                Log.debug("Discarded " + queue.size() + " packets to cluster node " + nodeID);
+                queue.clear();
+            }
+        }
+
+        /**
+         * Waits until the node reported that the batch in flight ran or failed.
+         */
+        private synchronized void awaitCompletion() throws InterruptedException {
+            while (inFlight) {
+                wait();
+            }
+        }
+
+        private synchronized void completed() {
+            inFlight = false;
+            notifyAll();
+        }
+
+        /**
+         * Adds tasks to the batch until it is full or its first task waited for the batch delay.
+         */
+        private void fill(List<ClusterTask> batch) throws InterruptedException {
+            ClusterTask first = queue.poll(1, TimeUnit.SECONDS);
+            if (first == null) {
+                return;
+            }
+            batch.add(first);
+            long deadline = System.currentTimeMillis() + batchDelay;
+            while (batch.size() < batchSize) {
+                queue.drainTo(batch, batchSize - batch.size());
+                long wait = deadline - System.currentTimeMillis();
+                if (batch.size() >= batchSize || wait <= 0) {
+                    return;
+                }
+                ClusterTask task = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    batch.add(task);
+                }
+            }
+        }
+
+        private void send(List<ClusterTask> batch) {
+            ClusterTask task = batch.size() == 1 ? batch.get(0) :
+                    new RemotePacketsExecution(new ArrayList<ClusterTask>(batch));
+            BatchCallback callback = new BatchCallback(batch.size());
+            synchronized (this) {
+                inFlight = true;
+            }
+            try {
+                deliver(nodeID.toByteArray(), task, callback);
+            }
+            catch (RuntimeException e) {
+                callback.onFailure(e);
+            }
+        }
+
+        /**
+         * Records the outcome of a batch and lets the channel send the next one. Runs on the
+         * threads that report the outcome, so it never waits.
+         */
+        private class BatchCallback implements ExecutionCallback<Object> {
+
+            private final int size;
+            private final long start = System.nanoTime();
+
+            BatchCallback(int size) {
+                this.size = size;
+            }
+
+            public void onResponse(Object response) {
+                sendTimer.update(System.nanoTime() - start);
+                packets.add(size);
+                batches.increment();
+                completed();
+            }
+
+            public void onFailure(Throwable t) {
+                failed.add(size);
+                Log.warn("Error while routing " + size + " packets to remote node " + nodeID + ": " + t);
+                completed();
+                if (t instanceof IllegalArgumentException || t instanceof MemberLeftException) {
+                    // The node left the cluster
+                    nodeLeft(nodeID.toByteArray());
+                }
+            }
+        }
+    }
+}
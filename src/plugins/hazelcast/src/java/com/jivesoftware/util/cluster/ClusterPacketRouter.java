@@ -19,8 +19,11 @@
 
 package com.jivesoftware.util.cluster;
 
+import java.util.List;
+
 import org.jivesoftware.openfire.RemotePacketRouter;
 import org.jivesoftware.util.cache.CacheFactory;
+import org.jivesoftware.util.cache.ClusterTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -33,7 +36,10 @@ import org.xmpp.packet.Packet;
  * the remote node is reached but the remote node fails to route the packet to the recipient (e.g.
  * the recipient just left) then an error packet may be created from the remote node and send it
  * back to this node.<p>
- * 
+ *
+ * Packets are sent through the {@link ClusterPacketQueue} of the node so that they are
+ * delivered in batches and in order.
+ *
  * @author Gaston Dombiak
  */
 public class ClusterPacketRouter implements RemotePacketRouter {
@@ -42,8 +48,38 @@ public class ClusterPacketRouter implements RemotePacketRouter {
 
     public boolean routePacket(byte[] nodeID, JID receipient, Packet packet) {
         // Send the packet to the specified node and let the remote node deliver the packet to the recipient
+        return send(nodeID, new RemotePacketExecution(receipient, packet));
+    }
+
+    public boolean routePackets(byte[] nodeID, List<JID> receipients, List<Packet> packets) {
+        // Queue all the packets so they are sent to the specified node in as few tasks as possible
+        for (int i = 0; i < receipients.size(); i++) {
+            if (!send(nodeID, new RemotePacketExecution(receipients.get(i), packets.get(i))) && i == 0) {
+                // Nothing was queued yet so every packet can still be routed as if sent alone
+                return false;
+            }
+        }
+        // Packets rejected after the first one was queued were logged and counted by the queue.
+        // Reporting the node as not found would route the queued packets a second time.
+        return true;
+    }
+
+    /**
+     * Returns the queue that sends the packets or null to submit each packet on its own.
+     *
+     * @return the queue that sends the packets or null to submit each packet on its own.
+     */
+    ClusterPacketQueue getQueue() {
+        return ClusterPacketQueue.getInstance();
+    }
+
+    private boolean send(byte[] nodeID, ClusterTask task) {
+        ClusterPacketQueue queue = getQueue();
+        if (queue != null) {
+            return queue.send(nodeID, task);
+        }
         try {
-            CacheFactory.doClusterTask(new RemotePacketExecution(receipient, packet), nodeID);
+            CacheFactory.doClusterTask(task, nodeID);
             return true;
         } catch (IllegalStateException  e) {
             logger.warn("Error while routing packet to remote node: " + e);
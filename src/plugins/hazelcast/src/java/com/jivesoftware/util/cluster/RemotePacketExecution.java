@@ -24,7 +24,6 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.util.cache.ClusterTask;
 import org.jivesoftware.util.cache.ExternalizableUtil;
@@ -74,14 +73,14 @@ public class RemotePacketExecution implements ClusterTask {
         else if (packet instanceof Presence) {
             ExternalizableUtil.getInstance().writeInt(out, 3);
         }
-        ExternalizableUtil.getInstance().writeSerializable(out, (DefaultElement) packet.getElement());
+        ExternalizableUtil.getInstance().writeElement(out, packet.getElement());
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         recipient = (JID) ExternalizableUtil.getInstance().readSerializable(in);
 
         int packetType = ExternalizableUtil.getInstance().readInt(in);
-        Element packetElement = (Element) ExternalizableUtil.getInstance().readSerializable(in);
+        Element packetElement = ExternalizableUtil.getInstance().readElement(in);
         switch (packetType) {
             case 1:
                 packet = new IQ(packetElement, true);
@@ -0,0 +1,81 @@
+/**
+ * $Revision$
+ * $Date$
+ *
+ * Copyright (C) 1999-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jivesoftware.util.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Task to be executed by remote nodes to deliver a batch of packets to receivers
+ * hosted by the node. The batch holds the tasks that deliver each packet, such as
+ * {@link RemotePacketExecution}, and they are run in order.
+ *
+ * @see ClusterPacketQueue
+ */
+public class RemotePacketsExecution implements ClusterTask {
+
+    private static final Logger Log = LoggerFactory.getLogger(RemotePacketsExecution.class);
+
+    private List<ClusterTask> executions;
+
+    public RemotePacketsExecution() {
+    }
+
+    public RemotePacketsExecution(List<ClusterTask> executions) {
+        this.executions = executions;
+    }
+
+    public Object getResult() {
+        return null;
+    }
+
+    public void run() {
+        for (ClusterTask execution : executions) {
+            try {
+                execution.run();
+            }
+            catch (Exception e) {
+                // Keep delivering the rest of the packets
+                Log.error("Error delivering packet of cluster batch: " + execution, e);
+            }
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeExternalizableCollection(out, executions);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        executions = new ArrayList<ClusterTask>();
+        ExternalizableUtil.getInstance().readExternalizableCollection(in, executions, getClass().getClassLoader());
+    }
+
+    public String toString() {
+        return super.toString() + " packets: " + executions.size();
+    }
+}
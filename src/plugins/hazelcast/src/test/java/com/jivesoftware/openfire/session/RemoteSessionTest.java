@@ -0,0 +1,187 @@
+package com.jivesoftware.openfire.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.StreamID;
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Unit tests for the snapshots of remote sessions read with {@link SessionSnapshotTask} and
+ * for the surrogates returned by {@link RemoteSessionLocator}. Cluster tasks are run locally
+ * instead of in other cluster nodes.
+ */
+public class RemoteSessionTest {
+
+    private static final byte[] NODE1 = "node-1".getBytes();
+    private static final byte[] NODE2 = "node-2".getBytes();
+
+    /**
+     * Sessions hosted by the "remote" nodes, by address.
+     */
+    private final Map<String, Session> hosted = new HashMap<String, Session>();
+
+    /**
+     * Cluster tasks run by the surrogates.
+     */
+    private final List<ClusterTask> calls = new ArrayList<ClusterTask>();
+
+    private static Session createSession(final String streamID, final boolean closed) {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] {Session.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getStreamID".equals(name)) {
+                            return new RemoteSession.BasicStreamID(streamID);
+                        }
+                        if ("getCreationDate".equals(name) || "getLastActiveDate".equals(name)) {
+                            return new Date(1000);
+                        }
+                        if ("getNumClientPackets".equals(name) || "getNumServerPackets".equals(name)) {
+                            return 7L;
+                        }
+                        if ("isClosed".equals(name)) {
+                            return closed;
+                        }
+                        if ("isSecure".equals(name)) {
+                            return true;
+                        }
+                        if ("getServerName".equals(name)) {
+                            return "example.com";
+                        }
+                        if ("equals".equals(name)) {
+                            return proxy == args[0];
+                        }
+                        if ("hashCode".equals(name)) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Task that finds the session in the hosted sessions of the test.
+     */
+    private class LocalTask extends RemoteSessionTask {
+
+        private final String address;
+
+        LocalTask(String address) {
+            this.address = address;
+        }
+
+        @Override
+        Session getSession() {
+            return hosted.get(address);
+        }
+    }
+
+    /**
+     * Surrogate that runs its cluster tasks locally.
+     */
+    private class LocalSession extends RemoteClientSession {
+
+        LocalSession(byte[] nodeID, String address) {
+            super(nodeID, new JID(address));
+        }
+
+        @Override
+        RemoteSessionTask getRemoteSessionTask(RemoteSessionTask.Operation operation) {
+            return new LocalTask(address.toString());
+        }
+
+        @Override
+        protected Object doSynchronousClusterTask(ClusterTask task) {
+            calls.add(task);
+            task.run();
+            return task.getResult();
+        }
+    }
+
+    @Test
+    public void testSnapshotTaskReadsLocalSessions() {
+        hosted.put("open@example.com/a", createSession("s1", false));
+        hosted.put("closed@example.com/a", createSession("s2", true));
+        hosted.put("remote@example.com/a", new LocalSession(NODE2, "remote@example.com/a"));
+        List<RemoteSessionTask> tasks = new ArrayList<RemoteSessionTask>();
+        for (String address : Arrays.asList("open@example.com/a", "gone@example.com/a",
+                "closed@example.com/a", "remote@example.com/a")) {
+            tasks.add(new LocalTask(address));
+        }
+
+        SessionSnapshotTask task = new SessionSnapshotTask(tasks);
+        task.run();
+        List<?> snapshots = (List<?>) task.getResult();
+
+        // Snapshots are in the order of the requested sessions
+        assertEquals(4, snapshots.size());
+        SessionSnapshot snapshot = (SessionSnapshot) snapshots.get(0);
+        assertEquals("s1", snapshot.getStreamID());
+        assertEquals(new Date(1000), snapshot.getCreationDate());
+        assertEquals(7, snapshot.getNumClientPackets());
+        assertNull(snapshots.get(1));
+        assertNull(snapshots.get(2));
+        // Surrogates of sessions of other nodes are never asked
+        assertNull(snapshots.get(3));
+        assertEquals(0, calls.size());
+    }
+
+    @Test
+    public void testSnapshotsAreLoadedWithOneCallPerNode() {
+        hosted.put("a@example.com/a", createSession("s1", false));
+        hosted.put("b@example.com/b", createSession("s2", false));
+        hosted.put("c@example.com/c", createSession("s3", false));
+        LocalSession a = new LocalSession(NODE1, "a@example.com/a");
+        LocalSession b = new LocalSession(NODE1, "b@example.com/b");
+        LocalSession c = new LocalSession(NODE2, "c@example.com/c");
+        LocalSession gone = new LocalSession(NODE2, "gone@example.com/d");
+
+        RemoteSession.loadSnapshots(Arrays.asList(a, b, c, gone));
+        assertEquals(2, calls.size());
+        StreamID streamID = b.getStreamID();
+        assertNotNull(streamID);
+        assertEquals("s2", streamID.getID());
+        assertEquals(new Date(1000), c.getCreationDate());
+        assertEquals(7, a.getNumServerPackets());
+        assertEquals(2, calls.size());
+
+        // Cached snapshots are not requested again
+        RemoteSession.loadSnapshots(Arrays.asList(a, b, c));
+        assertEquals(2, calls.size());
+
+        // The session without a snapshot reads it on demand
+        assertNull(gone.getCreationDate());
+        assertEquals(3, calls.size());
+    }
+
+    @Test
+    public void testLocatorReusesSurrogates() {
+        RemoteSessionLocator locator = new RemoteSessionLocator();
+        JID address = new JID("user@example.com/resource");
+        Session session = locator.getClientSession(NODE1, address);
+        assertSame(session, locator.getClientSession(NODE1, new JID("user@example.com/resource")));
+        assertSame(session, locator.getClientSession("node-1".getBytes(), address));
+        assertNotSame(session, locator.getClientSession(NODE2, address));
+        assertNotSame(session, locator.getClientSession(NODE1, new JID("user@example.com/other")));
+        // Sessions of other kinds never share surrogates
+        assertNotSame(session, locator.getOutgoingServerSession(NODE1, address));
+        assertEquals(4, locator.getSurrogateCount());
+    }
+}
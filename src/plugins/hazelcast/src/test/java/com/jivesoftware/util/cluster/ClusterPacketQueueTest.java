@@ -0,0 +1,220 @@
+package com.jivesoftware.util.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.openfire.stats.Counter;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.junit.After;
+import org.junit.Test;
+
+import com.hazelcast.core.ExecutionCallback;
+
+/**
+ * Unit tests for {@link ClusterPacketQueue}. Batches are run by a local executor instead of
+ * being sent to other cluster nodes.
+ */
+public class ClusterPacketQueueTest {
+
+    private static final byte[] NODE = "node-1".getBytes();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private TestQueue queue;
+
+    /**
+     * Task that records the order in which it ran.
+     */
+    private static class PacketTask implements ClusterTask {
+
+        private final int id;
+        private final List<Integer> delivered;
+
+        PacketTask(int id, List<Integer> delivered) {
+            this.id = id;
+            this.delivered = delivered;
+        }
+
+        public Object getResult() {
+            return null;
+        }
+
+        public void run() {
+            delivered.add(id);
+        }
+
+        public void writeExternal(ObjectOutput out) {
+        }
+
+        public void readExternal(ObjectInput in) {
+        }
+    }
+
+    /**
+     * Queue that runs the batches on a local executor. Batches wait for a permit before they
+     * run, and fail instead of running when failures are requested.
+     */
+    private class TestQueue extends ClusterPacketQueue {
+
+        private final List<ClusterTask> submitted = Collections.synchronizedList(new ArrayList<ClusterTask>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        private final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        private final Semaphore permits = new Semaphore(100000);
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean overlapped = false;
+        private volatile boolean failing = false;
+
+        TestQueue(int queueSize, long queueTimeout, int batchSize, long batchDelay) {
+            super(null, queueSize, queueTimeout, batchSize, batchDelay);
+        }
+
+        @Override
+        void deliver(byte[] nodeID, final ClusterTask task, final ExecutionCallback<Object> callback) {
+            if (inFlight.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            submitted.add(task);
+            executor.execute(new Runnable() {
+                public void run() {
+                    permits.acquireUninterruptibly();
+                    inFlight.decrementAndGet();
+                    if (failing) {
+                        callback.onFailure(new IllegalStateException("Failed"));
+                        return;
+                    }
+                    int before = delivered.size();
+                    task.run();
+                    batchSizes.add(delivered.size() - before);
+                    callback.onResponse(null);
+                }
+            });
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.permits.release(1000);
+            queue.shutdown();
+        }
+        executor.shutdownNow();
+    }
+
+    private static void waitFor(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static long count(String metric) {
+        return ((Counter) StatisticsManager.getInstance().getMetrics()
+                .getMetric("cluster.outbound." + metric)).getCount();
+    }
+
+    @Test
+    public void testPacketsAreBatchedInOrder() throws Exception {
+        queue = new TestQueue(1000, 1000, 20, 50);
+        List<Integer> delivered = queue.delivered;
+        long packets = count("packets");
+        for (int i = 0; i < 300; i++) {
+            assertTrue(queue.send(NODE, new PacketTask(i, delivered)));
+        }
+        waitFor(delivered, 300);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 300; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, delivered);
+        assertFalse(queue.overlapped);
+        int total = 0;
+        for (int size : queue.batchSizes) {
+            assertTrue(size <= 20);
+            total += size;
+        }
+        assertEquals(300, total);
+        assertEquals(queue.submitted.size(), queue.batchSizes.size());
+        assertTrue(queue.submitted.size() < 300);
+        assertEquals(300, count("packets") - packets);
+    }
+
+    @Test
+    public void testNextBatchWaitsForPreviousBatch() throws Exception {
+        queue = new TestQueue(1000, 1000, 20, 1);
+        queue.permits.drainPermits();
+        List<Integer> delivered = queue.delivered;
+        assertTrue(queue.send(NODE, new PacketTask(0, delivered)));
+        waitFor(queue.submitted, 1);
+        for (int i = 1; i < 10; i++) {
+            assertTrue(queue.send(NODE, new PacketTask(i, delivered)));
+        }
+        Thread.sleep(100);
+        // The first batch did not complete, so the other packets are still queued
+        assertEquals(1, queue.submitted.size());
+        assertEquals(9, queue.getQueueSize(NODE));
+
+        queue.permits.release(2);
+        waitFor(delivered, 10);
+        assertEquals(10, delivered.size());
+        assertEquals(2, queue.submitted.size());
+        assertFalse(queue.overlapped);
+    }
+
+    @Test
+    public void testFailedBatchesAreCountedAndNextBatchIsSent() throws Exception {
+        queue = new TestQueue(1000, 1000, 20, 1);
+        queue.failing = true;
+        List<Integer> delivered = queue.delivered;
+        long failed = count("failed");
+        long packets = count("packets");
+        assertTrue(queue.send(NODE, new PacketTask(0, delivered)));
+        waitFor(queue.submitted, 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count("failed") == failed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, count("failed") - failed);
+        assertEquals(0, count("packets") - packets);
+
+        queue.failing = false;
+        assertTrue(queue.send(NODE, new PacketTask(1, delivered)));
+        waitFor(delivered, 1);
+        assertEquals(Collections.singletonList(1), delivered);
+    }
+
+    @Test
+    public void testExecutorThreadsDoNotWaitForFullQueue() throws Exception {
+        queue = new TestQueue(1, 10000, 1, 1);
+        queue.permits.drainPermits();
+        List<Integer> delivered = queue.delivered;
+        // The first packet is in flight and the second one fills the queue
+        assertTrue(queue.send(NODE, new PacketTask(0, delivered)));
+        waitFor(queue.submitted, 1);
+        assertTrue(queue.send(NODE, new PacketTask(1, delivered)));
+
+        final AtomicInteger result = new AtomicInteger(-1);
+        Thread executorThread = new Thread() {
+            @Override
+            public void run() {
+                ClusterPacketQueue.setExecutorThread();
+                result.set(queue.send(NODE, new PacketTask(2, queue.delivered)) ? 1 : 0);
+            }
+        };
+        executorThread.start();
+        // Other threads would wait for 10 seconds
+        executorThread.join(5000);
+        assertFalse(executorThread.isAlive());
+        assertEquals(0, result.get());
+    }
+}
@@ -0,0 +1,113 @@
+package com.jivesoftware.util.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.openfire.stats.Counter;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+import com.hazelcast.core.ExecutionCallback;
+
+/**
+ * Unit tests for the batches of packets routed by {@link ClusterPacketRouter} when the
+ * queue of the node fills up.
+ */
+public class ClusterPacketRouterTest {
+
+    private static final byte[] NODE = "node-1".getBytes();
+
+    private HeldQueue queue;
+    private ClusterPacketRouter router;
+
+    /**
+     * Queue whose batches never complete, so that queued packets stay queued.
+     */
+    private static class HeldQueue extends ClusterPacketQueue {
+
+        private final List<ClusterTask> submitted = Collections.synchronizedList(new ArrayList<ClusterTask>());
+
+        HeldQueue(int queueSize) {
+            super(null, queueSize, 50, 1, 1);
+        }
+
+        @Override
+        void deliver(byte[] nodeID, ClusterTask task, ExecutionCallback<Object> callback) {
+            submitted.add(task);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new HeldQueue(2);
+        router = new ClusterPacketRouter() {
+            @Override
+            ClusterPacketQueue getQueue() {
+                return queue;
+            }
+        };
+        // The first packet is in flight, so the queue only takes two more
+        assertTrue(router.routePacket(NODE, new JID("user@example.com/first"), new Message()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.submitted.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, queue.submitted.size());
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    private static long rejected() {
+        return ((Counter) StatisticsManager.getInstance().getMetrics()
+                .getMetric("cluster.outbound.rejected")).getCount();
+    }
+
+    private static void createBatch(int size, List<JID> receipients, List<Packet> packets) {
+        for (int i = 0; i < size; i++) {
+            receipients.add(new JID("user@example.com/" + i));
+            packets.add(new Message());
+        }
+    }
+
+    @Test
+    public void testQueueFillsPartwayThroughBatch() {
+        List<JID> receipients = new ArrayList<JID>();
+        List<Packet> packets = new ArrayList<Packet>();
+        createBatch(4, receipients, packets);
+        long rejected = rejected();
+
+        // Routing the batch again would send the two queued packets twice
+        assertTrue(router.routePackets(NODE, receipients, packets));
+        assertEquals(2, queue.getQueueSize(NODE));
+        assertEquals(2, rejected() - rejected);
+        assertEquals(1, queue.submitted.size());
+    }
+
+    @Test
+    public void testFullQueueRejectsBatch() {
+        List<JID> receipients = new ArrayList<JID>();
+        List<Packet> packets = new ArrayList<Packet>();
+        createBatch(2, receipients, packets);
+        assertTrue(router.routePackets(NODE, receipients, packets));
+
+        // Nothing of the next batch is queued, so it can be routed packet by packet
+        long rejected = rejected();
+        assertFalse(router.routePackets(NODE, receipients, packets));
+        assertEquals(2, queue.getQueueSize(NODE));
+        assertEquals(1, rejected() - rejected);
+    }
+}
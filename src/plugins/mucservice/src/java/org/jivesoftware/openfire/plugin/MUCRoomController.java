@@ -16,6 +16,7 @@ import org.jivesoftware.openfire.muc.ConflictException;
 import org.jivesoftware.openfire.muc.ForbiddenException;
 import org.jivesoftware.openfire.muc.MUCRole;
 import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
 import org.jivesoftware.openfire.muc.NotAllowedException;
 import org.jivesoftware.openfire.utils.MUCRoomUtils;
 import org.slf4j.Logger;
@@ -53,17 +54,22 @@ public class MUCRoomController {
 	 * @return the chat rooms
 	 */
 	public MUCRoomEntities getChatRooms(String serviceName, String channelType, String roomSearch) {
-		List<MUCRoom> rooms = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(serviceName)
-				.getChatRooms();
+		MultiUserChatService service = XMPPServer.getInstance().getMultiUserChatManager()
+				.getMultiUserChatService(serviceName);
 
 		List<MUCRoomEntity> mucRoomEntities = new ArrayList<MUCRoomEntity>();
 
-		for (MUCRoom chatRoom : rooms) {
+		// Only load the rooms whose name matches
+		for (String roomName : service.getChatRoomNames()) {
 			if (roomSearch != null) {
-				if (!chatRoom.getName().contains(roomSearch)) {
+				if (!roomName.contains(roomSearch)) {
 					continue;
 				}
 			}
+			MUCRoom chatRoom = service.getChatRoom(roomName);
+			if (chatRoom == null) {
+				continue;
+			}
 
 			if (channelType.equals(MUCChannelType.ALL)) {
 				mucRoomEntities.add(convertToMUCRoomEntity(chatRoom));
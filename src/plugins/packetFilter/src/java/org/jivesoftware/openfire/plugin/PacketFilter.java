@@ -5,16 +5,15 @@ import org.jivesoftware.openfire.group.GroupManager;
 import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.plugin.rules.Rule;
 import org.jivesoftware.openfire.plugin.rules.RuleManager;
-import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
-import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
-import org.xmpp.packet.Presence;
 
 public class PacketFilter {
 	
 	private static PacketFilter packetFilter = new PacketFilter();
 	RuleManager ruleManager;
+	// Index of the rules, rebuilt when the rules change
+	private volatile RuleIndex ruleIndex;
 
 	private PacketFilter() {
 
@@ -26,56 +25,25 @@ public class PacketFilter {
 
 	public void setRuleManager(RuleManager ruleManager) {
 		this.ruleManager = ruleManager;
+		// Versions of different rule managers are unrelated
+		this.ruleIndex = null;
 	}
 
 	public Rule findMatch(Packet packet) {
 		if (packet.getTo() == null || packet.getFrom() == null)
 			return null;
-		// TODO Would it be better to keep a local copy of the rules?
-		for (Rule rule : ruleManager.getRules()) {
-			if (!rule.isDisabled() && typeMatch(rule.getPackeType(), packet)
-					&& sourceDestMatch(rule.getDestType(), rule.getDestination(), packet.getTo())
-					&& sourceDestMatch(rule.getSourceType(), rule.getSource(), packet.getFrom())) {
-
-				return rule;
-			}
-		}
-		return null;
-	}
-
-	private boolean typeMatch(Rule.PacketType rulePacketType, Packet packet) {
-		// Simple case. Any.
-		if (rulePacketType == Rule.PacketType.Any)
-			return true;
-
-		else if (packet instanceof Message) {
-			Message message = (Message) packet;
-			if (rulePacketType == Rule.PacketType.Message) {
-				return true;
-			}
-			// Try some types.
-			else if (rulePacketType == Rule.PacketType.MessageChat && message.getType() == Message.Type.chat) {
-				return true;
-			} else if (rulePacketType == Rule.PacketType.MessageGroupChat && message.getType() == Message.Type.groupchat) {
-				return true;
-			}
-			return false;
-		} else if (packet instanceof Presence) {
-			if (rulePacketType == Rule.PacketType.Presence) {
-				return true;
-			} else
-				return false;
-		} else if (packet instanceof IQ) {
-			if (rulePacketType == Rule.PacketType.Iq) {
-				return true;
-			} else
-				return false;
+		RuleIndex index = ruleIndex;
+		// Read the version before the rules so that changes made while building the
+		// index cause the index to be built again
+		long version = ruleManager.getRulesVersion();
+		if (index == null || index.getVersion() != version) {
+			index = new RuleIndex(version, ruleManager.getRules());
+			ruleIndex = index;
 		}
-
-		return false;
+		return index.findMatch(packet, this);
 	}
 
-	private boolean sourceDestMatch(Rule.SourceDestType type, String ruleToFrom, JID packetToFrom) {
+	boolean sourceDestMatch(Rule.SourceDestType type, String ruleToFrom, JID packetToFrom) {
 		if (type == Rule.SourceDestType.Any)
 			return true;
 		if (type == Rule.SourceDestType.User) {
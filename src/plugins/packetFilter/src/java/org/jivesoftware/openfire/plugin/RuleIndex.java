@@ -0,0 +1,203 @@
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.plugin.rules.Rule;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/*
+ Immutable index of the enabled rules keyed by packet type and destination. A lookup only
+ evaluates the rules that can match the type and destination of the packet, in rule order,
+ so the first matching rule is the same one that a walk over all the rules would return.
+ */
+class RuleIndex {
+
+	private static final Rule.PacketType[] CHAT_TYPES =
+			{Rule.PacketType.MessageChat, Rule.PacketType.Message, Rule.PacketType.Any};
+	private static final Rule.PacketType[] GROUPCHAT_TYPES =
+			{Rule.PacketType.MessageGroupChat, Rule.PacketType.Message, Rule.PacketType.Any};
+	private static final Rule.PacketType[] MESSAGE_TYPES = {Rule.PacketType.Message, Rule.PacketType.Any};
+	private static final Rule.PacketType[] PRESENCE_TYPES = {Rule.PacketType.Presence, Rule.PacketType.Any};
+	private static final Rule.PacketType[] IQ_TYPES = {Rule.PacketType.Iq, Rule.PacketType.Any};
+	private static final Rule.PacketType[] ANY_TYPES = {Rule.PacketType.Any};
+
+	private final long version;
+	private final Map<Rule.PacketType, Destinations> destinations =
+			new EnumMap<Rule.PacketType, Destinations>(Rule.PacketType.class);
+
+	/*
+	 * Builds the index of the specified rules. Rules are expected in rule order.
+	 */
+	RuleIndex(long version, List<Rule> rules) {
+		this.version = version;
+		int position = 0;
+		for (Rule rule : rules) {
+			if (rule.isDisabled()) {
+				continue;
+			}
+			Destinations bucket = destinations.get(rule.getPackeType());
+			if (bucket == null) {
+				bucket = new Destinations();
+				destinations.put(rule.getPackeType(), bucket);
+			}
+			bucket.add(new IndexedRule(rule, position++));
+		}
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	Rule findMatch(Packet packet, PacketFilter filter) {
+		JID to = packet.getTo();
+		JID from = packet.getFrom();
+		String bareJID = to.toBareJID();
+		String domain = to.getDomain();
+		String lowerDomain = domain.toLowerCase();
+
+		// Collect the candidate lists. Each list is sorted by rule order.
+		List<List<IndexedRule>> candidates = new ArrayList<List<IndexedRule>>(8);
+		for (Rule.PacketType type : getPacketTypes(packet)) {
+			Destinations bucket = destinations.get(type);
+			if (bucket != null) {
+				bucket.addCandidates(bareJID, domain, lowerDomain, candidates);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return null;
+		}
+
+		// Evaluate the candidates in rule order until one matches
+		int[] cursors = new int[candidates.size()];
+		while (true) {
+			int next = -1;
+			IndexedRule nextRule = null;
+			for (int i = 0; i < cursors.length; i++) {
+				List<IndexedRule> list = candidates.get(i);
+				if (cursors[i] < list.size()) {
+					IndexedRule rule = list.get(cursors[i]);
+					if (nextRule == null || rule.position < nextRule.position) {
+						next = i;
+						nextRule = rule;
+					}
+				}
+			}
+			if (nextRule == null) {
+				return null;
+			}
+			cursors[next]++;
+			Rule rule = nextRule.rule;
+			if ((nextRule.destinationIndexed ||
+					filter.sourceDestMatch(rule.getDestType(), rule.getDestination(), to))
+					&& filter.sourceDestMatch(rule.getSourceType(), rule.getSource(), from)) {
+				return rule;
+			}
+		}
+	}
+
+	private static Rule.PacketType[] getPacketTypes(Packet packet) {
+		if (packet instanceof Message) {
+			Message.Type type = ((Message) packet).getType();
+			if (type == Message.Type.chat) {
+				return CHAT_TYPES;
+			}
+			else if (type == Message.Type.groupchat) {
+				return GROUPCHAT_TYPES;
+			}
+			return MESSAGE_TYPES;
+		}
+		else if (packet instanceof Presence) {
+			return PRESENCE_TYPES;
+		}
+		else if (packet instanceof IQ) {
+			return IQ_TYPES;
+		}
+		return ANY_TYPES;
+	}
+
+	/*
+	 * Rules of a packet type grouped by the destination they match.
+	 */
+	private static class Destinations {
+
+		// Rules matching a bare JID (user rules and non wildcard "other" rules)
+		private final Map<String, List<IndexedRule>> byBareJID = new HashMap<String, List<IndexedRule>>();
+		// Wildcard "other" rules (*@domain), matched case sensitively
+		private final Map<String, List<IndexedRule>> byDomain = new HashMap<String, List<IndexedRule>>();
+		// Component rules, matched ignoring case
+		private final Map<String, List<IndexedRule>> byLowerDomain = new HashMap<String, List<IndexedRule>>();
+		// Rules matching any destination or a group, which need to be evaluated
+		private final List<IndexedRule> others = new ArrayList<IndexedRule>();
+
+		void add(IndexedRule indexed) {
+			Rule rule = indexed.rule;
+			String destination = rule.getDestination();
+			Rule.SourceDestType type = rule.getDestType();
+			if (destination == null || type == Rule.SourceDestType.Any || type == Rule.SourceDestType.Group) {
+				others.add(indexed);
+			}
+			else if (type == Rule.SourceDestType.User) {
+				add(byBareJID, destination, indexed);
+			}
+			else if (type == Rule.SourceDestType.Component) {
+				add(byLowerDomain, destination.toLowerCase(), indexed);
+			}
+			else if (type == Rule.SourceDestType.Other) {
+				if (destination.indexOf("*") == 0 && destination.indexOf("@") == 1) {
+					add(byDomain, PacketFilterUtil.getDomain(destination), indexed);
+				}
+				else {
+					add(byBareJID, destination, indexed);
+				}
+			}
+			else {
+				others.add(indexed);
+			}
+		}
+
+		private static void add(Map<String, List<IndexedRule>> map, String key, IndexedRule indexed) {
+			List<IndexedRule> list = map.get(key);
+			if (list == null) {
+				list = new ArrayList<IndexedRule>(1);
+				map.put(key, list);
+			}
+			// Marks that the destination of the rule does not need to be evaluated again
+			indexed.destinationIndexed = true;
+			list.add(indexed);
+		}
+
+		void addCandidates(String bareJID, String domain, String lowerDomain, List<List<IndexedRule>> candidates) {
+			addCandidates(byBareJID.get(bareJID), candidates);
+			addCandidates(byDomain.get(domain), candidates);
+			addCandidates(byLowerDomain.get(lowerDomain), candidates);
+			addCandidates(others, candidates);
+		}
+
+		private static void addCandidates(List<IndexedRule> list, List<List<IndexedRule>> candidates) {
+			if (list != null && !list.isEmpty()) {
+				candidates.add(list);
+			}
+		}
+	}
+
+	private static class IndexedRule {
+
+		private final Rule rule;
+		// Position of the rule in rule order
+		private final int position;
+		private boolean destinationIndexed = false;
+
+		IndexedRule(Rule rule, int position) {
+			this.rule = rule;
+			this.position = position;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.cluster.ClusterManager;
@@ -53,6 +54,9 @@ public class DbRuleManager {
 
     private List<Rule> rules = new CopyOnWriteArrayList<Rule>();
 
+    // Changes every time the list of rules changes so that users of the rules know when to reload them
+    private final AtomicLong rulesVersion = new AtomicLong();
+
     private DbRuleManager() {
         rules = getRules();
     }
@@ -100,6 +104,7 @@ public class DbRuleManager {
                             rules.add(rule);
 
                         }
+                        rulesVersion.incrementAndGet();
 
 
                     } catch (SQLException sqle) {
@@ -247,6 +252,7 @@ public class DbRuleManager {
             pstmt.execute();
 
             rules.clear();
+            rulesVersion.incrementAndGet();
 
         } catch (SQLException sqle) {
             Log.error(sqle.getMessage(), sqle);
@@ -272,6 +278,7 @@ public class DbRuleManager {
             pstmt.execute();
 
             rules.remove(getRuleById(ruleId));
+            rulesVersion.incrementAndGet();
 
         } catch (SQLException sqle) {
             Log.error(sqle.getMessage(), sqle);
@@ -399,6 +406,7 @@ public class DbRuleManager {
             pstmt.executeUpdate();
 
             rules.clear();
+            rulesVersion.incrementAndGet();
 
         } catch (SQLException sqle) {
             Log.error(sqle.getMessage(), sqle);
@@ -440,5 +448,10 @@ public class DbRuleManager {
         if (!rules.isEmpty()) {
             rules.clear();
         }
+        rulesVersion.incrementAndGet();
+    }
+
+    public long getRulesVersion() {
+        return rulesVersion.get();
     }
 }
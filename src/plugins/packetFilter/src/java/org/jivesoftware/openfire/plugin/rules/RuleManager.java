@@ -22,4 +22,11 @@ public interface RuleManager {
     public void updateRule(Rule rule);
 
     public void rulesUpdated();
+
+    /**
+     * Returns a number that changes every time the list of rules changes.
+     *
+     * @return the version of the list of rules.
+     */
+    public long getRulesVersion();
 }
@@ -55,6 +55,10 @@ public class RuleManagerProxy implements RuleManager {
        //rulesUpdated();
     }
 
+    public long getRulesVersion() {
+        return dbRuleManager.getRulesVersion();
+    }
+
     public void rulesUpdated() {
         reloadRules();
     }
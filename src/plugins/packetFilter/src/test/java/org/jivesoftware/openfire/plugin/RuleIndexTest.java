@@ -0,0 +1,291 @@
+package org.jivesoftware.openfire.plugin;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jivesoftware.openfire.plugin.rules.Drop;
+import org.jivesoftware.openfire.plugin.rules.Pass;
+import org.jivesoftware.openfire.plugin.rules.Rule;
+import org.jivesoftware.openfire.plugin.rules.RuleManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Checks that the indexed evaluation of {@link PacketFilter} returns the same rule as
+ * evaluating every rule in order, like the filter did before the rules were indexed.
+ */
+public class RuleIndexTest {
+
+    private static final String[] DESTINATIONS = {
+            "alice@example.com", "bob@example.com", "*@example.com", "*@other.org",
+            "carol@other.org", "conference.example.com", "CONFERENCE.example.com", "pubsub.example.com"};
+
+    private static final JID[] ADDRESSES = {
+            new JID("alice@example.com/home"), new JID("bob@example.com"), new JID("carol@other.org/work"),
+            new JID("dave@example.com"), new JID("room@conference.example.com/nick"),
+            new JID("conference.example.com"), new JID("pubsub.example.com"), new JID("eve@third.net")};
+
+    private MemoryRuleManager ruleManager;
+    private PacketFilter filter;
+
+    @Before
+    public void setUp() {
+        ruleManager = new MemoryRuleManager();
+        filter = PacketFilter.getInstance();
+        filter.setRuleManager(ruleManager);
+    }
+
+    @Test
+    public void testIndexMatchesSequentialEvaluation() {
+        Random random = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            List<Rule> rules = new ArrayList<Rule>();
+            int count = 1 + random.nextInt(30);
+            for (int i = 0; i < count; i++) {
+                rules.add(createRandomRule(random, i));
+            }
+            ruleManager.setRules(rules);
+            for (int i = 0; i < 200; i++) {
+                Packet packet = createPacket(random);
+                assertSame("Round " + round + ", packet " + packet.toXML(),
+                        findSequentially(rules, packet), filter.findMatch(packet));
+            }
+        }
+    }
+
+    @Test
+    public void testFirstRuleInOrderWins() {
+        Rule domain = createRule(0, Rule.PacketType.Any, Rule.SourceDestType.Other, "*@example.com",
+                Rule.SourceDestType.Any, null);
+        Rule user = createRule(1, Rule.PacketType.Message, Rule.SourceDestType.User, "alice@example.com",
+                Rule.SourceDestType.Any, null);
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(domain);
+        rules.add(user);
+        ruleManager.setRules(rules);
+        assertSame(domain, filter.findMatch(createMessage(Message.Type.normal, "alice@example.com", "bob@example.com")));
+    }
+
+    @Test
+    public void testFallThroughToNextRule() {
+        // Matches the destination but not the source
+        Rule other = createRule(0, Rule.PacketType.Any, Rule.SourceDestType.User, "alice@example.com",
+                Rule.SourceDestType.User, "carol@other.org");
+        // Disabled rules are skipped
+        Rule disabled = createRule(1, Rule.PacketType.Any, Rule.SourceDestType.Any, null,
+                Rule.SourceDestType.Any, null);
+        disabled.isDisabled(true);
+        // Matches a different packet type
+        Rule presence = createRule(2, Rule.PacketType.Presence, Rule.SourceDestType.Any, null,
+                Rule.SourceDestType.Any, null);
+        Rule component = createRule(3, Rule.PacketType.Message, Rule.SourceDestType.Component, "EXAMPLE.com",
+                Rule.SourceDestType.Any, null);
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(other);
+        rules.add(disabled);
+        rules.add(presence);
+        rules.add(component);
+        ruleManager.setRules(rules);
+        assertSame(component, filter.findMatch(createMessage(Message.Type.chat, "alice@example.com", "bob@example.com")));
+        assertSame(other, filter.findMatch(createMessage(Message.Type.chat, "alice@example.com", "carol@other.org")));
+        assertNull(filter.findMatch(createMessage(Message.Type.chat, "alice@third.net", "bob@example.com")));
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenVersionChanges() {
+        Rule drop = createRule(0, Rule.PacketType.Any, Rule.SourceDestType.User, "alice@example.com",
+                Rule.SourceDestType.Any, null);
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(drop);
+        ruleManager.setRules(rules);
+        Message message = createMessage(Message.Type.normal, "alice@example.com", "bob@example.com");
+        assertSame(drop, filter.findMatch(message));
+
+        // A rule added in front of the existing one takes precedence once the version changes
+        Rule pass = createRule(1, Rule.PacketType.Message, Rule.SourceDestType.Any, null,
+                Rule.SourceDestType.User, "bob@example.com");
+        rules = new ArrayList<Rule>(rules);
+        rules.add(0, pass);
+        ruleManager.setRules(rules);
+        assertSame(pass, filter.findMatch(message));
+
+        // Disabling a rule is an update of the rules too
+        pass.isDisabled(true);
+        ruleManager.rulesUpdated();
+        assertSame(drop, filter.findMatch(message));
+
+        ruleManager.setRules(new ArrayList<Rule>());
+        assertNull(filter.findMatch(message));
+    }
+
+    /**
+     * Evaluates every rule in order, as the filter did before the rules were indexed.
+     */
+    private Rule findSequentially(List<Rule> rules, Packet packet) {
+        for (Rule rule : rules) {
+            if (!rule.isDisabled() && typeMatch(rule.getPackeType(), packet)
+                    && filter.sourceDestMatch(rule.getDestType(), rule.getDestination(), packet.getTo())
+                    && filter.sourceDestMatch(rule.getSourceType(), rule.getSource(), packet.getFrom())) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private static boolean typeMatch(Rule.PacketType type, Packet packet) {
+        if (type == Rule.PacketType.Any) {
+            return true;
+        }
+        if (packet instanceof Message) {
+            Message.Type messageType = ((Message) packet).getType();
+            return type == Rule.PacketType.Message
+                    || (type == Rule.PacketType.MessageChat && messageType == Message.Type.chat)
+                    || (type == Rule.PacketType.MessageGroupChat && messageType == Message.Type.groupchat);
+        }
+        if (packet instanceof Presence) {
+            return type == Rule.PacketType.Presence;
+        }
+        return packet instanceof IQ && type == Rule.PacketType.Iq;
+    }
+
+    private static Rule createRule(int id, Rule.PacketType packetType, Rule.SourceDestType destType,
+            String destination, Rule.SourceDestType sourceType, String source)
+    {
+        Rule rule = id % 2 == 0 ? new Drop() : new Pass();
+        rule.setRuleId(String.valueOf(id));
+        rule.setOrder(id);
+        rule.setPacketType(packetType);
+        rule.setDestType(destType);
+        rule.setDestination(destination);
+        rule.setSourceType(sourceType);
+        rule.setSource(source);
+        rule.isDisabled(false);
+        rule.doLog(false);
+        return rule;
+    }
+
+    private static Rule createRandomRule(Random random, int id) {
+        Rule.PacketType packetType = Rule.PacketType.values()[random.nextInt(Rule.PacketType.values().length)];
+        Rule.SourceDestType[] types = {Rule.SourceDestType.Any, Rule.SourceDestType.User,
+                Rule.SourceDestType.Component, Rule.SourceDestType.Other};
+        Rule.SourceDestType destType = types[random.nextInt(types.length)];
+        Rule.SourceDestType sourceType = types[random.nextInt(types.length)];
+        Rule rule = createRule(id, packetType, destType, pick(random, destType),
+                sourceType, pick(random, sourceType));
+        rule.isDisabled(random.nextInt(5) == 0);
+        return rule;
+    }
+
+    private static String pick(Random random, Rule.SourceDestType type) {
+        if (type == Rule.SourceDestType.Any) {
+            return random.nextBoolean() ? null : "ignored";
+        }
+        String value = DESTINATIONS[random.nextInt(DESTINATIONS.length)];
+        if (type == Rule.SourceDestType.Component && value.indexOf('@') >= 0) {
+            value = value.substring(value.indexOf('@') + 1);
+        }
+        return value;
+    }
+
+    private static Packet createPacket(Random random) {
+        JID to = ADDRESSES[random.nextInt(ADDRESSES.length)];
+        JID from = ADDRESSES[random.nextInt(ADDRESSES.length)];
+        Packet packet;
+        switch (random.nextInt(5)) {
+            case 0:
+                packet = new Presence();
+                break;
+            case 1:
+                packet = new IQ();
+                break;
+            default:
+                Message.Type[] types = Message.Type.values();
+                Message message = new Message();
+                message.setType(types[random.nextInt(types.length)]);
+                packet = message;
+        }
+        packet.setTo(to);
+        packet.setFrom(from);
+        return packet;
+    }
+
+    private static Message createMessage(Message.Type type, String to, String from) {
+        Message message = new Message();
+        message.setType(type);
+        message.setTo(to);
+        message.setFrom(from);
+        return message;
+    }
+
+    /**
+     * Rule manager that keeps the rules in memory.
+     */
+    private static class MemoryRuleManager implements RuleManager {
+
+        private List<Rule> rules = new ArrayList<Rule>();
+        private long version = 0;
+
+        void setRules(List<Rule> rules) {
+            this.rules = rules;
+            rulesUpdated();
+        }
+
+        public Rule getRuleById(int id) {
+            for (Rule rule : rules) {
+                if (rule.getRuleId().equals(String.valueOf(id))) {
+                    return rule;
+                }
+            }
+            return null;
+        }
+
+        public List<Rule> getRules() {
+            return rules;
+        }
+
+        public void addRule(Rule rule, Integer order) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void addRule(Rule rule) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void deleteRule(int ruleId) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void moveOne(int srcId, int destId) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getLastOrder() {
+            return rules.size();
+        }
+
+        public void moveRuleOrder(int ruleId, int orderId) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void updateRule(Rule rule) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void rulesUpdated() {
+            version++;
+        }
+
+        public long getRulesVersion() {
+            return version;
+        }
+    }
+}
@@ -2063,8 +2063,7 @@ public class ConferenceMember implements TreatmentDoneListener,
     }
 
     public boolean sendData() {
-
-	if (cp.getInputTreatment() != null && cp.getToRecordingFile() == null) {
+	if (wantsSenderData() == false) {
 	    /*
 	     * We don't send data to a call playing an input treatment
 	     * unless that call is recording.
@@ -2072,6 +2071,22 @@ public class ConferenceMember implements TreatmentDoneListener,
 	    return true;
 	}
 
+	if (checkTimeouts() == false) {
+	    return false;
+	}
+
+        return memberSender.sendData(mixData());
+    }
+
+    /*
+     * The steps of sendData() for the ConferenceSender, which mixes the
+     * data for all members before sending the data to any of them.
+     */
+    boolean wantsSenderData() {
+	return cp.getInputTreatment() == null || cp.getToRecordingFile() != null;
+    }
+
+    boolean checkTimeouts() {
 	/*
          * Since we know we get called here every 20ms, use this opportunity
          * to check if we've received any data or not and
@@ -2095,8 +2110,16 @@ public class ConferenceMember implements TreatmentDoneListener,
 	    cp.setCallTimeout(timeout);
 	}
 
+	return true;
+    }
+
+    /*
+     * The data returned is only valid until the next call but one
+     * since the mix manager reuses its buffers.
+     */
+    int[] mixData() {
 	synchronized (mixManager) {
-            return memberSender.sendData(mixManager.mix());
+	    return mixManager.mix();
 	}
     }
 
@@ -23,19 +23,31 @@
 
 package com.sun.voip.server;
 
+import com.sun.voip.DataUpdater;
 import com.sun.voip.Logger;
+import com.sun.voip.PerfMon;
 import com.sun.voip.RtpPacket;
 import com.sun.voip.Ticker;
 import com.sun.voip.TickerException;
 import com.sun.voip.TickerFactory;
 
+import java.awt.GraphicsEnvironment;
+
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Send data to conference members
+ * Send data to conference members.
+ *
+ * Every 20ms the data for each member is mixed and then encoded and
+ * sent to the member.  Both stages are split across a work-stealing
+ * pool shared by all senders.  The mix of the next tick is done while
+ * the data of the previous tick is still being sent, so a tick only
+ * waits for the previous sends before starting its own sends.
  */
 public class ConferenceSender extends Thread {
     /*
@@ -62,6 +74,29 @@ public class ConferenceSender extends Thread {
 
     Ticker ticker;
 
+    /*
+     * Ticks which took longer than the packet period since
+     * the overrun monitor last asked for them
+     */
+    private static AtomicInteger overruns = new AtomicInteger();
+
+    private static int totalOverruns;
+
+    private static volatile int lastOverruns;
+
+    private static volatile double maxOverrunTime;
+
+    private static ForkJoinPool pool;
+
+    private static int poolThreads;
+
+    /*
+     * Members are mixed and sent in batches of this size
+     */
+    private static final int MEMBERS_PER_TASK = 4;
+
+    private Pipeline pipeline = new Pipeline(new Tick(), new Tick());
+
     private static ArrayList<SenderCallbackListener> senderCallbackList =
         new ArrayList<SenderCallbackListener>();
 
@@ -118,6 +153,8 @@ public class ConferenceSender extends Thread {
 
         long sendTime = 0;
         long maxSendTime = 0;
+	int intervalOverruns = 0;
+	long maxOverrun = 0;
 
 	while (!done) {
 	    long startTime = System.nanoTime();
@@ -143,6 +180,15 @@ public class ConferenceSender extends Thread {
 	    totalSendTime += elapsed;
 	    sendTime += elapsed;
 
+	    if (elapsed > RtpPacket.PACKET_PERIOD * 1000000L) {
+		overruns.incrementAndGet();
+		intervalOverruns++;
+
+		if (elapsed > maxOverrun) {
+		    maxOverrun = elapsed;
+		}
+	    }
+
 	    try {
                 ticker.tick();
             } catch (TickerException e) {
@@ -155,6 +201,8 @@ public class ConferenceSender extends Thread {
 		resetStatistics();
 		sendTime = 0;
 		maxSendTime = 0;
+		intervalOverruns = 0;
+		maxOverrun = 0;
 		continue;
 	    }
 
@@ -165,11 +213,20 @@ public class ConferenceSender extends Thread {
 
 		lastMaxSendTime = maxSendTime / 1000000000.;
 
+		lastOverruns = intervalOverruns;
+
+		maxOverrunTime = maxOverrun / 1000000000.;
+
+		synchronized (ConferenceSender.class) {
+		    totalOverruns += intervalOverruns;
+		}
+
 	        String s = getName()
 	            + " time to send a packet to " + ConferenceManager.getTotalMembers()
 	            + " members in last 5 seconds is " + (sendTime / 1000000000.)
 		    + " seconds, average time " + averageSendTime + " seconds "
 		    + ", maxSendTime " + lastMaxSendTime
+		    + ", overruns " + intervalOverruns
 		    + ", members speaking " + CallHandler.getTotalSpeaking();
 
 	        if (Logger.logLevel >= Logger.LOG_DETAIL) {
@@ -186,9 +243,12 @@ public class ConferenceSender extends Thread {
 		startTime = System.nanoTime();
 	        maxSendTime = 0;
 		sendTime = 0;
+		intervalOverruns = 0;
+		maxOverrun = 0;
 	    }
 	}
 
+	pipeline.waitForSends(getName());
 	ticker.disarm();
     }
 
@@ -204,6 +264,48 @@ public class ConferenceSender extends Thread {
 	return timeBetweenSends;
     }
 
+    /*
+     * Overruns in the last 5 seconds
+     */
+    public static int getOverruns() {
+	return lastOverruns;
+    }
+
+    public static synchronized int getTotalOverruns() {
+	return totalOverruns;
+    }
+
+    public static double getMaxOverrunTime() {
+	return maxOverrunTime;
+    }
+
+    public static String getOverrunStatistics() {
+	return "Sender overruns in last 5 seconds " + getOverruns()
+	    + ", longest " + getMaxOverrunTime() + " seconds"
+	    + ", total overruns " + getTotalOverruns();
+    }
+
+    /*
+     * Graph the number of overruns per half second.
+     */
+    public static PerfMon startOverrunMonitor() {
+	if (GraphicsEnvironment.isHeadless()) {
+	    Logger.println("Can't show sender overruns, no display");
+	    return null;
+	}
+
+	DataUpdater updater = new DataUpdater() {
+	    public int getData() {
+		return overruns.getAndSet(0);
+	    }
+
+	    public void windowClosed() {
+	    }
+	};
+
+	return new PerfMon("Sender overruns", updater, null, 400, 200);
+    }
+
     private void sendDataToConferences() {
 	/*
 	 * Build a memberList containing the members of all conferences.
@@ -306,10 +408,6 @@ public class ConferenceSender extends Thread {
 	}
     }
 
-    private ArrayList workerThreads = new ArrayList();
-
-    private ConcurrentLinkedQueue workToDo = new ConcurrentLinkedQueue();
-
     private void sendDataToMembers(ArrayList memberList) {
 	if (Logger.logLevel == -55) {
 	    for (int i = 0; i < memberList.size(); i++) {
@@ -317,74 +415,214 @@ public class ConferenceSender extends Thread {
 
 	        Logger.println("conf " + getName() + ": " + m);
 	    }
-	    Logger.println("wt size " + workerThreads.size()
-		+ " sender threads " + senderThreads);
+	    Logger.println("sender threads " + senderThreads);
 	}
 
-	if (workerThreads.size() > 1 && workerThreads.size() != senderThreads) {
-            /*
-             * Stop old threads
-	     * XXX We could just stop the extra threads or add new ones
-	     * rather than stopping all of them.
-             */
-	    if (Logger.logLevel == -55) {
-                Logger.println("Stopping sender worker threads "
-                    + workerThreads.size());
+	if (senderThreads <= 1) {
+	    pipeline.waitForSends(getName());
+	    singleThreadSendDataToMembers(memberList);
+	    return;
+	}
+
+	Tick tick = pipeline.nextTick();
+
+	for (int i = 0; i < memberList.size(); i++) {
+	    ConferenceMember member = (ConferenceMember) memberList.get(i);
+
+	    if (member.getMemberSender().memberIsReadyForSenderData()) {
+		tick.add(member);
 	    }
+	}
 
-            for (int i = 0; i < workerThreads.size(); i++) {
-                ((WorkerThread) workerThreads.get(i)).done();
-            }
+	pipeline.run(getPool(), tick, getName());
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+	if (pool == null || poolThreads != senderThreads) {
+	    if (pool != null) {
+		/*
+		 * Pending sends still complete
+		 */
+		pool.shutdown();
+	    }
+
+	    poolThreads = senderThreads;
+
+	    pool = new ForkJoinPool(poolThreads, new SenderThreadFactory(),
+		null, false);
 
-	    workerThreads.clear();
+            Logger.println("Started " + poolThreads + " sender threads");
 	}
 
-	if (senderThreads <= 1) {
-	    singleThreadSendDataToMembers(memberList);
-	    return;
+	return pool;
+    }
+
+    /*
+     * Mixes a tick while the sends of the previous tick are still running.
+     * The two ticks are used in turn, so a tick is only reused once its
+     * sends are done.
+     */
+    static class Pipeline {
+	private Tick[] ticks;
+	private int currentTick;
+	private ForkJoinTask<?> pendingSends;
+
+	Pipeline(Tick first, Tick second) {
+	    ticks = new Tick[] { first, second };
 	}
 
-	CountDownLatch doneSignal = new CountDownLatch(workerThreads.size());
+	/*
+	 * Use the tick whose sends were waited for by the previous tick.
+	 */
+	Tick nextTick() {
+	    currentTick ^= 1;
 
-	if (workerThreads.size() != senderThreads) {
-            /*
-             * Start new threads
-             */
-            for (int i = 0; i < senderThreads; i++) {
-                workerThreads.add(new WorkerThread(i, doneSignal));
-            }
+	    Tick tick = ticks[currentTick];
 
-            Logger.println("Started " + senderThreads + " sender threads");
+	    tick.clear();
+	    return tick;
 	}
 
-	workToDo.clear();
+	void run(ForkJoinPool pool, Tick tick, String name) {
+	    if (tick.size == 0) {
+		/*
+		 * The next tick reuses the tick whose sends may still be running.
+		 */
+		waitForSends(name);
+		return;
+	    }
 
-	for (int i = 0; i < memberList.size(); i++) {
-	    ConferenceMember member = (ConferenceMember) memberList.get(i);
+	    /*
+	     * The contributions are only valid until we return so
+	     * wait for every member to be mixed.
+	     */
+	    pool.invoke(new MemberTask(tick, 0, tick.size, true));
 
-	    if (member.getMemberSender().memberIsReadyForSenderData()) {
-		workToDo.add(member);
+	    /*
+	     * The data for a member must be sent in order.
+	     */
+	    waitForSends(name);
+
+	    pendingSends = pool.submit(new MemberTask(tick, 0, tick.size, false));
+	}
+
+	void waitForSends(String name) {
+	    if (pendingSends == null) {
+		return;
 	    }
+
+	    try {
+		pendingSends.join();
+	    } catch (Exception e) {
+		Logger.println(name + " sending data failed " + e.getMessage());
+	    }
+
+	    pendingSends = null;
+	}
+    }
+
+    /*
+     * The members to send data to in one tick and the data mixed for them.
+     * The arrays are reused from tick to tick.
+     */
+    static class Tick {
+	ConferenceMember[] members = new ConferenceMember[16];
+	int[][] data = new int[16][];
+	boolean[] mixed = new boolean[16];
+	int size;
+
+	void add(ConferenceMember member) {
+	    if (size == members.length) {
+		ConferenceMember[] m = new ConferenceMember[size * 2];
+		System.arraycopy(members, 0, m, 0, size);
+		members = m;
+		data = new int[size * 2][];
+		mixed = new boolean[size * 2];
+	    }
+
+	    members[size++] = member;
+	}
+
+	void clear() {
+	    for (int i = 0; i < size; i++) {
+		members[i] = null;
+		data[i] = null;
+		mixed[i] = false;
+	    }
+
+	    size = 0;
 	}
 
 	/*
-	 * Start all of the worker threads
+	 * Mixes or sends the data of the member at the given index.
 	 */
-	for (int i = 0; i < workerThreads.size(); i++) {
-	    WorkerThread workerThread = (WorkerThread) workerThreads.get(i);
+	void process(int i, boolean mix) {
+	    ConferenceMember member = members[i];
+
+	    try {
+		if (mix) {
+		    if (member.wantsSenderData() && member.checkTimeouts()) {
+			data[i] = member.mixData();
+			mixed[i] = true;
+		    }
+		} else if (mixed[i]) {
+		    member.getMemberSender().sendData(data[i]);
+		}
+	    } catch (Exception e) {
+		e.printStackTrace();
 
-	    workerThread.setLatch(doneSignal);
+		Logger.println("Can't send data to " + member + " "
+		    + e.getMessage());
 
-	    synchronized (workerThread) {
-		workerThread.notify();
+		mixed[i] = false;
+
+		member.getCallHandler().cancelRequest("Unexpected Exception");
 	    }
 	}
+    }
 
-	if (!done) {
-	    try {
-	        doneSignal.await();	// wait for all to finish
-	    } catch (InterruptedException e) {
+    /*
+     * Mixes or sends the data of a range of members of a tick,
+     * splitting the range so that idle threads can steal half of it.
+     */
+    static class MemberTask extends RecursiveAction {
+	private Tick tick;
+	private int start;
+	private int end;
+	private boolean mix;
+
+	MemberTask(Tick tick, int start, int end, boolean mix) {
+	    this.tick = tick;
+	    this.start = start;
+	    this.end = end;
+	    this.mix = mix;
+	}
+
+	protected void compute() {
+	    if (end - start > MEMBERS_PER_TASK) {
+		int middle = (start + end) >>> 1;
+
+		invokeAll(new MemberTask(tick, start, middle, mix),
+		    new MemberTask(tick, middle, end, mix));
+		return;
 	    }
+
+	    for (int i = start; i < end; i++) {
+		tick.process(i, mix);
+	    }
+	}
+    }
+
+    static class SenderThreadFactory
+	    implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+	public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+	    ForkJoinWorkerThread thread =
+		ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+
+	    thread.setName("Sender-WorkerThread-" + thread.getPoolIndex());
+	    thread.setPriority(Thread.MAX_PRIORITY);
+	    return thread;
 	}
     }
 
@@ -424,77 +662,11 @@ public class ConferenceSender extends Thread {
 	}
     }
 
-    class WorkerThread extends Thread {
-	private boolean done;
-	private CountDownLatch doneSignal;
-
-	public WorkerThread(int i, CountDownLatch doneSignal) {
-	    this.doneSignal = doneSignal;
-
-	    setName("Sender-WorkerThread-" + i + "-" + getName());
-	    setPriority(Thread.MAX_PRIORITY);
-	    start();
-	}
-
-	public void setLatch(CountDownLatch doneSignal) {
-	    this.doneSignal = doneSignal;
-	}
-
-	public void done() {
-	    done = true;
-	    interrupt();
-	}
-
-        public void run() {
-	    while (!done) {
-		try {
-	            ConferenceMember member = (ConferenceMember)
-			workToDo.remove();
-
-		    try {
-	                member.sendData();
-	    	    } catch (Exception e) {
-			e.printStackTrace();
-
-			Logger.println("Can't send data to " + member
-		             + " " + e.getMessage());
-
-			member.getCallHandler().cancelRequest(
-			    "Unexpected Exception");
-	    	    }
-		} catch (NoSuchElementException e) {
-		    synchronized (this) {
-		        doneSignal.countDown();
-
-		        if (done) {
-			    break;  // done
-		        }
-
-			try {
-		            wait();
-			} catch (InterruptedException ie) {
-		    	    break;
-		        }
-	    	    }
-		}
-	    }
-	}
-    }
-
     public void end() {
 	done = true;
 
     	printStatistics();
 	this.interrupt();
-
-	synchronized (workerThreads) {
-	    workToDo.clear();
-	    workerThreads.notifyAll();
-	}
-
-        for (int i = 0; i < workerThreads.size(); i++) {
-            ((WorkerThread) workerThreads.get(i)).done();
-        }
     }
 
     public void printStatistics() {
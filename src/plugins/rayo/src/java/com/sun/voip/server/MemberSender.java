@@ -570,7 +570,7 @@ public class MemberSender {
 			if (relayChannel.encode())
 				relayChannel.pushAudio(senderPacket.getData(), opusBytes);
 			else
-				relayChannel.pushAudio(dataToSend);
+				relayChannel.pushAudio(dataToSend.clone());	// the mix buffer is reused
 
 		} catch (Exception e) {
 
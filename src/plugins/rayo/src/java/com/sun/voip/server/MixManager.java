@@ -26,6 +26,7 @@ package com.sun.voip.server;
 import java.lang.reflect.Constructor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.sun.voip.AudioConversion;
 import com.sun.voip.Logger;
@@ -46,6 +47,13 @@ public class MixManager {
 
     private SpatialAudio sa;
 
+    /*
+     * The mix is done into one of two preallocated buffers so that
+     * the next mix can be done while the previous one is being sent.
+     */
+    private int[][] outBuffers = new int[2][];
+    private int nextOutBuffer;
+
     public MixManager(ConferenceMember member,
 	    int conferenceSamplesPerPacket, int channels) {
 
@@ -387,7 +395,7 @@ public class MixManager {
 	    }
 	}
 
-        outData = new int[conferenceSamplesPerPacket];
+        outData = getOutBuffer();
 
 	//Logger.println("Call " + member + " MixManager mixing "
 	//	+ mixDescriptors.size());
@@ -499,7 +507,7 @@ public class MixManager {
 	    return null;
 	}
 
-	int[] outData = new int[conferenceSamplesPerPacket];
+	int[] outData = getOutBuffer();
 
 	MixDescriptor memberMixDescriptor = (MixDescriptor)
 	    mixDescriptors.get(1);
@@ -532,6 +540,20 @@ public class MixManager {
 		return outData;
     }
 
+    private int[] getOutBuffer() {
+	int[] outData = outBuffers[nextOutBuffer];
+
+	if (outData == null || outData.length != conferenceSamplesPerPacket) {
+	    outData = new int[conferenceSamplesPerPacket];
+	    outBuffers[nextOutBuffer] = outData;
+	} else {
+	    Arrays.fill(outData, 0);
+	}
+
+	nextOutBuffer ^= 1;
+	return outData;
+    }
+
     private void checkData(int[] data, boolean useFastMix) {
 	for (int i = 0; i < data.length; i++) {
 	    if (data[i] != 0) {
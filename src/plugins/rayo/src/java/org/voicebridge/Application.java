@@ -828,6 +828,21 @@ public class Application implements  CallEventListener  {
 			*/
 		}
 
+		if ("getSenderOverruns".equalsIgnoreCase(parameter))
+		{
+			reportInfo(ConferenceSender.getOverrunStatistics());
+			return;
+		}
+
+		if ("senderOverrunMonitor".equalsIgnoreCase(parameter))
+		{
+			if (ConferenceSender.startOverrunMonitor() == null)
+			{
+				reportError("Unable to show sender overruns without a display");
+			}
+			return;
+		}
+
 		if ("getBriefConferenceInfo".equalsIgnoreCase(parameter))
 		{
 			reportInfo(ConferenceManager.getBriefConferenceInfo());
@@ -0,0 +1,179 @@
+package com.sun.voip.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the two stages, mix and send, of {@link ConferenceSender}.
+ */
+public class ConferenceSenderTest {
+
+    private ForkJoinPool pool;
+
+    /**
+     * Tick that records the stages instead of mixing and sending data to members.
+     * Sends can be held back until the tick is released.
+     */
+    private static class RecordingTick extends ConferenceSender.Tick {
+
+        private final String name;
+        private final List<String> events;
+        private CountDownLatch release = new CountDownLatch(0);
+        private final CountDownLatch sending = new CountDownLatch(1);
+
+        RecordingTick(String name, List<String> events) {
+            this.name = name;
+            this.events = events;
+        }
+
+        @Override
+        void process(int i, boolean mix) {
+            if (mix) {
+                events.add(name + " mix " + i);
+                mixed[i] = true;
+                return;
+            }
+            sending.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            assertTrue(mixed[i]);
+            events.add(name + " send " + i);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private static void fill(ConferenceSender.Tick tick, int members) {
+        for (int i = 0; i < members; i++) {
+            tick.add(null);
+        }
+    }
+
+    private static int count(List<String> events, String prefix) {
+        int count = 0;
+        synchronized (events) {
+            for (String event : events) {
+                if (event.startsWith(prefix)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testNextTickIsMixedWhilePreviousTickIsSent() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        RecordingTick first = new RecordingTick("first", events);
+        RecordingTick second = new RecordingTick("second", events);
+        first.release = new CountDownLatch(1);
+        final ConferenceSender.Pipeline pipeline = new ConferenceSender.Pipeline(second, first);
+
+        final ConferenceSender.Tick tick = pipeline.nextTick();
+        assertTrue(tick == first);
+        fill(tick, 10);
+        pipeline.run(pool, tick, "test");
+        assertTrue(first.sending.await(5, TimeUnit.SECONDS));
+
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                ConferenceSender.Tick next = pipeline.nextTick();
+                fill(next, 10);
+                pipeline.run(pool, next, "test");
+            }
+        };
+        sender.start();
+
+        // The second tick is mixed while the sends of the first one are held back,
+        // but its own sends wait for them
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count(events, "second mix") < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, count(events, "second mix"));
+        assertEquals(0, count(events, "second send"));
+        assertTrue(sender.isAlive());
+
+        first.release.countDown();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        assertEquals(10, count(events, "first send"));
+
+        pipeline.waitForSends("test");
+        assertEquals(10, count(events, "second send"));
+        // Every send of the first tick happened before the sends of the second one
+        int lastFirstSend = -1;
+        int firstSecondSend = Integer.MAX_VALUE;
+        for (int i = 0; i < events.size(); i++) {
+            if (events.get(i).startsWith("first send")) {
+                lastFirstSend = i;
+            }
+            else if (events.get(i).startsWith("second send")) {
+                firstSecondSend = Math.min(firstSecondSend, i);
+            }
+        }
+        assertTrue(lastFirstSend < firstSecondSend);
+    }
+
+    @Test
+    public void testEmptyTickWaitsForPreviousSends() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final RecordingTick first = new RecordingTick("first", events);
+        RecordingTick second = new RecordingTick("second", events);
+        first.release = new CountDownLatch(1);
+        ConferenceSender.Pipeline pipeline = new ConferenceSender.Pipeline(second, first);
+
+        ConferenceSender.Tick tick = pipeline.nextTick();
+        fill(tick, 10);
+        pipeline.run(pool, tick, "test");
+        assertTrue(first.sending.await(5, TimeUnit.SECONDS));
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                first.release.countDown();
+            }
+        };
+        releaser.start();
+
+        // No member is ready in the next tick
+        ConferenceSender.Tick empty = pipeline.nextTick();
+        pipeline.run(pool, empty, "test");
+        assertEquals(10, count(events, "first send"));
+
+        // The tick after it reuses the first tick, which must not be cleared while sending
+        assertTrue(pipeline.nextTick() == first);
+        releaser.join();
+    }
+}
@@ -0,0 +1,192 @@
+package org.jivesoftware.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PooledConnectionProvider} using an in-memory HSQLDB database.
+ */
+public class PooledConnectionProviderTest {
+
+    private PooledConnectionProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        JiveGlobals.setXMLProperty("database.defaultProvider.driver", "org.hsqldb.jdbcDriver");
+        JiveGlobals.setXMLProperty("database.defaultProvider.serverURL", "jdbc:hsqldb:mem:pooltest");
+        JiveGlobals.setXMLProperty("database.defaultProvider.username", "sa");
+        JiveGlobals.setXMLProperty("database.defaultProvider.password", "");
+        JiveGlobals.setXMLProperty("database.defaultProvider.minConnections", "0");
+        JiveGlobals.setXMLProperty("database.defaultProvider.maxConnections", "2");
+        JiveGlobals.setXMLProperty("database.defaultProvider.checkoutTimeout", "100");
+        // HSQLDB does not accept the default test SQL
+        JiveGlobals.setXMLProperty("database.defaultProvider.testSQL", "CALL 1");
+        provider = new PooledConnectionProvider();
+        provider.start();
+        Connection con = provider.getConnection();
+        Statement statement = con.createStatement();
+        statement.execute("CREATE TABLE pooltest (id INTEGER)");
+        con.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Connection con = provider.getConnection();
+        con.createStatement().execute("DROP TABLE pooltest");
+        con.close();
+        provider.destroy();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        Connection con = provider.getConnection();
+        assertEquals(1, provider.getActiveConnections());
+        assertEquals(0, provider.getIdleConnections());
+        PreparedStatement pstmt = con.prepareStatement("SELECT COUNT(*) FROM pooltest");
+        pstmt.executeQuery().close();
+        pstmt.close();
+        con.close();
+        assertEquals(0, provider.getActiveConnections());
+        assertEquals(1, provider.getIdleConnections());
+
+        long misses = provider.getStatementCacheMisses();
+        con = provider.getConnection();
+        assertEquals(0, provider.getIdleConnections());
+        pstmt = con.prepareStatement("SELECT COUNT(*) FROM pooltest");
+        ResultSet rs = pstmt.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        pstmt.close();
+        con.close();
+        assertEquals(misses, provider.getStatementCacheMisses());
+        assertTrue(provider.getStatementCacheHits() > 0);
+    }
+
+    @Test
+    public void testTransactionIsRolledBack() throws Exception {
+        Connection con = provider.getConnection();
+        con.setAutoCommit(false);
+        PreparedStatement pstmt = con.prepareStatement("INSERT INTO pooltest (id) VALUES (?)");
+        pstmt.setInt(1, 1);
+        pstmt.executeUpdate();
+        con.close();
+
+        con = provider.getConnection();
+        assertTrue(con.getAutoCommit());
+        ResultSet rs = con.createStatement().executeQuery("SELECT COUNT(*) FROM pooltest");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        con.close();
+    }
+
+    @Test
+    public void testClosedConnection() throws Exception {
+        Connection con = provider.getConnection();
+        con.close();
+        assertTrue(con.isClosed());
+        try {
+            con.createStatement();
+            fail("expected SQLException");
+        }
+        catch (SQLException e) {
+            // Expected
+        }
+        // Closing again does not return the physical connection twice
+        con.close();
+        assertEquals(1, provider.getIdleConnections());
+    }
+
+    @Test
+    public void testCheckoutTimeout() throws Exception {
+        Connection con1 = provider.getConnection();
+        Connection con2 = provider.getConnection();
+        assertFalse(con1.equals(con2));
+        try {
+            provider.getConnection();
+            fail("expected SQLException");
+        }
+        catch (SQLException e) {
+            // Expected
+        }
+        assertEquals(1, provider.getConnectionsRefused());
+        con1.close();
+        con2.close();
+        long[] histogram = provider.getCheckoutHistogram();
+        long checkouts = 0;
+        for (long count : histogram) {
+            checkouts += count;
+        }
+        assertEquals(provider.getConnectionsServed(), checkouts);
+    }
+
+    @Test(timeout = 10000)
+    public void testHouseKeepingKeepsValidIdleConnections() throws Exception {
+        Connection con1 = provider.getConnection();
+        Connection con2 = provider.getConnection();
+        con1.close();
+        con2.close();
+        assertEquals(2, provider.getIdleConnections());
+        provider.houseKeep();
+        assertEquals(2, provider.getIdleConnections());
+        assertEquals(0, provider.getActiveConnections());
+        // The connections are still usable
+        Connection con = provider.getConnection();
+        assertEquals(1, provider.getIdleConnections());
+        con.createStatement().executeQuery("SELECT COUNT(*) FROM pooltest").close();
+        con.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testHouseKeepingClosesIdleConnections() throws Exception {
+        JiveGlobals.setXMLProperty("database.defaultProvider.idleTimeout", "0");
+        PooledConnectionProvider idleProvider = new PooledConnectionProvider();
+        JiveGlobals.deleteXMLProperty("database.defaultProvider.idleTimeout");
+        idleProvider.start();
+        try {
+            Connection con1 = idleProvider.getConnection();
+            Connection con2 = idleProvider.getConnection();
+            con1.close();
+            con2.close();
+            assertEquals(2, idleProvider.getIdleConnections());
+            idleProvider.houseKeep();
+            assertEquals(0, idleProvider.getIdleConnections());
+        }
+        finally {
+            idleProvider.destroy();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLeakedConnectionIsReported() throws Exception {
+        JiveGlobals.setXMLProperty("database.defaultProvider.leakDetectionThreshold", "1");
+        PooledConnectionProvider leakProvider = new PooledConnectionProvider();
+        JiveGlobals.deleteXMLProperty("database.defaultProvider.leakDetectionThreshold");
+        leakProvider.start();
+        try {
+            Connection con = leakProvider.getConnection();
+            Thread.sleep(20);
+            leakProvider.houseKeep();
+            assertEquals(1, leakProvider.getConnectionsLeaked());
+            // Leaks are reported once per checkout
+            leakProvider.houseKeep();
+            assertEquals(1, leakProvider.getConnectionsLeaked());
+            con.close();
+        }
+        finally {
+            leakProvider.destroy();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link OfflineMessageWriter}.
+ */
+public class OfflineMessageWriterTest {
+
+    /**
+     * Store that keeps inserted messages in memory. Inserts can be held back until
+     * the store is released.
+     */
+    private static class MemoryStore implements OfflineMessageWriter.MessageStore {
+
+        private final List<Long> inserted = Collections.synchronizedList(new ArrayList<Long>());
+        private final CountDownLatch release;
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        MemoryStore(boolean hold) {
+            release = new CountDownLatch(hold ? 1 : 0);
+        }
+
+        public void insertMessages(List<OfflineMessageWriter.PendingMessage> messages) {
+            if (!Thread.currentThread().getName().equals("Offline Message Writer")) {
+                // Messages inserted right away are never held back
+                add(messages);
+                return;
+            }
+            blocked.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            add(messages);
+        }
+
+        private void add(List<OfflineMessageWriter.PendingMessage> messages) {
+            for (OfflineMessageWriter.PendingMessage message : messages) {
+                inserted.add(message.getMessageID());
+            }
+        }
+    }
+
+    private static OfflineMessageWriter.PendingMessage message(String username, long messageID) {
+        return new OfflineMessageWriter.PendingMessage(username, messageID, "0", "<message/>");
+    }
+
+    @Test
+    public void testMessagesAreInsertedInOrder() throws Exception {
+        MemoryStore store = new MemoryStore(false);
+        OfflineMessageWriter writer = new OfflineMessageWriter(store);
+        writer.start(100, 3);
+        for (long i = 0; i < 10; i++) {
+            writer.add(message("user", i));
+        }
+        writer.flush("user");
+        assertEquals(0, writer.getPendingCount("user"));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), store.inserted);
+        writer.stop();
+    }
+
+    @Test
+    public void testFullQueueInsertsRightAway() throws Exception {
+        MemoryStore store = new MemoryStore(true);
+        OfflineMessageWriter writer = new OfflineMessageWriter(store);
+        writer.start(1, 1);
+        // The writer thread holds the first message, the second one fills the queue
+        assertTrue(writer.add(message("user", 1)));
+        assertTrue(store.blocked.await(5, TimeUnit.SECONDS));
+        assertTrue(writer.add(message("user", 2)));
+        // Storing another message does not wait for room in the queue
+        assertFalse(writer.add(message("other", 3)));
+        assertEquals(Arrays.asList(3L), store.inserted);
+        assertEquals(2, writer.getPendingCount("user"));
+        assertEquals(0, writer.getPendingCount("other"));
+
+        store.release.countDown();
+        writer.flush("user");
+        assertEquals(Arrays.asList(3L, 1L, 2L), store.inserted);
+        writer.stop();
+    }
+
+    @Test
+    public void testStopWritesPendingMessages() throws Exception {
+        MemoryStore store = new MemoryStore(true);
+        final OfflineMessageWriter writer = new OfflineMessageWriter(store);
+        writer.start(10, 1);
+        writer.add(message("user", 1));
+        writer.add(message("user", 2));
+        assertTrue(store.blocked.await(5, TimeUnit.SECONDS));
+        Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                writer.stop();
+            }
+        };
+        stopper.start();
+        store.release.countDown();
+        stopper.join(5000);
+        assertFalse(stopper.isAlive());
+        assertEquals(Arrays.asList(1L, 2L), store.inserted);
+        assertEquals(0, writer.getPendingCount("user"));
+    }
+
+    @Test
+    public void testMessagesAfterStopAreInsertedRightAway() throws Exception {
+        MemoryStore store = new MemoryStore(false);
+        OfflineMessageWriter writer = new OfflineMessageWriter(store);
+        writer.start(10, 10);
+        writer.stop();
+        assertFalse(writer.add(message("user", 1)));
+        assertEquals(Arrays.asList(1L), store.inserted);
+        // Nothing is pending, so waiting for the messages of the user returns at once
+        assertEquals(0, writer.getPendingCount("user"));
+        writer.flush("user");
+    }
+}
@@ -0,0 +1,118 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.ClientSessionSortKey;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Unit tests for the sort order of {@link SessionResultFilter}.
+ */
+public class SessionResultFilterTest {
+
+    private static ClientSession createSession(final String address, final long created,
+            final long lastActive, final long clientPackets)
+    {
+        return (ClientSession) Proxy.newProxyInstance(ClientSession.class.getClassLoader(),
+                new Class<?>[] {ClientSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getAddress".equals(name)) {
+                            return new JID(address);
+                        }
+                        if ("isAnonymousUser".equals(name)) {
+                            return false;
+                        }
+                        if ("getCreationDate".equals(name)) {
+                            return new Date(created);
+                        }
+                        if ("getLastActiveDate".equals(name)) {
+                            return new Date(lastActive);
+                        }
+                        if ("getNumClientPackets".equals(name)) {
+                            return clientPackets;
+                        }
+                        if ("getNumServerPackets".equals(name)) {
+                            return 0L;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static List<String> sort(List<ClientSession> sessions, int sortField, int sortOrder) {
+        SessionResultFilter filter = new SessionResultFilter();
+        filter.setSortField(sortField);
+        filter.setSortOrder(sortOrder);
+        List<ClientSessionSortKey> keys = new ArrayList<ClientSessionSortKey>();
+        for (ClientSession session : sessions) {
+            keys.add(new ClientSessionSortKey(session));
+        }
+        Collections.sort(keys, filter.getSortKeyComparator());
+        List<String> addresses = new ArrayList<String>();
+        for (ClientSessionSortKey key : keys) {
+            addresses.add(key.toString());
+        }
+        // Sessions are sorted in the same order as their snapshots
+        List<ClientSession> sorted = new ArrayList<ClientSession>(sessions);
+        Collections.sort(sorted, filter.getSortComparator());
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(addresses.get(i), sorted.get(i).getAddress().toString());
+        }
+        return addresses;
+    }
+
+    @Test
+    public void testSortByLastActivityDate() {
+        List<ClientSession> sessions = new ArrayList<ClientSession>();
+        // Created first but active last
+        sessions.add(createSession("alice@example.com/a", 1000, 9000, 0));
+        sessions.add(createSession("bob@example.com/b", 2000, 3000, 0));
+        sessions.add(createSession("carol@example.com/c", 3000, 5000, 0));
+        assertEquals(Arrays.asList("alice@example.com/a", "carol@example.com/c", "bob@example.com/b"),
+                sort(sessions, SessionResultFilter.SORT_LAST_ACTIVITY_DATE, SessionResultFilter.DESCENDING));
+    }
+
+    @Test
+    public void testSortByPacketsDoesNotOverflow() {
+        List<ClientSession> sessions = new ArrayList<ClientSession>();
+        sessions.add(createSession("alice@example.com/a", 0, 0, Long.MAX_VALUE));
+        sessions.add(createSession("bob@example.com/b", 0, 0, -1));
+        sessions.add(createSession("carol@example.com/c", 0, 0, 5));
+        assertEquals(Arrays.asList("bob@example.com/b", "carol@example.com/c", "alice@example.com/a"),
+                sort(sessions, SessionResultFilter.SORT_NUM_CLIENT_PACKETS, SessionResultFilter.ASCENDING));
+    }
+
+    @Test
+    public void testEqualValuesAreSortedByAddress() {
+        List<ClientSession> sessions = new ArrayList<ClientSession>();
+        sessions.add(createSession("carol@example.com/c", 1000, 0, 0));
+        sessions.add(createSession("alice@example.com/a", 1000, 0, 0));
+        sessions.add(createSession("bob@example.com/b", 1000, 0, 0));
+        assertEquals(Arrays.asList("alice@example.com/a", "bob@example.com/b", "carol@example.com/c"),
+                sort(sessions, SessionResultFilter.SORT_CREATION_DATE, SessionResultFilter.ASCENDING));
+        assertEquals(Arrays.asList("carol@example.com/c", "bob@example.com/b", "alice@example.com/a"),
+                sort(sessions, SessionResultFilter.SORT_CREATION_DATE, SessionResultFilter.DESCENDING));
+    }
+
+    @Test
+    public void testSortByUser() {
+        List<ClientSession> sessions = new ArrayList<ClientSession>();
+        sessions.add(createSession("bob@example.com/b", 0, 0, 0));
+        sessions.add(createSession("alice@example.com/work", 0, 0, 0));
+        sessions.add(createSession("alice@example.com/home", 0, 0, 0));
+        assertEquals(Arrays.asList("alice@example.com/home", "alice@example.com/work", "bob@example.com/b"),
+                sort(sessions, SessionResultFilter.SORT_USER, SessionResultFilter.ASCENDING));
+    }
+}
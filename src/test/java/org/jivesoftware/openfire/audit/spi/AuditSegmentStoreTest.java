@@ -0,0 +1,150 @@
+package org.jivesoftware.openfire.audit.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AuditSegmentStore}.
+ */
+public class AuditSegmentStoreTest {
+
+    private static final String[] USERS = {"a@example.com", "b@example.com", "c@example.com",
+            "d@example.com", null};
+
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = File.createTempFile("audit", "");
+        logDir.delete();
+        logDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = logDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        logDir.delete();
+    }
+
+    private static class Entry {
+        long timestamp;
+        String from;
+        String to;
+        String xml;
+    }
+
+    private static List<Entry> append(AuditSegmentStore store, int count, long start) throws Exception {
+        Random random = new Random(7);
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry();
+            entry.timestamp = start + i * 10;
+            entry.from = USERS[random.nextInt(USERS.length)];
+            entry.to = USERS[random.nextInt(USERS.length)];
+            StringBuilder body = new StringBuilder();
+            for (int j = random.nextInt(200); j > 0; j--) {
+                body.append('x');
+            }
+            entry.xml = "<packet xmlns=\"http://www.jivesoftware.org\"><message><body>" + i + body +
+                    "</body></message></packet>";
+            store.append(entry.timestamp, entry.from, entry.to, entry.xml.getBytes("UTF-8"));
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static void assertSearch(AuditSegmentStore store, List<Entry> entries, String user, long start,
+            long end) throws Exception
+    {
+        List<String> expected = new ArrayList<String>();
+        for (Entry entry : entries) {
+            if (entry.timestamp >= start && entry.timestamp <= end &&
+                    (user == null || user.equals(entry.from) || user.equals(entry.to)))
+            {
+                expected.add(entry.xml);
+            }
+        }
+        List<String> actual = new ArrayList<String>();
+        for (AuditSegmentStore.Record record : store.search(user, start, end)) {
+            actual.add(record.getXML());
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        AuditSegmentStore store = new AuditSegmentStore(logDir);
+        // Segments of 64 KB, so that the packets are spread over several segments
+        store.setMaxValues(Long.MAX_VALUE, 0, -1);
+        long start = 1400000000000L;
+        List<Entry> entries = append(store, 5000, start);
+        assertTrue(logDir.list().length > 2);
+
+        // Search while a segment is being written
+        assertSearch(store, entries, "a@example.com", start + 1000, start + 20000);
+        assertSearch(store, entries, "d@example.com", start, start + 50000);
+        assertSearch(store, entries, null, start + 12345, start + 12395);
+        assertSearch(store, entries, "unknown@example.com", start, start + 50000);
+        store.close();
+
+        // Indexes are read from the disk
+        store = new AuditSegmentStore(logDir);
+        assertSearch(store, entries, "b@example.com", start + 7000, start + 31000);
+
+        // Indexes are rebuilt if missing
+        for (File file : logDir.listFiles()) {
+            if (file.getName().endsWith(".idx")) {
+                file.delete();
+            }
+        }
+        store = new AuditSegmentStore(logDir);
+        assertSearch(store, entries, "c@example.com", start, start + 49990);
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        AuditSegmentStore store = new AuditSegmentStore(logDir);
+        long start = 1400000000000L;
+        append(store, 100, start);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.export(null, start, start + 490, out);
+        Document document = new SAXReader().read(new ByteArrayInputStream(out.toByteArray()));
+        Element root = document.getRootElement();
+        assertEquals("jive", root.getName());
+        assertEquals(50, root.elements("packet").size());
+        store.close();
+    }
+
+    @Test
+    public void testMaxTotalSize() throws Exception {
+        AuditSegmentStore store = new AuditSegmentStore(logDir);
+        store.setMaxValues(200 * 1024, 0, -1);
+        append(store, 10000, 1400000000000L);
+        store.close();
+        long total = 0;
+        for (File file : logDir.listFiles()) {
+            total += file.length();
+        }
+        // The limit may be exceeded by the segment being written
+        assertTrue(Long.toString(total), total <= 200 * 1024 + 64 * 1024);
+    }
+}
@@ -0,0 +1,82 @@
+package org.jivesoftware.openfire.audit.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.jivesoftware.openfire.audit.AuditManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Unit tests for {@link AuditorImpl}.
+ */
+public class AuditorImplTest {
+
+    private static final AuditManager MANAGER = (AuditManager) Proxy.newProxyInstance(
+            AuditManager.class.getClassLoader(), new Class<?>[] {AuditManager.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+                }
+            });
+
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = File.createTempFile("audit", "");
+        logDir.delete();
+        logDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = logDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        logDir.delete();
+    }
+
+    @Test
+    public void testPacketsAreWritten() throws Exception {
+        AuditorImpl auditor = new AuditorImpl(MANAGER);
+        auditor.setMaxValues(10, 10, -1);
+        auditor.setLogDir(logDir.getAbsolutePath());
+        auditor.setLogTimeout(50);
+        for (int i = 0; i < 1000; i++) {
+            Message message = new Message();
+            message.setTo(new JID("user@example.com"));
+            message.setBody("body <" + i + ">");
+            auditor.audit(message, null);
+        }
+        auditor.stop();
+        assertEquals(0, auditor.getQueuedPacketsNumber());
+
+        File[] files = logDir.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().startsWith("jive.audit-"));
+        Document document = new SAXReader().read(files[0]);
+        List<?> packets = document.getRootElement().elements("packet");
+        assertEquals(1000, packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            Element packet = (Element) packets.get(i);
+            assertEquals("unknown", packet.attributeValue("status"));
+            Element message = packet.element("message");
+            assertEquals("body <" + i + ">", message.elementText("body"));
+        }
+    }
+}
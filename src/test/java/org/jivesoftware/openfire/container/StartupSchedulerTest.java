@@ -0,0 +1,116 @@
+package org.jivesoftware.openfire.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link StartupScheduler}.
+ */
+public class StartupSchedulerTest {
+
+    private static final Collection<String> NONE = Collections.emptyList();
+
+    private static Runnable record(final List<String> done, final String name) {
+        return new Runnable() {
+            public void run() {
+                done.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testStepsRunAfterTheirDependencies() throws Exception {
+        for (int threads : new int[] {1, 4}) {
+            List<String> done = Collections.synchronizedList(new ArrayList<String>());
+            StartupScheduler scheduler = new StartupScheduler("test");
+            scheduler.addStep("c", record(done, "c"), Arrays.asList("a", "b"));
+            scheduler.addStep("b", record(done, "b"), Arrays.asList("a"));
+            scheduler.addStep("a", record(done, "a"), NONE);
+            scheduler.addStep("d", record(done, "d"), Arrays.asList("c", "unknown"));
+            StartupReport report = new StartupReport();
+            assertTrue(scheduler.run(threads, getClass().getClassLoader(), report).isEmpty());
+            assertEquals(Arrays.asList("a", "b", "c", "d"), done);
+            assertEquals(4, report.getEntries().size());
+            assertTrue(report.getPhases().containsKey("test"));
+        }
+    }
+
+    @Test
+    public void testIndependentStepsRunInParallel() throws Exception {
+        // Both steps wait for each other, so they only finish if they run at the same time
+        final CountDownLatch latch = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            public void run() {
+                latch.countDown();
+                try {
+                    if (!latch.await(5, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Steps did not run in parallel");
+                    }
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        StartupScheduler scheduler = new StartupScheduler("test");
+        scheduler.addStep("a", task, NONE);
+        scheduler.addStep("b", task, NONE);
+        assertTrue(scheduler.run(2, getClass().getClassLoader(), new StartupReport()).isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCyclicDependencies() throws Exception {
+        StartupScheduler scheduler = new StartupScheduler("test");
+        scheduler.addStep("a", record(new ArrayList<String>(), "a"), Arrays.asList("b"));
+        scheduler.addStep("b", record(new ArrayList<String>(), "b"), Arrays.asList("a"));
+        scheduler.run(2, getClass().getClassLoader(), new StartupReport());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateStep() {
+        StartupScheduler scheduler = new StartupScheduler("test");
+        scheduler.addStep("a", record(new ArrayList<String>(), "a"), NONE);
+        scheduler.addStep("a", record(new ArrayList<String>(), "a"), NONE);
+    }
+
+    @Test
+    public void testFailedStepsAreReported() throws Exception {
+        List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        StartupScheduler scheduler = new StartupScheduler("test");
+        scheduler.addStep("a", new Runnable() {
+            public void run() {
+                throw new IllegalStateException("Failed on purpose");
+            }
+        }, NONE);
+        scheduler.addStep("b", record(done, "b"), Arrays.asList("a"));
+        StartupReport report = new StartupReport();
+        Set<String> failed = scheduler.run(2, getClass().getClassLoader(), report);
+        assertEquals(Collections.singleton("a"), failed);
+        // Dependents of failed steps still run
+        assertEquals(Arrays.asList("b"), done);
+        assertTrue(report.getEntries().get(0).isFailed());
+    }
+
+    @Test
+    public void testStepsRunWithoutReport() throws Exception {
+        for (int threads : new int[] {1, 4}) {
+            List<String> done = Collections.synchronizedList(new ArrayList<String>());
+            StartupScheduler scheduler = new StartupScheduler("test");
+            scheduler.addStep("a", record(done, "a"), NONE);
+            scheduler.addStep("b", record(done, "b"), Arrays.asList("a"));
+            assertTrue(scheduler.run(threads, getClass().getClassLoader(), null).isEmpty());
+            assertEquals(Arrays.asList("a", "b"), done);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.jivesoftware.openfire.filetransfer.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import org.jivesoftware.openfire.filetransfer.FileTransferManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Unit tests for {@link ProxyConnectionManager} and {@link ProxyReactor}.
+ */
+public class ProxyConnectionManagerTest {
+
+    private static final FileTransferManager TRANSFER_MANAGER = (FileTransferManager) Proxy.newProxyInstance(
+            FileTransferManager.class.getClassLoader(), new Class<?>[] {FileTransferManager.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+                }
+            });
+
+    private ProxyConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        manager = new ProxyConnectionManager(TRANSFER_MANAGER);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private static int getFreePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    /**
+     * Connects to the proxy and performs the SOCKS5 handshake.
+     */
+    private static Socket connect(int port, String digest) throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(10000);
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        out.write(new byte[] {5, 2, 2, 0});
+        byte[] reply = new byte[2];
+        in.readFully(reply);
+        assertArrayEquals(new byte[] {5, 0}, reply);
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(new byte[] {5, 1, 0, 3, (byte) digest.length()});
+        request.write(digest.getBytes("US-ASCII"));
+        request.write(new byte[] {0, 0});
+        out.write(request.toByteArray());
+        reply = new byte[7 + digest.length()];
+        in.readFully(reply);
+        assertEquals(0, reply[1]);
+        return socket;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            data.write(buffer, 0, count);
+        }
+        return data.toByteArray();
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        int port = getFreePort();
+        manager.processConnections(InetAddress.getLoopbackAddress(), port);
+        assertTrue(manager.isRunning());
+
+        JID initiator = new JID("initiator", "example.com", "a", true);
+        JID target = new JID("target", "example.com", "b", true);
+        String digest = ProxyConnectionManager.createDigest("sid", initiator, target);
+        Socket targetSocket = connect(port, digest);
+        Socket initiatorSocket = connect(port, digest);
+        manager.activate(initiator, target, "sid");
+
+        final byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(data);
+        final OutputStream out = initiatorSocket.getOutputStream();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    out.write(data);
+                    out.close();
+                }
+                catch (Exception e) {
+                    // Reported by the reader
+                }
+            }
+        };
+        writer.start();
+        byte[] received = readAll(targetSocket.getInputStream());
+        writer.join();
+        assertArrayEquals(data, received);
+        targetSocket.close();
+    }
+
+    @Test
+    public void testThrottledRelay() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel initiatorClient = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel initiatorChannel = server.accept();
+        SocketChannel targetClient = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel targetChannel = server.accept();
+        server.close();
+        initiatorChannel.configureBlocking(false);
+        targetChannel.configureBlocking(false);
+
+        DefaultProxyTransfer transfer = new DefaultProxyTransfer();
+        transfer.setTransferDigest("digest");
+        transfer.setInitiatorChannel(initiatorChannel);
+        transfer.setTargetChannel(targetChannel);
+        ProxyReactor reactor = new ProxyReactor(manager, "test", 4096);
+        reactor.start();
+        try {
+            // 100 KB at 200 KB per second
+            reactor.startRelay(transfer, 200 * 1024);
+            byte[] data = new byte[100 * 1024];
+            new Random(2).nextBytes(data);
+            long start = System.currentTimeMillis();
+            OutputStream out = initiatorClient.socket().getOutputStream();
+            out.write(data);
+            out.close();
+            byte[] received = readAll(targetClient.socket().getInputStream());
+            long elapsed = System.currentTimeMillis() - start;
+            assertArrayEquals(data, received);
+            assertEquals(data.length, transfer.getAmountTransfered());
+            assertTrue(Long.toString(elapsed), elapsed >= 400);
+        }
+        finally {
+            reactor.shutdown();
+            targetClient.close();
+        }
+    }
+}
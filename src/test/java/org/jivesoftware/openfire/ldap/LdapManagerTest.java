@@ -0,0 +1,44 @@
+package org.jivesoftware.openfire.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the DN caches of {@link LdapManager}.
+ */
+public class LdapManagerTest {
+
+    private LdapManager manager;
+
+    @Before
+    public void setUp() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("ldap.host", "localhost");
+        properties.put("ldap.baseDN", "ou=People,dc=example,dc=com");
+        properties.put("ldap.usernameField", "sAMAccountName");
+        properties.put("ldap.encloseUserDN", "false");
+        properties.put("ldap.encloseDNs", "false");
+        manager = new LdapManager(properties);
+    }
+
+    @Test
+    public void testCachedUsernameIgnoresCaseAndSpacing() {
+        manager.cacheUsername("jsmith", "CN=John Smith,ou=People,dc=example,dc=com");
+        assertEquals("jsmith", manager.getCachedUsername("cn=john smith, OU=People, DC=example,dc=com"));
+        assertNull(manager.getCachedUsername("cn=Jane Smith,ou=People,dc=example,dc=com"));
+        assertNull(manager.getCachedUsername("not a dn"));
+    }
+
+    @Test
+    public void testCachedUsernameIsUsedToFindUserDN() throws Exception {
+        manager.cacheUsername("jdoe", "CN=John Doe,ou=Sales,ou=People,dc=example,dc=com");
+        // Found without searching the directory
+        assertEquals("CN=John Doe,ou=Sales", manager.findUserDN("jdoe"));
+    }
+}
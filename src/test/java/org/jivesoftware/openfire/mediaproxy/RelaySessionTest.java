@@ -0,0 +1,106 @@
+package org.jivesoftware.openfire.mediaproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RelaySession} relayed by {@link MediaRelay}.
+ */
+public class RelaySessionTest {
+
+    private DatagramSocket clientA;
+    private DatagramSocket clientB;
+    private RelaySession session;
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        clientA = new DatagramSocket(0, localhost);
+        clientB = new DatagramSocket(0, localhost);
+        clientA.setSoTimeout(5000);
+        clientB.setSoTimeout(5000);
+        session = new RelaySession("sid", "creator", "127.0.0.1", "127.0.0.1", clientA.getLocalPort(),
+                "127.0.0.1", clientB.getLocalPort());
+    }
+
+    @After
+    public void tearDown() {
+        session.stopAgent();
+        clientA.close();
+        clientB.close();
+        MediaRelay.shutdown();
+    }
+
+    private static void send(DatagramSocket client, String text, int port) throws Exception {
+        byte[] data = text.getBytes("UTF-8");
+        client.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), port));
+    }
+
+    /**
+     * Receives packets until one has the expected text.
+     */
+    private static void expect(DatagramSocket client, String text) throws Exception {
+        byte[] buf = new byte[1500];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            client.receive(packet);
+            if (text.equals(new String(packet.getData(), 0, packet.getLength(), "UTF-8"))) {
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void testPacketsAreRelayed() throws Exception {
+        session.start();
+        // Let the relay learn the addresses of both hosts
+        send(clientB, "hello", session.getLocalPortB());
+        expect(clientB, "hello");
+        send(clientA, "ping", session.getLocalPortA());
+        expect(clientB, "ping");
+        send(clientB, "pong", session.getLocalPortB());
+        expect(clientA, "pong");
+
+        assertEquals(3, session.getPacketsReceived());
+        assertEquals(13, session.getBytesReceived());
+        assertEquals(3, session.getPacketsRelayed());
+        assertEquals(13, session.getBytesRelayed());
+        assertTrue(session.getTimestamp() > 0);
+    }
+
+    @Test
+    public void testIdleSessionIsStopped() throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        session.addAgentListener(new SessionListener() {
+            public void sessionClosed(MediaProxySession closed) {
+                stopped.countDown();
+            }
+        });
+        session.addKeepAlive(200);
+        session.start();
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertTrue(session.isStopped());
+        assertTrue(session.socketA.isClosed());
+        clientA.setSoTimeout(500);
+        try {
+            send(clientA, "ping", session.getLocalPortA());
+            expect(clientA, "ping");
+        }
+        catch (SocketTimeoutException e) {
+            // Expected
+            return;
+        }
+        throw new AssertionError("packet relayed by a stopped session");
+    }
+}
@@ -0,0 +1,148 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.junit.After;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Unit tests for {@link ConversationLogWriter}.
+ */
+public class ConversationLogWriterTest {
+
+    private static final MUCRoom ROOM = (MUCRoom) Proxy.newProxyInstance(MUCRoom.class.getClassLoader(),
+            new Class<?>[] {MUCRoom.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getID".equals(method.getName())) {
+                        return 1L;
+                    }
+                    return null;
+                }
+            });
+
+    private ConversationLogWriter writer;
+
+    @After
+    public void tearDown() {
+        if (writer != null) {
+            writer.stop();
+        }
+    }
+
+    private static ConversationLogEntry createEntry(int index) {
+        Message message = new Message();
+        message.setFrom(new JID("room@conference.example.com/nick"));
+        message.setBody(Integer.toString(index));
+        return new ConversationLogEntry(new Date(), ROOM, message, new JID("user@example.com"));
+    }
+
+    /**
+     * Records the saved entries. Batches with a body of "fail" are rejected as a whole.
+     */
+    private static class RecordingStore implements ConversationLogWriter.LogStore {
+
+        private final List<ConversationLogEntry> saved = Collections.synchronizedList(new ArrayList<ConversationLogEntry>());
+        private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public boolean saveBatch(List<ConversationLogEntry> entries) {
+            for (ConversationLogEntry entry : entries) {
+                if ("fail".equals(entry.getBody())) {
+                    return false;
+                }
+            }
+            batches.add(entries.size());
+            saved.addAll(entries);
+            return true;
+        }
+
+        public boolean save(ConversationLogEntry entry) {
+            if ("fail".equals(entry.getBody())) {
+                return false;
+            }
+            batches.add(1);
+            saved.add(entry);
+            return true;
+        }
+    }
+
+    @Test
+    public void testAllEntriesAreWritten() throws Exception {
+        RecordingStore store = new RecordingStore();
+        writer = new ConversationLogWriter("test", store, 10000, ConversationLogWriter.OverflowPolicy.block,
+                3, 10, 100, 50);
+        writer.start();
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(writer.add(createEntry(i)));
+        }
+        writer.stop();
+        assertEquals(5000, store.saved.size());
+        Set<String> bodies = new HashSet<String>();
+        for (ConversationLogEntry entry : store.saved) {
+            bodies.add(entry.getBody());
+        }
+        assertEquals(5000, bodies.size());
+        // Entries were written in batches
+        assertTrue(store.batches.size() < 5000);
+    }
+
+    @Test
+    public void testDropNewest() {
+        RecordingStore store = new RecordingStore();
+        writer = new ConversationLogWriter("test", store, 2, ConversationLogWriter.OverflowPolicy.drop_newest,
+                1, 10, 100, 50);
+        assertTrue(writer.add(createEntry(1)));
+        assertTrue(writer.add(createEntry(2)));
+        assertFalse(writer.add(createEntry(3)));
+        assertEquals(1, writer.getDroppedCount());
+        writer.start();
+        writer.stop();
+        assertEquals(2, store.saved.size());
+        assertEquals("1", store.saved.get(0).getBody());
+    }
+
+    @Test
+    public void testDropOldest() {
+        RecordingStore store = new RecordingStore();
+        writer = new ConversationLogWriter("test", store, 2, ConversationLogWriter.OverflowPolicy.drop_oldest,
+                1, 10, 100, 50);
+        writer.add(createEntry(1));
+        writer.add(createEntry(2));
+        assertTrue(writer.add(createEntry(3)));
+        assertEquals(1, writer.getDroppedCount());
+        writer.start();
+        writer.stop();
+        assertEquals(2, store.saved.size());
+        assertEquals("2", store.saved.get(0).getBody());
+    }
+
+    @Test
+    public void testFailedBatchIsWrittenSeparately() {
+        RecordingStore store = new RecordingStore();
+        writer = new ConversationLogWriter("test", store, 100, ConversationLogWriter.OverflowPolicy.block,
+                1, 10, 100, 50);
+        writer.add(createEntry(1));
+        Message message = new Message();
+        message.setFrom(new JID("room@conference.example.com/nick"));
+        message.setBody("fail");
+        writer.add(new ConversationLogEntry(new Date(), ROOM, message, new JID("user@example.com")));
+        writer.add(createEntry(2));
+        writer.start();
+        writer.stop();
+        assertEquals(2, store.saved.size());
+    }
+}
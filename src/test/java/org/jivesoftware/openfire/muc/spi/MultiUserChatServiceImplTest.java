@@ -0,0 +1,220 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.XMPPServerInfo;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MultiUserChatManager;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.forms.DataForm;
+import org.xmpp.forms.FormField;
+import org.xmpp.packet.IQ;
+
+/**
+ * Tests the lazy loading of the rooms of {@link MultiUserChatServiceImpl}: rooms are loaded
+ * when used, unloaded into the room directory and loaded again.
+ */
+public class MultiUserChatServiceImplTest {
+
+    /**
+     * Server that only provides what the service needs to look up rooms.
+     */
+    private static class TestServer extends XMPPServer {
+
+        private final MultiUserChatManager manager = new MultiUserChatManager() {
+            @Override
+            public Long getMultiUserChatServiceID(String subdomain) {
+                // Service properties are not stored
+                return null;
+            }
+        };
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public XMPPServerInfo getServerInfo() {
+            return (XMPPServerInfo) Proxy.newProxyInstance(XMPPServerInfo.class.getClassLoader(),
+                    new Class<?>[] {XMPPServerInfo.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if ("getXMPPDomain".equals(method.getName())) {
+                                return "example.com";
+                            }
+                            if ("equals".equals(method.getName())) {
+                                return proxy == args[0];
+                            }
+                            if ("hashCode".equals(method.getName())) {
+                                return System.identityHashCode(proxy);
+                            }
+                            return null;
+                        }
+                    });
+        }
+
+        @Override
+        public MultiUserChatManager getMultiUserChatManager() {
+            return manager;
+        }
+    }
+
+    /**
+     * Service that loads persistent rooms from memory instead of the database.
+     */
+    private static class TestService extends MultiUserChatServiceImpl {
+
+        private final Map<String, String> storedRooms = new HashMap<String, String>();
+        private int loads = 0;
+
+        TestService() {
+            super("conference", "Test service", false);
+        }
+
+        @Override
+        void loadRoom(LocalMUCRoom room) {
+            String naturalName = storedRooms.get(room.getName());
+            if (naturalName == null) {
+                throw new IllegalArgumentException("Room " + room.getName() + " was not found.");
+            }
+            loads++;
+            room.setNaturalLanguageName(naturalName);
+            room.setPersistent(true);
+            room.setEmptyDate(new Date(0));
+            room.setSavedToDB(true);
+        }
+    }
+
+    private TestService service;
+
+    @BeforeClass
+    public static void setUpServer() {
+        new TestServer();
+    }
+
+    @AfterClass
+    public static void tearDownServer() throws Exception {
+        // Let other tests run without a server
+        Field instance = XMPPServer.class.getDeclaredField("instance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+    }
+
+    @Before
+    public void setUp() {
+        service = new TestService();
+        service.storedRooms.put("lobby", "Lobby");
+        service.storedRooms.put("kitchen", "Kitchen");
+    }
+
+    @Test
+    public void testRoomIsLoadedUnloadedAndLoadedAgain() {
+        MUCRoom lobby = service.getChatRoom("lobby");
+        assertNotNull(lobby);
+        assertEquals("Lobby", lobby.getNaturalLanguageName());
+        assertSame(lobby, service.getLocalChatRoom("lobby"));
+        assertEquals(1, service.loads);
+
+        service.unloadRooms(0, 0);
+        assertNull(service.getLocalChatRoom("lobby"));
+        // The unloaded room is still a room of the service
+        assertEquals(1, service.getNumberChatRooms());
+        assertTrue(service.getLoadedChatRooms().isEmpty());
+
+        MUCRoom reloaded = service.getChatRoom("lobby");
+        assertNotNull(reloaded);
+        assertNotSame(lobby, reloaded);
+        assertEquals("Lobby", reloaded.getNaturalLanguageName());
+        assertEquals(2, service.loads);
+        assertEquals(1, service.getNumberChatRooms());
+    }
+
+    @Test
+    public void testAllRoomsIncludeUnloadedRooms() {
+        service.getChatRoom("lobby");
+        service.getChatRoom("kitchen");
+        service.unloadRooms(1, 0);
+        assertEquals(1, service.getLoadedChatRooms().size());
+        assertEquals(2, service.getNumberChatRooms());
+
+        List<MUCRoom> rooms = service.getChatRooms();
+        assertEquals(2, rooms.size());
+        assertEquals(2, service.getLoadedChatRooms().size());
+        assertEquals(3, service.loads);
+    }
+
+    @Test
+    public void testRoomsThatWereDeletedAreForgotten() {
+        service.getChatRoom("lobby");
+        service.unloadRooms(0, 0);
+        service.storedRooms.remove("lobby");
+        assertTrue(service.getChatRooms().isEmpty());
+        assertEquals(0, service.getNumberChatRooms());
+    }
+
+    @Test
+    public void testLookedUpRoomIsMarkedAsUnloaded() {
+        LocalMUCRoom lobby = (LocalMUCRoom) service.getChatRoom("lobby");
+        assertFalse(lobby.isUnloaded());
+        service.unloadRooms(0, 0);
+        // Users that looked up the room before it was unloaded join the room loaded next
+        assertTrue(lobby.isUnloaded());
+        LocalMUCRoom reloaded = (LocalMUCRoom) service.getChatRoom("lobby");
+        assertFalse(reloaded.isUnloaded());
+        assertSame(reloaded, service.getLocalChatRoom("lobby"));
+    }
+
+    @Test
+    public void testRoomNamesDoNotLoadRooms() {
+        service.getChatRoom("lobby");
+        service.getChatRoom("kitchen");
+        service.unloadRooms(0, 0);
+        List<String> names = service.getChatRoomNames();
+        Collections.sort(names);
+        assertEquals(Arrays.asList("kitchen", "lobby"), names);
+        assertTrue(service.getLoadedChatRooms().isEmpty());
+        assertEquals(2, service.loads);
+    }
+
+    @Test
+    public void testSearchDoesNotLoadRooms() {
+        service.getChatRoom("lobby");
+        service.getChatRoom("kitchen");
+        service.unloadRooms(0, 0);
+
+        IQ search = new IQ(IQ.Type.set);
+        Element query = search.setChildElement("query", "jabber:iq:search");
+        DataForm form = new DataForm(DataForm.Type.submit);
+        FormField name = form.addField();
+        name.setVariable("name");
+        name.addValue("lob");
+        query.add(form.getElement());
+        String reply = new IQMUCSearchHandler(service).handleIQ(search).toXML();
+
+        assertTrue(reply, reply.contains("lobby@conference.example.com"));
+        assertFalse(reply, reply.contains("kitchen@conference.example.com"));
+        assertTrue(service.getLoadedChatRooms().isEmpty());
+        assertEquals(2, service.loads);
+    }
+}
@@ -0,0 +1,291 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.muc.MUCRole;
+import org.junit.After;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Unit tests for {@link OccupantFanOut}.
+ */
+public class OccupantFanOutTest {
+
+    private OccupantFanOut fanOut;
+
+    @After
+    public void tearDown() {
+        if (fanOut != null) {
+            fanOut.stop();
+        }
+    }
+
+    private static MUCRole createOccupant(final String jid) {
+        final JID address = new JID(jid);
+        return (MUCRole) Proxy.newProxyInstance(MUCRole.class.getClassLoader(), new Class<?>[] {MUCRole.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getUserAddress".equals(method.getName())) {
+                            return address;
+                        }
+                        if ("toString".equals(method.getName())) {
+                            return jid;
+                        }
+                        if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static List<MUCRole> createOccupants(int count) {
+        List<MUCRole> occupants = new ArrayList<MUCRole>();
+        for (int i = 0; i < count; i++) {
+            occupants.add(createOccupant("user" + i + "@example.com/resource"));
+        }
+        return occupants;
+    }
+
+    /**
+     * Records the stanzas, identified by a number, received by each occupant.
+     */
+    private static class RecordingDelivery implements OccupantFanOut.Delivery {
+
+        private final int stanza;
+        private final Map<MUCRole, List<Integer>> received;
+        private final CountDownLatch latch;
+
+        RecordingDelivery(int stanza, Map<MUCRole, List<Integer>> received, CountDownLatch latch) {
+            this.stanza = stanza;
+            this.received = received;
+            this.latch = latch;
+        }
+
+        public OccupantFanOut.Delivery copy() {
+            return new RecordingDelivery(stanza, received, latch);
+        }
+
+        public void deliver(List<MUCRole> occupants) {
+            for (MUCRole occupant : occupants) {
+                synchronized (received) {
+                    received.get(occupant).add(stanza);
+                }
+                latch.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionsAreStable() {
+        fanOut = new OccupantFanOut(4, 10, 0);
+        List<MUCRole> occupants = createOccupants(100);
+        List<List<MUCRole>> partitions = fanOut.partition(occupants);
+        assertEquals(4, partitions.size());
+        int total = 0;
+        for (int i = 0; i < partitions.size(); i++) {
+            List<MUCRole> partition = partitions.get(i);
+            if (partition == null) {
+                continue;
+            }
+            total += partition.size();
+            for (MUCRole occupant : partition) {
+                // The same occupant always goes to the same lane
+                List<List<MUCRole>> single = fanOut.partition(Collections.singletonList(occupant));
+                assertEquals(Collections.singletonList(occupant), single.get(i));
+            }
+        }
+        assertEquals(occupants.size(), total);
+    }
+
+    @Test
+    public void testOrderIsKept() throws Exception {
+        // A threshold between the sizes used below makes the room alternate
+        // between lanes and the broadcasting thread
+        fanOut = new OccupantFanOut(4, 1000, 20);
+        fanOut.start();
+        OccupantFanOut.RoomState state = new OccupantFanOut.RoomState();
+        List<MUCRole> occupants = createOccupants(50);
+        Map<MUCRole, List<Integer>> received = new HashMap<MUCRole, List<Integer>>();
+        for (MUCRole occupant : occupants) {
+            received.put(occupant, new ArrayList<Integer>());
+        }
+        int stanzas = 200;
+        int expectedDeliveries = 0;
+        List<MUCRole> few = occupants.subList(0, 10);
+        for (int i = 0; i < stanzas; i++) {
+            expectedDeliveries += i % 3 == 0 ? few.size() : occupants.size();
+        }
+        CountDownLatch latch = new CountDownLatch(expectedDeliveries);
+        for (int i = 0; i < stanzas; i++) {
+            fanOut.broadcast(state, i % 3 == 0 ? few : occupants, new RecordingDelivery(i, received, latch));
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (MUCRole occupant : occupants) {
+            List<Integer> stanzasOfOccupant = received.get(occupant);
+            for (int i = 1; i < stanzasOfOccupant.size(); i++) {
+                assertTrue(occupant + " received stanzas out of order",
+                        stanzasOfOccupant.get(i - 1) < stanzasOfOccupant.get(i));
+            }
+        }
+        assertEquals(stanzas, received.get(occupants.get(0)).size());
+    }
+
+    @Test
+    public void testFullLaneDoesNotBlock() throws Exception {
+        fanOut = new OccupantFanOut(1, 1, 0);
+        fanOut.start();
+        List<MUCRole> occupants = createOccupants(3);
+        List<MUCRole> others = createOccupants(2);
+        List<MUCRole> third = Collections.singletonList(createOccupant("third@example.com/resource"));
+        Map<MUCRole, List<Integer>> received = new HashMap<MUCRole, List<Integer>>();
+        for (MUCRole occupant : occupants) {
+            received.put(occupant, new ArrayList<Integer>());
+        }
+        for (MUCRole occupant : others) {
+            received.put(occupant, new ArrayList<Integer>());
+        }
+        received.put(third.get(0), new ArrayList<Integer>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(3 * occupants.size() + others.size() + third.size());
+        OccupantFanOut.RoomState room = new OccupantFanOut.RoomState();
+        OccupantFanOut.RoomState otherRoom = new OccupantFanOut.RoomState();
+        OccupantFanOut.RoomState thirdRoom = new OccupantFanOut.RoomState();
+
+        // The lane is kept busy with the first stanza and the other room fills its queue
+        fanOut.broadcast(room, occupants, new RecordingDelivery(0, received, latch) {
+            @Override
+            public OccupantFanOut.Delivery copy() {
+                return this;
+            }
+
+            @Override
+            public void deliver(List<MUCRole> recipients) {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.deliver(recipients);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        fanOut.broadcast(otherRoom, others, new RecordingDelivery(1, received, latch));
+        // Stanzas of a room with pending work wait behind it instead of being dropped
+        fanOut.broadcast(room, occupants, new RecordingDelivery(2, received, latch));
+        fanOut.broadcast(room, occupants, new RecordingDelivery(3, received, latch));
+        // Rooms without work in the full lane are served by the broadcasting thread
+        fanOut.broadcast(thirdRoom, third, new RecordingDelivery(4, received, latch));
+        assertEquals(Collections.singletonList(4), received.get(third.get(0)));
+        for (MUCRole occupant : others) {
+            assertTrue(received.get(occupant).isEmpty());
+        }
+
+        release.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (MUCRole occupant : occupants) {
+            assertEquals(Arrays.asList(0, 2, 3), received.get(occupant));
+        }
+        for (MUCRole occupant : others) {
+            assertEquals(Collections.singletonList(1), received.get(occupant));
+        }
+    }
+
+    @Test
+    public void testBusyRoomLetsOtherRoomsBeServed() throws Exception {
+        fanOut = new OccupantFanOut(1, 10, 0);
+        fanOut.start();
+        List<MUCRole> occupants = createOccupants(1);
+        List<MUCRole> others = createOccupants(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(OccupantFanOut.BACKLOG_BATCH * 2 + 1);
+        OccupantFanOut.RoomState room = new OccupantFanOut.RoomState();
+        OccupantFanOut.RoomState otherRoom = new OccupantFanOut.RoomState();
+        for (int i = 0; i < OccupantFanOut.BACKLOG_BATCH * 2; i++) {
+            final boolean first = i == 0;
+            fanOut.broadcast(room, occupants, new OrderDelivery("room", order, done) {
+                @Override
+                public void deliver(List<MUCRole> recipients) {
+                    if (first) {
+                        started.countDown();
+                        try {
+                            release.await();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    super.deliver(recipients);
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        fanOut.broadcast(otherRoom, others, new OrderDelivery("other", order, done));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // The other room is served after the first batch of the busy room
+        assertEquals(OccupantFanOut.BACKLOG_BATCH, order.indexOf("other"));
+    }
+
+    /**
+     * Records the room of each delivered stanza.
+     */
+    private static class OrderDelivery implements OccupantFanOut.Delivery {
+
+        private final String room;
+        private final List<String> order;
+        private final CountDownLatch done;
+
+        OrderDelivery(String room, List<String> order, CountDownLatch done) {
+            this.room = room;
+            this.order = order;
+            this.done = done;
+        }
+
+        public OccupantFanOut.Delivery copy() {
+            return this;
+        }
+
+        public void deliver(List<MUCRole> occupants) {
+            order.add(room);
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testEmptyPartitions() {
+        fanOut = new OccupantFanOut(8, 10, 0);
+        List<List<MUCRole>> partitions = fanOut.partition(createOccupants(1));
+        int empty = 0;
+        for (List<MUCRole> partition : partitions) {
+            if (partition == null) {
+                empty++;
+            }
+        }
+        assertEquals(7, empty);
+        assertNull(fanOut.partition(Collections.<MUCRole>emptyList()).get(0));
+    }
+}
@@ -0,0 +1,108 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Unit tests for {@link RoomDirectory}.
+ */
+public class RoomDirectoryTest {
+
+    private static MUCRoom createRoom(final String name, final boolean persistent, final int occupants,
+            final Date emptyDate)
+    {
+        return (MUCRoom) Proxy.newProxyInstance(MUCRoom.class.getClassLoader(),
+                new Class<?>[] {MUCRoom.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String methodName = method.getName();
+                        if ("equals".equals(methodName)) {
+                            return proxy == args[0];
+                        }
+                        if ("hashCode".equals(methodName)) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if ("getName".equals(methodName) || "getNaturalLanguageName".equals(methodName)) {
+                            return name;
+                        }
+                        if ("isPersistent".equals(methodName)) {
+                            return persistent;
+                        }
+                        if ("getOccupantsCount".equals(methodName)) {
+                            return occupants;
+                        }
+                        if ("getEmptyDate".equals(methodName)) {
+                            return emptyDate;
+                        }
+                        if ("getMaxUsers".equals(methodName)) {
+                            return 30;
+                        }
+                        if ("isPasswordProtected".equals(methodName)) {
+                            return false;
+                        }
+                        if ("isPublicRoom".equals(methodName) || "isMembersOnly".equals(methodName)
+                                || "isLocked".equals(methodName)) {
+                            return false;
+                        }
+                        if ("getOwners".equals(methodName)) {
+                            return Collections.singletonList(new JID("owner@example.com"));
+                        }
+                        if ("getAdmins".equals(methodName) || "getMembers".equals(methodName)) {
+                            return Collections.emptyList();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testNothingIsUnloadedUnderTheLimit() {
+        List<MUCRoom> rooms = Arrays.asList(createRoom("a", true, 0, new Date(0)));
+        assertTrue(RoomDirectory.selectRoomsToUnload(rooms, 1, 0, System.currentTimeMillis()).isEmpty());
+    }
+
+    @Test
+    public void testOldestEmptyRoomsAreUnloaded() {
+        long now = System.currentTimeMillis();
+        MUCRoom oldest = createRoom("oldest", true, 0, new Date(now - 3000));
+        MUCRoom old = createRoom("old", true, 0, new Date(now - 2000));
+        MUCRoom recent = createRoom("recent", true, 0, new Date(now - 10));
+        MUCRoom occupied = createRoom("occupied", true, 1, null);
+        MUCRoom temporary = createRoom("temporary", false, 0, new Date(now - 5000));
+        List<MUCRoom> rooms = Arrays.asList(recent, old, occupied, temporary, oldest);
+
+        // Two rooms over the limit
+        assertEquals(Arrays.asList(oldest, old), RoomDirectory.selectRoomsToUnload(rooms, 3, 1000, now));
+        // Rooms that were empty for less than the idle time stay loaded
+        assertEquals(Arrays.asList(oldest, old), RoomDirectory.selectRoomsToUnload(rooms, 0, 1000, now));
+    }
+
+    @Test
+    public void testEntryOfUnloadedRoom() {
+        RoomDirectory directory = new RoomDirectory();
+        directory.put(RoomDirectory.Entry.fromRoom(createRoom("Room", true, 0, new Date(1000))));
+        RoomDirectory.Entry entry = directory.get("room");
+        assertFalse(entry.isPublicRoom());
+        assertTrue(entry.isAffiliate("owner@example.com"));
+        assertFalse(entry.isAffiliate("other@example.com"));
+        assertFalse(entry.hasGroupAffiliates());
+
+        directory.removeEmptyBefore(new Date(500));
+        assertEquals(1, directory.size());
+        directory.removeEmptyBefore(new Date(2000));
+        assertNull(directory.get("room"));
+    }
+}
@@ -0,0 +1,25 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+
+import org.jivesoftware.openfire.Connection;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ServerStanzaHandler}.
+ */
+public class ServerStanzaHandlerTest {
+
+    @Test
+    public void testCertificateIsRequiredWhenFullyVerified() {
+        assertEquals(Connection.ClientAuth.needed, ServerStanzaHandler.getClientAuthPolicy(true, true, false));
+    }
+
+    @Test
+    public void testCertificateIsRequestedWhenNotFullyVerified() {
+        // The certificate is still requested so that SASL EXTERNAL can be offered
+        assertEquals(Connection.ClientAuth.wanted, ServerStanzaHandler.getClientAuthPolicy(false, true, false));
+        assertEquals(Connection.ClientAuth.wanted, ServerStanzaHandler.getClientAuthPolicy(true, false, false));
+        assertEquals(Connection.ClientAuth.wanted, ServerStanzaHandler.getClientAuthPolicy(true, true, true));
+    }
+}
@@ -0,0 +1,139 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Unit tests for {@link PacketSerializer}.
+ */
+public class PacketSerializerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String decode(IoBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static Message createMessage() {
+        Message message = new Message();
+        message.setFrom("room@conference.example.com/nïck");
+        message.setType(Message.Type.groupchat);
+        message.setBody("héllo 😀 <&> \"quoted\"");
+        return message;
+    }
+
+    @Test
+    public void testSerializePacket() throws Exception {
+        Message message = createMessage();
+        message.setTo("user@example.com/résource");
+        assertEquals(message.toXML(), decode(PacketSerializer.serialize(message, false)));
+        assertEquals(message.toXML() + "\0", decode(PacketSerializer.serialize(message, true)));
+    }
+
+    @Test
+    public void testSerializeText() throws Exception {
+        String text = "<stream:error>é😀</stream:error>";
+        assertEquals(text, decode(PacketSerializer.serialize(text, false)));
+        assertEquals(text + "\0", decode(PacketSerializer.serialize(text, true)));
+    }
+
+    @Test
+    public void testBroadcast() throws Exception {
+        Message message = createMessage();
+        Message expected = createMessage();
+        String[] recipients = {"a@example.com/1", "bé@example.com/<2>", "c@example.com/3&4"};
+        PacketSerializer.startBroadcast(message);
+        try {
+            for (String recipient : recipients) {
+                message.setTo(recipient);
+                expected.setTo(recipient);
+                assertEquals(expected.toXML(), decode(PacketSerializer.serialize(message, false)));
+            }
+            // Structural changes are detected and the stanza serialized again
+            message.setSubject("topic");
+            expected.setSubject("topic");
+            assertEquals(expected.toXML(), decode(PacketSerializer.serialize(message, true)).replace("\0", ""));
+        }
+        finally {
+            PacketSerializer.endBroadcast();
+        }
+    }
+
+    @Test
+    public void testBroadcastDetectsTextChanges() throws Exception {
+        Message message = createMessage();
+        Message expected = createMessage();
+        PacketSerializer.startBroadcast(message);
+        try {
+            for (int i = 0; i < 3; i++) {
+                // An interceptor rewrites the body for every recipient
+                String recipient = "user" + i + "@example.com/r";
+                message.setTo(recipient);
+                message.setBody("body for " + recipient);
+                expected.setTo(recipient);
+                expected.setBody("body for " + recipient);
+                assertEquals(expected.toXML(), decode(PacketSerializer.serialize(message, false)));
+            }
+            // Attribute values are checked as well
+            message.setFrom("room@conference.example.com/other");
+            expected.setFrom("room@conference.example.com/other");
+            assertEquals(expected.toXML(), decode(PacketSerializer.serialize(message, false)));
+        }
+        finally {
+            PacketSerializer.endBroadcast();
+        }
+    }
+
+    @Test
+    public void testLargeBufferIsNotRetained() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= PacketSerializer.MAX_RETAINED_CHARS) {
+            body.append("0123456789");
+        }
+        Message message = createMessage();
+        message.setBody(body.toString());
+        assertEquals(message.toXML(), decode(PacketSerializer.serialize(message, false)));
+        assertTrue(PacketSerializer.getBufferCapacity() <= PacketSerializer.MAX_RETAINED_CHARS);
+
+        // Same for broadcasts
+        message.setTo("user@example.com/r");
+        PacketSerializer.startBroadcast(message);
+        try {
+            assertEquals(message.toXML(), decode(PacketSerializer.serialize(message, false)));
+            assertTrue(PacketSerializer.getBufferCapacity() <= PacketSerializer.MAX_RETAINED_CHARS);
+        }
+        finally {
+            PacketSerializer.endBroadcast();
+        }
+    }
+
+    @Test
+    public void testPreparedBroadcast() throws Exception {
+        Message message = createMessage();
+        PacketSerializer.PreparedBroadcast prepared = PacketSerializer.prepareBroadcast(message);
+        // Preparing the broadcast does not modify the packet
+        assertEquals(createMessage().toXML(), message.toXML());
+
+        Message copy = message.createCopy();
+        Message expected = createMessage();
+        PacketSerializer.startBroadcast(copy, prepared);
+        try {
+            for (String recipient : new String[] {"a@example.com/1", "bé@example.com/<2>"}) {
+                copy.setTo(recipient);
+                expected.setTo(recipient);
+                assertEquals(expected.toXML(), decode(PacketSerializer.serialize(copy, false)));
+            }
+        }
+        finally {
+            PacketSerializer.endBroadcast();
+        }
+    }
+}
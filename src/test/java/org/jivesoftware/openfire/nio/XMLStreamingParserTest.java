@@ -0,0 +1,118 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.net.MXParser;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Verifies that {@link XMLStreamingParser} produces the same elements as parsing the
+ * stanzas found by {@link XMLLightweightParser} with {@link XMPPPacketReader}.
+ */
+public class XMLStreamingParserTest {
+
+    private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream to=\"example.com\" " +
+            "xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">";
+
+    private static final String[] STANZAS = {
+        "<message to=\"juliet@example.com\" type=\"chat\"><body>Wherefore art thou, &amp; &lt;Romeo&gt;? &#x263A;</body></message>",
+        "<iq type=\"get\" id=\"1\"><query xmlns=\"jabber:iq:roster\"/></iq>",
+        "<presence xml:lang=\"en\"><status>café 𝄞</status><x xmlns:foo=\"urn:foo\"><foo:bar foo:attr='x'/></x></presence>",
+        "<message><body><![CDATA[<not> ]] markup]]></body></message>",
+        "<message><body><![CDATA[x]]]></body></message>",
+        "<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"PLAIN\">AGp1bGlldAByMG0zMG0w</auth>"
+    };
+
+    @Test
+    public void testSameElementsAsLightweightParser() throws Exception {
+        StringBuilder stream = new StringBuilder(STREAM_HEADER);
+        for (String stanza : STANZAS) {
+            stream.append(stanza).append("\n ");
+        }
+        byte[] data = stream.toString().getBytes("UTF-8");
+
+        XMPPPacketReader reader = new XMPPPacketReader();
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
+        factory.setNamespaceAware(true);
+        reader.setXPPFactory(factory);
+
+        // Feed the data one byte at a time to split multi-byte chars and markup
+        XMLStreamingParser parser = new XMLStreamingParser();
+        List<Object> msgs = new ArrayList<Object>();
+        for (byte b : data) {
+            parser.read(IoBuffer.wrap(new byte[] {b}));
+            if (parser.areThereMsgs()) {
+                for (Object msg : parser.getMsgs()) {
+                    msgs.add(msg);
+                }
+            }
+        }
+
+        assertEquals(STANZAS.length + 1, msgs.size());
+        assertTrue(((String) msgs.get(0)).startsWith("<stream:stream to=\"example.com\""));
+        for (int i = 0; i < STANZAS.length; i++) {
+            Element expected = reader.read(new StringReader(STANZAS[i])).getRootElement();
+            assertEquals(expected.asXML(), ((Element) msgs.get(i + 1)).asXML());
+        }
+    }
+
+    @Test
+    public void testStreamPrefixesStayInScope() throws Exception {
+        XMLStreamingParser parser = new XMLStreamingParser();
+        parser.read(IoBuffer.wrap((STREAM_HEADER + "<stream:features/></stream:stream>").getBytes("UTF-8")));
+        Object[] msgs = parser.getMsgs();
+        assertEquals(3, msgs.length);
+        assertEquals("http://etherx.jabber.org/streams", ((Element) msgs[1]).getNamespaceURI());
+        assertEquals("</stream:stream>", msgs[2]);
+    }
+
+    @Test
+    public void testIllegalCharacterReference() throws Exception {
+        XMLStreamingParser parser = new XMLStreamingParser();
+        try {
+            parser.read(IoBuffer.wrap((STREAM_HEADER + "<message><body>&#x0;</body></message>").getBytes("UTF-8")));
+            fail("expected XMLNotWellFormedException");
+        }
+        catch (XMLNotWellFormedException e) {
+        }
+        // Data is discarded once an error was found
+        parser.read(IoBuffer.wrap("<presence/>".getBytes("UTF-8")));
+        parser.getMsgs();
+        assertFalse(parser.areThereMsgs());
+    }
+
+    @Test
+    public void testMismatchedEndTag() throws Exception {
+        XMLStreamingParser parser = new XMLStreamingParser();
+        try {
+            parser.read(IoBuffer.wrap((STREAM_HEADER + "<message><body></message>").getBytes("UTF-8")));
+            fail("expected XMLNotWellFormedException");
+        }
+        catch (XMLNotWellFormedException e) {
+        }
+    }
+
+    @Test
+    public void testCDATAEndAfterBrackets() throws Exception {
+        XMLStreamingParser parser = new XMLStreamingParser();
+        parser.read(IoBuffer.wrap((STREAM_HEADER + "<body><![CDATA[x]]]></body><body><![CDATA[]]]]]></body>" +
+                "<body><![CDATA[a]]b]]]c]]]]x]]></body><presence/>").getBytes("UTF-8")));
+        Object[] msgs = parser.getMsgs();
+        assertEquals(5, msgs.length);
+        assertEquals("x]", ((Element) msgs[1]).getText());
+        assertEquals("]]]", ((Element) msgs[2]).getText());
+        assertEquals("a]]b]]]c]]]]x", ((Element) msgs[3]).getText());
+        assertEquals("presence", ((Element) msgs[4]).getName());
+    }
+}
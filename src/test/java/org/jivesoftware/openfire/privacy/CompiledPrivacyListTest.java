@@ -0,0 +1,209 @@
+package org.jivesoftware.openfire.privacy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Unit tests for {@link CompiledPrivacyList}. The compiled list must find the same first
+ * matching item as {@link PrivacyItem#matchesCondition(Packet, Roster, JID)}.
+ */
+public class CompiledPrivacyListTest {
+
+    private static final JID USER = new JID("owner@example.com");
+    private static final String[] CONTACTS = {"alice@example.com", "bob@example.com",
+            "carol@other.org", "dave@other.org", "eve@example.com"};
+    private static final String[] STANZAS = {"message", "iq", "presence-in", "presence-out"};
+
+    private Roster roster;
+
+    @Before
+    public void setUp() throws Exception {
+        roster = new Roster();
+        Map<String, RosterItem> items = new ConcurrentHashMap<String, RosterItem>();
+        items.put("alice@example.com", new RosterItem(new JID("alice@example.com"), RosterItem.SUB_BOTH,
+                RosterItem.ASK_NONE, RosterItem.RECV_NONE, "Alice", Arrays.asList("Friends")));
+        items.put("bob@example.com", new RosterItem(new JID("bob@example.com"), RosterItem.SUB_TO,
+                RosterItem.ASK_NONE, RosterItem.RECV_NONE, "Bob", Arrays.asList("Work", "Friends")));
+        items.put("carol@other.org", new RosterItem(new JID("carol@other.org"), RosterItem.SUB_NONE,
+                RosterItem.ASK_NONE, RosterItem.RECV_NONE, "Carol", null));
+        setField("rosterItems", items);
+        // Dave is only subscribed due to a shared group
+        Map<String, Set<String>> implicitFrom = new ConcurrentHashMap<String, Set<String>>();
+        implicitFrom.put("dave@other.org", new HashSet<String>(Arrays.asList("Shared")));
+        setField("implicitFrom", implicitFrom);
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = Roster.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(roster, value);
+    }
+
+    private static PrivacyItem createItem(int order, boolean allow, String type, String value, String... stanzas) {
+        Element element = DocumentHelper.createElement("item");
+        element.addAttribute("action", allow ? "allow" : "deny");
+        element.addAttribute("order", Integer.toString(order));
+        if (type != null) {
+            element.addAttribute("type", type);
+            element.addAttribute("value", value);
+        }
+        for (String stanza : stanzas) {
+            element.addElement(stanza);
+        }
+        return new PrivacyItem(element);
+    }
+
+    private int getExpectedItem(List<PrivacyItem> items, Packet packet) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).matchesCondition(packet, roster, USER)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testJIDItems() {
+        List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+        items.add(createItem(1, true, "jid", "alice@example.com/home"));
+        items.add(createItem(2, false, "jid", "alice@example.com", "message"));
+        items.add(createItem(3, false, "jid", "other.org"));
+        CompiledPrivacyList compiled = new CompiledPrivacyList(USER, items, null, 0);
+
+        Message message = new Message();
+        message.setTo(USER);
+        message.setFrom(new JID("alice@example.com/home"));
+        assertEquals(0, compiled.getMatchingItem(message));
+        message.setFrom(new JID("alice@example.com/work"));
+        assertEquals(1, compiled.getMatchingItem(message));
+        message.setFrom(new JID("carol@other.org/work"));
+        assertEquals(2, compiled.getMatchingItem(message));
+        message.setFrom(new JID("eve@example.com/work"));
+        assertEquals(-1, compiled.getMatchingItem(message));
+
+        IQ iq = new IQ();
+        iq.setTo(USER);
+        iq.setFrom(new JID("alice@example.com/work"));
+        // The second item only filters messages
+        assertEquals(-1, compiled.getMatchingItem(iq));
+    }
+
+    @Test
+    public void testRosterItems() {
+        List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+        items.add(createItem(1, true, "group", "Work"));
+        items.add(createItem(2, false, "subscription", "none", "presence-in"));
+        items.add(createItem(3, false, "subscription", "from"));
+        items.add(createItem(4, false, "group", "Friends", "message"));
+        items.add(createItem(5, true, null, null));
+        CompiledPrivacyList compiled = new CompiledPrivacyList(USER, items, roster, 0);
+
+        Message message = new Message();
+        message.setTo(USER);
+        message.setFrom(new JID("bob@example.com/work"));
+        assertEquals(0, compiled.getMatchingItem(message));
+        message.setFrom(new JID("alice@example.com/home"));
+        assertEquals(3, compiled.getMatchingItem(message));
+        // Subscribed due to a shared group
+        message.setFrom(new JID("dave@other.org/home"));
+        assertEquals(2, compiled.getMatchingItem(message));
+
+        Presence presence = new Presence();
+        presence.setTo(USER);
+        presence.setFrom(new JID("eve@example.com/home"));
+        // Not in the roster
+        assertEquals(1, compiled.getMatchingItem(presence));
+        presence.setFrom(new JID("carol@other.org/home"));
+        assertEquals(1, compiled.getMatchingItem(presence));
+    }
+
+    /**
+     * Compares the compiled list with the items for random lists and packets.
+     */
+    @Test
+    public void testRandomLists() {
+        Random random = new Random(42);
+        String[] jidValues = {"alice@example.com", "alice@example.com/home", "other.org",
+                "example.com", "bob@example.com/work", "eve@example.com"};
+        String[] groups = {"Friends", "Work", "Shared"};
+        String[] subscriptions = {"both", "to", "from", "none"};
+        for (int list = 0; list < 200; list++) {
+            List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+            int size = 1 + random.nextInt(8);
+            for (int i = 0; i < size; i++) {
+                List<String> stanzas = new ArrayList<String>();
+                for (String stanza : STANZAS) {
+                    if (random.nextInt(3) == 0) {
+                        stanzas.add(stanza);
+                    }
+                }
+                String[] filtered = stanzas.toArray(new String[stanzas.size()]);
+                switch (random.nextInt(4)) {
+                    case 0:
+                        items.add(createItem(i, random.nextBoolean(), "jid",
+                                jidValues[random.nextInt(jidValues.length)], filtered));
+                        break;
+                    case 1:
+                        items.add(createItem(i, random.nextBoolean(), "group",
+                                groups[random.nextInt(groups.length)], filtered));
+                        break;
+                    case 2:
+                        items.add(createItem(i, random.nextBoolean(), "subscription",
+                                subscriptions[random.nextInt(subscriptions.length)], filtered));
+                        break;
+                    default:
+                        items.add(createItem(i, random.nextBoolean(), null, null, filtered));
+                }
+            }
+            Collections.sort(items);
+            CompiledPrivacyList compiled = new CompiledPrivacyList(USER, items, roster, 0);
+            for (Packet packet : createPackets()) {
+                assertEquals(packet.toXML(), getExpectedItem(items, packet), compiled.getMatchingItem(packet));
+            }
+        }
+    }
+
+    private static List<Packet> createPackets() {
+        List<Packet> packets = new ArrayList<Packet>();
+        JID user = new JID("owner@example.com/desktop");
+        for (String contact : CONTACTS) {
+            for (String resource : new String[] {"home", "work"}) {
+                JID other = new JID(contact + "/" + resource);
+                Packet[] templates = {new Message(), new IQ(), new Presence(), new Presence(Presence.Type.subscribe),
+                        new Presence(Presence.Type.unavailable), new org.xmpp.packet.Roster()};
+                for (Packet incoming : templates) {
+                    incoming.setFrom(other);
+                    incoming.setTo(user);
+                    packets.add(incoming);
+                    Packet outgoing = incoming.createCopy();
+                    outgoing.setFrom(user);
+                    outgoing.setTo(other);
+                    packets.add(outgoing);
+                }
+            }
+        }
+        return packets;
+    }
+}
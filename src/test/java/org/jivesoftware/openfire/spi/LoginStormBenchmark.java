@@ -0,0 +1,186 @@
+package org.jivesoftware.openfire.spi;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import org.jivesoftware.openfire.RemotePacketRouter;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
+import org.jivesoftware.util.ConcurrentHashSet;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Reproduces the presence broadcasts of a login storm: users log in concurrently and the
+ * presence of each one is routed to all the contacts of the roster. Compares resolving and
+ * routing each contact on its own with the bulk resolution and batched routing of
+ * {@link RoutingTableImpl}. Sessions are hosted by other cluster nodes so every routed
+ * packet, or batch of packets, results in a cluster task. Run it as a plain Java application,
+ * optionally passing the number of users, the roster size and the number of threads.
+ */
+public class LoginStormBenchmark {
+
+    private static final String DOMAIN = "example.com";
+    private static final NodeID[] NODES = new NodeID[4];
+
+    private static final AtomicLong clusterTasks = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rosterSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        for (int i = 0; i < NODES.length; i++) {
+            NODES[i] = NodeID.getInstance(new byte[] {(byte) (i + 1)});
+        }
+        RoutingTableImpl routingTable = createRoutingTable();
+        JID[] contacts = new JID[users];
+        for (int i = 0; i < users; i++) {
+            contacts[i] = new JID("user" + i, DOMAIN, null, true);
+        }
+        JID[][] rosters = new JID[users][rosterSize];
+        Random random = new Random(1);
+        for (int i = 0; i < users; i++) {
+            for (int j = 0; j < rosterSize; j++) {
+                rosters[i][j] = contacts[random.nextInt(users)];
+            }
+        }
+        for (boolean batched : new boolean[] {false, true, false, true}) {
+            reset(users);
+            clusterTasks.set(0);
+            long start = System.nanoTime();
+            storm(routingTable, rosters, threads, batched);
+            long elapsed = System.nanoTime() - start;
+            System.out.println((batched ? "batched:     " : "per contact: ") + users + " logins in "
+                    + elapsed / 1000000 + " ms (" + (users * 1000000000L / elapsed) + " logins/s), "
+                    + clusterTasks.get() / users + " cluster tasks per login");
+        }
+    }
+
+    private static RoutingTableImpl createRoutingTable() throws Exception {
+        RoutingTableImpl routingTable = new RoutingTableImpl();
+        // The routing table is normally initialized by the server
+        setField(routingTable, "serverName", DOMAIN);
+        setField(routingTable, "presenceUpdateHandler", new PresenceUpdateHandler());
+        routingTable.setRemotePacketRouter((RemotePacketRouter) Proxy.newProxyInstance(
+                RemotePacketRouter.class.getClassLoader(), new Class<?>[] {RemotePacketRouter.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        clusterTasks.incrementAndGet();
+                        return true;
+                    }
+                }));
+        return routingTable;
+    }
+
+    private static void setField(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * Leaves half of the users online, each with a session on a random node.
+     */
+    private static void reset(int users) {
+        Cache<String, ClientRoute> usersCache = CacheFactory.createCache(RoutingTableImpl.C2S_CACHE_NAME);
+        Cache<String, Collection<String>> usersSessions = CacheFactory.createCache(RoutingTableImpl.C2S_SESSION_NAME);
+        usersCache.clear();
+        usersSessions.clear();
+        for (int i = 0; i < users; i += 2) {
+            addSession(i, "resident", i % NODES.length);
+        }
+    }
+
+    private static void addSession(int user, String resource, int node) {
+        Cache<String, ClientRoute> usersCache = CacheFactory.createCache(RoutingTableImpl.C2S_CACHE_NAME);
+        Cache<String, Collection<String>> usersSessions = CacheFactory.createCache(RoutingTableImpl.C2S_SESSION_NAME);
+        JID jid = new JID("user" + user, DOMAIN, resource, true);
+        // Same locking as RoutingTableImpl#addClientRoute
+        Lock lock = CacheFactory.getLock(jid.toBareJID(), usersSessions);
+        try {
+            lock.lock();
+            usersCache.put(jid.toString(), new ClientRoute(NODES[node], true));
+            Collection<String> sessions = usersSessions.get(jid.toBareJID());
+            if (sessions == null) {
+                sessions = new ConcurrentHashSet<String>();
+                usersSessions.put(jid.toBareJID(), sessions);
+            }
+            sessions.add(jid.toString());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static void storm(final RoutingTableImpl routingTable, final JID[][] rosters, int threadCount,
+            final boolean batched) throws InterruptedException
+    {
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int first = t;
+            final int step = threadCount;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int user = first; user < rosters.length; user += step) {
+                        addSession(user, "storm", user % NODES.length);
+                        Presence presence = new Presence();
+                        presence.setFrom(new JID("user" + user, DOMAIN, "storm", true));
+                        if (batched) {
+                            broadcastBatched(routingTable, rosters[user], presence);
+                        }
+                        else {
+                            broadcastPerContact(routingTable, rosters[user], presence);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void broadcastPerContact(RoutingTableImpl routingTable, JID[] roster, Presence presence) {
+        for (JID contact : roster) {
+            presence.setTo(contact);
+            for (JID jid : routingTable.getRoutes(contact, null)) {
+                routingTable.routePacket(jid, presence, false);
+            }
+        }
+    }
+
+    private static void broadcastBatched(RoutingTableImpl routingTable, JID[] roster, Presence presence) {
+        List<JID> contacts = new ArrayList<JID>(roster.length);
+        for (JID contact : roster) {
+            contacts.add(contact);
+        }
+        List<JID> jids = new ArrayList<JID>();
+        List<Packet> packets = new ArrayList<Packet>();
+        for (Map.Entry<JID, List<JID>> entry : routingTable.getRoutes(contacts, null).entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            Presence copy = presence.createCopy();
+            copy.setTo(entry.getKey());
+            for (JID jid : entry.getValue()) {
+                jids.add(jid);
+                packets.add(copy);
+            }
+        }
+        routingTable.routePackets(jids, packets, false);
+    }
+}
@@ -0,0 +1,179 @@
+package org.jivesoftware.openfire.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.RemotePacketRouter;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
+import org.jivesoftware.util.ConcurrentHashSet;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Unit tests for the bulk route resolution and batched routing of {@link RoutingTableImpl}.
+ */
+public class RoutingTableImplTest {
+
+    private static final NodeID NODE_A = NodeID.getInstance(new byte[] {1});
+    private static final NodeID NODE_B = NodeID.getInstance(new byte[] {2});
+
+    private RoutingTableImpl routingTable;
+    private Cache<String, ClientRoute> usersCache;
+    private Cache<String, Collection<String>> usersSessions;
+
+    /**
+     * Calls received by the remote packet router.
+     */
+    private final List<Object[]> batches = new ArrayList<Object[]>();
+    private final List<JID> packets = new ArrayList<JID>();
+    private boolean nodeReachable = true;
+    private JID failingJID = null;
+
+    @Before
+    public void setUp() throws Exception {
+        routingTable = new RoutingTableImpl();
+        // The routing table is normally initialized by the server
+        setField("serverName", "example.com");
+        setField("presenceUpdateHandler", new PresenceUpdateHandler());
+        routingTable.setRemotePacketRouter((RemotePacketRouter) Proxy.newProxyInstance(
+                RemotePacketRouter.class.getClassLoader(), new Class<?>[] {RemotePacketRouter.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("routePackets".equals(method.getName())) {
+                            if (!nodeReachable) {
+                                return false;
+                            }
+                            batches.add(args);
+                        }
+                        else if ("routePacket".equals(method.getName())) {
+                            if (args[1].equals(failingJID)) {
+                                throw new IllegalStateException("Failed on purpose");
+                            }
+                            packets.add((JID) args[1]);
+                        }
+                        return true;
+                    }
+                }));
+        usersCache = CacheFactory.createCache(RoutingTableImpl.C2S_CACHE_NAME);
+        usersSessions = CacheFactory.createCache(RoutingTableImpl.C2S_SESSION_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        usersCache.clear();
+        usersSessions.clear();
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = RoutingTableImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(routingTable, value);
+    }
+
+    private void addSession(String address, NodeID nodeID, boolean available) {
+        JID jid = new JID(address);
+        usersCache.put(address, new ClientRoute(nodeID, available));
+        Collection<String> sessions = usersSessions.get(jid.toBareJID());
+        if (sessions == null) {
+            sessions = new ConcurrentHashSet<String>();
+        }
+        sessions.add(address);
+        usersSessions.put(jid.toBareJID(), sessions);
+    }
+
+    @Test
+    public void testBulkRoutesMatchSingleRoutes() {
+        addSession("alice@example.com/home", NODE_A, true);
+        addSession("alice@example.com/work", NODE_B, true);
+        addSession("bob@example.com/home", NODE_A, false);
+        addSession("carol@example.com/home", NODE_B, true);
+        List<JID> routes = Arrays.asList(new JID("alice@example.com"), new JID("bob@example.com"),
+                new JID("dave@example.com"), new JID("carol@example.com/home"),
+                new JID("carol@example.com/gone"), new JID("eve@remote.org"),
+                new JID("room@conference.example.com"));
+
+        Map<JID, List<JID>> result = routingTable.getRoutes(routes, null);
+        assertEquals(routes, new ArrayList<JID>(result.keySet()));
+        for (JID route : routes) {
+            List<JID> expected = routingTable.getRoutes(route, null);
+            assertEquals(route.toString(), expected.size(), result.get(route).size());
+            assertTrue(route.toString(), result.get(route).containsAll(expected));
+        }
+        assertEquals(2, result.get(new JID("alice@example.com")).size());
+        assertTrue(result.get(new JID("bob@example.com")).isEmpty());
+        assertTrue(result.get(new JID("dave@example.com")).isEmpty());
+    }
+
+    @Test
+    public void testPacketsAreBatchedPerNode() {
+        addSession("alice@example.com/home", NODE_A, true);
+        addSession("alice@example.com/work", NODE_B, true);
+        addSession("carol@example.com/home", NODE_A, true);
+        List<JID> jids = new ArrayList<JID>();
+        List<Packet> presences = new ArrayList<Packet>();
+        for (String address : new String[] {"alice@example.com/home", "alice@example.com/work", "carol@example.com/home"}) {
+            Presence presence = new Presence();
+            presence.setFrom("bob@example.com/home");
+            presence.setTo(new JID(address).asBareJID());
+            jids.add(new JID(address));
+            presences.add(presence);
+        }
+
+        routingTable.routePackets(jids, presences, false);
+        assertEquals(2, batches.size());
+        int routed = 0;
+        for (Object[] batch : batches) {
+            NodeID nodeID = NodeID.getInstance((byte[]) batch[0]);
+            List<?> receipients = (List<?>) batch[1];
+            assertEquals(receipients.size(), ((List<?>) batch[2]).size());
+            assertEquals(NODE_A.equals(nodeID) ? 2 : 1, receipients.size());
+            routed += receipients.size();
+        }
+        assertEquals(3, routed);
+        assertTrue(packets.isEmpty());
+    }
+
+    @Test
+    public void testUnreachableNodeFallsBackToSingleRouting() {
+        addSession("alice@example.com/home", NODE_A, true);
+        addSession("carol@example.com/home", NODE_A, true);
+        nodeReachable = false;
+        Presence presence = new Presence();
+        presence.setFrom("bob@example.com/home");
+        routingTable.routePackets(Arrays.asList(new JID("alice@example.com/home"), new JID("carol@example.com/home")),
+                Arrays.<Packet>asList(presence, presence), false);
+        assertTrue(batches.isEmpty());
+        assertEquals(Arrays.asList(new JID("alice@example.com/home"), new JID("carol@example.com/home")), packets);
+    }
+
+    @Test
+    public void testFailedPacketDoesNotAbortBatch() {
+        addSession("alice@example.com/home", NODE_A, true);
+        addSession("carol@example.com/home", NODE_A, true);
+        addSession("dave@example.com/home", NODE_A, true);
+        nodeReachable = false;
+        failingJID = new JID("carol@example.com/home");
+        Presence presence = new Presence();
+        presence.setFrom("bob@example.com/home");
+        routingTable.routePackets(Arrays.asList(new JID("alice@example.com/home"), new JID("carol@example.com/home"),
+                new JID("dave@example.com/home")), Arrays.<Packet>asList(presence, presence, presence), false);
+        assertEquals(Arrays.asList(new JID("alice@example.com/home"), new JID("dave@example.com/home")), packets);
+    }
+}
@@ -0,0 +1,128 @@
+package org.jivesoftware.openfire.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MetricsRegistry} and its metrics.
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void testBucketBounds() {
+        for (long nanos = 0; nanos < 1000000; nanos++) {
+            int bucket = Timer.getBucket(nanos);
+            assertTrue(Timer.getLowerBound(bucket) <= nanos);
+            assertTrue(nanos < Timer.getLowerBound(bucket + 1));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long nanos = random.nextLong() & ((1L << 41) - 1);
+            int bucket = Timer.getBucket(nanos);
+            assertTrue(Timer.getLowerBound(bucket) <= nanos);
+            assertTrue(nanos < Timer.getLowerBound(bucket + 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Timer timer = new Timer();
+        assertEquals(0, timer.getPercentile(0.5));
+        for (long i = 1; i <= 100000; i++) {
+            timer.update(i * 1000);
+        }
+        assertEquals(100000, timer.getCount());
+        assertEquals(100000000L, timer.getMax());
+        assertEquals(100000L * 100001 / 2 * 1000, timer.getTotal());
+        double[] percentiles = {0.5, 0.9, 0.99, 0.999};
+        for (double percentile : percentiles) {
+            double expected = percentile * 100000000L;
+            double actual = timer.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual, Math.abs(actual - expected) / expected < 0.04);
+        }
+        assertEquals(100000000L, timer.getPercentile(1));
+    }
+
+    @Test
+    public void testConcurrentCounter() throws Exception {
+        final Counter counter = new Counter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, counter.getCount());
+    }
+
+    @Test
+    public void testRegistry() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Timer timer = registry.getTimer("router.iq");
+        assertSame(timer, registry.getTimer("router.iq"));
+        try {
+            registry.getCounter("router.iq");
+            fail("expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        registry.getCounter("packets").add(5);
+        registry.addGauge("sessions", new Gauge() {
+            @Override
+            public long getValue() {
+                return 3;
+            }
+        });
+        timer.update(2000000);
+
+        StringBuilder out = new StringBuilder();
+        registry.writeText(out);
+        String text = out.toString();
+        assertTrue(text, text.contains("# TYPE openfire_packets counter\nopenfire_packets 5\n"));
+        assertTrue(text, text.contains("# TYPE openfire_sessions gauge\nopenfire_sessions 3\n"));
+        assertTrue(text, text.contains("openfire_router_iq_seconds_count 1\n"));
+        assertTrue(text, text.contains("openfire_router_iq_seconds_sum 0.002\n"));
+
+        registry.removeMetric("sessions");
+        assertEquals(null, registry.getMetric("sessions"));
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.getCounter("before").increment();
+        registry.registerMBeans(server);
+        registry.getTimer("after").update(1000000);
+
+        ObjectName before = new ObjectName("org.jivesoftware.openfire:type=Metrics,name=\"before\"");
+        ObjectName after = new ObjectName("org.jivesoftware.openfire:type=Metrics,name=\"after\"");
+        assertEquals(1L, server.getAttribute(before, "Count"));
+        assertEquals(1L, server.getAttribute(after, "Count"));
+        assertEquals(1.0, (Double) server.getAttribute(after, "Max"), 0.0001);
+
+        registry.removeMetric("after");
+        assertFalse(server.isRegistered(after));
+    }
+}
@@ -0,0 +1,87 @@
+package org.jivesoftware.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RingBuffer}.
+ */
+public class RingBufferTest {
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new RingBuffer<String>(1).getCapacity());
+        assertEquals(8, new RingBuffer<String>(5).getCapacity());
+        assertEquals(16384, new RingBuffer<String>(10000).getCapacity());
+    }
+
+    @Test
+    public void testFifo() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+        assertNull(buffer.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(2, buffer.drainTo(drained, 2));
+        assertEquals(2, buffer.drainTo(drained, 10));
+        assertEquals("[1, 2, 3, 4]", drained.toString());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(1024);
+        final int producers = 4;
+        final int perProducer = 50000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        int[] last = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            last[p] = -1;
+        }
+        List<Integer> drained = new ArrayList<Integer>();
+        int received = 0;
+        while (received < producers * perProducer) {
+            if (buffer.drainTo(drained, 256) == 0) {
+                Thread.yield();
+            }
+            for (Integer value : drained) {
+                int producer = value / perProducer;
+                // Elements of each producer are taken in the order they were added
+                assertEquals(last[producer] + 1, value % perProducer);
+                last[producer] = value % perProducer;
+            }
+            received += drained.size();
+            drained.clear();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
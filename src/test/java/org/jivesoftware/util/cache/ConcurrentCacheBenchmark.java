@@ -0,0 +1,82 @@
+package org.jivesoftware.util.cache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the throughput of {@link DefaultCache} and {@link ConcurrentCache} when several
+ * threads read a cache concurrently and add the keys they miss, as the cached lookups of the
+ * server do. By default the cache holds about half of the keys so that objects are evicted all
+ * along. Run it with the test classpath: <tt>java org.jivesoftware.util.cache.ConcurrentCacheBenchmark
+ * [operations per thread] [keys] [percentage of the keys that fit in the cache]</tt>.
+ */
+public class ConcurrentCacheBenchmark {
+
+    private static final int[] THREADS = {1, 8, 32};
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int cached = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "user" + i + "@example.com";
+        }
+        long maxSize = (long) keyCount * CacheSizes.sizeOfString(keys[0]) * cached / 100;
+        System.out.println(String.format("%-16s %8s %14s %10s", "cache", "threads", "ops/s", "hit ratio"));
+        for (int threads : THREADS) {
+            // Warm up
+            run(new DefaultCache<String, String>("benchmark", maxSize, -1), keys, threads, operations / 4);
+            run(new ConcurrentCache<String, String>("benchmark", maxSize, -1), keys, threads, operations / 4);
+
+            print("DefaultCache", threads, operations, keys,
+                    new DefaultCache<String, String>("benchmark", maxSize, -1));
+            print("ConcurrentCache", threads, operations, keys,
+                    new ConcurrentCache<String, String>("benchmark", maxSize, -1));
+        }
+    }
+
+    private static void print(String name, int threads, int operations, String[] keys, Cache<String, String> cache)
+            throws InterruptedException
+    {
+        long elapsed = run(cache, keys, threads, operations);
+        long total = (long) threads * operations;
+        double hits = cache.getCacheHits();
+        System.out.println(String.format("%-16s %8d %14d %10.2f", name, threads,
+                total * 1000000000L / elapsed, hits / (hits + cache.getCacheMisses())));
+    }
+
+    private static long run(final Cache<String, String> cache, final String[] keys, int threads,
+            final int operations) throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < operations; j++) {
+                            String key = keys[random.nextInt(keys.length)];
+                            if (cache.get(key) == null) {
+                                cache.put(key, key);
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+}
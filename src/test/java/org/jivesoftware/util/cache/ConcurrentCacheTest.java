@@ -0,0 +1,115 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ConcurrentCache}.
+ */
+public class ConcurrentCacheTest {
+
+    @Test
+    public void testPutGetRemove() {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, -1);
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.get("a"));
+        assertEquals(1, cache.size());
+        assertEquals(CacheSizes.sizeOfString("2"), cache.getCacheSize());
+        assertEquals("2", cache.remove("a"));
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.getCacheSize());
+        assertNull(cache.get(null));
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, -1);
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        assertEquals(2, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+        cache.clear();
+        assertEquals(0, cache.getCacheHits());
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testCullKeepsReferencedEntries() {
+        int entrySize = CacheSizes.sizeOfString("value00");
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", entrySize * 10, -1);
+        for (int i = 0; i < 9; i++) {
+            cache.put("key" + i, "value0" + i);
+        }
+        // Reference the oldest entry so that it survives the next cull.
+        cache.get("key0");
+        cache.put("key9", "value09");
+        cache.put("key10", "value10");
+
+        assertTrue(cache.getCacheSize() <= entrySize * 9);
+        assertTrue(cache.containsKey("key0"));
+        assertFalse(cache.containsKey("key1"));
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, 50);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertFalse(cache.containsKey("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testConcurrentSizeAccounting() throws Exception {
+        final Cache<Integer, String> cache = new ConcurrentCache<Integer, String>("test", 10000, -1);
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 5000; i++) {
+                            int key = (i * 31 + seed) % 500;
+                            if (i % 3 == 0) {
+                                cache.remove(key);
+                            }
+                            else {
+                                cache.put(key, "value" + key);
+                            }
+                            cache.get(key);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+
+        assertEquals(0, failures.get());
+        int expectedSize = 0;
+        for (String value : cache.values()) {
+            expectedSize += CacheSizes.sizeOfString(value);
+        }
+        assertEquals(expectedSize, cache.getCacheSize());
+    }
+}
@@ -0,0 +1,91 @@
+package org.jivesoftware.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+/**
+ * Compares the bytes and the CPU time needed to send the element of a routed packet
+ * to another cluster node with Java serialization and with {@link ElementCodec}. Run it
+ * with the test classpath: <tt>java org.jivesoftware.util.cache.ElementCodecBenchmark [iterations]</tt>.
+ */
+public class ElementCodecBenchmark {
+
+    private interface Codec {
+        byte[] encode(Element element) throws Exception;
+        Element decode(byte[] bytes) throws Exception;
+    }
+
+    private static final Codec SERIALIZATION = new Codec() {
+        public byte[] encode(Element element) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(element);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        public Element decode(byte[] bytes) throws Exception {
+            return (Element) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        }
+    };
+
+    private static final Codec BINARY = new Codec() {
+        public byte[] encode(Element element) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            ElementCodec.writeElement(out, element);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        public Element decode(byte[] bytes) throws IOException {
+            return ElementCodec.readElement(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String[][] stanzas = {
+                {"chat message", ElementCodecTest.MESSAGE},
+                {"MUC presence", ElementCodecTest.MUC_PRESENCE},
+                {"disco#info result", ElementCodecTest.DISCO_RESULT}
+        };
+        System.out.println(String.format("%-18s %-14s %8s %12s %12s", "stanza", "format", "bytes",
+                "encode (us)", "decode (us)"));
+        for (String[] stanza : stanzas) {
+            Element element = DocumentHelper.parseText(stanza[1]).getRootElement();
+            run(stanza[0], "serialization", SERIALIZATION, element, iterations);
+            run(stanza[0], "binary", BINARY, element, iterations);
+        }
+    }
+
+    private static void run(String name, String format, Codec codec, Element element, int iterations)
+            throws Exception
+    {
+        byte[] bytes = codec.encode(element);
+        // Warm up
+        for (int i = 0; i < iterations / 4; i++) {
+            codec.decode(codec.encode(element));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.encode(element);
+        }
+        long encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.decode(bytes);
+        }
+        long decode = System.nanoTime() - start;
+        System.out.println(String.format("%-18s %-14s %8d %12.2f %12.2f", name, format, bytes.length,
+                encode / 1000.0 / iterations, decode / 1000.0 / iterations));
+    }
+}
@@ -0,0 +1,135 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Unit tests for {@link ElementCodec}.
+ */
+public class ElementCodecTest {
+
+    static final String MESSAGE = "<message xmlns=\"jabber:client\" to=\"juliet@capulet.lit/balcony\" "
+            + "from=\"romeo@montague.lit/orchard\" type=\"chat\" id=\"ktx72v49\" xml:lang=\"en\">"
+            + "<body>Art thou not Romeo, and a Montague?</body>"
+            + "<active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>";
+
+    static final String MUC_PRESENCE = "<presence xmlns=\"jabber:client\" "
+            + "from=\"coven@chat.shakespeare.lit/thirdwitch\" to=\"hag66@shakespeare.lit/pda\" id=\"n13mt3l\">"
+            + "<c xmlns=\"http://jabber.org/protocol/caps\" hash=\"sha-1\" node=\"http://psi-im.org\" "
+            + "ver=\"q07IKJEyjvHSyhy//CH0CxmKi8w=\"/>"
+            + "<x xmlns=\"http://jabber.org/protocol/muc#user\">"
+            + "<item affiliation=\"member\" jid=\"hag66@shakespeare.lit/pda\" role=\"participant\"/>"
+            + "<status code=\"110\"/></x></presence>";
+
+    static final String DISCO_RESULT = "<iq xmlns=\"jabber:client\" type=\"result\" "
+            + "from=\"plays.shakespeare.lit\" to=\"romeo@montague.net/orchard\" id=\"info1\">"
+            + "<query xmlns=\"http://jabber.org/protocol/disco#info\">"
+            + "<identity category=\"conference\" type=\"text\" name=\"Play-Specific Chatrooms\"/>"
+            + "<feature var=\"http://jabber.org/protocol/disco#info\"/>"
+            + "<feature var=\"http://jabber.org/protocol/muc\"/>"
+            + "<x xmlns=\"jabber:x:data\" type=\"result\"><field var=\"FORM_TYPE\" type=\"hidden\">"
+            + "<value>http://jabber.org/network/serverinfo</value></field></x></query></iq>";
+
+    static byte[] encode(Element element) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ElementCodec.writeElement(out, element);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Element decode(byte[] bytes) throws IOException {
+        return ElementCodec.readElement(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static void assertRoundTrip(String xml) throws Exception {
+        Element element = DocumentHelper.parseText(xml).getRootElement();
+        Element decoded = decode(encode(element));
+        assertEquals(element.asXML(), decoded.asXML());
+    }
+
+    @Test
+    public void testStanzasRoundTrip() throws Exception {
+        assertRoundTrip(MESSAGE);
+        assertRoundTrip(MUC_PRESENCE);
+        assertRoundTrip(DISCO_RESULT);
+    }
+
+    @Test
+    public void testNamespacesAndContent() throws Exception {
+        assertRoundTrip("<message xmlns=\"jabber:server\" xmlns:foo=\"urn:example:foo\" to=\"a@b\">"
+                + "<foo:bar foo:attr=\"1\">x<![CDATA[<raw>]]>y<!--note-->z</foo:bar>"
+                + "<html xmlns=\"http://jabber.org/protocol/xhtml-im\"><body xmlns=\"http://www.w3.org/1999/xhtml\">"
+                + "<p>café 😀 &amp; &lt;</p></body></html></message>");
+    }
+
+    @Test
+    public void testPacketElement() throws Exception {
+        Message message = new Message();
+        message.setTo("juliet@capulet.lit");
+        message.setFrom("romeo@montague.lit/orchard");
+        message.setType(Message.Type.groupchat);
+        message.setBody("hello");
+        Message decoded = new Message(decode(encode(message.getElement())), true);
+        assertEquals(message.toXML(), decoded.toXML());
+        assertEquals(message.getFrom(), decoded.getFrom());
+    }
+
+    @Test
+    public void testLongText() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        Element element = DocumentHelper.createElement("message");
+        element.addElement("body").setText(text.toString());
+        assertEquals(text.toString(), decode(encode(element)).elementText("body"));
+    }
+
+    @Test
+    public void testNullElement() throws Exception {
+        assertNull(decode(encode(null)));
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws Exception {
+        for (String xml : new String[] {MESSAGE, MUC_PRESENCE, DISCO_RESULT}) {
+            Element element = DocumentHelper.parseText(xml).getRootElement();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(element);
+            out.close();
+            int encoded = encode(element).length;
+            assertTrue(encoded + " >= " + bytes.size(), encoded * 4 < bytes.size());
+            // Also smaller than the XML text
+            assertTrue(encoded < xml.length());
+        }
+    }
+
+    @Test
+    public void testUnknownVersion() throws Exception {
+        byte[] bytes = encode(DocumentHelper.parseText(MESSAGE).getRootElement());
+        bytes[0] = 99;
+        try {
+            decode(bytes);
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+    }
+}
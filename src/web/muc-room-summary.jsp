@@ -67,19 +67,23 @@
         webManager.setRowsPerPage("muc-room-summary", range);
     }
 
-    // Get the rooms in the server
-    List<MUCRoom> rooms = mucService.getChatRooms();
-    Collections.sort(rooms, new Comparator<MUCRoom>() {
-        public int compare(MUCRoom room1, MUCRoom room2) {
-            return room1.getName().toLowerCase().compareTo(room2.getName().toLowerCase());
-        }
-    });
-    int roomsCount = rooms.size();
+    // Get the names of the rooms in the server. Only the rooms of the page are loaded.
+    List<String> roomNames = mucService.getChatRoomNames();
+    Collections.sort(roomNames);
+    int roomsCount = roomNames.size();
 
     // paginator vars
     int numPages = (int)Math.ceil((double)roomsCount/(double)range);
     int curPage = (start/range) + 1;
     int maxRoomIndex = (start+range <= roomsCount ? start+range : roomsCount);
+
+    List<MUCRoom> rooms = new ArrayList<MUCRoom>();
+    for (String roomName : roomNames.subList(Math.min(start, maxRoomIndex), maxRoomIndex)) {
+        MUCRoom room = mucService.getChatRoom(roomName);
+        if (room != null) {
+            rooms.add(room);
+        }
+    }
 %>
 <html>
     <head>
@@ -170,7 +174,7 @@
 <tbody>
 
 <%  // Print the list of rooms
-    Iterator<MUCRoom> roomsPage = rooms.subList(start, maxRoomIndex).iterator();
+    Iterator<MUCRoom> roomsPage = rooms.iterator();
     if (!roomsPage.hasNext()) {
 %>
     <tr>
@@ -19,6 +19,8 @@
 
 <%@ page import="org.jivesoftware.util.*,
                  org.jivesoftware.database.DbConnectionManager,
+                 org.jivesoftware.database.ConnectionProvider,
+                 org.jivesoftware.database.PooledConnectionProvider,
                  java.sql.*"
     errorPage="error.jsp"
 %>
@@ -165,7 +167,154 @@
         catch (SQLException e) { Log.error(e); }
     }
 
-    if (DbConnectionManager.getConnectionProvider().isPooled()) {
+    ConnectionProvider connectionProvider = DbConnectionManager.getConnectionProvider();
+    if (connectionProvider instanceof PooledConnectionProvider) {
+        PooledConnectionProvider pool = (PooledConnectionProvider) connectionProvider;
+        long[] histogramBounds = pool.getCheckoutHistogramBounds();
+        long[] histogram = pool.getCheckoutHistogram();
+%>
+
+<br/><br/>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th colspan="2"><fmt:message key="server.db.pool_info" /></th>
+    </tr>
+</thead>
+<tbody>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.house_keeping_sleep" />
+        </td>
+        <td class="c2">
+            <%= (pool.getHouseKeepingInterval() / 1000) %> <fmt:message key="server.db_stats.seconds" />
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.connection_lifetime" />
+        </td>
+        <td class="c2">
+            <%= (long) (86400 * pool.getConnectionTimeout()) %> <fmt:message key="server.db_stats.seconds" />
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.connection_min" />
+        </td>
+        <td class="c2">
+            <%= pool.getMinConnections() %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.connection_max" />
+        </td>
+        <td class="c2">
+            <%= pool.getMaxConnections() %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.house_keeping_sql" />
+        </td>
+        <td class="c2">
+            <%= StringUtils.escapeHTMLTags(pool.getTestSQL()) %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.test_before_use" />
+        </td>
+        <td class="c2">
+            <%= (pool.getTestBeforeUse() ? "Yes" : "No") %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.test_after_use" />
+        </td>
+        <td class="c2">
+            <%= (pool.getTestAfterUse() ? "Yes" : "No") %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.connections" />
+        </td>
+        <td class="c2">
+            <%= pool.getActiveConnections() %> (<fmt:message key="server.db.connections.active"/>),
+            <%= pool.getIdleConnections() %> (<fmt:message key="server.db.connections.available"/>),
+            <%= pool.getMaxConnections() %> (<fmt:message key="server.db.connections.max"/>)
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.waiting_threads" />
+        </td>
+        <td class="c2">
+            <%= pool.getWaitingThreads() %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.connections_served" />
+        </td>
+        <td class="c2">
+            <%= pool.getConnectionsServed() %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.connections_refused" />
+        </td>
+        <td class="c2">
+            <%= pool.getConnectionsRefused() %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.connections_leaked" />
+        </td>
+        <td class="c2">
+            <%= pool.getConnectionsLeaked() %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.checkout_time" />
+        </td>
+        <td class="c2">
+            <%= String.format("%.3f", pool.getAverageCheckoutTime()) %> ms
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.checkout_time.histogram" />
+        </td>
+        <td class="c2">
+<%          for (int i = 0; i < histogram.length; i++) { %>
+            <%= histogramBounds[i] == Long.MAX_VALUE ? "&gt; " + histogramBounds[i - 1] : "&lt;= " + histogramBounds[i] %> &micro;s: <%= histogram[i] %><br/>
+<%          } %>
+        </td>
+    </tr>
+    <tr>
+        <td class="c1">
+            <fmt:message key="server.db.statement_cache" />
+        </td>
+        <td class="c2">
+            <%= pool.getStatementCacheHits() %> (<fmt:message key="server.db.statement_cache.hits"/>),
+            <%= pool.getStatementCacheMisses() %> (<fmt:message key="server.db.statement_cache.misses"/>)
+        </td>
+    </tr>
+</tbody>
+</table>
+</div>
+<%
+    }
+    else if (connectionProvider.isPooled()) {
         try {
             // Get metadata about the connection pool
             ConnectionPoolDefinitionIF poolDef = ProxoolFacade.getConnectionPoolDefinition("openfire");
@@ -0,0 +1,119 @@
+<%@ page import="org.jivesoftware.openfire.container.StartupReport"%>
+<%@ page import="org.jivesoftware.util.JiveGlobals"%>
+<%@ page import="org.jivesoftware.util.StringUtils"%>
+<%@ page import="java.util.Date"%>
+<%@ page import="java.util.List"%>
+<%@ page import="java.util.Map"%>
+<%--
+  -	$RCSfile$
+  -	$Revision: $
+  -	$Date: $
+  -
+  - Copyright (C) 2005-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+
+<%@ taglib uri="http://java.sun.com/jstl/core_rt" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jstl/fmt_rt" prefix="fmt" %>
+
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+
+<html>
+    <head>
+        <title><fmt:message key="server.startup.title"/></title>
+        <meta name="pageID" content="server-startup"/>
+    </head>
+    <body>
+
+<%  StartupReport report = webManager.getXMPPServer().getStartupReport();
+    Map<String, Long> phases = report.getPhases();
+    List<StartupReport.Entry> entries = report.getEntries();
+%>
+
+<p>
+<fmt:message key="server.startup.info" />
+</p>
+
+<b><fmt:message key="server.startup.phases" /></b><br>
+<br>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th width="80%" nowrap><fmt:message key="server.startup.head.phase" /></th>
+        <th width="20%" nowrap><fmt:message key="server.startup.head.elapsed" /></th>
+    </tr>
+</thead>
+<tbody>
+<%  if (phases.isEmpty()) { %>
+    <tr>
+        <td colspan="2" align="center"><fmt:message key="server.startup.none" /></td>
+    </tr>
+<%  }
+    for (Map.Entry<String, Long> phase : phases.entrySet()) { %>
+    <tr>
+        <td><%= StringUtils.escapeHTMLTags(phase.getKey()) %></td>
+        <td><%= phase.getValue() %></td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+
+<br>
+<b><fmt:message key="server.startup.steps" /></b><br>
+<br>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th width="15%" nowrap><fmt:message key="server.startup.head.phase" /></th>
+        <th width="35%" nowrap><fmt:message key="server.startup.head.name" /></th>
+        <th width="20%" nowrap><fmt:message key="server.startup.head.start" /></th>
+        <th width="10%" nowrap><fmt:message key="server.startup.head.elapsed" /></th>
+        <th width="15%" nowrap><fmt:message key="server.startup.head.thread" /></th>
+        <th width="5%" nowrap><fmt:message key="server.startup.head.status" /></th>
+    </tr>
+</thead>
+<tbody>
+<%  if (entries.isEmpty()) { %>
+    <tr>
+        <td colspan="6" align="center"><fmt:message key="server.startup.none" /></td>
+    </tr>
+<%  }
+    for (StartupReport.Entry entry : entries) { %>
+    <tr class="<%= (entry.isFailed() ? "jive-error" : "") %>">
+        <td><%= StringUtils.escapeHTMLTags(entry.getPhase()) %></td>
+        <td><%= StringUtils.escapeHTMLTags(entry.getName()) %></td>
+        <td><%= JiveGlobals.formatDateTime(new Date(entry.getStartTime())) %></td>
+        <td><%= entry.getElapsedTime() %></td>
+        <td><%= StringUtils.escapeHTMLTags(entry.getThread()) %></td>
+        <td>
+            <%  if (entry.isFailed()) { %>
+                <fmt:message key="server.startup.failed" />
+            <%  } else { %>
+                <fmt:message key="server.startup.ok" />
+            <%  } %>
+        </td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+
+    </body>
+</html>